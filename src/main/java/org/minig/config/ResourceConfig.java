@@ -5,10 +5,14 @@ import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
 import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
 import org.minig.server.resource.argumentresolver.CompositeIdHandlerMethodArgumentResolver;
 import org.minig.server.resource.argumentresolver.StringIdHandlerMethodArgumentResolver;
+import org.minig.server.MailMessage;
 import org.minig.server.resource.config.CompositeAttachmentIdSerializer;
+import org.minig.server.resource.config.MailMessageFilter;
 import org.minig.server.service.CompositeAttachmentId;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -76,6 +80,9 @@ public class ResourceConfig extends WebMvcConfigurerAdapter {
 		testModule.addSerializer(CompositeAttachmentId.class, new CompositeAttachmentIdSerializer());
 		objectMapper.registerModule(testModule);
 
+		objectMapper.addMixIn(MailMessage.class, MailMessageFilter.class);
+		objectMapper.setFilterProvider(new SimpleFilterProvider().setDefaultFilter(SimpleBeanPropertyFilter.serializeAll()));
+
 		return objectMapper;
 	}
 }
@@ -1,16 +1,26 @@
 package org.minig.config;
 
-import org.minig.server.converter.MessageToCompositeAttachmentIdConverter;
 import org.minig.server.converter.PartToMailAttachmentConverter;
+import org.minig.server.service.impl.AttachmentCache;
+import org.minig.server.service.impl.DraftStore;
+import org.minig.server.service.impl.FolderWatchServiceImpl;
+import org.minig.server.service.impl.MailStorePool;
+import org.minig.server.service.impl.MessageIndex;
 import org.minig.server.service.submission.JavaMailSenderFactory;
+import org.minig.server.service.submission.PostSendQueue;
+import org.minig.server.service.submission.SmtpTransportPool;
+import org.minig.util.PrivateFiles;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.context.support.ConversionServiceFactoryBean;
 import org.springframework.core.convert.converter.Converter;
 
+import java.io.File;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Kamill Sokol
@@ -19,16 +29,107 @@ import java.util.Set;
 @Profile({ "dev", "prod" })
 public class ServiceConfig {
 
+    @Value("${minig.spool.directory}")
+    public void setSpoolDirectory(File directory) {
+        PrivateFiles.setTempDirectory(directory);
+    }
+
+    @Bean
+    public JavaMailSenderFactory javaMailSenderFactory(SmtpTransportPool smtpTransportPool) {
+        JavaMailSenderFactory javaMailSenderFactory = new JavaMailSenderFactory();
+        javaMailSenderFactory.setTransportPool(smtpTransportPool);
+        return javaMailSenderFactory;
+    }
+
+    @Bean
+    public SmtpTransportPool smtpTransportPool(@Value("${minig.smtp.pool.max-per-user:2}") int maxPerUser,
+                                               @Value("${minig.smtp.pool.idle-timeout-seconds:60}") long idleTimeout,
+                                               @Value("${minig.smtp.pool.borrow-timeout-seconds:30}") long borrowTimeout) {
+        SmtpTransportPool smtpTransportPool = new SmtpTransportPool();
+        smtpTransportPool.setMaxConnectionsPerUser(maxPerUser);
+        smtpTransportPool.setIdleTimeout(TimeUnit.SECONDS.toMillis(idleTimeout));
+        smtpTransportPool.setBorrowTimeout(TimeUnit.SECONDS.toMillis(borrowTimeout));
+        return smtpTransportPool;
+    }
+
+    @Bean
+    public MailStorePool mailStorePool(@Value("${minig.imap.pool.max-per-user:4}") int maxPerUser,
+                                       @Value("${minig.imap.pool.idle-timeout-seconds:300}") long idleTimeout,
+                                       @Value("${minig.imap.pool.borrow-timeout-seconds:30}") long borrowTimeout) {
+        MailStorePool mailStorePool = new MailStorePool();
+        mailStorePool.setMaxConnectionsPerUser(maxPerUser);
+        mailStorePool.setIdleTimeout(TimeUnit.SECONDS.toMillis(idleTimeout));
+        mailStorePool.setBorrowTimeout(TimeUnit.SECONDS.toMillis(borrowTimeout));
+        return mailStorePool;
+    }
+
+    @Bean
+    public FolderWatchServiceImpl folderWatchService(@Value("${minig.imap.watch.max-watchers:1000}") int maxWatchers,
+                                                     @Value("${minig.imap.watch.idle-timeout-seconds:120}") long idleTimeout,
+                                                     @Value("${minig.imap.watch.poll-interval-seconds:30}") long pollInterval,
+                                                     @Value("${minig.imap.watch.poll-threads:4}") int pollThreads,
+                                                     @Value("${minig.imap.watch.publish-threads:8}") int publishThreads) {
+        FolderWatchServiceImpl folderWatchService = new FolderWatchServiceImpl();
+        folderWatchService.setMaxWatchers(maxWatchers);
+        folderWatchService.setIdleTimeout(TimeUnit.SECONDS.toMillis(idleTimeout));
+        folderWatchService.setPollInterval(TimeUnit.SECONDS.toMillis(pollInterval));
+        folderWatchService.setPollThreads(pollThreads);
+        folderWatchService.setPublishThreads(publishThreads);
+        return folderWatchService;
+    }
+
+    @Bean
+    public AttachmentCache attachmentCache(@Value("${minig.attachment.cache.max-memory-mb:32}") long maxMemory,
+                                           @Value("${minig.attachment.cache.max-disk-mb:1024}") long maxDisk,
+                                           @Value("${minig.attachment.cache.max-per-user-mb:100}") long maxPerUser) {
+        AttachmentCache attachmentCache = new AttachmentCache();
+        attachmentCache.setMaxMemoryBytes(maxMemory * 1024 * 1024);
+        attachmentCache.setMaxDiskBytes(maxDisk * 1024 * 1024);
+        attachmentCache.setMaxBytesPerUser(maxPerUser * 1024 * 1024);
+        return attachmentCache;
+    }
+
+    @Bean
+    public DraftStore draftStore(@Value("${minig.draft.staging.max-per-user-mb:100}") long maxPerUser,
+                                 @Value("${minig.draft.staging.max-idle-hours:24}") long maxIdle) {
+        DraftStore draftStore = new DraftStore();
+        draftStore.setMaxBytesPerUser(maxPerUser * 1024 * 1024);
+        draftStore.setMaxIdleTime(TimeUnit.HOURS.toMillis(maxIdle));
+        return draftStore;
+    }
+
+    @Bean
+    public MessageIndex messageIndex(@Value("${minig.search.index.directory}") File directory,
+                                     @Value("${minig.search.index.batch-size:500}") int batchSize,
+                                     @Value("${minig.search.index.max-open-folders:64}") int maxOpenFolders,
+                                     @Value("${minig.search.index.max-open-folders-per-user:4}") int maxOpenFoldersPerUser) {
+        MessageIndex messageIndex = new MessageIndex();
+        messageIndex.setDirectory(directory);
+        messageIndex.setBatchSize(batchSize);
+        messageIndex.setMaxOpenFolders(maxOpenFolders);
+        messageIndex.setMaxOpenFoldersPerUser(maxOpenFoldersPerUser);
+        return messageIndex;
+    }
+
     @Bean
-    public JavaMailSenderFactory javaMailSenderFactory() {
-        return new JavaMailSenderFactory();
+    public PostSendQueue postSendQueue(@Value("${minig.submission.post-send.directory}") File directory,
+                                       @Value("${minig.submission.post-send.threads:2}") int threads,
+                                       @Value("${minig.submission.post-send.max-attempts:10}") int maxAttempts,
+                                       @Value("${minig.submission.post-send.retry-delay-seconds:5}") long retryDelay,
+                                       @Value("${minig.submission.post-send.failed-retention-days:7}") long failedRetention) {
+        PostSendQueue postSendQueue = new PostSendQueue();
+        postSendQueue.setDirectory(directory);
+        postSendQueue.setThreads(threads);
+        postSendQueue.setMaxAttempts(maxAttempts);
+        postSendQueue.setRetryDelay(TimeUnit.SECONDS.toMillis(retryDelay));
+        postSendQueue.setFailedRetention(TimeUnit.DAYS.toMillis(failedRetention));
+        return postSendQueue;
     }
 
     @Bean
     public ConversionServiceFactoryBean conversionService() {
         ConversionServiceFactoryBean conversionServiceFactoryBean = new ConversionServiceFactoryBean();
         Set<Converter> converters = new HashSet<>();
-        converters.add(new MessageToCompositeAttachmentIdConverter());
         converters.add(new PartToMailAttachmentConverter());
         conversionServiceFactoryBean.setConverters(converters);
         return conversionServiceFactoryBean;
@@ -0,0 +1,54 @@
+package org.minig.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Change of a watched folder. UIDs of expunged messages are only listed if they were known before the expunge.
+ *
+ * @author Kamill Sokol
+ */
+public class FolderEvent {
+
+    public enum Type {
+        ADDED, EXPUNGED, CHANGED
+    }
+
+    private Type type;
+    private String folder;
+    private List<Long> uids = new ArrayList<>();
+
+    public FolderEvent() {
+        // empty
+    }
+
+    public FolderEvent(Type type, String folder, List<Long> uids) {
+        this.type = type;
+        this.folder = folder;
+        this.uids = uids;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public String getFolder() {
+        return folder;
+    }
+
+    public void setFolder(String folder) {
+        this.folder = folder;
+    }
+
+    public List<Long> getUids() {
+        return uids;
+    }
+
+    public void setUids(List<Long> uids) {
+        this.uids = uids;
+    }
+}
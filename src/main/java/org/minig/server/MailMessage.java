@@ -32,6 +32,7 @@ public class MailMessage extends CompositeId {
     private Boolean deleted;
     private String inReplyTo;
     private String forwardedMessageId;
+    private String threadId;
 
     public String getSubject() {
         return subject;
@@ -206,4 +207,15 @@ public class MailMessage extends CompositeId {
     public void setForwardedMessageId(String forwardedMessageId) {
         this.forwardedMessageId = forwardedMessageId;
     }
+
+    /**
+     * @return id of the first message of the thread this message belongs to, only set when listing threads
+     */
+    public String getThreadId() {
+        return threadId;
+    }
+
+    public void setThreadId(String threadId) {
+        this.threadId = threadId;
+    }
 }
@@ -0,0 +1,70 @@
+package org.minig.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes of a folder since the state described by a sync token.
+ *
+ * If {@link #isReset()} is {@code true} the token was unknown or the folder has been recreated. Clients have to reload
+ * the folder and continue with {@link #getToken()}.
+ *
+ * @author Kamill Sokol
+ */
+public class MailMessageSync {
+
+    private String token;
+    private boolean reset;
+    private List<MailMessage> added = new ArrayList<>();
+    private List<MailMessage> changed = new ArrayList<>();
+    private List<Long> vanished = new ArrayList<>();
+
+    public MailMessageSync() {
+        // empty
+    }
+
+    public MailMessageSync(String token, boolean reset) {
+        this.token = token;
+        this.reset = reset;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    public void setReset(boolean reset) {
+        this.reset = reset;
+    }
+
+    public List<MailMessage> getAdded() {
+        return added;
+    }
+
+    public void setAdded(List<MailMessage> added) {
+        this.added = added;
+    }
+
+    public List<MailMessage> getChanged() {
+        return changed;
+    }
+
+    public void setChanged(List<MailMessage> changed) {
+        this.changed = changed;
+    }
+
+    public List<Long> getVanished() {
+        return vanished;
+    }
+
+    public void setVanished(List<Long> vanished) {
+        this.vanished = vanished;
+    }
+}
@@ -1,6 +1,9 @@
 package org.minig.server.repository.mail;
 
+import org.minig.server.service.MessageFields;
+
 import javax.mail.FetchProfile;
+import javax.mail.UIDFolder;
 
 /**
  * @author Kamill Sokol
@@ -9,14 +12,63 @@ public final class MailFetchProfile {
     private MailFetchProfile() {}
 
     public static FetchProfile overview() {
+        return overview(MessageFields.ALL);
+    }
+
+    /**
+     * Fetches only what {@link org.minig.server.service.impl.helper.MessageMapper#convertShort(javax.mail.Message, MessageFields)}
+     * needs to map the given fields.
+     */
+    public static FetchProfile overview(MessageFields fields) {
+        FetchProfile fp = new FetchProfile();
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        fp.add("Message-ID");
+
+        if (fields.containsAny(MessageFields.SENDER, MessageFields.SUBJECT, MessageFields.DATE)) {
+            fp.add(FetchProfile.Item.ENVELOPE);
+        }
+        if (fields.containsAny(MessageFields.READ, MessageFields.STARRED, MessageFields.ANSWERED, MessageFields.DELETED,
+                MessageFields.FORWARDED, MessageFields.MDN_SENT, MessageFields.ASK_FOR_DISPOSITION_NOTIFICATION)) {
+            fp.add(FetchProfile.Item.FLAGS);
+        }
+        if (fields.contains(MessageFields.ATTACHMENTS)) {
+            fp.add(FetchProfile.Item.CONTENT_INFO);
+        }
+        if (fields.containsAny(MessageFields.RECEIPT, MessageFields.ASK_FOR_DISPOSITION_NOTIFICATION)) {
+            fp.add("X-Mozilla-Draft-Info");
+        }
+        if (fields.contains(MessageFields.MDN_SENT)) {
+            fp.add("$MDNSent");
+        }
+        if (fields.contains(MessageFields.FORWARDED)) {
+            fp.add("$Forwarded");
+        }
+        if (fields.contains(MessageFields.HIGH_PRIORITY)) {
+            fp.add("X-PRIORITY");
+        }
+
+        return fp;
+    }
+
+    public static FetchProfile flags() {
         FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.ENVELOPE);
         fp.add(FetchProfile.Item.FLAGS);
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        return fp;
+    }
+
+    public static FetchProfile identity() {
+        FetchProfile fp = flags();
+        fp.add("Message-ID");
+        return fp;
+    }
+
+    public static FetchProfile structure() {
+        FetchProfile fp = new FetchProfile();
+        // envelope includes INTERNALDATE
+        fp.add(FetchProfile.Item.ENVELOPE);
         fp.add(FetchProfile.Item.CONTENT_INFO);
-        fp.add("X-Mozilla-Draft-Info");
-        fp.add("$MDNSent");
-        fp.add("$Forwarded");
-        fp.add("X-PRIORITY");
+        fp.add(UIDFolder.FetchProfileItem.UID);
         fp.add("Message-ID");
         return fp;
     }
@@ -7,6 +7,7 @@ import java.net.URLDecoder;
 import javax.servlet.http.HttpServletRequest;
 
 import org.minig.server.resource.Id;
+import org.minig.server.resource.exception.ClientIllegalArgumentException;
 import org.minig.server.service.CompositeAttachmentId;
 import org.minig.server.service.CompositeId;
 import org.springframework.core.MethodParameter;
@@ -59,11 +60,16 @@ public class CompositeIdHandlerMethodArgumentResolver implements HandlerMethodAr
                     // TODO
                     String[] split = decoded.split("\\|");
 
+                    CompositeId id;
+
                     if (split.length == 3) {
-                        return new CompositeAttachmentId(decoded);
+                        id = new CompositeAttachmentId(decoded);
                     } else {
-                        return new CompositeId(decoded);
+                        id = new CompositeId(decoded);
                     }
+
+                    setUid(id, nativeRequest);
+                    return id;
                 } catch (UnsupportedEncodingException e) {
                     throw new IllegalArgumentException(e.getMessage(), e);
                 }
@@ -74,4 +80,20 @@ public class CompositeIdHandlerMethodArgumentResolver implements HandlerMethodAr
         // TODO
         return new CompositeAttachmentId();
     }
+
+    private static void setUid(CompositeId id, HttpServletRequest request) {
+        String uidValidity = request.getParameter("uidValidity");
+        String uid = request.getParameter("uid");
+
+        if (uidValidity == null || uid == null) {
+            return;
+        }
+
+        try {
+            id.setUidValidity(Long.valueOf(uidValidity));
+            id.setUid(Long.valueOf(uid));
+        } catch (NumberFormatException e) {
+            throw new ClientIllegalArgumentException("uid and uidValidity must be numeric");
+        }
+    }
 }
@@ -2,21 +2,25 @@ package org.minig.server.resource.attachment;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.minig.server.MailAttachment;
 import org.minig.server.MailAttachmentList;
 import org.minig.server.resource.Id;
 import org.minig.server.resource.exception.ClientIllegalArgumentException;
+import org.minig.server.service.AttachmentContent;
 import org.minig.server.service.AttachmentService;
 import org.minig.server.service.CompositeAttachmentId;
 import org.minig.server.service.CompositeId;
 import org.minig.server.service.NotFoundException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -60,12 +64,39 @@ public class AttachmentResource {
     }
 
     @RequestMapping(value = "attachment/**", produces = "*/*", params = "download=true", method = RequestMethod.GET)
-    public void downloadAttachment(@Id CompositeAttachmentId id, HttpServletResponse response) throws IOException {
-        MailAttachment attachment = attachmentService.findAttachment(id);
+    public void downloadAttachment(@Id CompositeAttachmentId id, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try (AttachmentContent content = attachmentService.openAttachment(id)) {
+            if (content.getETag() != null) {
+                response.setHeader(HttpHeaders.ETAG, content.getETag());
+            }
 
-        response.setContentType(attachment.getMime());
-        response.setHeader("Content-Disposition", String.format("attachment; filename=\"%s\"", attachment.getFileName()));
-        attachmentService.readAttachment(id, response.getOutputStream());
+            if (content.getLastModified() >= 0) {
+                response.setDateHeader(HttpHeaders.LAST_MODIFIED, content.getLastModified());
+            }
+
+            if (isNotModified(request, content)) {
+                response.setStatus(HttpStatus.NOT_MODIFIED.value());
+                return;
+            }
+
+            MailAttachment attachment = content.getAttachment();
+
+            response.setContentType(attachment.getMime());
+            response.setHeader("Content-Disposition", String.format("attachment; filename=\"%s\"", attachment.getFileName()));
+            response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+            HttpRange range = getRange(request, content);
+
+            if (range != null) {
+                writeRange(range, content, response);
+                return;
+            }
+
+            long size = content.getSize() >= 0 ? content.getSize() : content.computeSize();
+            response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(size));
+
+            content.writeTo(response.getOutputStream());
+        }
     }
 
     @ResponseStatus(value = HttpStatus.CREATED)
@@ -98,4 +129,94 @@ public class AttachmentResource {
         map.put("attachments", attachments.getAttachmentMetadata());
         return map;
     }
+
+    private static void writeRange(HttpRange range, AttachmentContent content, HttpServletResponse response) throws IOException {
+        long size = content.computeSize();
+        long start = range.getRangeStart(size);
+        long end = range.getRangeEnd(size);
+
+        if (start >= size || start > end) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+            response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+            return;
+        }
+
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        response.setHeader(HttpHeaders.CONTENT_RANGE, String.format("bytes %d-%d/%d", start, end, size));
+        response.setHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(end - start + 1));
+        content.writeTo(response.getOutputStream(), start, end - start + 1);
+    }
+
+    /**
+     * @return the requested range or {@code null} if the whole attachment should be sent. Multiple ranges are not
+     * supported and answered with the whole attachment, as are malformed ranges.
+     */
+    private static HttpRange getRange(HttpServletRequest request, AttachmentContent content) {
+        String header = request.getHeader(HttpHeaders.RANGE);
+
+        if (header == null || !isIfRangeSatisfied(request, content)) {
+            return null;
+        }
+
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(header);
+            return ranges.size() == 1 ? ranges.get(0) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * If-None-Match takes precedence over If-Modified-Since as required by RFC 7232.
+     */
+    private static boolean isNotModified(HttpServletRequest request, AttachmentContent content) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+
+        if (ifNoneMatch != null) {
+            if (content.getETag() == null) {
+                return false;
+            }
+
+            for (String etag : ifNoneMatch.split(",")) {
+                String candidate = etag.trim();
+
+                // weak comparison
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+
+                if ("*".equals(candidate) || candidate.equals(content.getETag())) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        if (content.getLastModified() < 0) {
+            return false;
+        }
+
+        try {
+            long ifModifiedSince = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+            return ifModifiedSince >= 0 && content.getLastModified() / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean isIfRangeSatisfied(HttpServletRequest request, AttachmentContent content) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+
+        if (ifRange == null || ifRange.equals(content.getETag())) {
+            return true;
+        }
+
+        try {
+            long date = request.getDateHeader(HttpHeaders.IF_RANGE);
+            return content.getLastModified() >= 0 && content.getLastModified() / 1000 <= date / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
 }
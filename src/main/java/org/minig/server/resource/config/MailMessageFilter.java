@@ -0,0 +1,15 @@
+package org.minig.server.resource.config;
+
+import com.fasterxml.jackson.annotation.JsonFilter;
+
+/**
+ * Jackson mix-in that attaches the property filter {@link #ID} to {@link org.minig.server.MailMessage}. Responses
+ * serialize every property unless a filter with this id is set on the response, e.g. for sparse folder listings.
+ *
+ * @author Kamill Sokol
+ */
+@JsonFilter(MailMessageFilter.ID)
+public abstract class MailMessageFilter {
+
+    public static final String ID = "mailMessage";
+}
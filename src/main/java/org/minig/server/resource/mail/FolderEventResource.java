@@ -0,0 +1,69 @@
+package org.minig.server.resource.mail;
+
+import org.minig.server.FolderEvent;
+import org.minig.server.service.FolderEventListener;
+import org.minig.server.service.FolderWatchService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams {@link FolderEvent}s as server-sent events. The stream ends after a few minutes and clients are expected to
+ * reconnect.
+ *
+ * @author Kamill Sokol
+ */
+@Controller
+@RequestMapping(value = "1")
+class FolderEventResource {
+
+    private static final Logger log = LoggerFactory.getLogger(FolderEventResource.class);
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    @Autowired
+    private FolderWatchService folderWatchService;
+
+    @RequestMapping(value = "message/events", method = RequestMethod.GET)
+    public SseEmitter watchFolder(@RequestParam String folder) {
+        final SseEmitter emitter = new SseEmitter(TIMEOUT);
+
+        final Closeable watch = folderWatchService.watch(folder, new FolderEventListener() {
+            @Override
+            public void onEvent(FolderEvent event) throws IOException {
+                emitter.send(SseEmitter.event().name(event.getType().name().toLowerCase()).data(event, MediaType.APPLICATION_JSON));
+            }
+
+            @Override
+            public void onClose() {
+                // clients reconnect and get a new watcher
+                emitter.complete();
+            }
+        });
+
+        Runnable unwatch = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    watch.close();
+                } catch (IOException e) {
+                    log.debug("can not close watch of {}. reason {}", folder, e.getMessage());
+                }
+            }
+        };
+
+        emitter.onCompletion(unwatch);
+        emitter.onTimeout(unwatch);
+
+        return emitter;
+    }
+}
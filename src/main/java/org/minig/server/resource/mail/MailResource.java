@@ -1,12 +1,21 @@
 package org.minig.server.resource.mail;
 
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
 import org.minig.server.MailMessage;
 import org.minig.server.MailMessageList;
+import org.minig.server.MailMessageSync;
 import org.minig.server.resource.Id;
+import org.minig.server.resource.config.MailMessageFilter;
+import org.minig.server.resource.exception.ClientIllegalArgumentException;
 import org.minig.server.service.CompositeId;
 import org.minig.server.service.MailService;
+import org.minig.server.service.MessageFields;
+import org.minig.server.service.MessageSort;
+import org.minig.server.service.SyncToken;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.converter.json.MappingJacksonValue;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -15,6 +24,8 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
+import java.util.List;
+
 @Controller
 @RequestMapping(value = "1")
 class MailResource {
@@ -24,9 +35,48 @@ class MailResource {
 
     @RequestMapping(value = "message", method = RequestMethod.GET)
     @ResponseBody
-    public MailMessageList findMessagesByFolder(@RequestParam String folder, @RequestParam(defaultValue = "1") int page,
-            @RequestParam(value = "page_length", defaultValue = "10") int pageLength) {
-        return mailService.findMessagesByFolder(folder, page, pageLength);
+    public MappingJacksonValue findMessagesByFolder(@RequestParam String folder, @RequestParam(defaultValue = "1") int page,
+            @RequestParam(value = "page_length", defaultValue = "10") int pageLength,
+            @RequestParam(required = false) String fields, @RequestParam(required = false) String sort,
+            @RequestParam(defaultValue = "false") boolean thread) {
+        if (fields == null && sort == null && !thread) {
+            return new MappingJacksonValue(mailService.findMessagesByFolder(folder, page, pageLength));
+        }
+
+        MessageFields messageFields;
+        MessageSort messageSort;
+
+        try {
+            messageFields = fields != null ? MessageFields.parse(fields) : MessageFields.ALL;
+            messageSort = MessageSort.parse(sort, thread);
+        } catch (IllegalArgumentException e) {
+            throw new ClientIllegalArgumentException(e.getMessage());
+        }
+
+        MappingJacksonValue value = new MappingJacksonValue(mailService.findMessagesByFolder(folder, page, pageLength, messageFields, messageSort));
+
+        if (fields != null) {
+            value.setFilters(new SimpleFilterProvider().addFilter(MailMessageFilter.ID,
+                    SimpleBeanPropertyFilter.filterOutAllExcept(messageFields.getPropertyNames())));
+        }
+
+        return value;
+    }
+
+    @RequestMapping(value = "message/sync", method = RequestMethod.GET)
+    @ResponseBody
+    public MailMessageSync syncMessagesByFolder(@RequestParam String folder, @RequestParam(required = false) String token) {
+        SyncToken syncToken = null;
+
+        if (token != null) {
+            try {
+                syncToken = SyncToken.parse(token);
+            } catch (IllegalArgumentException e) {
+                throw new ClientIllegalArgumentException(e.getMessage());
+            }
+        }
+
+        return mailService.syncMessagesByFolder(folder, syncToken);
     }
 
     @RequestMapping(value = "message/**", method = RequestMethod.GET)
@@ -53,8 +103,8 @@ class MailResource {
     @ResponseStatus(value = HttpStatus.OK)
     @RequestMapping(value = "message/flag", method = RequestMethod.PUT)
     @ResponseBody
-    public void updateMessages(@RequestBody MailMessageList messageList) {
-        mailService.updateMessagesFlags(messageList);
+    public List<CompositeId> updateMessages(@RequestBody MailMessageList messageList) {
+        return mailService.updateMessagesFlags(messageList);
     }
 
     @ResponseStatus(value = HttpStatus.OK)
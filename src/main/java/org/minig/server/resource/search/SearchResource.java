@@ -0,0 +1,37 @@
+package org.minig.server.resource.search;
+
+import org.minig.server.resource.exception.ClientIllegalArgumentException;
+import org.minig.server.service.CompositeId;
+import org.minig.server.service.MailService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.util.StringUtils;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.List;
+
+/**
+ * Full-text search over subject, addresses, text and attachment names of the messages of a folder.
+ *
+ * @author Kamill Sokol
+ */
+@Controller
+@RequestMapping(value = "1")
+class SearchResource {
+
+    @Autowired
+    private MailService mailService;
+
+    @RequestMapping(value = "search", method = RequestMethod.GET)
+    @ResponseBody
+    public List<CompositeId> search(@RequestParam String folder, @RequestParam String q) {
+        if (!StringUtils.hasText(q)) {
+            throw new ClientIllegalArgumentException("query is empty");
+        }
+
+        return mailService.searchMessages(folder, q);
+    }
+}
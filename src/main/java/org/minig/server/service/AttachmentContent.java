@@ -0,0 +1,55 @@
+package org.minig.server.service;
+
+import org.minig.server.MailAttachment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Handle to the payload of a single attachment. Metadata is available up front, the payload is streamed on demand
+ * without loading the whole message. Must be closed to release temporary copies of the payload.
+ *
+ * @author Kamill Sokol
+ */
+public interface AttachmentContent extends Closeable {
+
+    MailAttachment getAttachment();
+
+    /**
+     * @return MIME part path of the attachment, e.g. {@code 2.1}
+     */
+    String getSection();
+
+    /**
+     * @return size of the decoded payload or {@code -1} if it is not known before decoding
+     */
+    long getSize();
+
+    /**
+     * Like {@link #getSize()} but decodes the payload into a temporary copy if its size is not known yet. Subsequent
+     * reads are served from that copy.
+     */
+    long computeSize() throws IOException;
+
+    /**
+     * @return strong entity tag or {@code null} if the message can not be addressed by UID
+     */
+    String getETag();
+
+    /**
+     * @return internal date of the message in milliseconds or {@code -1} if unknown
+     */
+    long getLastModified();
+
+    /**
+     * Writes the decoded payload to the given stream.
+     */
+    void writeTo(OutputStream output) throws IOException;
+
+    /**
+     * Writes {@code length} bytes of the decoded payload starting at {@code offset} to the given stream.
+     */
+    void writeTo(OutputStream output, long offset, long length) throws IOException;
+
+}
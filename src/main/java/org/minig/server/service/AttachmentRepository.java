@@ -18,6 +18,13 @@ public interface AttachmentRepository {
 
 	InputStream readAttachmentPayload(CompositeAttachmentId attachmentId);
 
+	/**
+	 * Locates the attachment in the body structure of its message without fetching any content.
+	 *
+	 * @return the attachment or {@code null} if it does not exist
+	 */
+	AttachmentContent open(CompositeAttachmentId attachmentId);
+
 	CompositeId appendAttachment(CompositeId id, DataSource dataSource);
 
 	List<Mime4jAttachment> read(CompositeId id);
@@ -15,6 +15,8 @@ public interface AttachmentService {
 
 	void readAttachment(CompositeAttachmentId attachmentId, OutputStream output);
 
+	AttachmentContent openAttachment(CompositeAttachmentId attachmentId);
+
 	CompositeId addAttachment(CompositeId id, DataSource dataSource);
 
 	CompositeId deleteAttachment(CompositeAttachmentId attachmentId);
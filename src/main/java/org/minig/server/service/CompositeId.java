@@ -1,6 +1,9 @@
 package org.minig.server.service;
 
 /**
+ * Identifies a message by folder and Message-ID. An id may additionally carry the UIDVALIDITY and UID of the message
+ * in its folder. Those are not part of {@link #getId()} so that textual ids stay the same.
+ *
  * @author Kamill Sokol
  */
 public class CompositeId {
@@ -10,6 +13,8 @@ public class CompositeId {
 	protected String id;
 	private String messageId;
 	private String folder;
+	private Long uidValidity;
+	private Long uid;
 
 	public CompositeId() {
 	}
@@ -50,6 +55,26 @@ public class CompositeId {
 		}
 	}
 
+	public Long getUidValidity() {
+		return uidValidity;
+	}
+
+	public void setUidValidity(Long uidValidity) {
+		this.uidValidity = uidValidity;
+	}
+
+	public Long getUid() {
+		return uid;
+	}
+
+	public void setUid(Long uid) {
+		this.uid = uid;
+	}
+
+	public boolean hasUid() {
+		return uidValidity != null && uid != null;
+	}
+
 	public void setId(String id) {
 		if (id != null && folder == null && messageId == null) {
 			String[] split = id.split("\\" + SEPARATOR);
@@ -64,6 +89,11 @@ public class CompositeId {
 
 	public void setCompositeId(CompositeId id) {
 		setId(id.getId());
+
+		if (id.hasUid() && !hasUid()) {
+			setUidValidity(id.getUidValidity());
+			setUid(id.getUid());
+		}
 	}
 
 	protected void buildId() {
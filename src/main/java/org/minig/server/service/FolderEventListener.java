@@ -0,0 +1,23 @@
+package org.minig.server.service;
+
+import org.minig.server.FolderEvent;
+
+import java.io.IOException;
+
+/**
+ * @author Kamill Sokol
+ */
+public interface FolderEventListener {
+
+    /**
+     * @throws IOException if the receiver is gone. The listener is removed afterwards.
+     */
+    void onEvent(FolderEvent event) throws IOException;
+
+    /**
+     * Called when the folder is not watched anymore, for example because the connection to the server is gone. The
+     * listener is removed afterwards and does not receive further events.
+     */
+    void onClose();
+
+}
@@ -0,0 +1,18 @@
+package org.minig.server.service;
+
+import java.io.Closeable;
+
+/**
+ * @author Kamill Sokol
+ */
+public interface FolderWatchService {
+
+    /**
+     * Publishes new messages, expunges and flag changes of the folder of the current user to the listener until the
+     * returned handle is closed.
+     *
+     * @throws ServiceUnavailableException if no more folders can be watched on this node
+     */
+    Closeable watch(String folder, FolderEventListener listener);
+
+}
@@ -2,8 +2,12 @@ package org.minig.server.service;
 
 import org.minig.server.MailMessage;
 import org.minig.server.MailMessageList;
+import org.minig.server.MailMessageSync;
 import org.minig.server.service.impl.helper.mime.Mime4jMessage;
 
+import java.io.InputStream;
+import java.util.List;
+
 /**
  * @author Kamill Sokol
  */
@@ -11,6 +15,17 @@ public interface MailRepository {
 
     MailMessageList findByFolder(String folder, int page, int pageLength);
 
+    /**
+     * @param fields overview properties to map, see {@link MessageFields}
+     * @param sort order of the listing. In thread mode a page holds {@code pageLength} threads
+     */
+    MailMessageList findByFolder(String folder, int page, int pageLength, MessageFields fields, MessageSort sort);
+
+    /**
+     * @param token state known by the client or {@code null} to start a new synchronization
+     */
+    MailMessageSync sync(String folder, SyncToken token);
+
     @Deprecated
     MailMessage read(CompositeId id);
 
@@ -18,19 +33,70 @@ public interface MailRepository {
 
     CompositeId findByMessageId(String messageId);
 
+    /**
+     * @param query terms a message has to contain in its subject, addresses, text or attachment names
+     * @return ids of the matching messages of the folder, newest first
+     */
+    List<CompositeId> search(String folder, String query);
+
     @Deprecated
     MailMessage readPojo(String folder, String messageId);
 
+    /**
+     * Reads id, UID and flags of a message without fetching or parsing its content.
+     *
+     * @return the message or {@code null} if it does not exist
+     */
+    MailMessage readFlags(CompositeId id);
+
     void delete(CompositeId id);
 
     void delete(String folder, String messageId);
 
     String save(Mime4jMessage message, String folder);
 
+    /**
+     * Like {@link #save(Mime4jMessage, String)} but sets all flags of {@code flags} that are {@code true} with the
+     * APPEND command itself, so no separate STORE is needed.
+     */
+    String save(Mime4jMessage message, String folder, MailMessage flags);
+
+    /**
+     * Appends the raw message without rewriting it, with all flags of {@code flags} that are {@code true}.
+     *
+     * @return id of the appended message including UIDVALIDITY and UID if the server reports them with APPENDUID
+     */
+    CompositeId append(InputStream message, String folder, MailMessage flags);
+
     void updateFlags(MailMessage message);
 
+    /**
+     * Sets or clears all flags that are not {@code null} on the given messages. Messages are grouped by folder and
+     * flags, each group is updated with a single STORE.
+     *
+     * @return ids of messages that could not be found or updated
+     */
+    List<CompositeId> updateFlags(List<MailMessage> messages);
+
     void moveMessage(CompositeId message, String folder);
 
+    /**
+     * Moves the messages with one MOVE (or COPY and EXPUNGE) per source folder.
+     *
+     * @param seen flag moved messages as seen
+     * @return ids of messages that could not be found or moved
+     * @throws RepositoryException if an error occurred and no message could be moved
+     */
+    List<CompositeId> moveMessages(List<? extends CompositeId> ids, String folder, boolean seen);
+
+    /**
+     * Deletes the messages permanently with one EXPUNGE per folder.
+     *
+     * @return ids of messages that could not be found or deleted
+     * @throws RepositoryException if an error occurred and no message could be deleted
+     */
+    List<CompositeId> deleteMessages(List<? extends CompositeId> ids);
+
     void copyMessages(String source, String target);
 
     void copyMessage(CompositeId id, String target);
@@ -1,9 +1,11 @@
 package org.minig.server.service;
 
+import java.io.InputStream;
 import java.util.List;
 
 import org.minig.server.MailMessage;
 import org.minig.server.MailMessageList;
+import org.minig.server.MailMessageSync;
 import org.minig.server.service.impl.helper.mime.Mime4jMessage;
 
 /**
@@ -15,6 +17,15 @@ public interface MailService {
 
 	MailMessageList findMessagesByFolder(String folder, int page, int pageLength);
 
+	MailMessageList findMessagesByFolder(String folder, int page, int pageLength, MessageFields fields, MessageSort sort);
+
+	MailMessageSync syncMessagesByFolder(String folder, SyncToken token);
+
+	/**
+	 * @return ids of the messages of the folder matching all terms of the query, newest first
+	 */
+	List<CompositeId> searchMessages(String folder, String query);
+
     /*
      * use findById() instead
      */
@@ -29,7 +40,10 @@ public interface MailService {
 
 	void updateMessageFlags(MailMessage source);
 
-	void updateMessagesFlags(MailMessageList source);
+	/**
+	 * @return ids of messages whose flags could not be updated
+	 */
+	List<CompositeId> updateMessagesFlags(MailMessageList source);
 
 	// void createMessage(MailMessage source);
 
@@ -43,8 +57,39 @@ public interface MailService {
 
 	MailMessage updateDraftMessage(MailMessage message);
 
+	/**
+	 * Builds a new message or applies the changes to an existing draft, including staged and forwarded attachments,
+	 * without saving it. The id of a draft carries its UID if known.
+	 */
+	Mime4jMessage composeMessage(MailMessage message);
+
+	/**
+	 * Appends a sent message as is to the sent folder, marked as seen.
+	 *
+	 * @return id of the copy including UIDVALIDITY and UID if reported by the server
+	 */
+	CompositeId fileSentMessage(InputStream message);
+
+	/**
+	 * Deletes a draft that has been sent together with its staged attachments. Does nothing if the draft is already
+	 * gone.
+	 *
+	 * @throws RepositoryException if the draft can not be deleted, so that the caller can retry
+	 */
+	void removeDraft(CompositeId draft);
+
+    /**
+     * Flags the message as answered. Does nothing if no message with the Message-ID exists.
+     *
+     * @throws RepositoryException if the message store fails
+     */
     void flagAsAnswered(String messageId);
 
+    /**
+     * Flags the message as forwarded. Does nothing if no message with the Message-ID exists.
+     *
+     * @throws RepositoryException if the message store fails
+     */
     void flagAsForwarded(String messageId);
 
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+package org.minig.server.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Properties of a {@link org.minig.server.MailMessage} overview a client asks for when listing a folder. Textual form
+ * is a comma separated list of property names like {@code subject,sender,date,read}. The id properties are always
+ * part of an overview.
+ *
+ * @author Kamill Sokol
+ */
+public final class MessageFields {
+
+    public static final String SUBJECT = "subject";
+    public static final String SENDER = "sender";
+    public static final String DATE = "date";
+    public static final String READ = "read";
+    public static final String STARRED = "starred";
+    public static final String ANSWERED = "answered";
+    public static final String DELETED = "deleted";
+    public static final String FORWARDED = "forwarded";
+    public static final String MDN_SENT = "mdnSent";
+    public static final String HIGH_PRIORITY = "highPriority";
+    public static final String ATTACHMENTS = "attachments";
+    public static final String RECEIPT = "receipt";
+    public static final String ASK_FOR_DISPOSITION_NOTIFICATION = "askForDispositionNotification";
+
+    private static final Set<String> IDENTITY = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+            "id", "messageId", "folder", "uidValidity", "uid", "threadId")));
+
+    private static final Set<String> OVERVIEW = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+            SUBJECT, SENDER, DATE, READ, STARRED, ANSWERED, DELETED, FORWARDED, MDN_SENT, HIGH_PRIORITY, ATTACHMENTS,
+            RECEIPT, ASK_FOR_DISPOSITION_NOTIFICATION)));
+
+    public static final MessageFields ALL = new MessageFields(OVERVIEW);
+
+    private final Set<String> fields;
+
+    private MessageFields(Set<String> fields) {
+        this.fields = fields;
+    }
+
+    public static MessageFields parse(String fields) {
+        if (fields == null) {
+            throw new IllegalArgumentException("fields is null");
+        }
+
+        Set<String> parsed = new LinkedHashSet<>();
+
+        for (String field : fields.split(",")) {
+            String trimmed = field.trim();
+
+            if (trimmed.isEmpty() || IDENTITY.contains(trimmed)) {
+                continue;
+            }
+            if (!OVERVIEW.contains(trimmed)) {
+                throw new IllegalArgumentException("unknown field " + trimmed);
+            }
+
+            parsed.add(trimmed);
+        }
+
+        return parsed.size() == OVERVIEW.size() ? ALL : new MessageFields(Collections.unmodifiableSet(parsed));
+    }
+
+    public boolean contains(String field) {
+        return fields.contains(field);
+    }
+
+    public boolean containsAny(String... candidates) {
+        for (String candidate : candidates) {
+            if (fields.contains(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isAll() {
+        return fields.size() == OVERVIEW.size();
+    }
+
+    /**
+     * @return names of the id properties and the requested properties
+     */
+    public Set<String> getPropertyNames() {
+        Set<String> names = new LinkedHashSet<>(IDENTITY);
+        names.addAll(fields);
+        return names;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MessageFields)) {
+            return false;
+        }
+        return fields.equals(((MessageFields) o).fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return fields.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        for (String field : fields) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(field);
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,169 @@
+package org.minig.server.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Order of a folder listing. Textual form is a comma separated list of keys like {@code -flagged,-date}. A key sorts
+ * ascending, a leading {@code -} reverses it. Ties are broken by arrival order.
+ *
+ * Without keys messages are listed in reverse arrival order. In thread mode pages are made of whole threads, newest
+ * thread first, and keys are not allowed.
+ *
+ * @author Kamill Sokol
+ */
+public final class MessageSort {
+
+    public enum Key {
+        DATE, FROM, SUBJECT, SIZE, FLAGGED;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    public static final MessageSort ARRIVAL = new MessageSort(Collections.<Term>emptyList(), false);
+    public static final MessageSort THREAD = new MessageSort(Collections.<Term>emptyList(), true);
+
+    private final List<Term> terms;
+    private final boolean threaded;
+
+    private MessageSort(List<Term> terms, boolean threaded) {
+        this.terms = terms;
+        this.threaded = threaded;
+    }
+
+    /**
+     * @param sort comma separated keys or {@code null}
+     */
+    public static MessageSort parse(String sort, boolean threaded) {
+        List<Term> terms = new ArrayList<>();
+
+        if (sort != null) {
+            for (String token : sort.split(",")) {
+                String trimmed = token.trim();
+
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+
+                boolean reverse = trimmed.startsWith("-");
+                String name = reverse ? trimmed.substring(1) : trimmed;
+
+                try {
+                    terms.add(new Term(Key.valueOf(name.toUpperCase(Locale.ENGLISH)), reverse));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("unknown sort key " + name);
+                }
+            }
+        }
+
+        if (threaded && !terms.isEmpty()) {
+            throw new IllegalArgumentException("threads can not be sorted by " + sort);
+        }
+        if (threaded) {
+            return THREAD;
+        }
+
+        return terms.isEmpty() ? ARRIVAL : new MessageSort(Collections.unmodifiableList(terms), false);
+    }
+
+    public List<Term> getTerms() {
+        return terms;
+    }
+
+    public boolean isThreaded() {
+        return threaded;
+    }
+
+    public boolean isArrival() {
+        return terms.isEmpty() && !threaded;
+    }
+
+    public boolean contains(Key key) {
+        for (Term term : terms) {
+            if (term.key == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MessageSort)) {
+            return false;
+        }
+        MessageSort other = (MessageSort) o;
+        return threaded == other.threaded && terms.equals(other.terms);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * terms.hashCode() + (threaded ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        if (threaded) {
+            return "thread";
+        }
+
+        StringBuilder sb = new StringBuilder();
+
+        for (Term term : terms) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(term);
+        }
+
+        return sb.toString();
+    }
+
+    public static final class Term {
+        private final Key key;
+        private final boolean reverse;
+
+        public Term(Key key, boolean reverse) {
+            this.key = key;
+            this.reverse = reverse;
+        }
+
+        public Key getKey() {
+            return key;
+        }
+
+        public boolean isReverse() {
+            return reverse;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Term)) {
+                return false;
+            }
+            Term other = (Term) o;
+            return key == other.key && reverse == other.reverse;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + (reverse ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return (reverse ? "-" : "") + key;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.minig.server.service;
+
+/**
+ * Client held state of a folder. Textual form is {@code uidValidity.highestModSeq.uidNext}. A highestModSeq of 0
+ * means the server does not support CONDSTORE.
+ *
+ * @author Kamill Sokol
+ */
+public final class SyncToken {
+
+    private final long uidValidity;
+    private final long highestModSeq;
+    private final long uidNext;
+
+    public SyncToken(long uidValidity, long highestModSeq, long uidNext) {
+        this.uidValidity = uidValidity;
+        this.highestModSeq = Math.max(highestModSeq, 0);
+        this.uidNext = uidNext;
+    }
+
+    public static SyncToken parse(String token) {
+        if (token == null) {
+            throw new IllegalArgumentException("token is null");
+        }
+
+        String[] parts = token.split("\\.");
+
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("invalid sync token " + token);
+        }
+
+        try {
+            return new SyncToken(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid sync token " + token);
+        }
+    }
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+    public long getUidNext() {
+        return uidNext;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SyncToken)) {
+            return false;
+        }
+        SyncToken other = (SyncToken) o;
+        return uidValidity == other.uidValidity && highestModSeq == other.highestModSeq && uidNext == other.uidNext;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (uidValidity ^ (uidValidity >>> 32));
+        result = 31 * result + (int) (highestModSeq ^ (highestModSeq >>> 32));
+        return 31 * result + (int) (uidNext ^ (uidNext >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return uidValidity + "." + highestModSeq + "." + uidNext;
+    }
+}
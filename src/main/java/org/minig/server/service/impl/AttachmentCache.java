@@ -0,0 +1,716 @@
+package org.minig.server.service.impl;
+
+import org.minig.MailAuthentication;
+import org.minig.server.MailAttachment;
+import org.minig.server.service.AttachmentContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Node local cache of decoded attachment payloads keyed by user, folder, UIDVALIDITY, UID and MIME part path. An entry
+ * remembers the Message-ID of its message and is only returned for that Message-ID, so a stale or forged UID does not
+ * return the attachment of another message.
+ *
+ * Payloads up to {@link #setMemoryThreshold(long)} bytes are kept on the heap, larger ones are written to temporary
+ * files encrypted with AES/CTR under a random key per user. The key only lives in memory and is dropped together with
+ * the last cached payload of its user. It is not bound to the HTTP session, because API clients authenticate with
+ * HTTP Basic on every request and are not required to keep a session. Files are memory mapped when read, and CTR mode
+ * allows to decrypt any range without reading the preceding bytes.
+ *
+ * Least recently used payloads are evicted once {@link #setMaxMemoryBytes(long)}, {@link #setMaxDiskBytes(long)} or
+ * the quota of a user ({@link #setMaxBytesPerUser(long)}) is exceeded.
+ *
+ * @author Kamill Sokol
+ */
+public class AttachmentCache implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(AttachmentCache.class);
+    private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+    private static final int BLOCK_SIZE = 16;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<Key, String> sections = new HashMap<>();
+    private final Map<String, Long> userBytes = new HashMap<>();
+    private final Map<String, SecretKey> keys = new HashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    @Autowired
+    private MailAuthentication authentication;
+
+    private long memoryThreshold = 256 * 1024;
+    private long maxMemoryBytes = 32 * 1024 * 1024;
+    private long maxDiskBytes = 1024L * 1024 * 1024;
+    private long maxBytesPerUser = 100 * 1024 * 1024;
+    private File directory;
+    private long memoryBytes;
+    private long diskBytes;
+
+    /**
+     * @param messageId Message-ID the message with the UID must have or {@code null} to accept any
+     * @return the cached payload of the attachment or {@code null}
+     */
+    public AttachmentContent get(String folder, long uidValidity, long uid, String messageId, String fileName) {
+        String user = authentication.getEmailAddress();
+
+        synchronized (this) {
+            String section = sections.get(new Key(user, folder, uidValidity, uid, fileName));
+            Entry entry = section != null ? entries.get(new Key(user, folder, uidValidity, uid, section)) : null;
+
+            if (entry == null || messageId != null && !messageId.equals(entry.messageId)) {
+                return null;
+            }
+
+            return new CachedContent(entry);
+        }
+    }
+
+    /**
+     * Wraps {@code content} so that the payload is copied into the cache while it is written in full for the first
+     * time. Nothing is decoded up front, so conditional requests that end with 304 Not Modified never touch the
+     * payload. Range requests are served by {@code content} until the payload has been cached.
+     *
+     * @param messageId Message-ID of the message with the UID
+     * @param sizeHint upper bound of the decoded size, e.g. the encoded size of the part
+     * @return content filling the cache or {@code content} itself if the payload is too large to be cached
+     */
+    public AttachmentContent fill(String folder, long uidValidity, long uid, String messageId, AttachmentContent content, long sizeHint) {
+        long maxEntryBytes = Math.min(maxBytesPerUser, Math.max(maxMemoryBytes, maxDiskBytes));
+
+        if (sizeHint < 0 || sizeHint > maxEntryBytes) {
+            return content;
+        }
+
+        return new FillingContent(authentication.getEmailAddress(), folder, uidValidity, uid, messageId, content);
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    public synchronized long getUserBytes(String user) {
+        Long bytes = userBytes.get(user);
+        return bytes != null ? bytes : 0;
+    }
+
+    public void setMemoryThreshold(long memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    public void setMaxMemoryBytes(long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+    }
+
+    public void setMaxDiskBytes(long maxDiskBytes) {
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    public void setMaxBytesPerUser(long maxBytesPerUser) {
+        this.maxBytesPerUser = maxBytesPerUser;
+    }
+
+    /**
+     * @param directory directory for spilled payloads. Defaults to {@code java.io.tmpdir}
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    void setAuthentication(MailAuthentication authentication) {
+        this.authentication = authentication;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        for (Entry entry : entries.values()) {
+            deleteFile(entry);
+        }
+
+        entries.clear();
+        sections.clear();
+        userBytes.clear();
+        keys.clear();
+        memoryBytes = 0;
+        diskBytes = 0;
+    }
+
+    private AttachmentContent add(String user, String folder, long uidValidity, long uid, String messageId, AttachmentContent content, SpillOutputStream output) {
+        Entry entry = new Entry(user, messageId, content, output.getBytes(), output.getFile(), output.key, output.iv, output.getSize());
+
+        if (entry.file != null && entry.size > maxDiskBytes || entry.file == null && entry.size > maxMemoryBytes) {
+            deleteFile(entry);
+            return null;
+        }
+
+        synchronized (this) {
+            Key key = new Key(user, folder, uidValidity, uid, content.getSection());
+            remove(key, entries.get(key));
+
+            entries.put(key, entry);
+            sections.put(new Key(user, folder, uidValidity, uid, content.getAttachment().getFileName()), content.getSection());
+            account(entry, entry.size);
+
+            // pinned before it can be evicted
+            CachedContent cached = new CachedContent(entry);
+            evict(user);
+            return cached;
+        }
+    }
+
+    private SpillOutputStream newSpillOutputStream(String user) {
+        byte[] iv = new byte[BLOCK_SIZE];
+        random.nextBytes(iv);
+        return new SpillOutputStream(getKey(user), iv);
+    }
+
+    private synchronized SecretKey getKey(String user) {
+        SecretKey key = keys.get(user);
+
+        if (key == null) {
+            try {
+                KeyGenerator generator = KeyGenerator.getInstance("AES");
+                generator.init(128, random);
+                key = generator.generateKey();
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+
+            keys.put(user, key);
+        }
+
+        return key;
+    }
+
+    private void evict(String user) {
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        List<Key> evicted = new ArrayList<>();
+
+        while (iterator.hasNext() && (memoryBytes > maxMemoryBytes || diskBytes > maxDiskBytes || getUserBytes(user) > maxBytesPerUser)) {
+            Map.Entry<Key, Entry> next = iterator.next();
+            Entry entry = next.getValue();
+            boolean overQuota = entry.user.equals(user) && getUserBytes(user) > maxBytesPerUser;
+            boolean overBudget = entry.file == null ? memoryBytes > maxMemoryBytes : diskBytes > maxDiskBytes;
+
+            if (overQuota || overBudget) {
+                iterator.remove();
+                evicted.add(next.getKey());
+                account(entry, -entry.size);
+                delete(entry);
+            }
+        }
+
+        if (!evicted.isEmpty()) {
+            removeSections(evicted);
+            log.debug("evicted {} attachments", evicted.size());
+        }
+    }
+
+    private void remove(Key key, Entry entry) {
+        if (entry != null) {
+            entries.remove(key);
+            account(entry, -entry.size);
+            delete(entry);
+        }
+    }
+
+    private void removeSections(List<Key> evicted) {
+        Iterator<Map.Entry<Key, String>> iterator = sections.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<Key, String> next = iterator.next();
+
+            if (evicted.contains(next.getKey().withPart(next.getValue()))) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void account(Entry entry, long delta) {
+        if (entry.file == null) {
+            memoryBytes += delta;
+        } else {
+            diskBytes += delta;
+        }
+
+        Long bytes = userBytes.get(entry.user);
+        long newBytes = (bytes != null ? bytes : 0) + delta;
+
+        if (newBytes > 0) {
+            userBytes.put(entry.user, newBytes);
+        } else {
+            // nothing left that has been encrypted with the key of this user
+            userBytes.remove(entry.user);
+            keys.remove(entry.user);
+        }
+    }
+
+    /**
+     * Deletes the file of an entry that has left the cache as soon as no {@link CachedContent} reads it anymore.
+     */
+    private void delete(Entry entry) {
+        entry.removed = true;
+
+        if (entry.references == 0) {
+            deleteFile(entry);
+        }
+    }
+
+    private static void deleteFile(Entry entry) {
+        if (entry.file != null && !entry.file.delete()) {
+            log.debug("can not delete {}", entry.file);
+        }
+    }
+
+    private static Cipher cipher(SecretKey key, byte[] iv, long block, int mode) {
+        try {
+            // the counter of block n is the initial counter plus n
+            byte[] counter = new BigInteger(1, iv).add(BigInteger.valueOf(block)).toByteArray();
+            byte[] blockIv = new byte[BLOCK_SIZE];
+            int length = Math.min(counter.length, BLOCK_SIZE);
+            System.arraycopy(counter, counter.length - length, blockIv, BLOCK_SIZE - length, length);
+
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, key, new IvParameterSpec(blockIv));
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Buffers in memory up to the memory threshold and continues in an encrypted temporary file.
+     */
+    private final class SpillOutputStream extends OutputStream {
+        private final SecretKey key;
+        private final byte[] iv;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private OutputStream fileOutput;
+        private File file;
+        private long size;
+
+        private SpillOutputStream(SecretKey key, byte[] iv) {
+            this.key = key;
+            this.iv = iv;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (fileOutput == null && size + len > memoryThreshold) {
+                spill();
+            }
+
+            if (fileOutput != null) {
+                fileOutput.write(b, off, len);
+            } else {
+                buffer.write(b, off, len);
+            }
+
+            size += len;
+        }
+
+        private void spill() throws IOException {
+            file = File.createTempFile("minig-attachment-cache", ".bin", directory);
+
+            try {
+                fileOutput = new CipherOutputStream(new FileOutputStream(file), cipher(key, iv, 0, Cipher.ENCRYPT_MODE));
+                buffer.writeTo(fileOutput);
+                buffer = null;
+            } catch (IOException | RuntimeException e) {
+                discard();
+                throw e;
+            }
+        }
+
+        private byte[] getBytes() {
+            return buffer != null ? buffer.toByteArray() : null;
+        }
+
+        private File getFile() {
+            return file;
+        }
+
+        private long getSize() {
+            return size;
+        }
+
+        private void discard() {
+            try {
+                close();
+            } catch (IOException e) {
+                log.debug("can not close {}. reason {}", file, e.getMessage());
+            }
+
+            if (file != null && !file.delete()) {
+                log.debug("can not delete {}", file);
+            }
+            file = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            OutputStream output = fileOutput;
+            fileOutput = null;
+
+            if (output != null) {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * Copies the payload into the cache while it is written to the client.
+     */
+    private final class FillingContent implements AttachmentContent {
+        private final String user;
+        private final String folder;
+        private final long uidValidity;
+        private final long uid;
+        private final String messageId;
+        private final AttachmentContent content;
+        private AttachmentContent cached;
+
+        private FillingContent(String user, String folder, long uidValidity, long uid, String messageId, AttachmentContent content) {
+            this.user = user;
+            this.folder = folder;
+            this.uidValidity = uidValidity;
+            this.uid = uid;
+            this.messageId = messageId;
+            this.content = content;
+        }
+
+        @Override
+        public MailAttachment getAttachment() {
+            return content.getAttachment();
+        }
+
+        @Override
+        public String getSection() {
+            return content.getSection();
+        }
+
+        @Override
+        public long getSize() {
+            return cached != null ? cached.getSize() : content.getSize();
+        }
+
+        @Override
+        public long computeSize() throws IOException {
+            if (cached == null && content.getSize() < 0) {
+                // decoding into the cache yields the size without another temporary copy of the payload
+                fill(null);
+            }
+
+            return cached != null ? cached.getSize() : content.computeSize();
+        }
+
+        @Override
+        public String getETag() {
+            return content.getETag();
+        }
+
+        @Override
+        public long getLastModified() {
+            return content.getLastModified();
+        }
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            if (cached != null) {
+                cached.writeTo(output);
+            } else {
+                fill(output);
+            }
+        }
+
+        @Override
+        public void writeTo(OutputStream output, long offset, long length) throws IOException {
+            if (cached != null) {
+                cached.writeTo(output, offset, length);
+            } else {
+                content.writeTo(output, offset, length);
+            }
+        }
+
+        /**
+         * Decodes the payload into the cache and to the given stream, if any.
+         */
+        private void fill(OutputStream output) throws IOException {
+            SpillOutputStream spill = newSpillOutputStream(user);
+            TeeOutputStream tee = new TeeOutputStream(output, spill);
+
+            try {
+                content.writeTo(tee);
+                spill.close();
+            } catch (IOException | RuntimeException e) {
+                spill.discard();
+                throw e;
+            }
+
+            if (tee.failed) {
+                spill.discard();
+            } else {
+                cached = add(user, folder, uidValidity, uid, messageId, content, spill);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (cached != null) {
+                cached.close();
+            }
+
+            content.close();
+        }
+    }
+
+    /**
+     * Writes to the client, if any, and to the cache. A failing cache copy is dropped without interrupting the client.
+     */
+    private static final class TeeOutputStream extends OutputStream {
+        private final OutputStream output;
+        private final SpillOutputStream spill;
+        private boolean failed;
+
+        private TeeOutputStream(OutputStream output, SpillOutputStream spill) {
+            this.output = output;
+            this.spill = spill;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (output != null) {
+                output.write(b, off, len);
+            }
+
+            if (!failed) {
+                try {
+                    spill.write(b, off, len);
+                } catch (IOException | RuntimeException e) {
+                    log.debug("can not cache attachment. reason {}", e.getMessage());
+                    failed = true;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (output != null) {
+                output.flush();
+            }
+        }
+    }
+
+    /**
+     * Pins its entry until closed, so the file of an entry evicted meanwhile is kept until the payload has been read.
+     * Created while holding the lock of the cache.
+     */
+    private final class CachedContent implements AttachmentContent {
+        private final Entry entry;
+        private boolean closed;
+
+        private CachedContent(Entry entry) {
+            this.entry = entry;
+            entry.references++;
+        }
+
+        @Override
+        public MailAttachment getAttachment() {
+            return entry.attachment;
+        }
+
+        @Override
+        public String getSection() {
+            return entry.section;
+        }
+
+        @Override
+        public long getSize() {
+            return entry.size;
+        }
+
+        @Override
+        public long computeSize() {
+            return entry.size;
+        }
+
+        @Override
+        public String getETag() {
+            return entry.etag;
+        }
+
+        @Override
+        public long getLastModified() {
+            return entry.lastModified;
+        }
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            writeTo(output, 0, entry.size);
+        }
+
+        @Override
+        public void writeTo(OutputStream output, long offset, long length) throws IOException {
+            long end = Math.min(entry.size, offset + length);
+
+            if (offset >= end) {
+                return;
+            }
+
+            if (entry.bytes != null) {
+                output.write(entry.bytes, (int) offset, (int) (end - offset));
+                return;
+            }
+
+            MappedByteBuffer mapped;
+
+            try (FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.size);
+            }
+
+            long blockStart = offset / BLOCK_SIZE * BLOCK_SIZE;
+            Cipher cipher = cipher(entry.key, entry.iv, offset / BLOCK_SIZE, Cipher.DECRYPT_MODE);
+            byte[] in = new byte[BUFFER_SIZE];
+            int skip = (int) (offset - blockStart);
+            long position = blockStart;
+
+            mapped.position((int) blockStart);
+
+            while (position < end) {
+                int count = (int) Math.min(in.length, end - position);
+                mapped.get(in, 0, count);
+                byte[] out = cipher.update(in, 0, count);
+                output.write(out, skip, out.length - skip);
+                position += count;
+                skip = 0;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (AttachmentCache.this) {
+                if (closed) {
+                    return;
+                }
+
+                closed = true;
+                entry.references--;
+
+                if (entry.removed && entry.references == 0) {
+                    deleteFile(entry);
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final String user;
+        private final String messageId;
+        private final MailAttachment attachment;
+        private final String section;
+        private final String etag;
+        private final long lastModified;
+        private final byte[] bytes;
+        private final File file;
+        private final byte[] iv;
+        private final long size;
+        private final SecretKey key;
+        // guarded by the cache
+        private int references;
+        private boolean removed;
+
+        private Entry(String user, String messageId, AttachmentContent content, byte[] bytes, File file, SecretKey key, byte[] iv, long size) {
+            this.user = user;
+            this.messageId = messageId;
+            this.attachment = content.getAttachment();
+            this.section = content.getSection();
+            this.etag = content.getETag();
+            this.lastModified = content.getLastModified();
+            this.bytes = bytes;
+            this.file = file;
+            this.iv = iv;
+            this.size = size;
+            this.key = key;
+        }
+    }
+
+    private static final class Key {
+        private final String user;
+        private final String folder;
+        private final long uidValidity;
+        private final long uid;
+        private final String part;
+
+        private Key(String user, String folder, long uidValidity, long uid, String part) {
+            this.user = user;
+            this.folder = folder;
+            this.uidValidity = uidValidity;
+            this.uid = uid;
+            this.part = part;
+        }
+
+        private Key withPart(String part) {
+            return new Key(user, folder, uidValidity, uid, part);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return uidValidity == key.uidValidity && uid == key.uid && user.equals(key.user) && folder.equals(key.folder)
+                    && part.equals(key.part);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = user.hashCode();
+            result = 31 * result + folder.hashCode();
+            result = 31 * result + (int) (uidValidity ^ (uidValidity >>> 32));
+            result = 31 * result + (int) (uid ^ (uid >>> 32));
+            return 31 * result + part.hashCode();
+        }
+    }
+}
@@ -1,31 +1,31 @@
 package org.minig.server.service.impl;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.*;
 
 import javax.activation.DataSource;
+import javax.mail.BodyPart;
 import javax.mail.Folder;
 import javax.mail.Message;
+import javax.mail.MessagingException;
 import javax.mail.Part;
+import javax.mail.UIDFolder;
 import javax.mail.internet.MimeMessage;
-import javax.mail.search.MessageIDTerm;
 
+import com.sun.mail.imap.IMAPMessage;
 import org.apache.james.mime4j.dom.*;
-import org.apache.james.mime4j.message.BasicBodyFactory;
-import org.apache.james.mime4j.message.DefaultMessageWriter;
 import org.apache.james.mime4j.message.MessageImpl;
-import org.apache.james.mime4j.message.MessageServiceFactoryImpl;
 import org.apache.james.mime4j.message.MultipartImpl;
 import org.apache.james.mime4j.util.MimeUtil;
 import org.minig.server.MailAttachment;
 import org.minig.server.MailAttachmentList;
+import org.minig.server.repository.mail.MailFetchProfile;
 import org.minig.server.service.*;
-import org.minig.server.service.impl.helper.BodyConverter;
+import org.minig.server.service.impl.helper.MessageStructure;
 import org.minig.server.service.impl.helper.mime.Mime4jAttachment;
 import org.minig.server.service.impl.helper.mime.Mime4jMessage;
 import org.minig.server.service.impl.helper.mime.Mime4jMessageFactory;
+import org.minig.server.service.impl.helper.mime.ThresholdBodyFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.convert.ConversionService;
 import org.springframework.stereotype.Component;
@@ -36,33 +36,50 @@ public class AttachmentRepositoryImpl implements AttachmentRepository {
 
     private final MailContext mailContext;
     private final ConversionService conversionService;
+    private final MessageLocator messageLocator;
+    private final MessageIdCache messageIdCache;
+    private final AttachmentCache attachmentCache;
 
 	@Autowired
-	public AttachmentRepositoryImpl(MailContext mailContext, ConversionService conversionService) {
+	public AttachmentRepositoryImpl(MailContext mailContext, ConversionService conversionService, MessageLocator messageLocator,
+									MessageIdCache messageIdCache, AttachmentCache attachmentCache) {
 		this.mailContext = mailContext;
         this.conversionService = conversionService;
+        this.messageLocator = messageLocator;
+        this.messageIdCache = messageIdCache;
+        this.attachmentCache = attachmentCache;
     }
 
 	@Override
     public MailAttachmentList readMetadata(CompositeId id) {
         Assert.notNull(id);
 		List<MailAttachment> metaDataList = new ArrayList<>();
-		Mime4jMessage mime4jMessage = readInternal(id);
 
-		if(mime4jMessage == null) {
-			return new MailAttachmentList(metaDataList);
-		}
+        try {
+            Folder folder = mailContext.getFolder(id.getFolder());
 
-		List<Mime4jAttachment> attachments2 = mime4jMessage.getAttachments();
+            if (!folder.exists()) {
+                return new MailAttachmentList(metaDataList);
+            }
 
-		for (Mime4jAttachment attachment : attachments2) {
-			// TODO
-			MailAttachment metaData = new MailAttachment();
-			metaData.setCompositeId(attachment.getId());
-			metaData.setFileName(attachment.getId().getFileName());
-			metaData.setMime(attachment.getMimeType());
-			metaDataList.add(metaData);
-		}
+            Message message = messageLocator.findFirst(folder, id);
+
+            if (message == null) {
+                return new MailAttachmentList(metaDataList);
+            }
+
+            folder.fetch(new Message[] { message }, MailFetchProfile.structure());
+
+            for (MessageStructure.Attachment attachment : MessageStructure.of(message).getAttachments()) {
+                MailAttachment metaData = new MailAttachment();
+                metaData.setCompositeId(new CompositeAttachmentId(id.getFolder(), id.getMessageId(), attachment.getFileName()));
+                metaData.setFileName(attachment.getFileName());
+                metaData.setMime(attachment.getMimeType());
+                metaDataList.add(metaData);
+            }
+        } catch (Exception e) {
+            throw new RepositoryException(e.getMessage(), e);
+        }
 
         return new MailAttachmentList(metaDataList);
     }
@@ -73,11 +90,11 @@ public class AttachmentRepositoryImpl implements AttachmentRepository {
 
         try {
             Folder folder = mailContext.openFolder(id.getFolder());
-            Message[] search = folder.search(new MessageIDTerm(id.getMessageId()));
-            if (search.length == 0) {
+            Message message = messageLocator.findFirst(folder, id);
+            if (message == null) {
                 return null;
             }
-            Part p = (Part) BodyConverter.get(search[0], BodyConverter.BodyType.ATTACHMENT, id.getFileName());
+            BodyPart p = MessageStructure.of(message).getAttachment(id.getFileName());
             return conversionService.convert(p, MailAttachment.class);
         } catch (Exception e) {
             throw new RepositoryException(e.getMessage(), e);
@@ -90,12 +107,10 @@ public class AttachmentRepositoryImpl implements AttachmentRepository {
 
         try {
             Folder folder = mailContext.getFolder(id.getFolder());
-            Message[] search = folder.search(new MessageIDTerm(id.getMessageId()));
+            Message mm = messageLocator.findFirst(folder, id);
 
-            if (search != null && search[0] != null) {
-                Message mm = search[0];
-
-                Part p = (Part) BodyConverter.get(mm, BodyConverter.BodyType.ATTACHMENT, id.getFileName());
+            if (mm != null) {
+                Part p = MessageStructure.of(mm).getAttachment(id.getFileName());
 
                 if (p != null) {
                     return p.getInputStream();
@@ -110,85 +125,135 @@ public class AttachmentRepositoryImpl implements AttachmentRepository {
     }
 
     @Override
-    public CompositeId appendAttachment(CompositeId id, DataSource dataSource) {
+    public AttachmentContent open(CompositeAttachmentId id) {
         Assert.notNull(id);
-        Assert.notNull(dataSource);
+
+        AttachmentContent cached = findCached(id);
+
+        if (cached != null) {
+            return cached;
+        }
 
         try {
-            Folder sourceFolder = mailContext.getFolder(id.getFolder());
-            Message[] search = sourceFolder.search(new MessageIDTerm(id.getMessageId()));
+            Folder folder = mailContext.getFolder(id.getFolder());
 
-            if (search != null && search.length == 1) {
+            if (!folder.exists()) {
+                return null;
+            }
 
-                MessageBuilder newMessageBuilder = new MessageServiceFactoryImpl().newMessageBuilder();
-                MessageWriter writer = new DefaultMessageWriter();
+            Message message = messageLocator.findFirst(folder, id);
 
-                ByteArrayOutputStream output = new ByteArrayOutputStream();
-                search[0].writeTo(output);
+            if (message == null) {
+                return null;
+            }
 
-                InputStream decodedInput = new ByteArrayInputStream((output).toByteArray());
+            if (message instanceof IMAPMessage) {
+                // download an attachment without flagging its message as seen
+                ((IMAPMessage) message).setPeek(true);
+            }
 
-                MessageImpl parseMessage = (MessageImpl) newMessageBuilder.parseMessage(decodedInput);
+            folder.fetch(new Message[] { message }, MailFetchProfile.structure());
+            MessageStructure structure = MessageStructure.of(message);
+            BodyPart part = structure.getAttachment(id.getFileName());
 
-                if (parseMessage.isMultipart()) {
-                    org.apache.james.mime4j.dom.Multipart body = (org.apache.james.mime4j.dom.Multipart) parseMessage.getBody();
+            if (part == null) {
+                return null;
+            }
 
-                    Body body1 = new BasicBodyFactory().binaryBody(dataSource.getInputStream());
+            String section = structure.getSection(id.getFileName());
+            MailAttachment attachment = conversionService.convert(part, MailAttachment.class);
+            AttachmentContent content = new PartAttachmentContent(attachment, message, part, section, etag(folder, message, section));
 
-                    org.apache.james.mime4j.message.BodyPart bodyPart = new org.apache.james.mime4j.message.BodyPart();
-                    bodyPart.setBody(body1, dataSource.getContentType());
-                    bodyPart.setContentTransferEncoding("base64");
-                    bodyPart.setContentDisposition("attachment");
-                    bodyPart.setFilename(dataSource.getName());
+            if (folder instanceof UIDFolder) {
+                UIDFolder uidFolder = (UIDFolder) folder;
+                // the locator has checked the Message-ID of the id against the message
+                String[] messageId = id.getMessageId() != null ? new String[] { id.getMessageId() } : message.getHeader("Message-ID");
 
-                    body.addBodyPart(bodyPart);
+                if (messageId == null) {
+                    return content;
+                }
 
-                } else {
-                    TextBody tb = (TextBody) parseMessage.removeBody();
+                // the encoded size is an upper bound of the decoded size
+                return attachmentCache.fill(id.getFolder(), uidFolder.getUIDValidity(), uidFolder.getUID(message), messageId[0], content, part.getSize());
+            }
 
-                    BasicBodyFactory basicBodyFactory = new BasicBodyFactory();
+            return content;
+        } catch (Exception e) {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompositeId appendAttachment(CompositeId id, DataSource dataSource) {
+        Assert.notNull(id);
+        Assert.notNull(dataSource);
+
+        try {
+            Folder sourceFolder = mailContext.getFolder(id.getFolder());
+            Message[] search = messageLocator.find(sourceFolder, id);
 
-                    TextBody textBody = basicBodyFactory.textBody(tb.getInputStream(), parseMessage.getCharset());
+            if (search != null && search.length == 1) {
+
+                ThresholdBodyFactory bodyFactory = new ThresholdBodyFactory();
+                MessageImpl parseMessage = Mime4jMessageFactory.parse(search[0]);
+                MimeMessage mm;
 
-                    Body body1 = new BasicBodyFactory().binaryBody(dataSource.getInputStream());
+                try {
+                    if (parseMessage.isMultipart()) {
+                        org.apache.james.mime4j.dom.Multipart body = (org.apache.james.mime4j.dom.Multipart) parseMessage.getBody();
 
-                    org.apache.james.mime4j.message.BodyPart bodyPart = new org.apache.james.mime4j.message.BodyPart();
-                    bodyPart.setBody(body1, dataSource.getContentType());
-                    bodyPart.setContentTransferEncoding("base64");
-                    bodyPart.setContentDisposition("attachment");
-                    bodyPart.setFilename(dataSource.getName());
+                        Body body1 = bodyFactory.binaryBody(dataSource.getInputStream());
 
-                    org.apache.james.mime4j.message.BodyPart textBodyPart = new org.apache.james.mime4j.message.BodyPart();
+                        org.apache.james.mime4j.message.BodyPart bodyPart = new org.apache.james.mime4j.message.BodyPart();
+                        bodyPart.setBody(body1, dataSource.getContentType());
+                        bodyPart.setContentTransferEncoding("base64");
+                        bodyPart.setContentDisposition("attachment");
+                        bodyPart.setFilename(dataSource.getName());
+
+                        body.addBodyPart(bodyPart);
 
-                    if (parseMessage.isMimeType("text/html")) {
-                        textBodyPart.setText(textBody, "html");
                     } else {
-                        textBodyPart.setText(textBody);
-                    }
+                        TextBody tb = (TextBody) parseMessage.removeBody();
 
-                    org.apache.james.mime4j.dom.Multipart newBody = new MultipartImpl("mixed");
+                        TextBody textBody = bodyFactory.textBody(tb.getInputStream(), parseMessage.getCharset());
+                        tb.dispose();
 
-                    newBody.addBodyPart(textBodyPart);
-                    newBody.addBodyPart(bodyPart);
+                        Body body1 = bodyFactory.binaryBody(dataSource.getInputStream());
 
-                    Map<String, String> map = new HashMap<String, String>();
+                        org.apache.james.mime4j.message.BodyPart bodyPart = new org.apache.james.mime4j.message.BodyPart();
+                        bodyPart.setBody(body1, dataSource.getContentType());
+                        bodyPart.setContentTransferEncoding("base64");
+                        bodyPart.setContentDisposition("attachment");
+                        bodyPart.setFilename(dataSource.getName());
 
-                    map.put("boundary", MimeUtil.createUniqueBoundary());
+                        org.apache.james.mime4j.message.BodyPart textBodyPart = new org.apache.james.mime4j.message.BodyPart();
 
-                    parseMessage.setBody(newBody, "multipart/mixed", map);
-                }
+                        if (parseMessage.isMimeType("text/html")) {
+                            textBodyPart.setText(textBody, "html");
+                        } else {
+                            textBodyPart.setText(textBody);
+                        }
+
+                        org.apache.james.mime4j.dom.Multipart newBody = new MultipartImpl("mixed");
+
+                        newBody.addBodyPart(textBodyPart);
+                        newBody.addBodyPart(bodyPart);
+
+                        Map<String, String> map = new HashMap<String, String>();
 
-                ByteArrayOutputStream output2 = new ByteArrayOutputStream();
-                writer.writeMessage(parseMessage, output2);
-                parseMessage.dispose();
+                        map.put("boundary", MimeUtil.createUniqueBoundary());
 
-                InputStream decodedInput2 = new ByteArrayInputStream((output2).toByteArray());
+                        parseMessage.setBody(newBody, "multipart/mixed", map);
+                    }
+
+                    mm = Mime4jMessageFactory.toMimeMessage(mailContext.getSession(), parseMessage);
+                } finally {
+                    parseMessage.dispose();
+                }
 
-                MimeMessage mm = new MimeMessage(mailContext.getSession(), decodedInput2);
                 mm.saveChanges();
 
                 sourceFolder.appendMessages(new Message[] { mm });
-                sourceFolder.close(false);
 
                 CompositeId compositeId = new CompositeId();
                 compositeId.setFolder(id.getFolder());
@@ -210,7 +275,29 @@ public class AttachmentRepositoryImpl implements AttachmentRepository {
 		if(mime4jMessage == null) {
 			return Collections.emptyList();
 		}
-		return mime4jMessage.getAttachments();
+		try {
+			return mime4jMessage.getAttachments();
+		} finally {
+			mime4jMessage.close();
+		}
+	}
+
+	/**
+	 * Looks up the attachment cache without connecting to the server. Ids without UID are resolved through the
+	 * {@link MessageIdCache}. A cached payload is only used if it belongs to a message with the Message-ID of the id.
+	 */
+	private AttachmentContent findCached(CompositeAttachmentId id) {
+		long[] uid = id.hasUid() ? new long[] { id.getUidValidity(), id.getUid() } : messageIdCache.find(id.getFolder(), id.getMessageId());
+		return uid != null ? attachmentCache.get(id.getFolder(), uid[0], uid[1], id.getMessageId(), id.getFileName()) : null;
+	}
+
+	private static String etag(Folder folder, Message message, String section) throws MessagingException {
+		if (!(folder instanceof UIDFolder)) {
+			return null;
+		}
+
+		UIDFolder uidFolder = (UIDFolder) folder;
+		return "\"" + uidFolder.getUIDValidity() + "." + uidFolder.getUID(message) + "." + section + "\"";
 	}
 
 	private Mime4jMessage readInternal(CompositeId id) {
@@ -222,13 +309,14 @@ public class AttachmentRepositoryImpl implements AttachmentRepository {
 				return null;
 			}
 
-			Message[] search = folder.search(new MessageIDTerm(id.getMessageId()));
-			if (search != null && search.length > 0 && search[0] != null) {
-				return Mime4jMessageFactory.from(search[0]);
+			Message message = messageLocator.findFirst(folder, id);
+			if (message != null) {
+				return Mime4jMessageFactory.from(message);
 			}
 		} catch (Exception e) {
 			throw new RepositoryException(e.getMessage(), e);
 		}
 		return null;
 	}
+
 }
@@ -3,6 +3,7 @@ package org.minig.server.service.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 
 import javax.activation.DataSource;
 
@@ -10,6 +11,7 @@ import org.apache.commons.io.IOUtils;
 import org.minig.server.MailAttachment;
 import org.minig.server.MailAttachmentList;
 import org.minig.server.MailMessage;
+import org.minig.server.service.AttachmentContent;
 import org.minig.server.service.AttachmentRepository;
 import org.minig.server.service.AttachmentService;
 import org.minig.server.service.CompositeAttachmentId;
@@ -35,23 +37,38 @@ public class AttachmentServiceImpl implements AttachmentService {
 	@Autowired
 	private FolderRepository folderRepository;
 
+	@Autowired
+	private DraftStore draftStore;
+
 	@Override
 	public MailAttachmentList findAttachments(CompositeId id) {
 		Assert.notNull(id);
 
-		MailMessage message = mailRepository.read(id);
+		MailMessage message = mailRepository.readFlags(id);
 
-		if (message != null) {
-			return attachmentRepository.readMetadata(message);
-		} else {
+		if (message == null) {
 			return new MailAttachmentList();
 		}
+
+		MailAttachmentList attachments = attachmentRepository.readMetadata(message);
+
+		for (StagedAttachment staged : draftStore.get(id)) {
+			attachments.getAttachmentMetadata().add(staged.toMailAttachment(id));
+		}
+
+		return attachments;
 	}
 
 	@Override
 	public MailAttachment findAttachment(CompositeAttachmentId attachmentId) {
 		Assert.notNull(attachmentId);
 
+		StagedAttachment staged = draftStore.get(attachmentId);
+
+		if (staged != null) {
+			return staged.toMailAttachment(attachmentId);
+		}
+
 		MailAttachment attachment = attachmentRepository.read(attachmentId);
 
 		if (attachment == null) {
@@ -65,17 +82,38 @@ public class AttachmentServiceImpl implements AttachmentService {
 	public void readAttachment(CompositeAttachmentId attachmentId, OutputStream output) {
 		Assert.notNull(attachmentId);
 
-		InputStream input = attachmentRepository.readAttachmentPayload(attachmentId);
+		StagedAttachment staged = draftStore.get(attachmentId);
 
-		if (input == null) {
-			throw new NotFoundException();
-		} else {
-			try {
-				IOUtils.copy(input, output);
-			} catch (IOException e) {
-				throw new RuntimeException();
+		try {
+			InputStream input = staged != null ? staged.getInputStream() : attachmentRepository.readAttachmentPayload(attachmentId);
+
+			if (input == null) {
+				throw new NotFoundException();
 			}
+
+			IOUtils.copy(input, output);
+		} catch (IOException e) {
+			throw new RuntimeException();
+		}
+	}
+
+	@Override
+	public AttachmentContent openAttachment(CompositeAttachmentId attachmentId) {
+		Assert.notNull(attachmentId);
+
+		StagedAttachment staged = draftStore.get(attachmentId);
+
+		if (staged != null) {
+			return staged.toContent(attachmentId);
 		}
+
+		AttachmentContent content = attachmentRepository.open(attachmentId);
+
+		if (content == null) {
+			throw new NotFoundException();
+		}
+
+		return content;
 	}
 
 	@Override
@@ -87,27 +125,28 @@ public class AttachmentServiceImpl implements AttachmentService {
 			throw new ServiceException("");
 		}
 
-		CompositeId appendAttachment = attachmentRepository.appendAttachment(attachmentId, dataSource);
+		MailMessage flags = mailRepository.readFlags(attachmentId);
 
-        MailMessage oldMessage = mailRepository.read(attachmentId);
-        MailMessage newMessage = mailRepository.read(appendAttachment);
+		if (flags == null) {
+			throw new NotFoundException();
+		}
 
-        //TODO check if all flags are written back
-        newMessage.setAnswered(oldMessage.getAnswered());
-        newMessage.setAskForDispositionNotification(oldMessage.getAskForDispositionNotification());
-        newMessage.setDeleted(oldMessage.getDeleted());
-        newMessage.setDispositionNotification(oldMessage.getDispositionNotification());
-        newMessage.setForwarded(oldMessage.getForwarded());
-        newMessage.setHighPriority(oldMessage.getHighPriority());
-        newMessage.setMdnSent(oldMessage.getMdnSent());
-        newMessage.setRead(oldMessage.getRead());
-        newMessage.setReceipt(oldMessage.getReceipt());
-        newMessage.setStarred(oldMessage.getStarred());
+		boolean withinQuota;
 
-        mailRepository.updateFlags(newMessage);
-        mailRepository.delete(attachmentId);
+		try {
+			withinQuota = draftStore.stage(attachmentId, dataSource);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+
+		if (withinQuota) {
+			// the draft in the mail store stays untouched until it is saved or sent
+			return attachmentId;
+		}
 
-		return appendAttachment;
+		try (Mime4jMessage message = mailRepository.read(attachmentId.getFolder(), attachmentId.getMessageId())) {
+			return saveDraft(message, attachmentId, flags);
+		}
 	}
 
 	@Override
@@ -118,22 +157,40 @@ public class AttachmentServiceImpl implements AttachmentService {
 			throw new ServiceException("");
 		}
 
-        Mime4jMessage message = mailRepository.read(attachmentId.getFolder(), attachmentId.getMessageId());
+		if (draftStore.remove(attachmentId)) {
+			return new CompositeId(attachmentId.getFolder(), attachmentId.getMessageId());
+		}
 
-        message.deleteAttachment(attachmentId.getFileName());
+		MailMessage flags = mailRepository.readFlags(attachmentId);
 
-        String id = mailRepository.save(message, message.getId().getFolder());
+		if (flags == null) {
+			throw new NotFoundException();
+		}
 
-        MailMessage mm = mailRepository.readPojo(message.getId().getFolder(), id);
-        mm.setRead(true);
-        mailRepository.updateFlags(mm);
+		try (Mime4jMessage message = mailRepository.read(attachmentId.getFolder(), attachmentId.getMessageId())) {
+			message.deleteAttachment(attachmentId.getFileName());
+			return saveDraft(message, attachmentId, flags);
+		}
+	}
+
+	/**
+	 * Writes the draft together with its staged attachments and replaces the old draft.
+	 */
+	private CompositeId saveDraft(Mime4jMessage message, CompositeId oldId, MailMessage flags) {
+		List<StagedAttachment> staged = draftStore.take(oldId);
 
-        mailRepository.delete(attachmentId);
+		try {
+			for (StagedAttachment attachment : staged) {
+				message.addAttachment(attachment);
+			}
 
-        CompositeId newId = new CompositeId();
-        newId.setFolder(attachmentId.getFolder());
-        newId.setMessageId(id);
+			flags.setRead(Boolean.TRUE);
+			String id = mailRepository.save(message, oldId.getFolder(), flags);
+			mailRepository.delete(oldId);
 
-        return newId;
+			return new CompositeId(oldId.getFolder(), id);
+		} finally {
+			draftStore.release(staged);
+		}
 	}
 }
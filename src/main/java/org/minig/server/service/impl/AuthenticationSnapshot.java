@@ -0,0 +1,84 @@
+package org.minig.server.service.impl;
+
+import org.minig.MailAuthentication;
+
+/**
+ * Copy of the credentials of the current user for threads without access to the request.
+ *
+ * @author Kamill Sokol
+ */
+final class AuthenticationSnapshot implements MailAuthentication {
+
+    private final String emailAddress;
+    private final String userMail;
+    private final String password;
+    private final String domain;
+    private final String inboxFolder;
+    private final String trashFolder;
+    private final String draftsFolder;
+    private final String sentFolder;
+    private final char folderSeparator;
+
+    @SuppressWarnings("deprecation")
+    AuthenticationSnapshot(MailAuthentication authentication) {
+        emailAddress = authentication.getEmailAddress();
+        userMail = authentication.getUserMail();
+        password = authentication.getPassword();
+        domain = authentication.getDomain();
+        inboxFolder = authentication.getInboxFolder();
+        trashFolder = authentication.getTrashFolder();
+        draftsFolder = authentication.getDraftsFolder();
+        sentFolder = authentication.getSentFolder();
+        folderSeparator = authentication.getFolderSeparator();
+    }
+
+    @Override
+    public String getEmailAddress() {
+        return emailAddress;
+    }
+
+    @Override
+    public String getAddress() {
+        return emailAddress;
+    }
+
+    @Override
+    public String getUserMail() {
+        return userMail;
+    }
+
+    @Override
+    public String getPassword() {
+        return password;
+    }
+
+    @Override
+    public String getDomain() {
+        return domain;
+    }
+
+    @Override
+    public String getInboxFolder() {
+        return inboxFolder;
+    }
+
+    @Override
+    public String getTrashFolder() {
+        return trashFolder;
+    }
+
+    @Override
+    public String getDraftsFolder() {
+        return draftsFolder;
+    }
+
+    @Override
+    public String getSentFolder() {
+        return sentFolder;
+    }
+
+    @Override
+    public char getFolderSeparator() {
+        return folderSeparator;
+    }
+}
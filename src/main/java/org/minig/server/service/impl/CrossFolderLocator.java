@@ -0,0 +1,370 @@
+package org.minig.server.service.impl;
+
+import org.minig.MailAuthentication;
+import org.minig.server.service.CompositeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.search.MessageIDTerm;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the folder of a message by its Message-ID below the inbox of the current user.
+ *
+ * The folder the Message-ID has been seen in last, known from the {@link MessageIdCache}, and the inbox are checked
+ * first. The remaining folders are searched in parallel: the current thread and up to all but one pooled connections
+ * of the user take folders from a shared queue. Trash, sent and drafts folders and their children are skipped.
+ *
+ * If a message exists in several folders, the folder checked first wins. Children are checked before their parent,
+ * as the recursive walk this replaces did.
+ *
+ * @author Kamill Sokol
+ */
+@Component
+class CrossFolderLocator implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(CrossFolderLocator.class);
+    private static final int MAX_THREADS = 16;
+
+    private final ThreadPoolExecutor executor;
+
+    @Autowired
+    private MailContext mailContext;
+
+    @Autowired
+    private MessageLocator messageLocator;
+
+    @Autowired
+    private MessageIdCache messageIdCache;
+
+    @Autowired
+    private MailAuthentication authentication;
+
+    @Autowired(required = false)
+    private MailStorePool mailStorePool;
+
+    public CrossFolderLocator() {
+        executor = new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "cross-folder-locator-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return id of the message including UIDVALIDITY and UID if supported, or {@code null}
+     */
+    public CompositeId find(String messageId) throws MessagingException {
+        Assert.hasText(messageId, "messageId is empty");
+
+        String seenIn = messageIdCache.findFolder(messageId);
+
+        if (seenIn != null) {
+            CompositeId cached = findCached(seenIn, messageId);
+
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        List<String> candidates = candidates(seenIn);
+
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        Search search = new Search(candidates, new MessageIDTerm(messageId));
+        List<Future<?>> workers = startWorkers(search);
+
+        search.run(mailContext.getStore());
+
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException(e.getMessage(), e);
+            } catch (ExecutionException e) {
+                log.debug("parallel search failed. reason {}", e.getCause().getMessage());
+            }
+        }
+
+        if (search.error != null && search.match == null) {
+            throw search.error;
+        }
+
+        Match match = search.match;
+
+        if (match == null) {
+            log.debug("searched {} folders for {} with {} workers. not found", candidates.size(), messageId, workers.size());
+            return null;
+        }
+
+        log.debug("searched {} folders for {} with {} workers. found in {}", candidates.size(), messageId, workers.size(), match.folder);
+
+        CompositeId id = new CompositeId(match.folder, match.messageId);
+
+        if (match.uid != null) {
+            id.setUidValidity(match.uidValidity);
+            id.setUid(match.uid);
+            messageIdCache.put(match.folder, match.messageId, match.uidValidity, match.uid);
+        }
+
+        return id;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdownNow();
+    }
+
+    void setMailStorePool(MailStorePool mailStorePool) {
+        this.mailStorePool = mailStorePool;
+    }
+
+    private CompositeId findCached(String folderName, String messageId) throws MessagingException {
+        Folder folder;
+
+        try {
+            folder = mailContext.openFolder(folderName, Folder.READ_ONLY);
+        } catch (RuntimeException e) {
+            log.debug("{} is not accessible anymore. reason {}", folderName, e.getMessage());
+            return null;
+        }
+
+        Message message = messageLocator.findFirst(folder, new CompositeId(folderName, messageId));
+
+        if (message == null) {
+            return null;
+        }
+
+        CompositeId id = new CompositeId(folderName, messageId);
+
+        if (folder instanceof UIDFolder) {
+            id.setUidValidity(((UIDFolder) folder).getUIDValidity());
+            id.setUid(((UIDFolder) folder).getUID(message));
+        }
+
+        return id;
+    }
+
+    /**
+     * @return names of the folders to search in the order to check them, without the already checked folder
+     */
+    private List<String> candidates(String checked) throws MessagingException {
+        Folder inbox = mailContext.getInbox();
+        Map<String, List<Folder>> children = new LinkedHashMap<>();
+
+        for (Folder folder : inbox.list("*")) {
+            String parent = parentName(folder);
+            List<Folder> siblings = children.get(parent);
+
+            if (siblings == null) {
+                siblings = new ArrayList<>();
+                children.put(parent, siblings);
+            }
+
+            siblings.add(folder);
+        }
+
+        List<String> candidates = new ArrayList<>();
+
+        if (!inbox.getFullName().equals(checked) && (inbox.getType() & Folder.HOLDS_MESSAGES) != 0) {
+            candidates.add(inbox.getFullName());
+        }
+
+        addChildren(inbox.getFullName(), children, checked, candidates);
+        return candidates;
+    }
+
+    private void addChildren(String parent, Map<String, List<Folder>> children, String checked, List<String> candidates) throws MessagingException {
+        List<Folder> folders = children.get(parent);
+
+        if (folders == null) {
+            return;
+        }
+
+        for (Folder folder : folders) {
+            if (!mailContext.isSystemFolder(folder)) {
+                continue;
+            }
+
+            addChildren(folder.getFullName(), children, checked, candidates);
+
+            if (!folder.getFullName().equals(checked) && (folder.getType() & Folder.HOLDS_MESSAGES) != 0) {
+                candidates.add(folder.getFullName());
+            }
+        }
+    }
+
+    private String parentName(Folder folder) throws MessagingException {
+        String name = folder.getFullName();
+        int index = name.lastIndexOf(authentication.getFolderSeparator());
+        return index > 0 ? name.substring(0, index) : "";
+    }
+
+    private List<Future<?>> startWorkers(final Search search) {
+        List<Future<?>> workers = new ArrayList<>();
+
+        if (mailStorePool == null || search.folders.size() < 2) {
+            return workers;
+        }
+
+        final MailAuthentication snapshot = new AuthenticationSnapshot(authentication);
+        int count = Math.min(mailStorePool.getMaxConnectionsPerUser() - 1, search.folders.size() - 1);
+
+        for (int i = 0; i < count; i++) {
+            try {
+                workers.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Store store = mailStorePool.tryBorrow(snapshot);
+
+                        if (store == null) {
+                            return null;
+                        }
+
+                        boolean broken = false;
+
+                        try {
+                            search.run(store);
+                        } catch (RuntimeException e) {
+                            broken = true;
+                            throw e;
+                        } finally {
+                            if (broken) {
+                                mailStorePool.invalidate(store);
+                            } else {
+                                mailStorePool.release(store);
+                            }
+                        }
+
+                        return null;
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                log.debug("no thread left for parallel search");
+                break;
+            }
+        }
+
+        return workers;
+    }
+
+    /**
+     * Folders to search, shared by all threads. A thread stops as soon as the next folder in the queue comes after a
+     * folder the message has been found in.
+     */
+    private static final class Search {
+        private final List<String> folders;
+        private final MessageIDTerm term;
+        private final AtomicInteger next = new AtomicInteger();
+        private int matchIndex = Integer.MAX_VALUE;
+        private Match match;
+        private MessagingException error;
+
+        private Search(List<String> folders, MessageIDTerm term) {
+            this.folders = folders;
+            this.term = term;
+        }
+
+        private void run(Store store) {
+            int index;
+
+            while ((index = next.getAndIncrement()) < folders.size()) {
+                synchronized (this) {
+                    if (index > matchIndex) {
+                        return;
+                    }
+                }
+
+                try {
+                    Match found = search(store, folders.get(index), term);
+
+                    if (found != null) {
+                        synchronized (this) {
+                            if (index < matchIndex) {
+                                matchIndex = index;
+                                match = found;
+                            }
+                        }
+                    }
+                } catch (MessagingException e) {
+                    fail(e);
+                } catch (RuntimeException e) {
+                    // the folder has not been searched, so not finding the message elsewhere is no answer
+                    fail(new MessagingException(e.getMessage(), e));
+                    throw e;
+                }
+            }
+        }
+
+        private synchronized void fail(MessagingException e) {
+            error = e;
+        }
+
+        private static Match search(Store store, String name, MessageIDTerm term) throws MessagingException {
+            Folder folder = store.getFolder(name);
+            folder.open(Folder.READ_ONLY);
+
+            try {
+                Message[] messages = folder.search(term);
+
+                if (messages.length == 0) {
+                    return null;
+                }
+
+                Message message = messages[messages.length - 1];
+                String[] messageId = message.getHeader("Message-ID");
+                Match match = new Match(name, messageId != null ? messageId[0] : term.getPattern());
+
+                if (folder instanceof UIDFolder) {
+                    match.uidValidity = ((UIDFolder) folder).getUIDValidity();
+                    match.uid = ((UIDFolder) folder).getUID(message);
+                }
+
+                return match;
+            } finally {
+                folder.close(false);
+            }
+        }
+    }
+
+    private static final class Match {
+        private final String folder;
+        private final String messageId;
+        private long uidValidity;
+        private Long uid;
+
+        private Match(String folder, String messageId) {
+            this.folder = folder;
+            this.messageId = messageId;
+        }
+    }
+}
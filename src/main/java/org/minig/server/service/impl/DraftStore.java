@@ -0,0 +1,295 @@
+package org.minig.server.service.impl;
+
+import org.apache.commons.io.IOUtils;
+import org.minig.MailAuthentication;
+import org.minig.server.service.CompositeAttachmentId;
+import org.minig.server.service.CompositeId;
+import org.minig.util.SpoolOutputStream;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import javax.activation.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node local staging area for attachments of drafts. Uploaded attachments are kept here instead of rewriting and
+ * appending the whole draft on every upload. They are written to the mail store together with the draft when it is
+ * saved or sent.
+ *
+ * Payloads up to {@link #setMemoryThreshold(int)} bytes are kept on the heap, larger ones in temporary files only their
+ * owner can read, in the spool directory of {@link org.minig.util.PrivateFiles}. Drafts
+ * that have not been touched for {@link #setMaxIdleTime(long)} milliseconds are discarded by a background task that
+ * runs every minute.
+ *
+ * @author Kamill Sokol
+ */
+public class DraftStore implements DisposableBean {
+
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private final Map<Key, Draft> drafts = new HashMap<>();
+    private final Map<String, Long> userBytes = new HashMap<>();
+    private final ScheduledExecutorService expiry;
+
+    @Autowired
+    private MailAuthentication authentication;
+
+    private int memoryThreshold = 256 * 1024;
+    private long maxBytesPerUser = 100 * 1024 * 1024;
+    private long maxIdleTime = 24 * 60 * 60 * 1000L;
+
+    public DraftStore() {
+        expiry = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "draft-store-expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        expiry.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stages a copy of the given attachment for the draft.
+     *
+     * @return {@code false} if the staged attachments of the user exceed their quota and the draft should be written
+     * to the mail store right away
+     */
+    public boolean stage(CompositeId draft, DataSource dataSource) throws IOException {
+        String user = authentication.getEmailAddress();
+        StagedAttachment attachment = copy(dataSource);
+
+        synchronized (this) {
+            Key key = new Key(user, draft);
+            Draft staged = drafts.get(key);
+
+            if (staged == null) {
+                staged = new Draft();
+                drafts.put(key, staged);
+            }
+
+            staged.attachments.add(attachment);
+            staged.touched = System.currentTimeMillis();
+            account(user, attachment.getSize());
+
+            return getUserBytes(user) <= maxBytesPerUser;
+        }
+    }
+
+    /**
+     * @return staged attachments of the draft in upload order
+     */
+    synchronized List<StagedAttachment> get(CompositeId draft) {
+        Draft staged = drafts.get(new Key(authentication.getEmailAddress(), draft));
+        return staged != null ? new ArrayList<>(staged.attachments) : Collections.<StagedAttachment>emptyList();
+    }
+
+    /**
+     * @return the last staged attachment with the file name of the given id or {@code null}
+     */
+    synchronized StagedAttachment get(CompositeAttachmentId id) {
+        List<StagedAttachment> attachments = get((CompositeId) id);
+
+        for (int i = attachments.size() - 1; i >= 0; i--) {
+            if (attachments.get(i).getName().equals(id.getFileName())) {
+                return attachments.get(i);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Discards the staged attachment with the file name of the given id.
+     *
+     * @return {@code true} if such an attachment has been staged
+     */
+    synchronized boolean remove(CompositeAttachmentId id) {
+        String user = authentication.getEmailAddress();
+        Key key = new Key(user, id);
+        StagedAttachment attachment = get(id);
+
+        if (attachment == null) {
+            return false;
+        }
+
+        Draft staged = drafts.get(key);
+        staged.attachments.remove(attachment);
+        staged.touched = System.currentTimeMillis();
+
+        if (staged.attachments.isEmpty()) {
+            drafts.remove(key);
+        }
+
+        discard(user, attachment);
+        return true;
+    }
+
+    /**
+     * Removes all staged attachments of the draft. The caller owns the returned attachments and has to
+     * {@link #release(List) release} them once they are written.
+     */
+    synchronized List<StagedAttachment> take(CompositeId draft) {
+        Draft staged = drafts.remove(new Key(authentication.getEmailAddress(), draft));
+        return staged != null ? staged.attachments : Collections.<StagedAttachment>emptyList();
+    }
+
+    /**
+     * Frees attachments previously returned by {@link #take(CompositeId)}.
+     */
+    synchronized void release(List<StagedAttachment> attachments) {
+        String user = authentication.getEmailAddress();
+
+        for (StagedAttachment attachment : attachments) {
+            discard(user, attachment);
+        }
+    }
+
+    /**
+     * Discards all staged attachments of the draft, e.g. because the draft has been deleted.
+     */
+    public void discard(CompositeId draft) {
+        release(take(draft));
+    }
+
+    public synchronized long getUserBytes(String user) {
+        Long bytes = userBytes.get(user);
+        return bytes != null ? bytes : 0;
+    }
+
+    public void setMemoryThreshold(int memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    public void setMaxBytesPerUser(long maxBytesPerUser) {
+        this.maxBytesPerUser = maxBytesPerUser;
+    }
+
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    void setAuthentication(MailAuthentication authentication) {
+        this.authentication = authentication;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        expiry.shutdownNow();
+
+        for (Draft staged : drafts.values()) {
+            for (StagedAttachment attachment : staged.attachments) {
+                attachment.dispose();
+            }
+        }
+
+        drafts.clear();
+        userBytes.clear();
+    }
+
+    private StagedAttachment copy(DataSource dataSource) throws IOException {
+        SpoolOutputStream output = new SpoolOutputStream(memoryThreshold, "minig-draft");
+
+        try (InputStream input = dataSource.getInputStream()) {
+            IOUtils.copyLarge(input, output);
+        } catch (IOException | RuntimeException e) {
+            output.close();
+            output.delete();
+            throw e;
+        }
+
+        output.close();
+
+        String contentType = dataSource.getContentType() != null ? dataSource.getContentType() : DEFAULT_CONTENT_TYPE;
+        byte[] bytes = output.isInMemory() ? output.getData() : null;
+        File file = output.isInMemory() ? null : output.getFile();
+
+        return new StagedAttachment(dataSource.getName(), contentType, bytes, file, output.getByteCount(), System.currentTimeMillis());
+    }
+
+    synchronized void expire() {
+        long oldest = System.currentTimeMillis() - maxIdleTime;
+        Iterator<Map.Entry<Key, Draft>> iterator = drafts.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            Map.Entry<Key, Draft> entry = iterator.next();
+
+            if (entry.getValue().touched < oldest) {
+                iterator.remove();
+
+                for (StagedAttachment attachment : entry.getValue().attachments) {
+                    discard(entry.getKey().user, attachment);
+                }
+            }
+        }
+    }
+
+    private void discard(String user, StagedAttachment attachment) {
+        account(user, -attachment.getSize());
+        attachment.dispose();
+    }
+
+    private void account(String user, long delta) {
+        long bytes = getUserBytes(user) + delta;
+
+        if (bytes > 0) {
+            userBytes.put(user, bytes);
+        } else {
+            userBytes.remove(user);
+        }
+    }
+
+    private static final class Draft {
+        private final List<StagedAttachment> attachments = new ArrayList<>();
+        private long touched;
+    }
+
+    private static final class Key {
+        private final String user;
+        private final String folder;
+        private final String messageId;
+
+        private Key(String user, CompositeId draft) {
+            this.user = user;
+            this.folder = draft.getFolder();
+            this.messageId = draft.getMessageId();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return user.equals(key.user) && Objects.equals(folder, key.folder) && Objects.equals(messageId, key.messageId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(user, folder, messageId);
+        }
+    }
+}
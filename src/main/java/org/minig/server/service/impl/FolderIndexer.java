@@ -0,0 +1,228 @@
+package org.minig.server.service.impl;
+
+import com.sun.mail.imap.IMAPFolder;
+import org.minig.MailAuthentication;
+import org.minig.server.repository.mail.MailFetchProfile;
+import org.minig.server.service.impl.helper.MessageStructure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.mail.Address;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Brings the {@link MessageIndex} of a folder up to date on a background thread, so that searches are answered from
+ * the current index instead of waiting for new messages to be indexed.
+ *
+ * Messages are indexed in batches of {@link MessageIndex#getBatchSize()}. Every batch borrows a connection of the
+ * user from the {@link MailStorePool} and returns it afterwards, so indexing a large folder does not hold a connection
+ * the user's requests need. Without a pool nothing is indexed.
+ *
+ * @author Kamill Sokol
+ */
+@Component
+class FolderIndexer implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(FolderIndexer.class);
+    private static final int MAX_INDEXED_TEXT = 64 * 1024;
+
+    private final Set<String> scheduled = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ExecutorService executor;
+
+    @Autowired
+    private MessageIndex messageIndex;
+
+    @Autowired
+    private MailAuthentication authentication;
+
+    @Autowired(required = false)
+    private MailStorePool mailStorePool;
+
+    public FolderIndexer() {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "folder-indexer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Indexes the messages of the folder of the current user that are not indexed yet. Does nothing if the folder is
+     * already queued.
+     */
+    public void schedule(final String folder) {
+        if (mailStorePool == null) {
+            return;
+        }
+
+        final MailAuthentication snapshot = new AuthenticationSnapshot(authentication);
+        final String key = snapshot.getEmailAddress() + "|" + folder;
+
+        if (!scheduled.add(key)) {
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (indexBatch(snapshot, folder)) {
+                            // next batch
+                        }
+                    } catch (Exception e) {
+                        log.warn("{}: indexing failed. reason {}", folder, e.getMessage());
+                    } finally {
+                        scheduled.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            scheduled.remove(key);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdownNow();
+    }
+
+    void setMessageIndex(MessageIndex messageIndex) {
+        this.messageIndex = messageIndex;
+    }
+
+    void setAuthentication(MailAuthentication authentication) {
+        this.authentication = authentication;
+    }
+
+    void setMailStorePool(MailStorePool mailStorePool) {
+        this.mailStorePool = mailStorePool;
+    }
+
+    /**
+     * @return {@code true} if there are more messages to index
+     */
+    boolean indexBatch(MailAuthentication user, String name) throws MessagingException, IOException {
+        Store store = mailStorePool.borrow(user);
+        boolean broken = false;
+
+        try {
+            IMAPFolder folder = (IMAPFolder) store.getFolder(name);
+            folder.open(Folder.READ_ONLY);
+
+            try {
+                return indexBatch(user.getEmailAddress(), folder);
+            } finally {
+                folder.close(false);
+            }
+        } catch (MessagingException | RuntimeException e) {
+            broken = !store.isConnected();
+            throw e;
+        } finally {
+            if (broken) {
+                mailStorePool.invalidate(store);
+            } else {
+                mailStorePool.release(store);
+            }
+        }
+    }
+
+    private boolean indexBatch(String user, IMAPFolder folder) throws MessagingException, IOException {
+        String name = folder.getFullName();
+        MessageIndex.FolderIndex index = messageIndex.open(user, name, folder.getUIDValidity());
+        long lastUid = index.getLastUid();
+
+        if (lastUid + 1 >= folder.getUIDNext()) {
+            return false;
+        }
+
+        Message[] added = folder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+        int count = Math.min(added.length, messageIndex.getBatchSize());
+        Message[] batch = Arrays.copyOf(added, count);
+        List<MessageIndex.Document> documents = new ArrayList<>(count);
+
+        folder.fetch(batch, MailFetchProfile.structure());
+
+        for (Message message : batch) {
+            long uid = folder.getUID(message);
+            String[] messageId = message.getHeader("Message-ID");
+
+            if (uid > lastUid && messageId != null) {
+                documents.add(new MessageIndex.Document(uid, messageId[0], searchableText(message)));
+            }
+
+            lastUid = Math.max(lastUid, uid);
+        }
+
+        index.add(documents, lastUid);
+        messageIndex.save(index);
+        log.debug("{}: indexed {} of {} new messages", name, count, added.length);
+
+        return count < added.length;
+    }
+
+    /**
+     * Subject, addresses, displayed text and attachment names of a message. Html is indexed without markup.
+     */
+    private static String searchableText(Message message) throws MessagingException, IOException {
+        StringBuilder text = new StringBuilder();
+
+        if (message.getSubject() != null) {
+            text.append(message.getSubject()).append(' ');
+        }
+
+        appendAddresses(text, message.getFrom());
+        appendAddresses(text, message.getRecipients(Message.RecipientType.TO));
+        appendAddresses(text, message.getRecipients(Message.RecipientType.CC));
+
+        MessageStructure structure = MessageStructure.of(message);
+        // every call reads the leaf again
+        String body = structure.getPlain();
+
+        if (body == null) {
+            body = structure.getHtml();
+            body = body != null ? body.replaceAll("<[^>]*>", " ") : null;
+        }
+
+        if (body != null) {
+            text.append(body.length() > MAX_INDEXED_TEXT ? body.substring(0, MAX_INDEXED_TEXT) : body).append(' ');
+        }
+
+        for (MessageStructure.Attachment attachment : structure.getAttachments()) {
+            text.append(attachment.getFileName()).append(' ');
+        }
+
+        return text.toString();
+    }
+
+    private static void appendAddresses(StringBuilder text, Address[] addresses) {
+        if (addresses == null) {
+            return;
+        }
+
+        for (Address address : addresses) {
+            text.append(address).append(' ');
+        }
+    }
+}
@@ -0,0 +1,572 @@
+package org.minig.server.service.impl;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IdleManager;
+import org.minig.MailAuthentication;
+import org.minig.server.FolderEvent;
+import org.minig.server.service.FolderEventListener;
+import org.minig.server.service.FolderWatchService;
+import org.minig.server.service.NotFoundException;
+import org.minig.server.service.RepositoryException;
+import org.minig.server.service.ServiceUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.util.Assert;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.event.ConnectionAdapter;
+import javax.mail.event.ConnectionEvent;
+import javax.mail.event.MessageChangedEvent;
+import javax.mail.event.MessageChangedListener;
+import javax.mail.event.MessageCountEvent;
+import javax.mail.event.MessageCountListener;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches folders with IMAP IDLE and publishes changes to {@link FolderEventListener}s.
+ *
+ * There is one watcher with a dedicated connection per user and folder, shared by all listeners of that folder. The
+ * connection counts toward the connections of the user in the {@link MailStorePool}. All watchers are multiplexed by a
+ * single {@link IdleManager}. Connections that can not be used with socket channels (SSL, STARTTLS) are polled with
+ * NOOP every {@link #setPollInterval(long)} milliseconds instead, on {@link #setPollThreads(int)} threads. Watchers
+ * without listeners are closed after {@link #setIdleTimeout(long)} milliseconds.
+ *
+ * Events are handed to every listener on {@link #setPublishThreads(int)} threads of their own, in order, so that a
+ * slow listener does not hold back the events of other folders. A listener that falls more than
+ * {@link #setMaxPendingEvents(int)} events behind is closed.
+ *
+ * @author Kamill Sokol
+ */
+public class FolderWatchServiceImpl implements FolderWatchService, DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(FolderWatchServiceImpl.class);
+
+    private final Map<String, Watcher> watchers = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final ScheduledThreadPoolExecutor poller;
+    private final ScheduledThreadPoolExecutor publisher;
+    private final ScheduledExecutorService scheduler;
+    private IdleManager idleManager;
+
+    @Autowired
+    private MailAuthentication authentication;
+
+    @Autowired(required = false)
+    private MailStorePool mailStorePool;
+
+    private int maxWatchers = 1000;
+    private int maxPendingEvents = 100;
+    private long idleTimeout = TimeUnit.MINUTES.toMillis(2);
+    private long pollInterval = TimeUnit.SECONDS.toMillis(30);
+    private long keepAliveInterval = TimeUnit.MINUTES.toMillis(10);
+
+    public FolderWatchServiceImpl() {
+        // one thread runs the select loop of the IdleManager, the other dispatches the folder events
+        executor = Executors.newFixedThreadPool(2, new NamedThreadFactory("mail-watch"));
+        poller = new ScheduledThreadPoolExecutor(4, new NamedThreadFactory("mail-watch-poll"));
+        publisher = new ScheduledThreadPoolExecutor(8, new NamedThreadFactory("mail-watch-publish"));
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("mail-watch-scheduler"));
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Closeable watch(String folder, final FolderEventListener listener) {
+        Assert.hasText(folder, "folder is empty");
+        Assert.notNull(listener, "listener is null");
+
+        String key = authentication.getEmailAddress() + "|" + folder;
+        final Watcher watcher;
+
+        synchronized (watchers) {
+            Watcher existing = watchers.get(key);
+
+            // a watcher that lost its connection is closed before it is removed
+            if (existing == null || !existing.addListener(listener)) {
+                if (existing == null && watchers.size() >= maxWatchers) {
+                    throw new ServiceUnavailableException("too many watched folders");
+                }
+
+                Closeable reservation = null;
+
+                if (mailStorePool != null && (reservation = mailStorePool.reserve(authentication)) == null) {
+                    throw new ServiceUnavailableException("too many connections");
+                }
+
+                existing = new Watcher(key, folder, authentication, reservation);
+                existing.addListener(listener);
+                watchers.put(key, existing);
+            }
+
+            watcher = existing;
+        }
+
+        try {
+            watcher.start();
+        } catch (MessagingException e) {
+            watcher.listeners.remove(listener);
+            watcher.close();
+            throw new RepositoryException(e.getMessage(), e);
+        } catch (RuntimeException e) {
+            watcher.listeners.remove(listener);
+            watcher.close();
+            throw e;
+        }
+
+        return new Closeable() {
+            @Override
+            public void close() {
+                watcher.removeListener(listener);
+            }
+        };
+    }
+
+    public int getWatcherCount() {
+        return watchers.size();
+    }
+
+    public void setMaxWatchers(int maxWatchers) {
+        this.maxWatchers = maxWatchers;
+    }
+
+    public void setMaxPendingEvents(int maxPendingEvents) {
+        this.maxPendingEvents = maxPendingEvents;
+    }
+
+    public void setPollThreads(int pollThreads) {
+        poller.setCorePoolSize(pollThreads);
+    }
+
+    public void setPublishThreads(int publishThreads) {
+        publisher.setCorePoolSize(publishThreads);
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    public void setKeepAliveInterval(long keepAliveInterval) {
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    void setAuthentication(MailAuthentication authentication) {
+        this.authentication = authentication;
+    }
+
+    void setMailStorePool(MailStorePool mailStorePool) {
+        this.mailStorePool = mailStorePool;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        scheduler.shutdownNow();
+
+        for (Watcher watcher : new ArrayList<>(watchers.values())) {
+            watcher.close();
+        }
+
+        synchronized (this) {
+            if (idleManager != null) {
+                idleManager.stop();
+            }
+        }
+
+        poller.shutdownNow();
+        publisher.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    void maintain() {
+        long now = System.currentTimeMillis();
+
+        for (final Watcher watcher : new ArrayList<>(watchers.values())) {
+            boolean expired;
+
+            synchronized (watchers) {
+                expired = watcher.listeners.isEmpty() && now - watcher.idleSince > idleTimeout;
+
+                if (expired) {
+                    watchers.remove(watcher.key, watcher);
+                }
+            }
+
+            if (expired) {
+                log.debug("closing idle watcher {}", watcher.key);
+                watcher.close();
+            } else if (now - watcher.lastKeepAlive > keepAliveInterval) {
+                watcher.lastKeepAlive = now;
+                poller.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        watcher.keepAlive();
+                    }
+                });
+            }
+        }
+    }
+
+    private synchronized IdleManager getIdleManager() throws IOException {
+        if (idleManager == null) {
+            idleManager = new IdleManager(Session.getInstance(new Properties()), executor);
+        }
+        return idleManager;
+    }
+
+    private final class Watcher extends ConnectionAdapter implements MessageCountListener, MessageChangedListener {
+        private final String key;
+        private final String folderName;
+        private final String user;
+        private final String password;
+        private final String domain;
+        private final Closeable reservation;
+        private final Map<FolderEventListener, Delivery> listeners = new ConcurrentHashMap<>();
+        private volatile long idleSince = System.currentTimeMillis();
+        private volatile long lastKeepAlive = System.currentTimeMillis();
+        private Store store;
+        private IMAPFolder folder;
+        private ScheduledFuture<?> poll;
+        private boolean closed;
+
+        private Watcher(String key, String folderName, MailAuthentication authentication, Closeable reservation) {
+            // the watcher outlives the request, so credentials are copied from the security context
+            this.key = key;
+            this.reservation = reservation;
+            this.folderName = folderName;
+            this.user = authentication.getUserMail();
+            this.password = authentication.getPassword();
+            this.domain = authentication.getDomain();
+        }
+
+        private synchronized void start() throws MessagingException {
+            if (store != null) {
+                return;
+            }
+
+            Properties properties = new JavaMailPropertyBuilder(domain).build();
+            properties.put("mail.imap.usesocketchannels", "true");
+            properties.put("mail.event.scope", "application");
+            properties.put("mail.event.executor", executor);
+
+            Store newStore = Session.getInstance(properties).getStore();
+            newStore.connect(domain, user, password);
+            store = newStore;
+
+            Folder newFolder = newStore.getFolder(folderName);
+
+            if (!newFolder.exists()) {
+                throw new NotFoundException();
+            }
+
+            if (!(newFolder instanceof IMAPFolder)) {
+                throw new RepositoryException(folderName + " can not be watched");
+            }
+
+            newFolder.open(Folder.READ_ONLY);
+            newFolder.addMessageCountListener(this);
+            newFolder.addMessageChangedListener(this);
+            newFolder.addConnectionListener(this);
+            folder = (IMAPFolder) newFolder;
+
+            watchFolder();
+        }
+
+        private synchronized void watchFolder() {
+            if (closed || poll != null) {
+                return;
+            }
+
+            try {
+                getIdleManager().watch(folder);
+            } catch (MessagingException | IOException e) {
+                log.debug("can not idle on {}, falling back to polling. reason {}", key, e.getMessage());
+
+                poll = poller.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        keepAlive();
+                    }
+                }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void keepAlive() {
+            lastKeepAlive = System.currentTimeMillis();
+
+            try {
+                // aborts a running IDLE. untagged responses are dispatched to the listeners
+                folder.getMessageCount();
+                watchFolder();
+            } catch (Exception e) {
+                log.debug("watcher {} lost its connection. reason {}", key, e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Returns false if the watcher is already closed.
+         */
+        private synchronized boolean addListener(FolderEventListener listener) {
+            if (closed) {
+                return false;
+            }
+
+            listeners.put(listener, new Delivery(this, listener));
+            return true;
+        }
+
+        private void removeListener(FolderEventListener listener) {
+            synchronized (watchers) {
+                listeners.remove(listener);
+
+                if (listeners.isEmpty()) {
+                    idleSince = System.currentTimeMillis();
+                }
+            }
+        }
+
+        private void publish(FolderEvent.Type type, List<Long> uids) {
+            FolderEvent event = new FolderEvent(type, folderName, uids);
+
+            for (Delivery delivery : listeners.values()) {
+                if (!delivery.offer(event)) {
+                    log.debug("closing listener of {} that can not keep up", key);
+                    removeListener(delivery.listener);
+                    closeListener(delivery.listener);
+                }
+            }
+        }
+
+        private List<Long> uids(Message[] messages, boolean fetch) {
+            List<Long> uids = new ArrayList<>(messages.length);
+
+            try {
+                if (fetch) {
+                    FetchProfile fetchProfile = new FetchProfile();
+                    fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+                    folder.fetch(messages, fetchProfile);
+                }
+            } catch (MessagingException e) {
+                log.debug("can not fetch uids of {}. reason {}", key, e.getMessage());
+            }
+
+            for (Message message : messages) {
+                try {
+                    uids.add(folder.getUID(message));
+                } catch (MessagingException e) {
+                    // expunged before its UID was known
+                }
+            }
+
+            return uids;
+        }
+
+        @Override
+        public void messagesAdded(MessageCountEvent e) {
+            publish(FolderEvent.Type.ADDED, uids(e.getMessages(), true));
+            watchFolder();
+        }
+
+        @Override
+        public void messagesRemoved(MessageCountEvent e) {
+            // expunged messages can not be fetched anymore
+            publish(FolderEvent.Type.EXPUNGED, uids(e.getMessages(), false));
+            watchFolder();
+        }
+
+        @Override
+        public void messageChanged(MessageChangedEvent e) {
+            if (e.getMessageChangeType() == MessageChangedEvent.FLAGS_CHANGED) {
+                publish(FolderEvent.Type.CHANGED, uids(new Message[] { e.getMessage() }, true));
+            }
+            watchFolder();
+        }
+
+        @Override
+        public void closed(ConnectionEvent e) {
+            watchers.remove(key, this);
+            close();
+        }
+
+        private void close() {
+            List<FolderEventListener> closedListeners;
+
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+
+                closed = true;
+                watchers.remove(key, this);
+
+                if (poll != null) {
+                    poll.cancel(false);
+                }
+
+                if (folder != null) {
+                    folder.removeMessageCountListener(this);
+                    folder.removeMessageChangedListener(this);
+                    folder.removeConnectionListener(this);
+
+                    try {
+                        folder.close(false);
+                    } catch (Exception e) {
+                        log.debug("can not close folder {}. reason {}", key, e.getMessage());
+                    }
+                }
+
+                if (store != null) {
+                    try {
+                        store.close();
+                    } catch (Exception e) {
+                        log.debug("can not close store {}. reason {}", key, e.getMessage());
+                    }
+                }
+
+                if (reservation != null) {
+                    try {
+                        reservation.close();
+                    } catch (IOException e) {
+                        log.debug("can not release connection of {}. reason {}", key, e.getMessage());
+                    }
+                }
+
+                closedListeners = new ArrayList<>(listeners.keySet());
+                listeners.clear();
+            }
+
+            for (FolderEventListener listener : closedListeners) {
+                closeListener(listener);
+            }
+        }
+
+        private void closeListener(FolderEventListener listener) {
+            try {
+                listener.onClose();
+            } catch (RuntimeException e) {
+                log.debug("can not close listener of {}. reason {}", key, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Pending events of a listener. At most one thread hands events to the listener at a time.
+     */
+    private final class Delivery implements Runnable {
+        private final Watcher watcher;
+        private final FolderEventListener listener;
+        private final ArrayDeque<FolderEvent> pending = new ArrayDeque<>();
+        private boolean running;
+
+        private Delivery(Watcher watcher, FolderEventListener listener) {
+            this.watcher = watcher;
+            this.listener = listener;
+        }
+
+        /**
+         * @return {@code false} if the listener is too far behind
+         */
+        private boolean offer(FolderEvent event) {
+            synchronized (this) {
+                if (pending.size() >= maxPendingEvents) {
+                    return false;
+                }
+
+                pending.add(event);
+
+                if (running) {
+                    return true;
+                }
+
+                running = true;
+            }
+
+            try {
+                publisher.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    running = false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                FolderEvent event;
+
+                synchronized (this) {
+                    event = pending.poll();
+
+                    if (event == null) {
+                        running = false;
+                        return;
+                    }
+                }
+
+                try {
+                    listener.onEvent(event);
+                } catch (IOException | RuntimeException e) {
+                    log.debug("removing listener of {}. reason {}", watcher.key, e.getMessage());
+                    watcher.removeListener(listener);
+
+                    synchronized (this) {
+                        pending.clear();
+                        running = false;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -23,6 +23,18 @@ public interface MailContext {
 
     Folder openFolder(String path);
 
+    /**
+     * Opens the folder in the given mode ({@link Folder#READ_ONLY} or {@link Folder#READ_WRITE}). Implementations may
+     * hand out a folder that has already been opened during the current request.
+     */
+    Folder openFolder(String path, int mode);
+
+    /**
+     * Removes all messages flagged as deleted from the folder. The folder may be closed afterwards, unless it is shared
+     * for the lifetime of the context.
+     */
+    void expunge(Folder folder);
+
     Folder getInbox();
 
     Folder getTrash();
@@ -1,12 +1,21 @@
 package org.minig.server.service.impl;
 
+import com.sun.mail.imap.AppendUID;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
 import org.minig.server.MailMessage;
 import org.minig.server.MailMessageList;
+import org.minig.server.MailMessageSync;
 import org.minig.server.repository.mail.MailFetchProfile;
 import org.minig.server.service.CompositeId;
 import org.minig.server.service.MailRepository;
+import org.minig.server.service.MessageFields;
+import org.minig.server.service.MessageSort;
 import org.minig.server.service.NotFoundException;
 import org.minig.server.service.RepositoryException;
+import org.minig.server.service.SyncToken;
 import org.minig.server.service.impl.helper.MessageMapper;
 import org.minig.server.service.impl.helper.mime.Mime4jMessage;
 import org.slf4j.Logger;
@@ -19,11 +28,27 @@ import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import javax.mail.event.MailEvent;
+import javax.mail.event.MessageChangedEvent;
 import javax.mail.internet.MimeMessage;
-import javax.mail.search.MessageIDTerm;
+import javax.mail.search.AndTerm;
+import javax.mail.search.BodyTerm;
+import javax.mail.search.FromStringTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.RecipientStringTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SubjectTerm;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Kamill Sokol
@@ -39,9 +64,37 @@ class MailRepositoryImpl implements MailRepository {
     @Autowired
     private MessageMapper mapper;
 
+    @Autowired
+    private MessageLocator messageLocator;
+
+    @Autowired
+    private MessageIdCache messageIdCache;
+
+    @Autowired
+    private MessageOverviewCache overviewCache;
+
+    @Autowired
+    private SyncStateCache syncStateCache;
+
+    @Autowired
+    private MessageIndex messageIndex;
+
+    @Autowired
+    private FolderIndexer folderIndexer;
+
+    @Autowired
+    private CrossFolderLocator crossFolderLocator;
+
     @Override
     public MailMessageList findByFolder(String folder, int page, int pageLength) {
+        return findByFolder(folder, page, pageLength, MessageFields.ALL, MessageSort.ARRIVAL);
+    }
+
+    @Override
+    public MailMessageList findByFolder(String folder, int page, int pageLength, MessageFields fields, MessageSort sort) {
         Assert.notNull(folder, "folder is null");
+        Assert.notNull(fields, "fields is null");
+        Assert.notNull(sort, "sort is null");
 
         if (page < 1 || pageLength < 1) {
             return new MailMessageList();
@@ -49,13 +102,17 @@ class MailRepositoryImpl implements MailRepository {
 
         try {
             List<MailMessage> messageList = new ArrayList<MailMessage>();
-            Folder storeFolder = mailContext.openFolder(folder);
+            Folder storeFolder = mailContext.openFolder(folder, Folder.READ_ONLY);
             int messageCount = storeFolder.getMessageCount();
 
             if (messageCount == 0) {
                 return new MailMessageList();
             }
 
+            if (!sort.isArrival()) {
+                return findSorted(storeFolder, page, pageLength, fields, sort);
+            }
+
             int end = messageCount - (page - 1) * pageLength;
             int start = Math.max(end - pageLength + 1, 1);
 
@@ -63,12 +120,21 @@ class MailRepositoryImpl implements MailRepository {
                 return new MailMessageList();
             }
 
-            Message[] messages = storeFolder.getMessages(start, end);
-            storeFolder.fetch(messages, MailFetchProfile.overview());
+            if (storeFolder instanceof IMAPFolder) {
+                messageList.addAll(findOverviews((IMAPFolder) storeFolder, start, end, fields));
+            } else {
+                Message[] messages = storeFolder.getMessages(start, end);
+                storeFolder.fetch(messages, MailFetchProfile.overview(fields));
 
-            for (Message m : messages) {
-                MailMessage message = mapper.convertShort(m);
-                messageList.add(message);
+                for (Message m : messages) {
+                    messageList.add(mapper.convertShort(m, fields));
+                }
+            }
+
+            for (MailMessage message : messageList) {
+                if (message.hasUid()) {
+                    messageIdCache.put(message.getFolder(), message.getMessageId(), message.getUidValidity(), message.getUid());
+                }
             }
 
             Collections.reverse(messageList);
@@ -78,6 +144,57 @@ class MailRepositoryImpl implements MailRepository {
         }
     }
 
+    @Override
+    public MailMessageSync sync(String folder, SyncToken token) {
+        Assert.notNull(folder, "folder is null");
+
+        try {
+            Folder storeFolder = mailContext.getFolder(folder, false);
+
+            if (storeFolder == null || !storeFolder.exists()) {
+                throw new NotFoundException();
+            }
+
+            if (!(storeFolder instanceof IMAPFolder)) {
+                // no UIDs, nothing to synchronize against
+                return new MailMessageSync(null, true);
+            }
+
+            IMAPFolder imapFolder = (IMAPFolder) storeFolder;
+            boolean qresync = ((IMAPStore) imapFolder.getStore()).hasCapability("QRESYNC");
+            List<MailEvent> events = null;
+
+            if (qresync && token != null && token.getHighestModSeq() > 0) {
+                events = imapFolder.open(Folder.READ_ONLY, new ResyncData(token.getUidValidity(), token.getHighestModSeq()));
+            } else {
+                SimpleMailContextImpl.open(imapFolder, Folder.READ_ONLY);
+            }
+
+            SyncToken current = new SyncToken(imapFolder.getUIDValidity(), imapFolder.getHighestModSeq(), imapFolder.getUIDNext());
+            // snapshots are needed only if the next call can not be answered by QRESYNC
+            boolean snapshot = !qresync || current.getHighestModSeq() == 0;
+
+            if (token == null || token.getUidValidity() != current.getUidValidity()) {
+                if (snapshot) {
+                    syncStateCache.put(imapFolder.getFullName(), current, fetchFlags(imapFolder, imapFolder.getMessages()));
+                }
+
+                return new MailMessageSync(current.toString(), true);
+            }
+
+            MailMessageSync sync = events != null ? resync(imapFolder, token, events) : diff(imapFolder, token, current);
+
+            if (sync.isReset() && snapshot) {
+                syncStateCache.put(imapFolder.getFullName(), current, fetchFlags(imapFolder, imapFolder.getMessages()));
+            }
+
+            sync.setToken(current.toString());
+            return sync;
+        } catch (MessagingException e) {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+    }
+
     @Override
     public MailMessage read(CompositeId id) {
         Assert.notNull(id);
@@ -89,7 +206,7 @@ class MailRepositoryImpl implements MailRepository {
                 return null;
             }
 
-            Message[] search = storeFolder.search(new MessageIDTerm(id.getMessageId()));
+            Message[] search = messageLocator.find(storeFolder, id);
             storeFolder.fetch(search, MailFetchProfile.details());
 
             if (search.length > 0) {
@@ -108,7 +225,7 @@ class MailRepositoryImpl implements MailRepository {
 
         try {
             Folder storeFolder = mailContext.openFolder(folder);
-            Message[] search = storeFolder.search(new MessageIDTerm(messageId));
+            Message[] search = messageLocator.find(storeFolder, new CompositeId(folder, messageId));
 
             if (search != null && search.length == 1 && search[0] != null) {
                 Mime4jMessage mime4jMessage = mapper.toMessageImpl(search[0]);
@@ -124,7 +241,30 @@ class MailRepositoryImpl implements MailRepository {
 
     @Override
     public CompositeId findByMessageId(String messageId) {
-        return findByMessageIdAndFolder(new MessageIDTerm(messageId), mailContext.getInbox());
+        try {
+            return crossFolderLocator.find(messageId);
+        } catch (MessagingException e) {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<CompositeId> search(String folder, String query) {
+        Assert.notNull(folder, "folder is null");
+        Assert.hasText(query, "query is empty");
+
+        try {
+            Folder storeFolder = mailContext.openFolder(folder, Folder.READ_ONLY);
+            List<CompositeId> result = null;
+
+            if (storeFolder instanceof IMAPFolder) {
+                result = searchIndex((IMAPFolder) storeFolder, query);
+            }
+
+            return result != null ? result : searchServer(storeFolder, null, query);
+        } catch (Exception e) {
+            throw new RepositoryException(e.getMessage(), e);
+        }
     }
 
     @Override
@@ -134,7 +274,7 @@ class MailRepositoryImpl implements MailRepository {
             Folder storeFolder = mailContext.getFolder(folder);
 
             if (storeFolder.exists()) {
-                Message[] search = storeFolder.search(new MessageIDTerm(messageId));
+                Message[] search = messageLocator.find(storeFolder, new CompositeId(folder, messageId));
 
                 if (search != null && search.length == 1 && search[0] != null) {
 
@@ -148,13 +288,37 @@ class MailRepositoryImpl implements MailRepository {
         throw new NotFoundException();
     }
 
+    @Override
+    public MailMessage readFlags(CompositeId id) {
+        Assert.notNull(id);
+
+        try {
+            Folder storeFolder = mailContext.getFolder(id.getFolder());
+
+            if (!storeFolder.exists()) {
+                return null;
+            }
+
+            Message message = messageLocator.findFirst(storeFolder, id);
+
+            if (message != null) {
+                storeFolder.fetch(new Message[] { message }, MailFetchProfile.identity());
+                return mapper.convertFlags(message);
+            }
+        } catch (Exception e) {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+
+        return null;
+    }
+
     @Override
     public void updateFlags(MailMessage message) {
         Assert.notNull(message, "message is null");
 
         try {
             Folder folder = mailContext.getFolder(message.getFolder());
-            Message[] search = folder.search(new MessageIDTerm(message.getMessageId()));
+            Message[] search = messageLocator.find(folder, message);
 
             if (search != null) {
                 for (Message m : search) {
@@ -179,6 +343,45 @@ class MailRepositoryImpl implements MailRepository {
         }
     }
 
+    @Override
+    public List<CompositeId> updateFlags(List<MailMessage> messages) {
+        Assert.notNull(messages, "messages is null");
+
+        List<CompositeId> failed = new ArrayList<>();
+
+        for (Map.Entry<String, List<MailMessage>> entry : groupByFolder(messages, failed).entrySet()) {
+            failed.addAll(updateFlags(entry.getKey(), entry.getValue()));
+        }
+
+        return failed;
+    }
+
+    @Override
+    public List<CompositeId> moveMessages(List<? extends CompositeId> ids, String folder, boolean seen) {
+        Assert.notNull(ids, "ids is null");
+        Assert.hasText(folder, "folder is empty");
+
+        List<CompositeId> failed = new ArrayList<>();
+        Folder targetFolder = mailContext.getFolder(folder, false);
+
+        try {
+            if (targetFolder == null || !targetFolder.exists()) {
+                failed.addAll(ids);
+                return failed;
+            }
+        } catch (MessagingException e) {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+
+        return moveBatches(ids, targetFolder, seen);
+    }
+
+    @Override
+    public List<CompositeId> deleteMessages(List<? extends CompositeId> ids) {
+        Assert.notNull(ids, "ids is null");
+        return moveBatches(ids, null, false);
+    }
+
     @Override
     public void moveMessage(CompositeId message, String folder) {
         Assert.notNull(message);
@@ -189,7 +392,7 @@ class MailRepositoryImpl implements MailRepository {
                 Folder targetFolder = mailContext.getFolder(folder);
                 Folder sourceFolder = mailContext.getFolder(message.getFolder());
 
-                Message[] search = sourceFolder.search(new MessageIDTerm(message.getMessageId()));
+                Message[] search = messageLocator.find(sourceFolder, message);
                 sourceFolder.copyMessages(search, targetFolder);
 
                 if (search != null) {
@@ -198,8 +401,7 @@ class MailRepositoryImpl implements MailRepository {
                     }
                 }
 
-                // expunge
-                sourceFolder.close(true);
+                mailContext.expunge(sourceFolder);
             }
         } catch (Exception e) {
             throw new RepositoryException(e.getMessage(), e);
@@ -210,7 +412,7 @@ class MailRepositoryImpl implements MailRepository {
     public void delete(CompositeId id) {
         try {
             Folder storeFolder = mailContext.getFolder(id.getFolder());
-            Message[] search = storeFolder.search(new MessageIDTerm(id.getMessageId()));
+            Message[] search = messageLocator.find(storeFolder, id);
 
             if (search != null) {
                 for (Message msg : search) {
@@ -218,8 +420,7 @@ class MailRepositoryImpl implements MailRepository {
                 }
             }
 
-            // expunge
-            storeFolder.close(true);
+            mailContext.expunge(storeFolder);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RepositoryException(e.getMessage(), e);
@@ -233,15 +434,25 @@ class MailRepositoryImpl implements MailRepository {
 
     @Override
     public String save(Mime4jMessage message, String folder) {
+        return save(message, folder, null);
+    }
+
+    @Override
+    public String save(Mime4jMessage message, String folder, MailMessage flags) {
         Assert.notNull(message, "message is null");
         Assert.hasText(folder, "folder is null");
 
         try {
             MimeMessage target = mapper.toMimeMessage(message);
+
+            if (flags != null) {
+                // javax.mail passes the flags of the message to APPEND
+                target.setFlags(new FlagChange(flags).set, true);
+            }
+
             target.saveChanges();
             Folder storeFolder = mailContext.openFolder(folder);
             storeFolder.appendMessages(new Message[] { target });
-            storeFolder.close(false);
 
             return target.getHeader("Message-ID")[0];
         } catch (Exception e) {
@@ -249,6 +460,39 @@ class MailRepositoryImpl implements MailRepository {
         }
     }
 
+    @Override
+    public CompositeId append(InputStream message, String folder, MailMessage flags) {
+        Assert.notNull(message, "message is null");
+        Assert.hasText(folder, "folder is null");
+
+        try {
+            MimeMessage target = new MimeMessage(mailContext.getSession(), message);
+
+            if (flags != null) {
+                target.setFlags(new FlagChange(flags).set, true);
+            }
+
+            Folder storeFolder = mailContext.openFolder(folder);
+            CompositeId id = new CompositeId(folder, target.getMessageID());
+
+            if (storeFolder instanceof IMAPFolder) {
+                AppendUID[] appended = ((IMAPFolder) storeFolder).appendUIDMessages(new Message[] { target });
+
+                if (appended != null && appended[0] != null) {
+                    id.setUidValidity(appended[0].uidvalidity);
+                    id.setUid(appended[0].uid);
+                    messageIdCache.put(folder, id.getMessageId(), appended[0].uidvalidity, appended[0].uid);
+                }
+            } else {
+                storeFolder.appendMessages(new Message[] { target });
+            }
+
+            return id;
+        } catch (MessagingException e) {
+            throw new RepositoryException(e.getMessage(), e);
+        }
+    }
+
     @Override
     public void copyMessages(String source, String target) {
         Assert.hasText(source);
@@ -273,7 +517,7 @@ class MailRepositoryImpl implements MailRepository {
 
         try {
             Folder sourceFolder = mailContext.getFolder(id.getFolder());
-            Message[] search = sourceFolder.search(new MessageIDTerm(id.getMessageId()));
+            Message[] search = messageLocator.find(sourceFolder, id);
 
             if (search != null) {
                 Folder targetFolder = mailContext.getFolder(target);
@@ -296,7 +540,7 @@ class MailRepositoryImpl implements MailRepository {
         try {
             log.debug("setting flagAsAnswered to {} on message {}", answered, id);
             Folder folder = mailContext.openFolder(id.getFolder());
-            Message[] messages = folder.search(new MessageIDTerm(id.getMessageId()));
+            Message[] messages = messageLocator.find(folder, id);
 
             for (Message m : messages) {
                 m.setFlag(Flags.Flag.ANSWERED, answered);
@@ -315,7 +559,7 @@ class MailRepositoryImpl implements MailRepository {
         try {
             log.debug("setting flagAsForwarded to {} on message {}", answered, id);
             Folder folder = mailContext.openFolder(id.getFolder());
-            Message[] messages = folder.search(new MessageIDTerm(id.getMessageId()));
+            Message[] messages = messageLocator.find(folder, id);
 
             for (Message m : messages) {
                 Flags forwardedFlag = new Flags("$Forwarded");
@@ -332,50 +576,655 @@ class MailRepositoryImpl implements MailRepository {
         return save(message, message.getId().getFolder());
     }
 
-    private CompositeId findByMessageIdAndFolder(MessageIDTerm searchTerm, Folder folder) {
-        CompositeId compositeId = null;
+    /**
+     * Strips a {@link MailMessage} down to its id, so that failures are reported without the message.
+     */
+    private static CompositeId idOf(CompositeId id) {
+        CompositeId copy = new CompositeId(id.getFolder(), id.getMessageId());
+        copy.setUidValidity(id.getUidValidity());
+        copy.setUid(id.getUid());
+        return copy;
+    }
+
+    private static <T extends CompositeId> Map<String, List<T>> groupByFolder(List<T> ids, List<CompositeId> failed) {
+        Map<String, List<T>> byFolder = new LinkedHashMap<>();
+
+        for (T id : ids) {
+            if (id == null) {
+                continue;
+            }
+
+            if (id.getFolder() == null) {
+                failed.add(idOf(id));
+                continue;
+            }
+
+            List<T> folderIds = byFolder.get(id.getFolder());
+
+            if (folderIds == null) {
+                folderIds = new ArrayList<>();
+                byFolder.put(id.getFolder(), folderIds);
+            }
+
+            folderIds.add(id);
+        }
+
+        return byFolder;
+    }
+
+    /**
+     * Moves the messages batch by batch, one batch per source folder. Messages already in the target folder are left
+     * alone. A batch that fails with an error is reported as failed as a whole and does not stop the remaining batches.
+     * The error is rethrown if no batch succeeded, so that callers can tell an unreachable server from messages that do
+     * not exist.
+     */
+    private <T extends CompositeId> List<CompositeId> moveBatches(List<T> ids, Folder target, boolean seen) {
+        List<CompositeId> failed = new ArrayList<>();
+        RepositoryException error = null;
+        boolean succeeded = false;
+
+        for (Map.Entry<String, List<T>> entry : groupByFolder(ids, failed).entrySet()) {
+            if (target != null && entry.getKey().equals(target.getFullName())) {
+                succeeded = true;
+                continue;
+            }
+
+            try {
+                failed.addAll(moveMessages(entry.getKey(), entry.getValue(), target, seen));
+                succeeded = true;
+            } catch (NotFoundException e) {
+                for (T id : entry.getValue()) {
+                    failed.add(idOf(id));
+                }
+            } catch (Exception e) {
+                log.info("can not move messages of {}. reason {}", entry.getKey(), e.getMessage());
+                error = e instanceof RepositoryException ? (RepositoryException) e : new RepositoryException(e.getMessage(), e);
+
+                for (T id : entry.getValue()) {
+                    failed.add(idOf(id));
+                }
+            }
+        }
+
+        if (error != null && !succeeded) {
+            throw error;
+        }
+
+        return failed;
+    }
+
+    /**
+     * Moves all messages of one folder with a single MOVE, or COPY and EXPUNGE if the server does not support MOVE.
+     * Messages are expunged only if target is {@code null}. Once the messages have been copied they count as moved,
+     * even if they can not be removed from the source folder afterwards.
+     *
+     * @return ids of messages that could not be found
+     */
+    private List<CompositeId> moveMessages(String folderName, List<? extends CompositeId> ids, Folder target, boolean seen) throws MessagingException {
+        List<CompositeId> failed = new ArrayList<>();
+        Folder folder = mailContext.openFolder(folderName);
+        Map<CompositeId, Message> found = messageLocator.findAll(folder, ids);
+        List<Message> messages = new ArrayList<>();
+
+        for (CompositeId id : ids) {
+            Message message = found.get(id);
+
+            if (message == null) {
+                failed.add(idOf(id));
+            } else if (!messages.contains(message)) {
+                messages.add(message);
+            }
+        }
+
+        if (messages.isEmpty()) {
+            return failed;
+        }
+
+        Message[] array = messages.toArray(new Message[messages.size()]);
+
+        if (seen) {
+            folder.setFlags(array, new Flags(Flags.Flag.SEEN), true);
+        }
+
+        if (target == null) {
+            expunge(folder, array);
+            return failed;
+        }
+
+        if (folder instanceof IMAPFolder && hasCapability(folder, "MOVE")) {
+            ((IMAPFolder) folder).moveMessages(array, target);
+            return failed;
+        }
+
+        folder.copyMessages(array, target);
+
         try {
-            if(!folder.exists()) {
-                log.debug("{} folder does not exist", folder.getFullName());
-                return compositeId;
+            if (seen && !(folder instanceof IMAPFolder)) {
+                // only IMAP COPY is required to preserve flags
+                List<CompositeId> copied = new ArrayList<>(found.keySet());
+                Folder openedTarget = mailContext.openFolder(target.getFullName());
+                Collection<Message> copies = messageLocator.findAll(openedTarget, copied).values();
+                openedTarget.setFlags(copies.toArray(new Message[copies.size()]), new Flags(Flags.Flag.SEEN), true);
             }
 
-            if(!mailContext.isSystemFolder(folder)) {
-                log.debug("{} folder is system folder", folder.getFullName());
-                return compositeId;
+            expunge(folder, array);
+        } catch (MessagingException | RuntimeException e) {
+            log.info("messages of {} have been copied to {} but not removed. reason {}", folderName, target.getFullName(), e.getMessage());
+        }
+
+        return failed;
+    }
+
+    private void expunge(Folder folder, Message[] messages) throws MessagingException {
+        folder.setFlags(messages, new Flags(Flags.Flag.DELETED), true);
+
+        if (folder instanceof IMAPFolder && hasCapability(folder, "UIDPLUS")) {
+            // UID EXPUNGE leaves other messages flagged as deleted alone
+            ((IMAPFolder) folder).expunge(messages);
+        } else {
+            mailContext.expunge(folder);
+        }
+    }
+
+    private static boolean hasCapability(Folder folder, String capability) throws MessagingException {
+        return ((IMAPStore) folder.getStore()).hasCapability(capability);
+    }
+
+    /**
+     * Groups the messages by the flags to set and to clear and issues one STORE per group.
+     */
+    private List<CompositeId> updateFlags(String folderName, List<MailMessage> messages) {
+        List<CompositeId> failed = new ArrayList<>();
+        Map<CompositeId, Message> found;
+        Folder folder;
+
+        try {
+            folder = mailContext.openFolder(folderName);
+            found = messageLocator.findAll(folder, messages);
+        } catch (Exception e) {
+            log.debug("can not update flags in {}. reason {}", folderName, e.getMessage());
+
+            for (MailMessage message : messages) {
+                failed.add(idOf(message));
+            }
+
+            return failed;
+        }
+
+        Map<String, FlagChange> groups = new LinkedHashMap<>();
+
+        for (MailMessage message : messages) {
+            Message target = found.get(message);
+
+            if (target == null) {
+                failed.add(idOf(message));
+                continue;
+            }
+
+            FlagChange change = new FlagChange(message);
+
+            if (change.isEmpty()) {
+                continue;
+            }
+
+            FlagChange group = groups.get(change.key);
+
+            if (group == null) {
+                group = change;
+                groups.put(change.key, group);
             }
 
-            Folder[] list = folder.list();
-            for (Folder childFolder : list) {
-                compositeId = findByMessageIdAndFolder(searchTerm, childFolder);
+            group.messages.add(target);
+            group.ids.add(idOf(message));
+        }
+
+        for (FlagChange group : groups.values()) {
+            Message[] targets = group.messages.toArray(new Message[group.messages.size()]);
 
-                if(compositeId != null) {
-                    log.debug("found {} in folder {}", searchTerm.getPattern(), folder.getFullName());
-                    return compositeId;
+            try {
+                if (group.set.getSystemFlags().length > 0 || group.set.getUserFlags().length > 0) {
+                    folder.setFlags(targets, group.set, true);
+                }
+                if (group.clear.getSystemFlags().length > 0 || group.clear.getUserFlags().length > 0) {
+                    folder.setFlags(targets, group.clear, false);
                 }
+            } catch (MessagingException e) {
+                log.debug("can not store flags {} in {}. reason {}", group.key, folderName, e.getMessage());
+                failed.addAll(group.ids);
             }
+        }
+
+        return failed;
+    }
 
-            if(folder.getType() == Folder.HOLDS_FOLDERS) {
-                log.debug("{} can not contain messages. type {}", folder.getFullName(), folder.getType());
-                return compositeId;
+    /**
+     * Changes reported by the server with QRESYNC while the folder has been opened.
+     */
+    private MailMessageSync resync(IMAPFolder folder, SyncToken token, List<MailEvent> events) throws MessagingException {
+        MailMessageSync sync = new MailMessageSync();
+        List<Message> changed = new ArrayList<>();
+
+        for (MailEvent event : events) {
+            if (event instanceof MessageVanishedEvent) {
+                for (long uid : ((MessageVanishedEvent) event).getUIDs()) {
+                    sync.getVanished().add(uid);
+                }
+            } else if (event instanceof MessageChangedEvent) {
+                Message message = ((MessageChangedEvent) event).getMessage();
+
+                if (folder.getUID(message) < token.getUidNext()) {
+                    changed.add(message);
+                }
             }
+        }
+
+        sync.setChanged(convertFlags(folder, changed));
+        sync.setAdded(findAdded(folder, token.getUidNext()));
+        return sync;
+    }
+
+    /**
+     * Compares UIDs and flags with the snapshot taken when the token has been handed out.
+     */
+    private MailMessageSync diff(IMAPFolder folder, SyncToken token, SyncToken current) throws MessagingException {
+        String name = folder.getFullName();
+        Map<Long, Flags> previous = syncStateCache.get(name, token);
+
+        if (previous == null) {
+            return new MailMessageSync(null, true);
+        }
+
+        MailMessageSync sync = new MailMessageSync();
 
-            if(!folder.isOpen()) {
-                folder.open(Folder.READ_ONLY);
+        // without CONDSTORE an unchanged token says nothing about flags
+        if (token.getHighestModSeq() > 0 && token.equals(current) && folder.getMessageCount() == previous.size()) {
+            return sync;
+        }
+
+        Message[] messages = folder.getMessages();
+        Map<Long, Flags> snapshot = fetchFlags(folder, messages);
+        List<Message> added = new ArrayList<>();
+        List<Message> changed = new ArrayList<>();
+
+        for (Message message : messages) {
+            long uid = folder.getUID(message);
+            Flags flags = previous.get(uid);
+
+            if (flags == null) {
+                added.add(message);
+            } else if (!flags.equals(snapshot.get(uid))) {
+                changed.add(message);
             }
+        }
 
-            Message[] search = folder.search(searchTerm);
+        for (Long uid : previous.keySet()) {
+            if (!snapshot.containsKey(uid)) {
+                sync.getVanished().add(uid);
+            }
+        }
+
+        if (!added.isEmpty()) {
+            Message[] addedMessages = added.toArray(new Message[added.size()]);
+            folder.fetch(addedMessages, MailFetchProfile.overview());
 
-            for (Message message : search) {
-                compositeId = new CompositeId(folder.getFullName(), message.getHeader("Message-ID")[0]);
+            for (Message message : addedMessages) {
+                sync.getAdded().add(mapper.convertShort(message));
             }
+        }
+
+        sync.setChanged(convertFlags(folder, changed));
+        syncStateCache.put(name, current, snapshot);
+        return sync;
+    }
+
+    private List<MailMessage> findAdded(IMAPFolder folder, long uidNext) throws MessagingException {
+        Message[] messages = folder.getMessagesByUID(uidNext, UIDFolder.LASTUID);
+        folder.fetch(messages, MailFetchProfile.overview());
+        List<MailMessage> added = new ArrayList<>();
 
-            if(search.length == 0) {
-                folder.close(false);
+        for (Message message : messages) {
+            // UID range n:* always contains the last message, even if its UID is lower than n
+            if (message != null && folder.getUID(message) >= uidNext) {
+                added.add(mapper.convertShort(message));
             }
-        } catch (MessagingException e) {
-            throw new RepositoryException(e.getMessage(), e);
         }
-        return compositeId;
+
+        return added;
+    }
+
+    private List<MailMessage> convertFlags(IMAPFolder folder, List<Message> messages) throws MessagingException {
+        List<MailMessage> converted = new ArrayList<>(messages.size());
+
+        if (messages.isEmpty()) {
+            return converted;
+        }
+
+        Message[] array = messages.toArray(new Message[messages.size()]);
+        folder.fetch(array, MailFetchProfile.identity());
+
+        for (Message message : array) {
+            converted.add(mapper.convertFlags(message));
+        }
+
+        return converted;
+    }
+
+    private static Map<Long, Flags> fetchFlags(IMAPFolder folder, Message[] messages) throws MessagingException {
+        folder.fetch(messages, MailFetchProfile.flags());
+        Map<Long, Flags> snapshot = new HashMap<>(messages.length * 2);
+
+        for (Message message : messages) {
+            snapshot.put(folder.getUID(message), new Flags(message.getFlags()));
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Pages over the order of the whole folder. Only the messages of the requested page are fetched. The order is
+     * cached per folder state, so paging through an unchanged folder sorts it once.
+     */
+    private MailMessageList findSorted(Folder folder, int page, int pageLength, MessageFields fields, MessageSort sort) throws MessagingException {
+        MessageSorter.Order order = findOrder(folder, sort);
+        int from = (page - 1) * pageLength;
+
+        if (from >= order.size()) {
+            return new MailMessageList();
+        }
+
+        List<int[]> entries = order.slice(from, Math.min(from + pageLength, order.size()));
+        List<Integer> numbers = new ArrayList<>();
+
+        for (int[] entry : entries) {
+            for (int number : entry) {
+                numbers.add(number);
+            }
+        }
+
+        int[] messageNumbers = new int[numbers.size()];
+
+        for (int i = 0; i < messageNumbers.length; i++) {
+            messageNumbers[i] = numbers.get(i);
+        }
+
+        Message[] messages = folder.getMessages(messageNumbers);
+        List<MailMessage> messageList;
+
+        if (folder instanceof IMAPFolder) {
+            messageList = mapOverviews((IMAPFolder) folder, messages, fields);
+        } else {
+            folder.fetch(messages, MailFetchProfile.overview(fields));
+            messageList = new ArrayList<>(messages.length);
+
+            for (Message m : messages) {
+                messageList.add(mapper.convertShort(m, fields));
+            }
+        }
+
+        if (order.isThreaded()) {
+            int index = 0;
+
+            for (int[] entry : entries) {
+                String threadId = messageList.get(index).getId();
+
+                for (int i = 0; i < entry.length; i++) {
+                    messageList.get(index++).setThreadId(threadId);
+                }
+            }
+        }
+
+        for (MailMessage message : messageList) {
+            if (message.hasUid()) {
+                messageIdCache.put(message.getFolder(), message.getMessageId(), message.getUidValidity(), message.getUid());
+            }
+        }
+
+        return new MailMessageList(messageList, page, order.size());
+    }
+
+    private MessageSorter.Order findOrder(Folder folder, MessageSort sort) throws MessagingException {
+        if (!(folder instanceof IMAPFolder)) {
+            return MessageSorter.sort(folder, sort, null);
+        }
+
+        IMAPFolder imapFolder = (IMAPFolder) folder;
+        MessageOverviewCache.FolderState state = overviewCache.getState(folder.getFullName(), imapFolder.getUIDValidity());
+        long uidNext = imapFolder.getUIDNext();
+        int messageCount = imapFolder.getMessageCount();
+        long highestModSeq = imapFolder.getHighestModSeq();
+        MessageSorter.Order order = state.getOrder(sort.toString(), uidNext, messageCount, highestModSeq);
+
+        if (order == null) {
+            order = MessageSorter.sort(folder, sort, overviewCache);
+            state.putOrder(sort.toString(), order, uidNext, messageCount, highestModSeq);
+        }
+
+        return order;
+    }
+
+    /**
+     * Maps the messages start to end. Overviews of known UIDs are taken from the {@link MessageOverviewCache}, only
+     * their flags are fetched again. If the folder did not change at all since the last call, nothing is fetched.
+     * Overviews of unknown UIDs are mapped with the given fields only and cached only if all fields are requested.
+     */
+    private List<MailMessage> findOverviews(IMAPFolder folder, int start, int end, MessageFields fields) throws MessagingException {
+        String name = folder.getFullName();
+        long uidValidity = folder.getUIDValidity();
+        MessageOverviewCache.FolderState state = overviewCache.getState(name, uidValidity);
+        boolean unchanged = state.update(folder.getUIDNext(), folder.getMessageCount(), folder.getHighestModSeq());
+        List<MailMessage> result = new ArrayList<>(end - start + 1);
+
+        if (unchanged) {
+            for (int i = start; i <= end; i++) {
+                Long uid = state.getUid(i);
+                MailMessage cached = uid != null ? overviewCache.get(name, uidValidity, uid) : null;
+
+                if (cached == null) {
+                    result.clear();
+                    break;
+                }
+
+                result.add(cached);
+            }
+
+            if (!result.isEmpty()) {
+                return result;
+            }
+        }
+
+        Message[] messages = folder.getMessages(start, end);
+        result = mapOverviews(folder, messages, fields);
+
+        for (int i = 0; i < messages.length; i++) {
+            state.putUid(messages[i].getMessageNumber(), result.get(i).getUid());
+        }
+
+        return result;
+    }
+
+    /**
+     * Maps the given messages in order. Flags are always fetched, overviews only for UIDs missing in the
+     * {@link MessageOverviewCache}.
+     */
+    private List<MailMessage> mapOverviews(IMAPFolder folder, Message[] messages, MessageFields fields) throws MessagingException {
+        String name = folder.getFullName();
+        long uidValidity = folder.getUIDValidity();
+        List<MailMessage> result = new ArrayList<>(messages.length);
+        folder.fetch(messages, MailFetchProfile.flags());
+
+        List<Message> missing = new ArrayList<>();
+        MailMessage[] mapped = new MailMessage[messages.length];
+
+        for (int i = 0; i < messages.length; i++) {
+            long uid = folder.getUID(messages[i]);
+            mapped[i] = overviewCache.get(name, uidValidity, uid);
+
+            if (mapped[i] == null) {
+                missing.add(messages[i]);
+            } else {
+                mapper.updateFlags(mapped[i], messages[i]);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            folder.fetch(missing.toArray(new Message[missing.size()]), MailFetchProfile.overview(fields));
+        }
+
+        for (int i = 0; i < messages.length; i++) {
+            if (mapped[i] == null) {
+                mapped[i] = mapper.convertShort(messages[i], fields);
+
+                if (fields.isAll()) {
+                    overviewCache.put(name, uidValidity, mapped[i].getUid(), mapped[i]);
+                }
+            } else {
+                overviewCache.put(name, uidValidity, mapped[i].getUid(), mapped[i]);
+            }
+
+            result.add(mapped[i]);
+        }
+
+        log.debug("{}: fetched {} of {} overviews. cache hits {}, misses {}", name, missing.size(), messages.length,
+                overviewCache.getHits(), overviewCache.getMisses());
+        return result;
+    }
+
+    /**
+     * Answers from the current index of the folder. Messages above the last indexed UID are searched on the server and
+     * indexed in the background by the {@link FolderIndexer}.
+     *
+     * @return the matching ids, newest first, or {@code null} if nothing of the folder has been indexed yet
+     */
+    private List<CompositeId> searchIndex(IMAPFolder folder, String query) throws MessagingException, IOException {
+        String name = folder.getFullName();
+        long uidValidity = folder.getUIDValidity();
+        MessageIndex.FolderIndex index = messageIndex.open(name, uidValidity);
+        long lastUid = index.getLastUid();
+        List<CompositeId> result = new ArrayList<>();
+
+        if (lastUid + 1 < folder.getUIDNext()) {
+            folderIndexer.schedule(name);
+
+            if (lastUid == 0) {
+                return null;
+            }
+
+            // UID ranges always include the last message, even if it has been indexed already
+            for (CompositeId id : searchServer(folder, folder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID), query)) {
+                if (id.getUid() > lastUid) {
+                    result.add(id);
+                }
+            }
+        }
+
+        List<Long> uids = index.search(query);
+        long[] uidArray = new long[uids.size()];
+
+        for (int i = 0; i < uidArray.length; i++) {
+            uidArray[i] = uids.get(i);
+        }
+
+        Message[] existing = folder.getMessagesByUID(uidArray);
+        List<Long> expunged = new ArrayList<>();
+
+        for (int i = 0; i < existing.length; i++) {
+            if (existing[i] == null) {
+                expunged.add(uidArray[i]);
+                continue;
+            }
+
+            CompositeId id = new CompositeId(name, index.getMessageId(uidArray[i]));
+            id.setUidValidity(uidValidity);
+            id.setUid(uidArray[i]);
+            result.add(id);
+        }
+
+        if (!expunged.isEmpty()) {
+            index.remove(expunged);
+            messageIndex.save(index);
+        }
+
+        return result;
+    }
+
+    /**
+     * Searches subject, sender, recipients and body on the server, the equivalent of SEARCH TEXT for every term.
+     *
+     * @param messages messages to search in or {@code null} for all messages of the folder
+     */
+    private List<CompositeId> searchServer(Folder folder, Message[] messages, String query) throws MessagingException {
+        List<SearchTerm> terms = new ArrayList<>();
+
+        for (String term : MessageIndex.tokenize(query)) {
+            terms.add(new OrTerm(new SearchTerm[] { new SubjectTerm(term), new FromStringTerm(term),
+                    new RecipientStringTerm(Message.RecipientType.TO, term), new RecipientStringTerm(Message.RecipientType.CC, term),
+                    new BodyTerm(term) }));
+        }
+
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        SearchTerm term = terms.size() == 1 ? terms.get(0) : new AndTerm(terms.toArray(new SearchTerm[terms.size()]));
+        Message[] found = messages != null ? folder.search(term, messages) : folder.search(term);
+        folder.fetch(found, MailFetchProfile.identity());
+        List<CompositeId> result = new ArrayList<>(found.length);
+
+        for (int i = found.length - 1; i >= 0; i--) {
+            String[] messageId = found[i].getHeader("Message-ID");
+
+            if (messageId == null) {
+                continue;
+            }
+
+            CompositeId id = new CompositeId(folder.getFullName(), messageId[0]);
+
+            if (folder instanceof UIDFolder) {
+                id.setUidValidity(((UIDFolder) folder).getUIDValidity());
+                id.setUid(((UIDFolder) folder).getUID(found[i]));
+            }
+
+            result.add(id);
+        }
+
+        return result;
+    }
+
+    private static final class FlagChange {
+        private final Flags set = new Flags();
+        private final Flags clear = new Flags();
+        private final List<Message> messages = new ArrayList<>();
+        private final List<CompositeId> ids = new ArrayList<>();
+        private final String key;
+
+        private FlagChange(MailMessage message) {
+            StringBuilder key = new StringBuilder();
+
+            add(key, message.getRead(), new Flags(Flags.Flag.SEEN), "S");
+            add(key, message.getStarred(), new Flags(Flags.Flag.FLAGGED), "F");
+            add(key, message.getAnswered(), new Flags(Flags.Flag.ANSWERED), "A");
+            add(key, message.getForwarded(), new Flags("$Forwarded"), "W");
+            add(key, message.getMdnSent(), new Flags("$MDNSent"), "M");
+
+            this.key = key.toString();
+        }
+
+        private void add(StringBuilder key, Boolean value, Flags flags, String name) {
+            if (value == null) {
+                return;
+            }
+
+            if (value) {
+                set.add(flags);
+                key.append('+').append(name);
+            } else {
+                clear.add(flags);
+                key.append('-').append(name);
+            }
+        }
+
+        private boolean isEmpty() {
+            return key.isEmpty();
+        }
     }
 }
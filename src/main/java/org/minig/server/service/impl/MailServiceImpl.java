@@ -5,12 +5,15 @@ import org.minig.server.MailFolder;
 import org.minig.server.MailMessage;
 import org.minig.server.MailMessageAddress;
 import org.minig.server.MailMessageList;
-import org.minig.server.service.AttachmentRepository;
+import org.minig.server.MailMessageSync;
 import org.minig.server.service.CompositeId;
 import org.minig.server.service.FolderRepository;
 import org.minig.server.service.MailRepository;
 import org.minig.server.service.MailService;
+import org.minig.server.service.MessageFields;
+import org.minig.server.service.MessageSort;
 import org.minig.server.service.NotFoundException;
+import org.minig.server.service.SyncToken;
 import org.minig.server.service.impl.helper.MessageMapper;
 import org.minig.server.service.impl.helper.mime.Mime4jAttachment;
 import org.minig.server.service.impl.helper.mime.Mime4jMessage;
@@ -21,6 +24,9 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -41,7 +47,7 @@ public class MailServiceImpl implements MailService {
     private MailAuthentication authentication;
 
     @Autowired
-    private AttachmentRepository attachmentRepository;
+    private DraftStore draftStore;
 
     // TODO
     @Autowired
@@ -54,6 +60,11 @@ public class MailServiceImpl implements MailService {
 
     @Override
     public MailMessageList findMessagesByFolder(String folder, int page, int pageLength) {
+        return findMessagesByFolder(folder, page, pageLength, MessageFields.ALL, MessageSort.ARRIVAL);
+    }
+
+    @Override
+    public MailMessageList findMessagesByFolder(String folder, int page, int pageLength, MessageFields fields, MessageSort sort) {
         if (pageLength < 1) {
             throw new IllegalArgumentException("pageLength not valid. should have value 1 or greater");
         }
@@ -62,7 +73,20 @@ public class MailServiceImpl implements MailService {
             throw new IllegalArgumentException("page not valid. should have value 1 or greater");
         }
 
-        return mailRepository.findByFolder(folder, page, pageLength);
+        return mailRepository.findByFolder(folder, page, pageLength, fields, sort);
+    }
+
+    @Override
+    public MailMessageSync syncMessagesByFolder(String folder, SyncToken token) {
+        Assert.notNull(folder, "folder is null");
+        return mailRepository.sync(folder, token);
+    }
+
+    @Override
+    public List<CompositeId> searchMessages(String folder, String query) {
+        Assert.notNull(folder, "folder is null");
+        Assert.hasText(query, "query is empty");
+        return mailRepository.search(folder, query);
     }
 
     @Override
@@ -95,8 +119,33 @@ public class MailServiceImpl implements MailService {
     public void deleteMessages(List<CompositeId> messageIdList) {
         Assert.notNull(messageIdList);
 
+        String trashFolder = folderRepository.getTrash().getId();
+        List<CompositeId> trashed = new ArrayList<>();
+        List<CompositeId> others = new ArrayList<>();
+
         for (CompositeId messageId : messageIdList) {
-            deleteMessage(messageId);
+            Assert.notNull(messageId);
+            draftStore.discard(messageId);
+
+            if (trashFolder.equals(messageId.getFolder())) {
+                trashed.add(messageId);
+            } else {
+                others.add(messageId);
+            }
+        }
+
+        List<CompositeId> failed = new ArrayList<>();
+
+        if (!trashed.isEmpty()) {
+            failed.addAll(mailRepository.deleteMessages(trashed));
+        }
+
+        if (!others.isEmpty()) {
+            failed.addAll(mailRepository.moveMessages(others, trashFolder, false));
+        }
+
+        if (!failed.isEmpty()) {
+            log.info("could not delete {} messages", failed.size());
         }
     }
 
@@ -104,16 +153,7 @@ public class MailServiceImpl implements MailService {
     public void deleteMessage(CompositeId messageId) {
         Assert.notNull(messageId);
 
-        MailFolder trashFolder = folderRepository.getTrash();
-        MailMessage message = mailRepository.read(messageId);
-
-        if (message != null) {
-            if (trashFolder.getId().equals(message.getFolder())) {
-                mailRepository.delete(message);
-            } else {
-                mailRepository.moveMessage(message, trashFolder.getId());
-            }
-        }
+        deleteMessages(Collections.singletonList(messageId));
     }
 
     @Override
@@ -121,47 +161,23 @@ public class MailServiceImpl implements MailService {
         Assert.notNull(source);
         Assert.notNull(source.getId());
 
-        MailMessage target = mailRepository.read(source);
-
-        if (target == null) {
+        if (!mailRepository.updateFlags(Collections.singletonList(source)).isEmpty()) {
             throw new NotFoundException();
         }
-
-        if (source.getAnswered() != null) {
-            target.setAnswered(source.getAnswered());
-        }
-
-        if (source.getRead() != null) {
-            target.setRead(source.getRead());
-        }
-
-        if (source.getStarred() != null) {
-            target.setStarred(source.getStarred());
-        }
-
-        if (source.getForwarded() != null) {
-            target.setForwarded(source.getForwarded());
-        }
-
-        if (source.getMdnSent() != null) {
-            target.setMdnSent(source.getMdnSent());
-        }
-
-        mailRepository.updateFlags(target);
     }
 
     @Override
-    public void updateMessagesFlags(MailMessageList source) {
+    public List<CompositeId> updateMessagesFlags(MailMessageList source) {
         Assert.notNull(source);
         Assert.notNull(source.getMailList());
 
-        for (MailMessage m : source.getMailList()) {
-            try {
-                updateMessageFlags(m);
-            } catch (Exception e) {
-                log.info(e.getMessage());
-            }
+        List<CompositeId> failed = mailRepository.updateFlags(source.getMailList());
+
+        if (!failed.isEmpty()) {
+            log.info("could not update flags of {} messages", failed.size());
         }
+
+        return failed;
     }
 
     @Override
@@ -169,11 +185,9 @@ public class MailServiceImpl implements MailService {
         Assert.notNull(message);
         Assert.hasText(folder);
 
-        mailRepository.moveMessage(message, folder);
-
-        MailMessage mm = mailRepository.readPojo(folder, message.getMessageId());
-        mm.setRead(true);
-        mailRepository.updateFlags(mm);
+        if (!mailRepository.moveMessages(Collections.singletonList(message), folder, true).isEmpty()) {
+            throw new NotFoundException();
+        }
     }
 
     @Override
@@ -181,8 +195,10 @@ public class MailServiceImpl implements MailService {
         Assert.notNull(messageIdList);
         Assert.hasText(folder);
 
-        for (CompositeId id : messageIdList) {
-            moveMessageToFolder(id, folder);
+        List<CompositeId> failed = mailRepository.moveMessages(messageIdList, folder, true);
+
+        if (!failed.isEmpty()) {
+            log.info("could not move {} messages to {}", failed.size(), folder);
         }
     }
 
@@ -202,71 +218,79 @@ public class MailServiceImpl implements MailService {
     public MailMessage createDraftMessage(MailMessage message) {
         String folderId = folderRepository.getDraft().getId();
 
-        Mime4jMessage mime4jMessage = mapper.toMime4jMessage(message);
-        mime4jMessage.setFrom(authentication.getEmailAddress());
-
-        if(StringUtils.hasText(message.getForwardedMessageId())) {
-            CompositeId compositeId = mailRepository.findByMessageId(message.getForwardedMessageId());
+        MailMessage seen = new MailMessage();
+        seen.setRead(Boolean.TRUE);
 
-            if (compositeId != null) {
-                List<Mime4jAttachment> attachments = attachmentRepository.read(compositeId);
+        String saved;
 
-                for (Mime4jAttachment attachment : attachments) {
-                    mime4jMessage.addAttachment(new Mime4jAttachmentDataSource(attachment));
-                }
-            }
+        try (Mime4jMessage mime4jMessage = newMessage(message)) {
+            saved = mailRepository.save(mime4jMessage, folderId, seen);
         }
 
-        String saved = mailRepository.save(mime4jMessage, folderId);
-        CompositeId compositeId = new CompositeId(folderId, saved);
-
-        MailMessage readPojo = findMessage(compositeId);
-        readPojo.setRead(Boolean.TRUE);
-        mailRepository.updateFlags(readPojo);
-
-        return readPojo;
+        return findMessage(new CompositeId(folderId, saved));
     }
 
     @Override
     public MailMessage updateDraftMessage(MailMessage message) {
         //TODO maybe saving message and appending attachments from old message is a better approach?
-        Mime4jMessage mimeMessage = mailRepository.read(message.getFolder(), message.getMessageId());
+        MailMessage flags = mailRepository.readFlags(message);
 
-        mimeMessage.clearRecipients();
-        mimeMessage.clearCc();
-        mimeMessage.clearBcc();
+        if (flags == null) {
+            throw new NotFoundException();
+        }
 
-        if(message.getTo() != null) {
-            for (MailMessageAddress mailMessageAddress : message.getTo()) {
-                mimeMessage.addRecipient(mailMessageAddress.getEmail());
-            }
+        // attachments uploaded since the last save are written together with the draft
+        List<StagedAttachment> staged = draftStore.take(message);
+
+        try (Mime4jMessage mimeMessage = applyChanges(message, staged)) {
+            flags.setRead(Boolean.TRUE);
+            String saved = mailRepository.save(mimeMessage, message.getFolder(), flags);
+            mailRepository.delete(message);
+            return mailRepository.readPojo(message.getFolder(), saved);
+        } finally {
+            draftStore.release(staged);
         }
+    }
 
-        if(message.getCc() != null) {
-            for (MailMessageAddress mailMessageAddress : message.getCc()) {
-                mimeMessage.addCc(mailMessageAddress.getEmail());
-            }
+    @Override
+    public Mime4jMessage composeMessage(MailMessage message) {
+        Assert.notNull(message);
+
+        if (message.getId() == null) {
+            return newMessage(message);
         }
 
-        if(message.getBcc() != null) {
-            for (MailMessageAddress mailMessageAddress : message.getBcc()) {
-                mimeMessage.addBcc(mailMessageAddress.getEmail());
-            }
+        MailMessage flags = mailRepository.readFlags(message);
+
+        if (flags == null) {
+            throw new NotFoundException();
         }
 
-        mimeMessage.getMessage().setSubject(message.getSubject());
-        mimeMessage.setHtml(message.getBody().getHtml());
-        mimeMessage.setPlain(message.getBody().getPlain());
+        // staged attachments are kept until the draft is removed, the message might not be sent
+        Mime4jMessage mimeMessage = applyChanges(message, draftStore.get(message));
+        mimeMessage.getId().setCompositeId(flags);
+        return mimeMessage;
+    }
 
-        mimeMessage.setAskForDispositionNotification(message.getAskForDispositionNotification());
-        mimeMessage.setHighPriority(message.getHighPriority());
-        mimeMessage.setReceipt(message.getReceipt());
-        mimeMessage.setDate(message.getDate());
+    @Override
+    public CompositeId fileSentMessage(InputStream message) {
+        Assert.notNull(message);
+
+        MailMessage seen = new MailMessage();
+        seen.setRead(Boolean.TRUE);
 
-        //TODO what about other flags?
-        String saved = mailRepository.save(mimeMessage, message.getFolder());
-        mailRepository.delete(message);
-        return mailRepository.readPojo(message.getFolder(), saved);
+        return mailRepository.append(message, folderRepository.getSent().getId(), seen);
+    }
+
+    @Override
+    public void removeDraft(CompositeId draft) {
+        Assert.notNull(draft);
+
+        draftStore.discard(draft);
+
+        if (!mailRepository.deleteMessages(Collections.singletonList(draft)).isEmpty()) {
+            log.debug("draft {} is already gone", draft);
+        }
     }
 
     @Override
@@ -275,10 +299,16 @@ public class MailServiceImpl implements MailService {
             return;
         }
 
-        CompositeId messages = mailRepository.findByMessageId(messageId);
-        log.debug("found {} message for messageId {}", messages, messageId);
+        CompositeId compositeId = mailRepository.findByMessageId(messageId);
 
-         mailRepository.setAnsweredFlag(messages, true);
+        if(compositeId == null) {
+            log.debug("could not find message for messageId {}", messageId);
+            return;
+        }
+
+        log.debug("found {} for messageId {}", compositeId.getId(), messageId);
+
+        mailRepository.setAnsweredFlag(compositeId, true);
     }
 
     @Override
@@ -298,4 +328,83 @@ public class MailServiceImpl implements MailService {
 
         mailRepository.setForwardedFlag(compositeId, true);
     }
+
+    private Mime4jMessage newMessage(MailMessage message) {
+        Mime4jMessage mime4jMessage = mapper.toMime4jMessage(message);
+
+        try {
+            mime4jMessage.setFrom(authentication.getEmailAddress());
+
+            if(StringUtils.hasText(message.getForwardedMessageId())) {
+                CompositeId compositeId = mailRepository.findByMessageId(message.getForwardedMessageId());
+
+                if (compositeId != null) {
+                    try (Mime4jMessage forwarded = mailRepository.read(compositeId.getFolder(), compositeId.getMessageId())) {
+                        for (Mime4jAttachment attachment : forwarded.getAttachments()) {
+                            mime4jMessage.addAttachment(new Mime4jAttachmentDataSource(attachment));
+                        }
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            mime4jMessage.close();
+            throw e;
+        }
+
+        return mime4jMessage;
+    }
+
+    /**
+     * @return the stored draft with the recipients, subject, body and options of the given message and the staged
+     * attachments
+     */
+    private Mime4jMessage applyChanges(MailMessage message, List<StagedAttachment> staged) {
+        Mime4jMessage mimeMessage = mailRepository.read(message.getFolder(), message.getMessageId());
+
+        try {
+            applyChanges(message, staged, mimeMessage);
+        } catch (RuntimeException e) {
+            mimeMessage.close();
+            throw e;
+        }
+
+        return mimeMessage;
+    }
+
+    private static void applyChanges(MailMessage message, List<StagedAttachment> staged, Mime4jMessage mimeMessage) {
+        mimeMessage.clearRecipients();
+        mimeMessage.clearCc();
+        mimeMessage.clearBcc();
+
+        if(message.getTo() != null) {
+            for (MailMessageAddress mailMessageAddress : message.getTo()) {
+                mimeMessage.addRecipient(mailMessageAddress.getEmail());
+            }
+        }
+
+        if(message.getCc() != null) {
+            for (MailMessageAddress mailMessageAddress : message.getCc()) {
+                mimeMessage.addCc(mailMessageAddress.getEmail());
+            }
+        }
+
+        if(message.getBcc() != null) {
+            for (MailMessageAddress mailMessageAddress : message.getBcc()) {
+                mimeMessage.addBcc(mailMessageAddress.getEmail());
+            }
+        }
+
+        mimeMessage.getMessage().setSubject(message.getSubject());
+        mimeMessage.setHtml(message.getBody().getHtml());
+        mimeMessage.setPlain(message.getBody().getPlain());
+
+        mimeMessage.setAskForDispositionNotification(message.getAskForDispositionNotification());
+        mimeMessage.setHighPriority(message.getHighPriority());
+        mimeMessage.setReceipt(message.getReceipt());
+        mimeMessage.setDate(message.getDate());
+
+        for (StagedAttachment attachment : staged) {
+            mimeMessage.addAttachment(attachment);
+        }
+    }
 }
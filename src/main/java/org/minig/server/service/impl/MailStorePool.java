@@ -0,0 +1,334 @@
+package org.minig.server.service.impl;
+
+import org.minig.MailAuthentication;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+
+import javax.mail.Authenticator;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.Store;
+import java.io.Closeable;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps authenticated {@link Store}s per user alive between requests.
+ *
+ * Idle stores are evicted after {@link #setIdleTimeout(long)} milliseconds. A store that has been idle longer than
+ * {@link #setValidationInterval(long)} milliseconds is checked with a NOOP before it is handed out again and replaced
+ * transparently if the server dropped the connection.
+ *
+ * @author Kamill Sokol
+ */
+public class MailStorePool implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(MailStorePool.class);
+
+    private final ConcurrentMap<String, UserPool> pools = new ConcurrentHashMap<>();
+    private final Map<Store, UserPool> leased = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    private int maxConnectionsPerUser = 4;
+    private long idleTimeout = TimeUnit.MINUTES.toMillis(5);
+    private long borrowTimeout = TimeUnit.SECONDS.toMillis(30);
+    private long validationInterval = TimeUnit.SECONDS.toMillis(10);
+
+    public MailStorePool() {
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mail-store-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+    }
+
+    public Session getSession(MailAuthentication authentication) {
+        return getPool(authentication).session;
+    }
+
+    public Store borrow(MailAuthentication authentication) {
+        Assert.notNull(authentication, "authentication is null");
+        UserPool pool = getPool(authentication);
+
+        try {
+            if (!pool.permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("no free connection for " + pool.user + " within " + borrowTimeout + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e.getMessage(), e);
+        }
+
+        return lease(pool);
+    }
+
+    /**
+     * Borrows a store without waiting, e.g. for optional parallel work.
+     *
+     * @return a store or {@code null} if all connections of the user are in use
+     */
+    public Store tryBorrow(MailAuthentication authentication) {
+        Assert.notNull(authentication, "authentication is null");
+        UserPool pool = getPool(authentication);
+
+        return pool.permits.tryAcquire() ? lease(pool) : null;
+    }
+
+    /**
+     * Reserves a connection of the user for a store that is opened outside of the pool, e.g. to watch a folder. At
+     * least one connection is always left for borrowing.
+     *
+     * @return a handle that gives the connection back once closed or {@code null} if no connection can be reserved
+     */
+    public Closeable reserve(MailAuthentication authentication) {
+        Assert.notNull(authentication, "authentication is null");
+        final UserPool pool = getPool(authentication);
+
+        synchronized (pool) {
+            if (pool.permits.availablePermits() <= 1 || !pool.permits.tryAcquire()) {
+                return null;
+            }
+        }
+
+        final AtomicBoolean released = new AtomicBoolean();
+
+        return new Closeable() {
+            @Override
+            public void close() {
+                if (released.compareAndSet(false, true)) {
+                    pool.permits.release();
+                }
+            }
+        };
+    }
+
+    public void release(Store store) {
+        if (store == null) {
+            return;
+        }
+
+        UserPool pool = leased.remove(store);
+
+        if (pool == null) {
+            closeQuietly(store);
+            return;
+        }
+
+        if (pool.closed || pools.get(pool.key) != pool) {
+            closeQuietly(store);
+        } else {
+            pool.idle.addFirst(new IdleStore(store));
+        }
+
+        pool.permits.release();
+    }
+
+    public void invalidate(Store store) {
+        if (store == null) {
+            return;
+        }
+
+        UserPool pool = leased.remove(store);
+        closeQuietly(store);
+
+        if (pool != null) {
+            pool.permits.release();
+        }
+    }
+
+    public int getMaxConnectionsPerUser() {
+        return maxConnectionsPerUser;
+    }
+
+    public void setMaxConnectionsPerUser(int maxConnectionsPerUser) {
+        Assert.isTrue(maxConnectionsPerUser > 0, "maxConnectionsPerUser must be greater than 0");
+        this.maxConnectionsPerUser = maxConnectionsPerUser;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        evictor.shutdownNow();
+
+        for (UserPool pool : pools.values()) {
+            close(pool);
+        }
+
+        pools.clear();
+    }
+
+    void evictIdle() {
+        long now = System.currentTimeMillis();
+
+        for (UserPool pool : pools.values()) {
+            Iterator<IdleStore> iterator = pool.idle.descendingIterator();
+
+            while (iterator.hasNext()) {
+                IdleStore idleStore = iterator.next();
+
+                if (now - idleStore.since > idleTimeout && pool.idle.removeLastOccurrence(idleStore)) {
+                    log.debug("evicting idle store of {}", pool.user);
+                    closeQuietly(idleStore.store);
+                }
+            }
+
+            if (pool.idle.isEmpty() && pool.permits.availablePermits() == pool.maxConnections) {
+                pools.remove(pool.key, pool);
+            }
+        }
+    }
+
+    private UserPool getPool(MailAuthentication authentication) {
+        String key = authentication.getUserMail() + "|" + authentication.getDomain();
+        UserPool pool = pools.get(key);
+
+        if (pool != null && pool.password.equals(authentication.getPassword())) {
+            return pool;
+        }
+
+        UserPool newPool = new UserPool(key, authentication, maxConnectionsPerUser);
+
+        if (pool == null) {
+            UserPool existing = pools.putIfAbsent(key, newPool);
+            return existing != null ? existing : newPool;
+        }
+
+        // credentials changed. drop everything that has been authenticated with the old password
+        if (pools.replace(key, pool, newPool)) {
+            close(pool);
+            return newPool;
+        }
+
+        return getPool(authentication);
+    }
+
+    private Store lease(UserPool pool) {
+        try {
+            Store store = takeIdle(pool);
+
+            if (store == null) {
+                store = connect(pool);
+            }
+
+            leased.put(store, pool);
+            return store;
+        } catch (RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    private Store takeIdle(UserPool pool) {
+        IdleStore idleStore;
+
+        while ((idleStore = pool.idle.pollFirst()) != null) {
+            long idle = System.currentTimeMillis() - idleStore.since;
+
+            if (idle < validationInterval || idleStore.store.isConnected()) {
+                return idleStore.store;
+            }
+
+            log.debug("pooled store of {} is not connected anymore", pool.user);
+            closeQuietly(idleStore.store);
+        }
+
+        return null;
+    }
+
+    private Store connect(UserPool pool) {
+        try {
+            log.debug("opening new store for {}", pool.user);
+            Store store = pool.session.getStore();
+            store.connect(pool.domain, pool.user, pool.password);
+            return store;
+        } catch (MessagingException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private void close(UserPool pool) {
+        pool.closed = true;
+        IdleStore idleStore;
+
+        while ((idleStore = pool.idle.pollFirst()) != null) {
+            closeQuietly(idleStore.store);
+        }
+    }
+
+    private static void closeQuietly(Store store) {
+        try {
+            store.close();
+        } catch (Exception e) {
+            log.debug("can not close store. reason {}", e.getMessage());
+        }
+    }
+
+    private static final class UserPool {
+        private final String key;
+        private final String user;
+        private final String password;
+        private final String domain;
+        private final int maxConnections;
+        private final Session session;
+        private final Semaphore permits;
+        private final Deque<IdleStore> idle = new ConcurrentLinkedDeque<>();
+        private volatile boolean closed;
+
+        private UserPool(String key, MailAuthentication authentication, int maxConnections) {
+            this.key = key;
+            this.user = authentication.getUserMail();
+            this.password = authentication.getPassword();
+            this.domain = authentication.getDomain();
+            this.maxConnections = maxConnections;
+            this.permits = new Semaphore(maxConnections, true);
+            this.session = Session.getInstance(new JavaMailPropertyBuilder(domain).build(), new Authenticator() {
+                protected PasswordAuthentication getPasswordAuthentication() {
+                    return new PasswordAuthentication(user, password);
+                }
+            });
+        }
+    }
+
+    private static final class IdleStore {
+        private final Store store;
+        private final long since = System.currentTimeMillis();
+
+        private IdleStore(Store store) {
+            this.store = store;
+        }
+    }
+}
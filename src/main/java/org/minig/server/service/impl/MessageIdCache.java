@@ -0,0 +1,276 @@
+package org.minig.server.service.impl;
+
+import org.minig.MailAuthentication;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the UIDVALIDITY and UID of Message-IDs seen by the current user so that a message can be fetched by UID
+ * instead of searching the folder for its Message-ID header.
+ *
+ * Entries of a folder are dropped as soon as a different UIDVALIDITY is reported for that folder. The entries of a
+ * user are dropped once the user has not used them for {@link #setIdleTimeout(long)} milliseconds.
+ *
+ * @author Kamill Sokol
+ */
+@Component
+class MessageIdCache implements DisposableBean {
+
+    static final int DEFAULT_MAX_ENTRIES_PER_USER = 5000;
+
+    private final ConcurrentMap<String, UserCache> caches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    @Autowired
+    private MailAuthentication authentication;
+
+    private int maxEntriesPerUser = DEFAULT_MAX_ENTRIES_PER_USER;
+    private long idleTimeout = TimeUnit.MINUTES.toMillis(30);
+
+    public MessageIdCache() {
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "message-id-cache-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @return UID of the message or {@code null} if the Message-ID is unknown or the cached UIDVALIDITY differs
+     */
+    public Long get(String folder, String messageId, long uidValidity) {
+        if (folder == null || messageId == null) {
+            return null;
+        }
+
+        UserCache cache = findCache();
+        return cache != null ? cache.get(folder, messageId, uidValidity) : null;
+    }
+
+    /**
+     * Looks up a Message-ID without knowing the current UIDVALIDITY of the folder.
+     *
+     * @return UIDVALIDITY and UID last seen for the Message-ID or {@code null}
+     */
+    public long[] find(String folder, String messageId) {
+        if (folder == null || messageId == null) {
+            return null;
+        }
+
+        UserCache cache = findCache();
+        return cache != null ? cache.find(folder, messageId) : null;
+    }
+
+    /**
+     * @return folder the Message-ID has been seen in last or {@code null}
+     */
+    public String findFolder(String messageId) {
+        if (messageId == null) {
+            return null;
+        }
+
+        UserCache cache = findCache();
+        return cache != null ? cache.findFolder(messageId) : null;
+    }
+
+    public void put(String folder, String messageId, long uidValidity, long uid) {
+        if (folder == null || messageId == null) {
+            return;
+        }
+
+        getCache().put(folder, messageId, uidValidity, uid);
+    }
+
+    public void remove(String folder, String messageId) {
+        UserCache cache = findCache();
+
+        if (cache != null && folder != null && messageId != null) {
+            cache.remove(folder, messageId);
+        }
+    }
+
+    public void setMaxEntriesPerUser(int maxEntriesPerUser) {
+        this.maxEntriesPerUser = maxEntriesPerUser;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        evictor.shutdownNow();
+    }
+
+    void setAuthentication(MailAuthentication authentication) {
+        this.authentication = authentication;
+    }
+
+    void evictIdle() {
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, UserCache> entry : caches.entrySet()) {
+            if (now - entry.getValue().lastAccess > idleTimeout) {
+                caches.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private UserCache findCache() {
+        UserCache cache = caches.get(authentication.getEmailAddress());
+
+        if (cache != null) {
+            cache.lastAccess = System.currentTimeMillis();
+        }
+
+        return cache;
+    }
+
+    private UserCache getCache() {
+        String user = authentication.getEmailAddress();
+        UserCache cache = caches.get(user);
+
+        if (cache == null) {
+            UserCache newCache = new UserCache(maxEntriesPerUser);
+            cache = caches.putIfAbsent(user, newCache);
+
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+
+        cache.lastAccess = System.currentTimeMillis();
+        return cache;
+    }
+
+    private static final class UserCache {
+        private final Map<String, Long> uidValidities = new ConcurrentHashMap<>();
+        private final Map<String, String> folders = new HashMap<>();
+        private final LinkedHashMap<Key, long[]> entries;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private UserCache(final int maxEntries) {
+            this.entries = new LinkedHashMap<Key, long[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, long[]> eldest) {
+                    if (size() > maxEntries) {
+                        removeFolder(eldest.getKey());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        private synchronized Long get(String folder, String messageId, long uidValidity) {
+            if (checkUidValidity(folder, uidValidity)) {
+                return null;
+            }
+
+            long[] entry = entries.get(new Key(folder, messageId));
+            return entry != null && entry[0] == uidValidity ? entry[1] : null;
+        }
+
+        private synchronized long[] find(String folder, String messageId) {
+            long[] entry = entries.get(new Key(folder, messageId));
+            return entry != null ? entry.clone() : null;
+        }
+
+        private synchronized String findFolder(String messageId) {
+            return folders.get(messageId);
+        }
+
+        private synchronized void put(String folder, String messageId, long uidValidity, long uid) {
+            checkUidValidity(folder, uidValidity);
+            uidValidities.put(folder, uidValidity);
+            entries.put(new Key(folder, messageId), new long[] { uidValidity, uid });
+            folders.put(messageId, folder);
+        }
+
+        private synchronized void remove(String folder, String messageId) {
+            Key key = new Key(folder, messageId);
+            entries.remove(key);
+            removeFolder(key);
+        }
+
+        private void removeFolder(Key key) {
+            if (key.folder.equals(folders.get(key.messageId))) {
+                folders.remove(key.messageId);
+            }
+        }
+
+        /**
+         * @return {@code true} if the folder has been reset
+         */
+        private boolean checkUidValidity(String folder, long uidValidity) {
+            Long known = uidValidities.get(folder);
+
+            if (known == null || known == uidValidity) {
+                return false;
+            }
+
+            uidValidities.remove(folder);
+            Iterator<Key> iterator = entries.keySet().iterator();
+
+            while (iterator.hasNext()) {
+                Key key = iterator.next();
+
+                if (key.folder.equals(folder)) {
+                    removeFolder(key);
+                    iterator.remove();
+                }
+            }
+
+            return true;
+        }
+    }
+
+    private static final class Key {
+        private final String folder;
+        private final String messageId;
+
+        private Key(String folder, String messageId) {
+            this.folder = folder;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return folder.equals(key.folder) && messageId.equals(key.messageId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * folder.hashCode() + messageId.hashCode();
+        }
+    }
+}
@@ -0,0 +1,621 @@
+package org.minig.server.service.impl;
+
+import org.minig.MailAuthentication;
+import org.minig.util.PrivateFiles;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.util.Assert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Per user inverted index over the messages of a folder, stored on disk below {@link #setDirectory(File)}. The index
+ * holds addresses and text of messages, so there is no default location and all directories and files are created
+ * readable by their owner only.
+ *
+ * Changes are appended to a journal next to the index file. The journal is folded into the index file once it grows
+ * larger than the index file and 64 KB, or after a UIDVALIDITY change or a broken journal.
+ *
+ * A folder is indexed incrementally in UID order. {@link FolderIndex#getLastUid()} is the highest UID indexed so far,
+ * new messages are always above it. The index of a folder is discarded when its UIDVALIDITY changes. Query terms
+ * match indexed terms by prefix, all terms of a query have to match.
+ *
+ * Recently used folder indexes are kept on the heap, at most {@link #setMaxOpenFolders(int)} in total and
+ * {@link #setMaxOpenFoldersPerUser(int)} per user, so a single user searching many folders does not evict the indexes
+ * of everybody else.
+ *
+ * @author Kamill Sokol
+ */
+public class MessageIndex {
+
+    private static final int VERSION = 1;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final long MIN_JOURNAL_LENGTH = 64 * 1024;
+    private static final int ADDED = 'A';
+    private static final int REMOVED = 'R';
+
+    private final LinkedHashMap<String, FolderIndex> open = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Autowired
+    private MailAuthentication authentication;
+
+    private File directory;
+    private int maxOpenFolders = 64;
+    private int maxOpenFoldersPerUser = 4;
+    private int batchSize = 500;
+
+    /**
+     * @return the index of the folder of the current user, empty if the folder has not been indexed yet or its
+     * UIDVALIDITY changed
+     */
+    public FolderIndex open(String folder, long uidValidity) throws IOException {
+        return open(authentication.getEmailAddress(), folder, uidValidity);
+    }
+
+    /**
+     * @return the index of the folder of the given user, for threads without access to the request
+     */
+    public FolderIndex open(String user, String folder, long uidValidity) throws IOException {
+        String key = user + "|" + folder;
+
+        synchronized (open) {
+            FolderIndex index = open.get(key);
+
+            if (index == null) {
+                index = load(user, file(user, folder));
+                open.put(key, index);
+                evict(user);
+            }
+
+            if (index.uidValidity != uidValidity) {
+                index.reset(uidValidity);
+            }
+
+            return index;
+        }
+    }
+
+    /**
+     * Writes the changes of the index since it was loaded or saved.
+     */
+    public void save(FolderIndex index) throws IOException {
+        synchronized (index) {
+            if (!index.rewrite && index.pending.size() == 0) {
+                return;
+            }
+
+            PrivateFiles.createDirectories(index.file.getParentFile());
+
+            if (!index.rewrite && index.journal.length() + index.pending.size() <= Math.max(index.file.length(), MIN_JOURNAL_LENGTH)) {
+                append(index);
+            } else {
+                rewrite(index);
+            }
+
+            index.pending.reset();
+        }
+    }
+
+    public void setDirectory(File directory) {
+        Assert.notNull(directory, "directory is null");
+        this.directory = directory;
+    }
+
+    public void setMaxOpenFolders(int maxOpenFolders) {
+        this.maxOpenFolders = maxOpenFolders;
+    }
+
+    public void setMaxOpenFoldersPerUser(int maxOpenFoldersPerUser) {
+        this.maxOpenFoldersPerUser = maxOpenFoldersPerUser;
+    }
+
+    /**
+     * @return maximal number of messages indexed with a single connection borrowed from the pool
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    void setAuthentication(MailAuthentication authentication) {
+        this.authentication = authentication;
+    }
+
+    /**
+     * Splits text into lower case terms of letters and digits.
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+
+        if (text == null) {
+            return terms;
+        }
+
+        int start = -1;
+
+        for (int i = 0; i <= text.length(); i++) {
+            boolean termChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+
+            if (termChar && start < 0) {
+                start = i;
+            } else if (!termChar && start >= 0) {
+                addTerm(terms, text.substring(start, i));
+                start = -1;
+            }
+        }
+
+        return terms;
+    }
+
+    private static void addTerm(Set<String> terms, String term) {
+        if (term.length() < MIN_TERM_LENGTH) {
+            return;
+        }
+
+        String normalized = term.toLowerCase(Locale.ENGLISH);
+        terms.add(normalized.length() > MAX_TERM_LENGTH ? normalized.substring(0, MAX_TERM_LENGTH) : normalized);
+    }
+
+    private File file(String user, String folder) throws IOException {
+        if (directory == null) {
+            throw new IllegalStateException("no index directory configured");
+        }
+
+        return new File(new File(directory, URLEncoder.encode(user, "UTF-8")), URLEncoder.encode(folder, "UTF-8") + ".idx");
+    }
+
+    private static void append(FolderIndex index) throws IOException {
+        boolean header = !index.journal.isFile();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(PrivateFiles.newOutputStream(index.journal, true)))) {
+            if (header) {
+                out.writeInt(VERSION);
+                out.writeLong(index.uidValidity);
+            }
+
+            index.pending.writeTo(out);
+        } catch (IOException e) {
+            // the journal may end with a partial record now
+            index.rewrite = true;
+            throw e;
+        }
+    }
+
+    private static void rewrite(FolderIndex index) throws IOException {
+        File temp = new File(index.file.getParentFile(), index.file.getName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(PrivateFiles.newOutputStream(temp, false)))) {
+            index.write(out);
+        }
+
+        Files.move(temp.toPath(), index.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        // left over if this fails, its records are skipped on load as they are at or below the last UID of the index
+        Files.deleteIfExists(index.journal.toPath());
+        index.rewrite = false;
+    }
+
+    /**
+     * Drops the least recently used indexes of the user above the limit per user, then the least recently used
+     * indexes of all users above the total limit.
+     */
+    private void evict(String user) {
+        int count = 0;
+
+        for (FolderIndex index : open.values()) {
+            if (index.user.equals(user)) {
+                count++;
+            }
+        }
+
+        Iterator<FolderIndex> iterator = open.values().iterator();
+
+        while (count > maxOpenFoldersPerUser && iterator.hasNext()) {
+            if (iterator.next().user.equals(user)) {
+                iterator.remove();
+                count--;
+            }
+        }
+
+        iterator = open.values().iterator();
+
+        while (open.size() > maxOpenFolders && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static FolderIndex load(String user, File file) throws IOException {
+        FolderIndex index = new FolderIndex(user, file);
+
+        if (!file.isFile()) {
+            return index;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                return index;
+            }
+
+            index.read(in);
+        } catch (IOException e) {
+            // a broken index is rebuilt
+            return new FolderIndex(user, file);
+        }
+
+        index.rewrite = false;
+
+        if (index.journal.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index.journal)))) {
+                index.replay(in);
+            } catch (IOException e) {
+                // records read so far are kept, the rest is indexed again
+                index.rewrite = true;
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Text of a message to index.
+     */
+    public static final class Document {
+        private final long uid;
+        private final String messageId;
+        private final String text;
+
+        public Document(long uid, String messageId, String text) {
+            this.uid = uid;
+            this.messageId = messageId;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Index of a single folder. Postings are kept as ascending UID arrays.
+     */
+    public static final class FolderIndex {
+        private final String user;
+        private final File file;
+        private final File journal;
+        private final Map<Long, String> messageIds = new HashMap<>();
+        private final TreeMap<String, long[]> postings = new TreeMap<>();
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private long uidValidity = -1;
+        private long lastUid;
+        private boolean rewrite = true;
+
+        private FolderIndex(String user, File file) {
+            this.user = user;
+            this.file = file;
+            this.journal = new File(file.getParentFile(), file.getName() + ".log");
+        }
+
+        public synchronized long getLastUid() {
+            return lastUid;
+        }
+
+        /**
+         * @return Message-ID of the indexed message or {@code null}
+         */
+        public synchronized String getMessageId(long uid) {
+            return messageIds.get(uid);
+        }
+
+        public synchronized int size() {
+            return messageIds.size();
+        }
+
+        /**
+         * Adds the documents and marks all UIDs up to {@code lastUid} as indexed. Documents are expected in ascending
+         * UID order above {@link #getLastUid()}.
+         */
+        public synchronized void add(List<Document> documents, long lastUid) {
+            List<Indexed> indexed = new ArrayList<>(documents.size());
+
+            for (Document document : documents) {
+                indexed.add(new Indexed(document.uid, document.messageId, tokenize(document.text)));
+            }
+
+            indexed = apply(indexed, lastUid);
+
+            try {
+                DataOutputStream out = new DataOutputStream(pending);
+                out.writeByte(ADDED);
+                out.writeLong(lastUid);
+                out.writeInt(indexed.size());
+
+                for (Indexed document : indexed) {
+                    out.writeLong(document.uid);
+                    out.writeUTF(document.messageId);
+                    out.writeInt(document.terms.size());
+
+                    for (String term : document.terms) {
+                        out.writeUTF(term);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Forgets expunged messages. Their postings are dropped lazily.
+         */
+        public synchronized void remove(Collection<Long> uids) {
+            List<Long> removed = new ArrayList<>();
+
+            for (Long uid : uids) {
+                if (messageIds.remove(uid) != null) {
+                    removed.add(uid);
+                }
+            }
+
+            if (removed.isEmpty()) {
+                return;
+            }
+
+            try {
+                DataOutputStream out = new DataOutputStream(pending);
+                out.writeByte(REMOVED);
+                out.writeInt(removed.size());
+
+                for (Long uid : removed) {
+                    out.writeLong(uid);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+
+        /**
+         * @return UIDs of the messages matching all terms of the query, newest first
+         */
+        public synchronized List<Long> search(String query) {
+            Set<String> terms = tokenize(query);
+            Set<Long> result = null;
+
+            for (String term : terms) {
+                Set<Long> matches = new TreeSet<>();
+
+                for (long[] uids : postings.subMap(term, term + Character.MAX_VALUE).values()) {
+                    for (long uid : uids) {
+                        if (result == null || result.contains(uid)) {
+                            matches.add(uid);
+                        }
+                    }
+                }
+
+                result = matches;
+
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+
+            if (result == null) {
+                return Collections.emptyList();
+            }
+
+            List<Long> uids = new ArrayList<>(result.size());
+
+            for (Long uid : result) {
+                if (messageIds.containsKey(uid)) {
+                    uids.add(uid);
+                }
+            }
+
+            Collections.reverse(uids);
+            return uids;
+        }
+
+        private void reset(long uidValidity) {
+            synchronized (this) {
+                messageIds.clear();
+                postings.clear();
+                lastUid = 0;
+                this.uidValidity = uidValidity;
+                pending.reset();
+                rewrite = true;
+            }
+        }
+
+        /**
+         * @return the documents above {@link #getLastUid()}, which have been added
+         */
+        private List<Indexed> apply(List<Indexed> documents, long lastUid) {
+            List<Indexed> applied = new ArrayList<>(documents.size());
+            Map<String, List<Long>> added = new HashMap<>();
+
+            for (Indexed document : documents) {
+                if (document.uid <= this.lastUid) {
+                    continue;
+                }
+
+                applied.add(document);
+                messageIds.put(document.uid, document.messageId);
+
+                for (String term : document.terms) {
+                    List<Long> uids = added.get(term);
+
+                    if (uids == null) {
+                        uids = new ArrayList<>();
+                        added.put(term, uids);
+                    }
+
+                    uids.add(document.uid);
+                }
+            }
+
+            for (Map.Entry<String, List<Long>> entry : added.entrySet()) {
+                long[] existing = postings.get(entry.getKey());
+                int offset = existing != null ? existing.length : 0;
+                long[] merged = existing != null ? Arrays.copyOf(existing, offset + entry.getValue().size()) : new long[entry.getValue().size()];
+
+                for (int i = 0; i < entry.getValue().size(); i++) {
+                    merged[offset + i] = entry.getValue().get(i);
+                }
+
+                postings.put(entry.getKey(), merged);
+            }
+
+            this.lastUid = Math.max(this.lastUid, lastUid);
+            return applied;
+        }
+
+        /**
+         * Applies the records of a journal written for the same UIDVALIDITY. A record is applied only once it has
+         * been read completely.
+         */
+        private void replay(DataInputStream in) throws IOException {
+            if (in.readInt() != VERSION || in.readLong() != uidValidity) {
+                throw new IOException("journal does not belong to " + file);
+            }
+
+            int type;
+
+            while ((type = in.read()) >= 0) {
+                if (type == ADDED) {
+                    long recordLastUid = in.readLong();
+                    List<Indexed> documents = new ArrayList<>();
+
+                    for (int i = in.readInt(); i > 0; i--) {
+                        long uid = in.readLong();
+                        String messageId = in.readUTF();
+                        Set<String> terms = new LinkedHashSet<>();
+
+                        for (int j = in.readInt(); j > 0; j--) {
+                            terms.add(in.readUTF());
+                        }
+
+                        documents.add(new Indexed(uid, messageId, terms));
+                    }
+
+                    apply(documents, recordLastUid);
+                } else if (type == REMOVED) {
+                    List<Long> uids = new ArrayList<>();
+
+                    for (int i = in.readInt(); i > 0; i--) {
+                        uids.add(in.readLong());
+                    }
+
+                    for (Long uid : uids) {
+                        messageIds.remove(uid);
+                    }
+                } else {
+                    throw new IOException("unknown journal record " + type);
+                }
+            }
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            // postings of removed messages are dropped here
+            out.writeInt(VERSION);
+            out.writeLong(uidValidity);
+            out.writeLong(lastUid);
+            out.writeInt(messageIds.size());
+
+            for (Map.Entry<Long, String> entry : messageIds.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+
+            List<Map.Entry<String, long[]>> terms = new ArrayList<>();
+
+            for (Map.Entry<String, long[]> entry : postings.entrySet()) {
+                long[] live = live(entry.getValue());
+
+                if (live.length > 0) {
+                    entry.setValue(live);
+                    terms.add(entry);
+                }
+            }
+
+            out.writeInt(terms.size());
+
+            for (Map.Entry<String, long[]> entry : terms) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+
+                for (long uid : entry.getValue()) {
+                    out.writeLong(uid);
+                }
+            }
+        }
+
+        private void read(DataInputStream in) throws IOException {
+            uidValidity = in.readLong();
+            lastUid = in.readLong();
+            int messages = in.readInt();
+
+            for (int i = 0; i < messages; i++) {
+                messageIds.put(in.readLong(), in.readUTF());
+            }
+
+            int terms = in.readInt();
+
+            for (int i = 0; i < terms; i++) {
+                String term = in.readUTF();
+                long[] uids = new long[in.readInt()];
+
+                for (int j = 0; j < uids.length; j++) {
+                    uids[j] = in.readLong();
+                }
+
+                postings.put(term, uids);
+            }
+        }
+
+        private long[] live(long[] uids) {
+            int count = 0;
+            long[] live = new long[uids.length];
+
+            for (long uid : uids) {
+                if (messageIds.containsKey(uid)) {
+                    live[count++] = uid;
+                }
+            }
+
+            return count == uids.length ? uids : Arrays.copyOf(live, count);
+        }
+    }
+
+    private static final class Indexed {
+        private final long uid;
+        private final String messageId;
+        private final Set<String> terms;
+
+        private Indexed(long uid, String messageId, Set<String> terms) {
+            this.uid = uid;
+            this.messageId = messageId;
+            this.terms = terms;
+        }
+    }
+}
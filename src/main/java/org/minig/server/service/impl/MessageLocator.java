@@ -0,0 +1,257 @@
+package org.minig.server.service.impl;
+
+import org.minig.server.service.CompositeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import javax.mail.search.MessageIDTerm;
+import javax.mail.search.OrTerm;
+import javax.mail.search.SearchTerm;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves a {@link CompositeId} to the messages of an opened folder.
+ *
+ * Ids carrying UIDVALIDITY and UID are resolved with {@link UIDFolder#getMessageByUID(long)}. All other ids, ids whose
+ * UIDVALIDITY does not match the folder anymore and ids whose Message-ID does not match the message found under their
+ * UID are looked up in the {@link MessageIdCache} first and fall back to a SEARCH for the Message-ID.
+ *
+ * @author Kamill Sokol
+ */
+@Component
+class MessageLocator {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageLocator.class);
+    private static final Message[] EMPTY = new Message[0];
+
+    private final MessageIdCache messageIdCache;
+
+    @Autowired
+    public MessageLocator(MessageIdCache messageIdCache) {
+        this.messageIdCache = messageIdCache;
+    }
+
+    public Message[] find(Folder folder, CompositeId id) throws MessagingException {
+        Assert.notNull(folder, "folder is null");
+        Assert.notNull(id, "id is null");
+
+        Message message = findByUid(folder, id);
+
+        if (message == null) {
+            message = findByCachedUid(folder, id);
+        }
+
+        if (message != null) {
+            return new Message[] { message };
+        }
+
+        if (id.getMessageId() == null) {
+            return EMPTY;
+        }
+
+        Message[] messages = folder.search(new MessageIDTerm(id.getMessageId()));
+
+        if (messages.length == 1 && folder instanceof UIDFolder) {
+            UIDFolder uidFolder = (UIDFolder) folder;
+            messageIdCache.put(folder.getFullName(), id.getMessageId(), uidFolder.getUIDValidity(), uidFolder.getUID(messages[0]));
+        }
+
+        return messages;
+    }
+
+    /**
+     * Resolves many ids of one folder with a single UID FETCH for all known UIDs and a single SEARCH for all remaining
+     * Message-IDs. Ids that can not be resolved are missing in the returned map.
+     */
+    public Map<CompositeId, Message> findAll(Folder folder, Collection<? extends CompositeId> ids) throws MessagingException {
+        Assert.notNull(folder, "folder is null");
+        Assert.notNull(ids, "ids is null");
+
+        Map<CompositeId, Message> found = new IdentityHashMap<>();
+        List<CompositeId> byMessageId = new ArrayList<>();
+
+        if (folder instanceof UIDFolder) {
+            UIDFolder uidFolder = (UIDFolder) folder;
+            long uidValidity = uidFolder.getUIDValidity();
+            List<CompositeId> byUid = new ArrayList<>();
+            List<Long> uids = new ArrayList<>();
+
+            for (CompositeId id : ids) {
+                Long uid = id.hasUid() && id.getUidValidity() == uidValidity
+                        ? id.getUid()
+                        : messageIdCache.get(folder.getFullName(), id.getMessageId(), uidValidity);
+
+                if (uid == null) {
+                    byMessageId.add(id);
+                } else {
+                    byUid.add(id);
+                    uids.add(uid);
+                }
+            }
+
+            if (!uids.isEmpty()) {
+                long[] uidArray = new long[uids.size()];
+
+                for (int i = 0; i < uidArray.length; i++) {
+                    uidArray[i] = uids.get(i);
+                }
+
+                Message[] messages = uidFolder.getMessagesByUID(uidArray);
+                fetchMessageIds(folder, messages);
+
+                for (int i = 0; i < messages.length; i++) {
+                    if (messages[i] != null && !messages[i].isExpunged() && hasMessageId(messages[i], byUid.get(i).getMessageId())) {
+                        found.put(byUid.get(i), messages[i]);
+                    } else {
+                        byMessageId.add(byUid.get(i));
+                    }
+                }
+            }
+        } else {
+            byMessageId.addAll(ids);
+        }
+
+        findAllByMessageId(folder, byMessageId, found);
+        return found;
+    }
+
+    public Message findFirst(Folder folder, CompositeId id) throws MessagingException {
+        Message[] messages = find(folder, id);
+        return messages != null && messages.length > 0 ? messages[0] : null;
+    }
+
+    private static void findAllByMessageId(Folder folder, List<CompositeId> ids, Map<CompositeId, Message> found) throws MessagingException {
+        Map<String, List<CompositeId>> idsByMessageId = new HashMap<>();
+        List<SearchTerm> terms = new ArrayList<>();
+
+        for (CompositeId id : ids) {
+            if (id.getMessageId() == null) {
+                continue;
+            }
+
+            List<CompositeId> sameMessageId = idsByMessageId.get(id.getMessageId());
+
+            if (sameMessageId == null) {
+                sameMessageId = new ArrayList<>();
+                idsByMessageId.put(id.getMessageId(), sameMessageId);
+                terms.add(new MessageIDTerm(id.getMessageId()));
+            }
+
+            sameMessageId.add(id);
+        }
+
+        if (terms.isEmpty()) {
+            return;
+        }
+
+        SearchTerm term = terms.size() == 1 ? terms.get(0) : new OrTerm(terms.toArray(new SearchTerm[terms.size()]));
+        Message[] messages = folder.search(term);
+        fetchMessageIds(folder, messages);
+
+        for (Message message : messages) {
+            String[] header = message.getHeader("Message-ID");
+
+            if (header == null || header.length == 0 || !idsByMessageId.containsKey(header[0])) {
+                continue;
+            }
+
+            for (CompositeId id : idsByMessageId.get(header[0])) {
+                if (!found.containsKey(id)) {
+                    found.put(id, message);
+                }
+            }
+        }
+    }
+
+    private static Message findByUid(Folder folder, CompositeId id) throws MessagingException {
+        if (!id.hasUid() || !(folder instanceof UIDFolder)) {
+            return null;
+        }
+
+        UIDFolder uidFolder = (UIDFolder) folder;
+
+        if (uidFolder.getUIDValidity() != id.getUidValidity()) {
+            log.debug("uidvalidity of {} changed. falling back to Message-ID {}", folder.getFullName(), id.getMessageId());
+            return null;
+        }
+
+        Message message = getMessageByUid(uidFolder, id.getUid());
+
+        if (message != null && !hasMessageId(message, id.getMessageId())) {
+            log.debug("uid {} of {} does not belong to {} anymore", id.getUid(), folder.getFullName(), id.getMessageId());
+            return null;
+        }
+
+        return message;
+    }
+
+    private Message findByCachedUid(Folder folder, CompositeId id) throws MessagingException {
+        if (id.getMessageId() == null || !(folder instanceof UIDFolder)) {
+            return null;
+        }
+
+        UIDFolder uidFolder = (UIDFolder) folder;
+        Long uid = messageIdCache.get(folder.getFullName(), id.getMessageId(), uidFolder.getUIDValidity());
+
+        if (uid == null) {
+            return null;
+        }
+
+        Message message = getMessageByUid(uidFolder, uid);
+
+        if (message == null) {
+            messageIdCache.remove(folder.getFullName(), id.getMessageId());
+        }
+
+        return message;
+    }
+
+    private static void fetchMessageIds(Folder folder, Message[] messages) throws MessagingException {
+        List<Message> fetch = new ArrayList<>(messages.length);
+
+        for (Message message : messages) {
+            if (message != null && !message.isExpunged()) {
+                fetch.add(message);
+            }
+        }
+
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add("Message-ID");
+        folder.fetch(fetch.toArray(new Message[fetch.size()]), fetchProfile);
+    }
+
+    /**
+     * Returns true if the id does not carry a Message-ID or the message has the same Message-ID.
+     */
+    private static boolean hasMessageId(Message message, String messageId) throws MessagingException {
+        if (messageId == null) {
+            return true;
+        }
+
+        String[] header = message.getHeader("Message-ID");
+        return header != null && header.length > 0 && messageId.equals(header[0]);
+    }
+
+    private static Message getMessageByUid(UIDFolder folder, long uid) throws MessagingException {
+        Message message = folder.getMessageByUID(uid);
+
+        if (message == null || message.isExpunged()) {
+            return null;
+        }
+
+        return message;
+    }
+}
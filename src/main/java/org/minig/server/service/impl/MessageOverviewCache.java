@@ -0,0 +1,420 @@
+package org.minig.server.service.impl;
+
+import org.minig.MailAuthentication;
+import org.minig.server.MailMessage;
+import org.minig.server.MailMessageAddress;
+import org.minig.server.service.CompositeAttachmentId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the overview of listed messages per user and folder, keyed by UID.
+ *
+ * Every folder has a {@link FolderState} describing the mailbox when the cache was last filled. Envelopes are
+ * immutable for a given UIDVALIDITY and UID, so cached overviews stay valid until UIDVALIDITY changes. Flags and the
+ * mapping of message sequence numbers to UIDs are only trusted while the folder state is unchanged. The state also
+ * keeps the last sort orders computed for the folder.
+ *
+ * The total size of all cached overviews and folder states, including their sequence number mappings and sort orders,
+ * is bounded by {@link #setMaxBytes(long)}. Least recently used overviews and folder states are evicted first. An
+ * evicted folder state keeps working for requests that still hold it, but its changes are no longer kept.
+ *
+ * @author Kamill Sokol
+ */
+@Component
+class MessageOverviewCache {
+
+    static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    // guarded by entries
+    private final LinkedHashMap<String, FolderState> states = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Autowired
+    private MailAuthentication authentication;
+
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long bytes;
+    private long tick;
+
+    /**
+     * Compares the current state of a folder with the cached one and returns the state the cached data belongs to.
+     * Everything cached for the folder is dropped if UIDVALIDITY changed.
+     */
+    public FolderState getState(String folder, long uidValidity) {
+        String key = key(folder);
+
+        synchronized (entries) {
+            FolderState state = states.get(key);
+
+            if (state != null && state.uidValidity != uidValidity) {
+                detach(states.remove(key));
+                evictFolder(key);
+                state = null;
+            }
+
+            if (state == null) {
+                state = new FolderState(this, uidValidity);
+                states.put(key, state);
+                state.attached = true;
+                bytes += state.size;
+            }
+
+            state.lastUsed = ++tick;
+            evict();
+            return state;
+        }
+    }
+
+    /**
+     * @return a copy of the cached overview or {@code null}
+     */
+    public MailMessage get(String folder, long uidValidity, long uid) {
+        Entry entry;
+
+        synchronized (entries) {
+            entry = entries.get(new Key(key(folder), uidValidity, uid));
+
+            if (entry != null) {
+                entry.lastUsed = ++tick;
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        hits.incrementAndGet();
+        return copy(entry.message);
+    }
+
+    public void put(String folder, long uidValidity, long uid, MailMessage message) {
+        Entry entry = new Entry(copy(message));
+
+        synchronized (entries) {
+            Entry previous = entries.put(new Key(key(folder), uidValidity, uid), entry);
+
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+
+            bytes += entry.size;
+            entry.lastUsed = ++tick;
+            evict();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getSize() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    void setAuthentication(MailAuthentication authentication) {
+        this.authentication = authentication;
+    }
+
+    private String key(String folder) {
+        return authentication.getEmailAddress() + "|" + folder;
+    }
+
+    /**
+     * Evicts the least recently used overview or folder state until the cache fits into its bound.
+     */
+    private void evict() {
+        while (bytes > maxBytes) {
+            Iterator<Entry> eldestEntry = entries.values().iterator();
+            Iterator<FolderState> eldestState = states.values().iterator();
+            Entry entry = eldestEntry.hasNext() ? eldestEntry.next() : null;
+            FolderState state = eldestState.hasNext() ? eldestState.next() : null;
+
+            if (entry == null && state == null) {
+                return;
+            }
+
+            if (state == null || (entry != null && entry.lastUsed < state.lastUsed)) {
+                bytes -= entry.size;
+                eldestEntry.remove();
+            } else {
+                detach(state);
+                eldestState.remove();
+            }
+        }
+    }
+
+    private void detach(FolderState state) {
+        bytes -= state.size;
+        state.attached = false;
+    }
+
+    /**
+     * Called by a folder state whose size changed, while it holds its own lock.
+     */
+    private void resize(FolderState state, long delta) {
+        synchronized (entries) {
+            state.size += delta;
+
+            if (state.attached) {
+                bytes += delta;
+                evict();
+            }
+        }
+    }
+
+    private void evictFolder(String folderKey) {
+        synchronized (entries) {
+            Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+
+            while (iterator.hasNext()) {
+                Map.Entry<Key, Entry> next = iterator.next();
+
+                if (next.getKey().folder.equals(folderKey)) {
+                    bytes -= next.getValue().size;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    static MailMessage copy(MailMessage source) {
+        MailMessage target = new MailMessage();
+        target.setCompositeId(source);
+        target.setSubject(source.getSubject());
+        target.setBody(source.getBody());
+        target.setAttachments(source.getAttachments());
+        target.setSender(source.getSender());
+        target.setTo(source.getTo());
+        target.setCc(source.getCc());
+        target.setBcc(source.getBcc());
+        target.setDispositionNotification(source.getDispositionNotification());
+        target.setDate(source.getDate());
+        target.setMailer(source.getMailer());
+        target.setForwarded(source.getForwarded());
+        target.setRead(source.getRead());
+        target.setStarred(source.getStarred());
+        target.setAnswered(source.getAnswered());
+        target.setHighPriority(source.getHighPriority());
+        target.setAskForDispositionNotification(source.getAskForDispositionNotification());
+        target.setReceipt(source.getReceipt());
+        target.setMdnSent(source.getMdnSent());
+        target.setDeleted(source.getDeleted());
+        target.setInReplyTo(source.getInReplyTo());
+        target.setForwardedMessageId(source.getForwardedMessageId());
+        return target;
+    }
+
+    /**
+     * Rough estimate of the heap used by an overview. Strings are counted with two bytes per char.
+     */
+    static long estimateSize(MailMessage message) {
+        long size = 256;
+        size += length(message.getId()) + length(message.getSubject()) + length(message.getMailer());
+        size += length(message.getInReplyTo()) + length(message.getForwardedMessageId());
+        size += estimateSize(message.getSender());
+        size += estimateSize(message.getTo()) + estimateSize(message.getCc()) + estimateSize(message.getBcc());
+
+        List<CompositeAttachmentId> attachments = message.getAttachments();
+
+        if (attachments != null) {
+            for (CompositeAttachmentId attachment : attachments) {
+                size += 64 + length(attachment.getId());
+            }
+        }
+
+        return size;
+    }
+
+    private static long estimateSize(List<MailMessageAddress> addresses) {
+        long size = 0;
+
+        if (addresses != null) {
+            for (MailMessageAddress address : addresses) {
+                size += estimateSize(address);
+            }
+        }
+
+        return size;
+    }
+
+    private static long estimateSize(MailMessageAddress address) {
+        return address == null ? 0 : 48 + length(address.getEmail()) + length(address.getDisplayName());
+    }
+
+    private static long length(String value) {
+        return value == null ? 0 : 40 + 2L * value.length();
+    }
+
+    /**
+     * State of a folder the cached overviews and sequence numbers belong to.
+     */
+    static final class FolderState {
+        static final long EMPTY_SIZE = 256;
+        private static final long UID_SIZE = 80;
+        private static final long ORDER_SIZE = 96;
+        private static final int MAX_ORDERS = 4;
+
+        private final MessageOverviewCache cache;
+        private final long uidValidity;
+        private final Map<Integer, Long> uids = new HashMap<>();
+        private final LinkedHashMap<String, SortedOrder> orders = new LinkedHashMap<>(8, 0.75f, true);
+        private long uidNext = -1;
+        private int messageCount = -1;
+        private long highestModSeq = -1;
+
+        // guarded by cache.entries
+        private long size = EMPTY_SIZE;
+        private long lastUsed;
+        private boolean attached;
+
+        private FolderState(MessageOverviewCache cache, long uidValidity) {
+            this.cache = cache;
+            this.uidValidity = uidValidity;
+        }
+
+        /**
+         * Updates the state. Returns {@code true} if neither messages nor flags changed since the last update. This
+         * is only detectable if the server supports CONDSTORE.
+         */
+        public synchronized boolean update(long uidNext, int messageCount, long highestModSeq) {
+            // without new messages an unchanged message count means nothing has been expunged either
+            boolean sequenceUnchanged = uidNext > 0 && this.uidNext == uidNext && this.messageCount == messageCount;
+            boolean flagsUnchanged = highestModSeq > 0 && this.highestModSeq == highestModSeq;
+
+            if (!sequenceUnchanged && !uids.isEmpty()) {
+                cache.resize(this, -UID_SIZE * uids.size());
+                uids.clear();
+            }
+
+            this.uidNext = uidNext;
+            this.messageCount = messageCount;
+            this.highestModSeq = highestModSeq;
+
+            return sequenceUnchanged && flagsUnchanged;
+        }
+
+        public synchronized Long getUid(int messageNumber) {
+            return uids.get(messageNumber);
+        }
+
+        public synchronized void putUid(int messageNumber, long uid) {
+            if (uids.put(messageNumber, uid) == null) {
+                cache.resize(this, UID_SIZE);
+            }
+        }
+
+        /**
+         * Returns the order computed for the given sort if no message was added or expunged since. Orders depending on
+         * flags are only returned if the flags did not change either, which requires CONDSTORE. Without CONDSTORE
+         * there is no way to notice flag changes of other clients, so such orders are computed again for every page.
+         * Without SORT this costs a fetch of the UIDs and flags of the folder, envelopes are taken from this cache.
+         */
+        public synchronized MessageSorter.Order getOrder(String sort, long uidNext, int messageCount, long highestModSeq) {
+            SortedOrder cached = orders.get(sort);
+
+            if (cached == null || uidNext <= 0 || cached.uidNext != uidNext || cached.messageCount != messageCount) {
+                return null;
+            }
+            if (cached.order.dependsOnFlags() && (highestModSeq <= 0 || cached.highestModSeq != highestModSeq)) {
+                return null;
+            }
+
+            return cached.order;
+        }
+
+        public synchronized void putOrder(String sort, MessageSorter.Order order, long uidNext, int messageCount, long highestModSeq) {
+            SortedOrder previous = orders.put(sort, new SortedOrder(order, uidNext, messageCount, highestModSeq));
+            long delta = ORDER_SIZE + order.estimateSize();
+
+            if (previous != null) {
+                delta -= ORDER_SIZE + previous.order.estimateSize();
+            }
+
+            Iterator<SortedOrder> iterator = orders.values().iterator();
+
+            while (orders.size() > MAX_ORDERS && iterator.hasNext()) {
+                delta -= ORDER_SIZE + iterator.next().order.estimateSize();
+                iterator.remove();
+            }
+
+            cache.resize(this, delta);
+        }
+    }
+
+    private static final class SortedOrder {
+        private final MessageSorter.Order order;
+        private final long uidNext;
+        private final int messageCount;
+        private final long highestModSeq;
+
+        private SortedOrder(MessageSorter.Order order, long uidNext, int messageCount, long highestModSeq) {
+            this.order = order;
+            this.uidNext = uidNext;
+            this.messageCount = messageCount;
+            this.highestModSeq = highestModSeq;
+        }
+    }
+
+    private static final class Entry {
+        private final MailMessage message;
+        private final long size;
+        private long lastUsed;
+
+        private Entry(MailMessage message) {
+            this.message = message;
+            this.size = estimateSize(message);
+        }
+    }
+
+    private static final class Key {
+        private final String folder;
+        private final long uidValidity;
+        private final long uid;
+
+        private Key(String folder, long uidValidity, long uid) {
+            this.folder = folder;
+            this.uidValidity = uidValidity;
+            this.uid = uid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return uidValidity == key.uidValidity && uid == key.uid && folder.equals(key.folder);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = folder.hashCode();
+            result = 31 * result + (int) (uidValidity ^ (uidValidity >>> 32));
+            return 31 * result + (int) (uid ^ (uid >>> 32));
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package org.minig.server.service.impl;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.SortTerm;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import org.minig.server.MailMessage;
+import org.minig.server.service.MessageSort;
+
+import javax.mail.Address;
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import javax.mail.internet.InternetAddress;
+import javax.mail.search.FlagTerm;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Computes the order of all messages of a folder for a {@link MessageSort}. Only message numbers are transferred if
+ * the server supports SORT or THREAD=REFERENCES. Otherwise the messages are sorted here, threads are then built by
+ * base subject like THREAD=ORDEREDSUBJECT does. Date, sender and subject are taken from the
+ * {@link MessageOverviewCache} if given, so only envelopes of messages missing there are fetched.
+ *
+ * @author Kamill Sokol
+ */
+final class MessageSorter {
+
+    private static final Pattern SUBJECT_PREFIX = Pattern.compile("^(\\s*(re|fwd?)\\s*(\\[\\d+\\])?\\s*:|\\s*\\[[^\\]]*\\])+");
+    private static final Pattern SUBJECT_SUFFIX = Pattern.compile("(\\s*\\(fwd\\))+\\s*$");
+
+    private MessageSorter() {}
+
+    static Order sort(Folder folder, MessageSort sort, MessageOverviewCache overviews) throws MessagingException {
+        if (folder instanceof IMAPFolder) {
+            IMAPFolder imapFolder = (IMAPFolder) folder;
+            IMAPStore store = (IMAPStore) imapFolder.getStore();
+
+            if (sort.isThreaded() && store.hasCapability("THREAD=REFERENCES")) {
+                return Order.threads(newestFirst(serverThreads(imapFolder)), false);
+            }
+            if (!sort.isThreaded() && store.hasCapability("SORT") && canServerSort(sort)) {
+                return serverSort(imapFolder, sort);
+            }
+        }
+
+        Message[] messages = folder.getMessages();
+        MailMessage[] cached = new MailMessage[messages.length];
+
+        if (overviews != null && folder instanceof UIDFolder) {
+            fetchUncached((UIDFolder) folder, messages, sort, overviews, cached);
+        } else {
+            folder.fetch(messages, profile(sort, true));
+        }
+
+        List<SortKey> keys = new ArrayList<>(messages.length);
+
+        for (int i = 0; i < messages.length; i++) {
+            keys.add(SortKey.of(i + 1, messages[i], cached[i], sort));
+        }
+
+        if (sort.isThreaded()) {
+            return Order.threads(newestFirst(subjectThreads(keys)), false);
+        }
+
+        return Order.flat(localSort(keys, sort.getTerms()), sort.contains(MessageSort.Key.FLAGGED));
+    }
+
+    /**
+     * Parses the text following {@code THREAD} in a THREAD response into threads of message numbers. Nested
+     * branches are flattened depth first.
+     */
+    static List<int[]> parseThreads(String response) {
+        List<int[]> threads = new ArrayList<>();
+        List<Integer> current = new ArrayList<>();
+        int depth = 0;
+        int number = -1;
+
+        for (int i = 0; i < response.length(); i++) {
+            char c = response.charAt(i);
+
+            if (Character.isDigit(c)) {
+                number = (number < 0 ? 0 : number * 10) + (c - '0');
+                continue;
+            }
+
+            if (number >= 0) {
+                current.add(number);
+                number = -1;
+            }
+
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+
+                if (depth == 0 && !current.isEmpty()) {
+                    threads.add(toArray(current));
+                    current.clear();
+                }
+            }
+        }
+
+        return threads;
+    }
+
+    /**
+     * Strips reply and forward markers and list tags, see RFC 5256 base subject.
+     */
+    static String baseSubject(String subject) {
+        if (subject == null) {
+            return "";
+        }
+
+        String base = subject.toLowerCase(Locale.ENGLISH);
+        base = SUBJECT_SUFFIX.matcher(base).replaceFirst("");
+        base = SUBJECT_PREFIX.matcher(base).replaceFirst("");
+        return base.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Groups messages by base subject. Messages of a thread are ordered by date, threads by the date of their first
+     * message.
+     */
+    static List<int[]> subjectThreads(List<SortKey> keys) {
+        List<SortKey> byDate = new ArrayList<>(keys);
+        Collections.sort(byDate, comparator(Collections.singletonList(new MessageSort.Term(MessageSort.Key.DATE, false))));
+        Map<String, List<Integer>> threads = new LinkedHashMap<>();
+
+        for (SortKey key : byDate) {
+            List<Integer> thread = threads.get(key.baseSubject);
+
+            if (thread == null) {
+                thread = new ArrayList<>();
+                threads.put(key.baseSubject, thread);
+            }
+
+            thread.add(key.number);
+        }
+
+        List<int[]> result = new ArrayList<>(threads.size());
+
+        for (List<Integer> thread : threads.values()) {
+            result.add(toArray(thread));
+        }
+
+        return result;
+    }
+
+    static int[] localSort(List<SortKey> keys, List<MessageSort.Term> terms) {
+        List<SortKey> sorted = new ArrayList<>(keys);
+        Collections.sort(sorted, comparator(terms));
+        int[] numbers = new int[sorted.size()];
+
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = sorted.get(i).number;
+        }
+
+        return numbers;
+    }
+
+    private static boolean canServerSort(MessageSort sort) {
+        List<MessageSort.Term> terms = sort.getTerms();
+
+        for (int i = 1; i < terms.size(); i++) {
+            if (terms.get(i).getKey() == MessageSort.Key.FLAGGED) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * SORT has no key for flags. A leading flagged key is applied by splitting the server sorted messages with SEARCH
+     * FLAGGED.
+     */
+    private static Order serverSort(IMAPFolder folder, MessageSort sort) throws MessagingException {
+        List<MessageSort.Term> terms = sort.getTerms();
+        MessageSort.Term flagged = terms.get(0).getKey() == MessageSort.Key.FLAGGED ? terms.get(0) : null;
+        List<MessageSort.Term> rest = flagged != null ? terms.subList(1, terms.size()) : terms;
+
+        Message[] sorted = rest.isEmpty() ? folder.getMessages() : folder.getSortedMessages(sortTerms(rest));
+        int[] numbers = new int[sorted.length];
+
+        if (flagged == null) {
+            for (int i = 0; i < sorted.length; i++) {
+                numbers[i] = sorted[i].getMessageNumber();
+            }
+            return Order.flat(numbers, false);
+        }
+
+        Set<Integer> flaggedNumbers = new HashSet<>();
+
+        for (Message message : folder.search(new FlagTerm(new Flags(Flags.Flag.FLAGGED), true))) {
+            flaggedNumbers.add(message.getMessageNumber());
+        }
+
+        int index = 0;
+
+        for (boolean first : new boolean[] { true, false }) {
+            // ascending puts unflagged messages first
+            boolean wanted = first == flagged.isReverse();
+
+            for (Message message : sorted) {
+                if (flaggedNumbers.contains(message.getMessageNumber()) == wanted) {
+                    numbers[index++] = message.getMessageNumber();
+                }
+            }
+        }
+
+        return Order.flat(numbers, true);
+    }
+
+    private static SortTerm[] sortTerms(List<MessageSort.Term> terms) {
+        List<SortTerm> sortTerms = new ArrayList<>();
+
+        for (MessageSort.Term term : terms) {
+            if (term.isReverse()) {
+                sortTerms.add(SortTerm.REVERSE);
+            }
+
+            switch (term.getKey()) {
+                case DATE:
+                    sortTerms.add(SortTerm.DATE);
+                    break;
+                case FROM:
+                    sortTerms.add(SortTerm.FROM);
+                    break;
+                case SUBJECT:
+                    sortTerms.add(SortTerm.SUBJECT);
+                    break;
+                case SIZE:
+                    sortTerms.add(SortTerm.SIZE);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported sort key " + term.getKey());
+            }
+        }
+
+        return sortTerms.toArray(new SortTerm[sortTerms.size()]);
+    }
+
+    private static List<int[]> serverThreads(IMAPFolder folder) throws MessagingException {
+        String threads = (String) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                Response[] responses = protocol.command("THREAD REFERENCES UTF-8 ALL", null);
+                StringBuilder result = new StringBuilder();
+
+                for (Response response : responses) {
+                    if (response instanceof IMAPResponse && ((IMAPResponse) response).keyEquals("THREAD")) {
+                        result.append(response.getRest());
+                    }
+                }
+
+                protocol.notifyResponseHandlers(responses);
+                protocol.handleResult(responses[responses.length - 1]);
+                return result.toString();
+            }
+        });
+
+        return parseThreads(threads);
+    }
+
+    private static List<int[]> newestFirst(List<int[]> threads) {
+        List<int[]> reversed = new ArrayList<>(threads);
+        Collections.reverse(reversed);
+        return reversed;
+    }
+
+    /**
+     * Fills {@code cached} with the overviews of the messages found in the cache and fetches envelopes for the others
+     * only. Sizes and flags are always fetched, as the cache has no sizes and its flags may be outdated.
+     */
+    private static void fetchUncached(UIDFolder folder, Message[] messages, MessageSort sort,
+            MessageOverviewCache overviews, MailMessage[] cached) throws MessagingException {
+        Folder mailFolder = (Folder) folder;
+        String name = mailFolder.getFullName();
+        long uidValidity = folder.getUIDValidity();
+
+        FetchProfile fp = profile(sort, false);
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        mailFolder.fetch(messages, fp);
+
+        List<Message> missing = new ArrayList<>();
+
+        for (int i = 0; i < messages.length; i++) {
+            cached[i] = overviews.get(name, uidValidity, folder.getUID(messages[i]));
+
+            if (cached[i] == null) {
+                missing.add(messages[i]);
+            }
+        }
+
+        if (!missing.isEmpty() && needsEnvelope(sort)) {
+            mailFolder.fetch(missing.toArray(new Message[missing.size()]), profile(sort, true));
+        }
+    }
+
+    private static boolean needsEnvelope(MessageSort sort) {
+        return sort.isThreaded() || sort.contains(MessageSort.Key.DATE) || sort.contains(MessageSort.Key.FROM)
+                || sort.contains(MessageSort.Key.SUBJECT);
+    }
+
+    private static FetchProfile profile(MessageSort sort, boolean envelope) {
+        FetchProfile fp = new FetchProfile();
+
+        if (envelope && needsEnvelope(sort)) {
+            fp.add(FetchProfile.Item.ENVELOPE);
+        }
+        if (sort.contains(MessageSort.Key.SIZE)) {
+            fp.add(FetchProfile.Item.SIZE);
+        }
+        if (sort.contains(MessageSort.Key.FLAGGED)) {
+            fp.add(FetchProfile.Item.FLAGS);
+        }
+
+        return fp;
+    }
+
+    private static Comparator<SortKey> comparator(final List<MessageSort.Term> terms) {
+        return new Comparator<SortKey>() {
+            @Override
+            public int compare(SortKey a, SortKey b) {
+                for (MessageSort.Term term : terms) {
+                    int result = compareBy(term.getKey(), a, b);
+
+                    if (result != 0) {
+                        return term.isReverse() ? -result : result;
+                    }
+                }
+
+                return Integer.compare(a.number, b.number);
+            }
+        };
+    }
+
+    private static int compareBy(MessageSort.Key key, SortKey a, SortKey b) {
+        switch (key) {
+            case DATE:
+                return Long.compare(a.date, b.date);
+            case FROM:
+                return a.from.compareTo(b.from);
+            case SUBJECT:
+                return a.baseSubject.compareTo(b.baseSubject);
+            case SIZE:
+                return Integer.compare(a.size, b.size);
+            case FLAGGED:
+                return Boolean.compare(a.flagged, b.flagged);
+            default:
+                return 0;
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+
+        return array;
+    }
+
+    /**
+     * Sort relevant values of a message. Values that were not fetched are read lazily by javax.mail, one round trip per
+     * message, so only values of the sort keys are read.
+     */
+    static final class SortKey {
+        private final int number;
+        private final long date;
+        private final String from;
+        private final String baseSubject;
+        private final int size;
+        private final boolean flagged;
+
+        SortKey(int number, long date, String from, String subject, int size, boolean flagged) {
+            this.number = number;
+            this.date = date;
+            this.from = from != null ? from.toLowerCase(Locale.ENGLISH) : "";
+            this.baseSubject = baseSubject(subject);
+            this.size = size;
+            this.flagged = flagged;
+        }
+
+        /**
+         * Reads only the values the sort compares, taking date, sender and subject from the overview if there is one.
+         */
+        private static SortKey of(int number, Message message, MailMessage overview, MessageSort sort) throws MessagingException {
+            long date = 0;
+            String from = null;
+            String subject = null;
+
+            if (overview != null) {
+                date = overview.getDate() != null ? overview.getDate().getTime() : 0;
+                from = overview.getSender() != null ? overview.getSender().getEmail() : null;
+                subject = overview.getSubject();
+            } else if (needsEnvelope(sort)) {
+                date = date(message);
+                from = from(message);
+                subject = message.getSubject();
+            }
+
+            int size = sort.contains(MessageSort.Key.SIZE) ? message.getSize() : 0;
+            boolean flagged = sort.contains(MessageSort.Key.FLAGGED) && message.isSet(Flags.Flag.FLAGGED);
+
+            return new SortKey(number, date, from, subject, size, flagged);
+        }
+
+        private static long date(Message message) throws MessagingException {
+            return message.getSentDate() != null ? message.getSentDate().getTime() : 0;
+        }
+
+        private static String from(Message message) throws MessagingException {
+            Address[] from = message.getFrom();
+
+            if (from == null || from.length == 0) {
+                return null;
+            }
+
+            return from[0] instanceof InternetAddress ? ((InternetAddress) from[0]).getAddress() : from[0].toString();
+        }
+    }
+
+    /**
+     * Message numbers of a folder in display order, grouped into pages of whole threads in thread mode.
+     */
+    static final class Order {
+        private final int[] numbers;
+        private final int[] starts;
+        private final boolean dependsOnFlags;
+
+        private Order(int[] numbers, int[] starts, boolean dependsOnFlags) {
+            this.numbers = numbers;
+            this.starts = starts;
+            this.dependsOnFlags = dependsOnFlags;
+        }
+
+        static Order flat(int[] numbers, boolean dependsOnFlags) {
+            return new Order(numbers, null, dependsOnFlags);
+        }
+
+        static Order threads(List<int[]> threads, boolean dependsOnFlags) {
+            int count = 0;
+
+            for (int[] thread : threads) {
+                count += thread.length;
+            }
+
+            int[] numbers = new int[count];
+            int[] starts = new int[threads.size()];
+            int index = 0;
+
+            for (int i = 0; i < starts.length; i++) {
+                starts[i] = index;
+                System.arraycopy(threads.get(i), 0, numbers, index, threads.get(i).length);
+                index += threads.get(i).length;
+            }
+
+            return new Order(numbers, starts, dependsOnFlags);
+        }
+
+        /**
+         * Rough estimate of the heap used by the order.
+         */
+        long estimateSize() {
+            return 32 + 4L * numbers.length + (starts != null ? 16 + 4L * starts.length : 0);
+        }
+
+        /**
+         * @return number of messages or, in thread mode, number of threads
+         */
+        int size() {
+            return starts != null ? starts.length : numbers.length;
+        }
+
+        boolean isThreaded() {
+            return starts != null;
+        }
+
+        boolean dependsOnFlags() {
+            return dependsOnFlags;
+        }
+
+        /**
+         * @return message numbers of the entries {@code from} to {@code to}, exclusive, each entry being a single message
+         * or a thread
+         */
+        List<int[]> slice(int from, int to) {
+            List<int[]> slice = new ArrayList<>(Math.max(to - from, 0));
+
+            for (int i = from; i < to; i++) {
+                int start = starts != null ? starts[i] : i;
+                int end = starts == null ? i + 1 : i + 1 < starts.length ? starts[i + 1] : numbers.length;
+                slice.add(Arrays.copyOfRange(numbers, start, end));
+            }
+
+            return slice;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package org.minig.server.service.impl;
+
+import com.sun.mail.iap.ByteArray;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import org.apache.commons.io.IOUtils;
+import org.minig.server.MailAttachment;
+import org.minig.server.service.AttachmentContent;
+import org.minig.util.PrivateFiles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.MimePart;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+
+/**
+ * {@link AttachmentContent} backed by a body part. Parts of IMAP messages fetch their section in chunks while the
+ * payload is written, so memory usage does not depend on the size of the attachment.
+ *
+ * Ranges of identity encoded IMAP parts are fetched with partial FETCH. Ranges of all other parts are served from a
+ * decoded copy in a temporary file readable by the owner only, see {@link PrivateFiles#createTempFile(String, String)}.
+ *
+ * @author Kamill Sokol
+ */
+final class PartAttachmentContent implements AttachmentContent {
+
+    private static final Logger log = LoggerFactory.getLogger(PartAttachmentContent.class);
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final MailAttachment attachment;
+    private final Message message;
+    private final Part part;
+    private final String section;
+    private final String etag;
+    private final long lastModified;
+    private final boolean identityEncoded;
+    private long size;
+    private File spool;
+
+    PartAttachmentContent(MailAttachment attachment, Message message, Part part, String section, String etag) throws MessagingException {
+        this.attachment = attachment;
+        this.message = message;
+        this.part = part;
+        this.section = section;
+        this.etag = etag;
+
+        Date receivedDate = message.getReceivedDate();
+        this.lastModified = receivedDate != null ? receivedDate.getTime() : -1;
+
+        // the decoded size of base64 and quoted-printable parts is only known after decoding
+        this.identityEncoded = isIdentityEncoded(part);
+        this.size = identityEncoded ? part.getSize() : -1;
+    }
+
+    @Override
+    public MailAttachment getAttachment() {
+        return attachment;
+    }
+
+    @Override
+    public String getSection() {
+        return section;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public long computeSize() throws IOException {
+        if (size < 0) {
+            File file = PrivateFiles.createTempFile("minig-attachment", ".tmp");
+
+            try (OutputStream output = PrivateFiles.newOutputStream(file, false)) {
+                writeTo(output);
+            } catch (IOException | RuntimeException e) {
+                delete(file);
+                throw e;
+            }
+
+            spool = file;
+            size = file.length();
+        }
+
+        return size;
+    }
+
+    @Override
+    public String getETag() {
+        return etag;
+    }
+
+    @Override
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public void writeTo(OutputStream output) throws IOException {
+        try (InputStream input = openStream()) {
+            IOUtils.copyLarge(input, output, new byte[BUFFER_SIZE]);
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream output, long offset, long length) throws IOException {
+        if (spool == null && identityEncoded && message.getFolder() instanceof IMAPFolder) {
+            fetchPartial(output, offset, length);
+            return;
+        }
+
+        if (spool == null) {
+            computeSize();
+        }
+
+        try (InputStream input = openStream()) {
+            IOUtils.copyLarge(input, output, offset, length, new byte[BUFFER_SIZE]);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (spool != null) {
+            delete(spool);
+            spool = null;
+        }
+    }
+
+    private InputStream openStream() throws IOException {
+        if (spool != null) {
+            return new FileInputStream(spool);
+        }
+
+        try {
+            return part.getInputStream();
+        } catch (MessagingException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private void fetchPartial(final OutputStream output, long offset, long length) throws IOException {
+        IMAPFolder folder = (IMAPFolder) message.getFolder();
+        final int messageNumber = message.getMessageNumber();
+        long position = offset;
+        long remaining = length;
+
+        try {
+            while (remaining > 0) {
+                final int start = (int) position;
+                final int count = (int) Math.min(BUFFER_SIZE, remaining);
+
+                ByteArray chunk = (ByteArray) folder.doCommand(new IMAPFolder.ProtocolCommand() {
+                    @Override
+                    public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                        BODY body = protocol.peekBody(messageNumber, section, start, count);
+                        return body != null ? body.getByteArray() : null;
+                    }
+                });
+
+                if (chunk == null || chunk.getCount() == 0) {
+                    break;
+                }
+
+                output.write(chunk.getBytes(), chunk.getStart(), chunk.getCount());
+                position += chunk.getCount();
+                remaining -= chunk.getCount();
+            }
+        } catch (MessagingException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            log.debug("can not delete {}", file);
+        }
+    }
+
+    static boolean isIdentityEncoded(Part part) throws MessagingException {
+        String encoding = part instanceof MimePart ? ((MimePart) part).getEncoding() : null;
+
+        return encoding == null
+                || "7bit".equalsIgnoreCase(encoding)
+                || "8bit".equalsIgnoreCase(encoding)
+                || "binary".equalsIgnoreCase(encoding);
+    }
+}
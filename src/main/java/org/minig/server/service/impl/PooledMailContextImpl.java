@@ -0,0 +1,118 @@
+package org.minig.server.service.impl;
+
+import org.minig.server.service.NotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.annotation.Scope;
+import org.springframework.context.annotation.ScopedProxyMode;
+import org.springframework.stereotype.Component;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import javax.mail.ReadOnlyFolderException;
+import javax.mail.Session;
+import javax.mail.Store;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Request scoped {@link MailContext} that leases its {@link Store} from {@link MailStorePool} instead of connecting
+ * and authenticating on every request.
+ *
+ * Opened folders are cached for the lifetime of the request. Since any caller of the request may write, folders are
+ * always opened read-write unless the server only grants read-only access. Reopening a cached folder would invalidate
+ * the messages already handed out.
+ *
+ * @author Kamill Sokol
+ */
+@Component
+@Scope(value = "request", proxyMode = ScopedProxyMode.TARGET_CLASS)
+@Profile({"dev", "prod"})
+public class PooledMailContextImpl extends SimpleMailContextImpl {
+
+    private static final Logger log = LoggerFactory.getLogger(PooledMailContextImpl.class);
+
+    private final Map<String, Folder> openFolders = new ConcurrentHashMap<>();
+
+    @Autowired
+    private MailStorePool mailStorePool;
+
+    @Override
+    public Folder getFolder(String path, boolean writeMode) {
+        if (path != null && writeMode) {
+            try {
+                return openFolder(path, Folder.READ_WRITE);
+            } catch (NotFoundException e) {
+                // callers of getFolder() check for existence on their own
+            }
+        }
+
+        return super.getFolder(path, false);
+    }
+
+    @Override
+    public synchronized Folder openFolder(String path, int mode) {
+        Folder folder = openFolders.get(path);
+
+        if (folder == null || !folder.isOpen()) {
+            try {
+                folder = super.openFolder(path, Folder.READ_WRITE);
+            } catch (RuntimeException e) {
+                if (!(e.getCause() instanceof ReadOnlyFolderException)) {
+                    throw e;
+                }
+
+                log.debug("{} is read-only", path);
+                folder = super.openFolder(path, Folder.READ_ONLY);
+            }
+
+            openFolders.put(path, folder);
+        }
+
+        if (mode == Folder.READ_WRITE && folder.getMode() != Folder.READ_WRITE) {
+            throw new RuntimeException(path + " is read-only");
+        }
+
+        return folder;
+    }
+
+    @Override
+    public void expunge(Folder folder) {
+        try {
+            if (folder.isOpen() && folder.getMode() == Folder.READ_WRITE) {
+                folder.expunge();
+            } else {
+                openFolder(folder.getFullName(), Folder.READ_WRITE).expunge();
+            }
+        } catch (MessagingException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        openFolders.clear();
+        super.destroy();
+    }
+
+    @Override
+    protected Session createSession() {
+        return mailStorePool.getSession(getAuthentication());
+    }
+
+    @Override
+    protected Store connectStore(Session session) {
+        return mailStorePool.borrow(getAuthentication());
+    }
+
+    @Override
+    protected void releaseStore(Store store, boolean broken) {
+        if (broken) {
+            mailStorePool.invalidate(store);
+        } else {
+            mailStorePool.release(store);
+        }
+    }
+}
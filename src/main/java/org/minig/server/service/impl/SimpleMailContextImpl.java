@@ -11,23 +11,21 @@ import javax.mail.PasswordAuthentication;
 import javax.mail.Session;
 import javax.mail.Store;
 
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.ResyncData;
 import org.minig.MailAuthentication;
 import org.minig.server.service.NotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.annotation.Profile;
-import org.springframework.context.annotation.Scope;
-import org.springframework.context.annotation.ScopedProxyMode;
-import org.springframework.stereotype.Component;
 
 /**
+ * Opens a new {@link Session} and {@link Store} on first use and closes both in {@link #destroy()}.
+ *
  * @author Kamill Sokol
  */
-@Component
-@Scope(value = "request", proxyMode = ScopedProxyMode.TARGET_CLASS)
-@Profile({"dev", "prod"})
 public class SimpleMailContextImpl implements MailContext, DisposableBean {
 
     private static final Logger log = LoggerFactory.getLogger(SimpleMailContextImpl.class);
@@ -38,6 +36,7 @@ public class SimpleMailContextImpl implements MailContext, DisposableBean {
     private Deque<Folder> trackFetchedFolder = new ConcurrentLinkedDeque<Folder>();
     private Session session;
     private Store store;
+    private boolean storeBroken;
 
     @Override
     public Session getSession() {
@@ -87,13 +86,18 @@ public class SimpleMailContextImpl implements MailContext, DisposableBean {
 
     @Override
     public Folder openFolder(String path) {
+        return openFolder(path, Folder.READ_WRITE);
+    }
+
+    @Override
+    public Folder openFolder(String path, int mode) {
         checkSession();
 
         try {
             Folder folder = store.getFolder(path);
 
             if (folder != null && folder.exists()) {
-                folder.open(Folder.READ_WRITE);
+                open(folder, mode);
                 trackFetchedFolder.addLast(folder);
                 return folder;
             }
@@ -104,6 +108,15 @@ public class SimpleMailContextImpl implements MailContext, DisposableBean {
         throw new NotFoundException();
     }
 
+    @Override
+    public void expunge(Folder folder) {
+        try {
+            folder.close(true);
+        } catch (MessagingException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
     @Override
     public Folder getFolder(String path) {
         return getFolder(path, true);
@@ -170,13 +183,16 @@ public class SimpleMailContextImpl implements MailContext, DisposableBean {
                 try {
                     folderToBeClosed.close(true);
                 } catch (Exception e) {
+                    storeBroken = true;
                     log.error("can not close folder. reason " + e.getCause());
                 }
             }
         }
 
         if (this.store != null) {
-            this.store.close();
+            releaseStore(this.store, storeBroken);
+            this.store = null;
+            this.storeBroken = false;
         }
 
         if (this.session != null) {
@@ -186,21 +202,54 @@ public class SimpleMailContextImpl implements MailContext, DisposableBean {
         trackFetchedFolder.clear();
     }
 
+    /**
+     * Opens the folder and enables CONDSTORE if the server supports it, so that {@link IMAPFolder#getHighestModSeq()}
+     * is known without an additional STATUS command.
+     */
+    protected static void open(Folder folder, int mode) throws MessagingException {
+        if (folder instanceof IMAPFolder && ((IMAPStore) folder.getStore()).hasCapability("CONDSTORE")) {
+            ((IMAPFolder) folder).open(mode, ResyncData.CONDSTORE);
+        } else {
+            folder.open(mode);
+        }
+    }
+
+    protected MailAuthentication getAuthentication() {
+        return authentication;
+    }
+
+    protected Session createSession() {
+        Properties javaMailProperties = new JavaMailPropertyBuilder(this.authentication.getDomain()).build();
+
+        return Session.getInstance(javaMailProperties, new Authenticator() {
+            protected PasswordAuthentication getPasswordAuthentication() {
+                return new PasswordAuthentication(authentication.getUserMail(), authentication.getPassword());
+            }
+        });
+    }
+
+    protected Store connectStore(Session session) throws MessagingException {
+        Store store = session.getStore();
+        store.connect(authentication.getDomain(), authentication.getUserMail(), authentication.getPassword());
+        return store;
+    }
+
+    /**
+     * @param broken true if an error occurred while closing the folders of this store
+     */
+    protected void releaseStore(Store store, boolean broken) throws MessagingException {
+        store.close();
+    }
+
     private void checkSession() {
         if (this.session == null) {
             synchronized (this) {
                 if (this.session == null) {
-                    Properties javaMailProperties = new JavaMailPropertyBuilder(this.authentication.getDomain()).build();
-
-                    this.session = Session.getInstance(javaMailProperties, new Authenticator() {
-                        protected PasswordAuthentication getPasswordAuthentication() {
-                            return new PasswordAuthentication(authentication.getUserMail(), authentication.getPassword());
-                        }
-                    });
+                    Session newSession = createSession();
 
                     try {
-                        this.store = this.session.getStore();
-                        store.connect(authentication.getDomain(), authentication.getUserMail(), authentication.getPassword());
+                        this.store = connectStore(newSession);
+                        this.session = newSession;
                     } catch (Exception e) {
                         throw new RuntimeException(e.getMessage(), e);
                     }
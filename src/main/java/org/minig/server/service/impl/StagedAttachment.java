@@ -0,0 +1,140 @@
+package org.minig.server.service.impl;
+
+import org.apache.commons.io.IOUtils;
+import org.minig.server.MailAttachment;
+import org.minig.server.service.AttachmentContent;
+import org.minig.server.service.CompositeAttachmentId;
+import org.minig.server.service.CompositeId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.activation.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Attachment of a draft that has been uploaded but not yet written to the mail store. The payload is kept on the heap
+ * or in a temporary file.
+ *
+ * @author Kamill Sokol
+ */
+final class StagedAttachment implements DataSource {
+
+    private static final Logger log = LoggerFactory.getLogger(StagedAttachment.class);
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final String name;
+    private final String contentType;
+    private final byte[] bytes;
+    private final File file;
+    private final long size;
+    private final long stagedAt;
+
+    StagedAttachment(String name, String contentType, byte[] bytes, File file, long size, long stagedAt) {
+        this.name = name;
+        this.contentType = contentType;
+        this.bytes = bytes;
+        this.file = file;
+        this.size = size;
+        this.stagedAt = stagedAt;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return bytes != null ? new ByteArrayInputStream(bytes) : new FileInputStream(file);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("read only");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getStagedAt() {
+        return stagedAt;
+    }
+
+    boolean isOnDisk() {
+        return file != null;
+    }
+
+    MailAttachment toMailAttachment(CompositeId draft) {
+        MailAttachment attachment = new MailAttachment();
+        attachment.setCompositeId(new CompositeAttachmentId(draft.getFolder(), draft.getMessageId(), name));
+        attachment.setMime(contentType.split(";")[0].trim());
+        return attachment;
+    }
+
+    AttachmentContent toContent(final CompositeId draft) {
+        return new AttachmentContent() {
+            @Override
+            public MailAttachment getAttachment() {
+                return toMailAttachment(draft);
+            }
+
+            @Override
+            public String getSection() {
+                return null;
+            }
+
+            @Override
+            public long getSize() {
+                return size;
+            }
+
+            @Override
+            public long computeSize() {
+                return size;
+            }
+
+            @Override
+            public String getETag() {
+                return null;
+            }
+
+            @Override
+            public long getLastModified() {
+                return stagedAt;
+            }
+
+            @Override
+            public void writeTo(OutputStream output) throws IOException {
+                writeTo(output, 0, size);
+            }
+
+            @Override
+            public void writeTo(OutputStream output, long offset, long length) throws IOException {
+                try (InputStream input = getInputStream()) {
+                    IOUtils.copyLarge(input, output, offset, length, new byte[BUFFER_SIZE]);
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    void dispose() {
+        if (file != null && !file.delete()) {
+            log.debug("can not delete {}", file);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.minig.server.service.impl;
+
+import org.minig.MailAuthentication;
+import org.minig.server.service.SyncToken;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.mail.Flags;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the UIDs and flags of a folder as they were when a sync token has been handed out. Used to compute changes for
+ * servers without QRESYNC.
+ *
+ * The number of remembered UIDs over all users is bounded by {@link #setMaxEntries(int)}. Least recently used
+ * snapshots are evicted first.
+ *
+ * @author Kamill Sokol
+ */
+@Component
+class SyncStateCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 500000;
+
+    private final LinkedHashMap<String, Map<Long, Flags>> snapshots = new LinkedHashMap<>(64, 0.75f, true);
+
+    @Autowired
+    private MailAuthentication authentication;
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private int entries;
+
+    /**
+     * @return UIDs and flags at the given state or {@code null} if unknown
+     */
+    public synchronized Map<Long, Flags> get(String folder, SyncToken token) {
+        return snapshots.get(key(folder, token));
+    }
+
+    public synchronized void put(String folder, SyncToken token, Map<Long, Flags> snapshot) {
+        Map<Long, Flags> previous = snapshots.put(key(folder, token), snapshot);
+
+        if (previous != null) {
+            entries -= previous.size();
+        }
+
+        entries += snapshot.size();
+        Iterator<Map<Long, Flags>> iterator = snapshots.values().iterator();
+
+        while (entries > maxEntries && iterator.hasNext()) {
+            entries -= iterator.next().size();
+            iterator.remove();
+        }
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    void setAuthentication(MailAuthentication authentication) {
+        this.authentication = authentication;
+    }
+
+    private String key(String folder, SyncToken token) {
+        return authentication.getEmailAddress() + "|" + folder + "|" + token;
+    }
+}
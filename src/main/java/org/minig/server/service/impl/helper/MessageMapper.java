@@ -1,18 +1,17 @@
 package org.minig.server.service.impl.helper;
 
 import org.apache.james.mime4j.dom.MessageBuilder;
-import org.apache.james.mime4j.dom.MessageWriter;
 import org.apache.james.mime4j.message.MessageImpl;
 import org.apache.james.mime4j.message.MessageServiceFactoryImpl;
 import org.minig.server.MailMessage;
 import org.minig.server.MailMessageAddress;
 import org.minig.server.MailMessageBody;
 import org.minig.server.service.CompositeAttachmentId;
+import org.minig.server.service.MessageFields;
 import org.minig.server.service.impl.MailContext;
-import org.minig.server.service.impl.helper.BodyConverter.BodyType;
 import org.minig.server.service.impl.helper.mime.Mime4jMessage;
+import org.minig.server.service.impl.helper.mime.Mime4jMessageFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.convert.ConversionService;
 import org.springframework.mail.javamail.JavaMailSenderImpl;
 import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Component;
@@ -22,22 +21,16 @@ import javax.mail.Flags;
 import javax.mail.Message;
 import javax.mail.Message.RecipientType;
 import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static org.springframework.core.convert.TypeDescriptor.collection;
-import static org.springframework.core.convert.TypeDescriptor.forObject;
-import static org.springframework.core.convert.TypeDescriptor.valueOf;
-
 /**
  * @author Kamill Sokol
  */
@@ -58,9 +51,15 @@ public class MessageMapper {
 
     private MailContext mailContext;
 
-    private ConversionService conversionService;
-
     public MailMessage convertShort(Message msg) {
+        return convertShort(msg, MessageFields.ALL);
+    }
+
+    /**
+     * Maps id, UID and the given fields only. Expects {@link org.minig.server.repository.mail.MailFetchProfile#overview(MessageFields)}
+     * to be fetched with the same fields.
+     */
+    public MailMessage convertShort(Message msg, MessageFields fields) {
         if (msg == null) {
             return new MailMessage();
         }
@@ -70,14 +69,61 @@ public class MessageMapper {
 
             setMessageId(cm, (MimeMessage) msg);
             setFolder(cm, msg);
-            setSender(cm, msg);
-            setSubject(cm, msg);
-            setDate(cm, msg);
-            setHighPriority(cm, msg);
+            setUid(cm, msg);
+
+            if (fields.contains(MessageFields.SENDER)) {
+                setSender(cm, msg);
+            }
+            if (fields.contains(MessageFields.SUBJECT)) {
+                setSubject(cm, msg);
+            }
+            if (fields.contains(MessageFields.DATE)) {
+                setDate(cm, msg);
+            }
+            if (fields.contains(MessageFields.HIGH_PRIORITY)) {
+                setHighPriority(cm, msg);
+            }
+            if (fields.containsAny(MessageFields.READ, MessageFields.STARRED, MessageFields.ANSWERED, MessageFields.DELETED)) {
+                setFlags(cm, msg);
+            }
+            if (fields.contains(MessageFields.ATTACHMENTS)) {
+                setAttachmentId(cm, msg, MessageStructure.outline(msg));
+            }
+            if (fields.contains(MessageFields.RECEIPT)) {
+                setReceipt(cm, msg);
+            }
+            if (fields.contains(MessageFields.ASK_FOR_DISPOSITION_NOTIFICATION)) {
+                setAskForDispositionNotification(cm, msg);
+            }
+            if (fields.contains(MessageFields.FORWARDED)) {
+                setForwarded(cm, msg);
+            }
+            if (fields.contains(MessageFields.MDN_SENT)) {
+                setMdnSent(cm, msg);
+            }
+
+            return cm;
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Maps id, UID and flags only. Expects {@link org.minig.server.repository.mail.MailFetchProfile#identity()} to be
+     * fetched.
+     */
+    public MailMessage convertFlags(Message msg) {
+        if (msg == null) {
+            return new MailMessage();
+        }
+
+        try {
+            MailMessage cm = new MailMessage();
+
+            setMessageId(cm, (MimeMessage) msg);
+            setFolder(cm, msg);
+            setUid(cm, msg);
             setFlags(cm, msg);
-            setAttachmentId(cm, msg);
-            setReceipt(cm, msg);
-            setAskForDispositionNotification(cm, msg);
             setForwarded(cm, msg);
             setMdnSent(cm, msg);
 
@@ -87,6 +133,24 @@ public class MessageMapper {
         }
     }
 
+    /**
+     * Replaces the flags of an already mapped message with the current flags of the given message.
+     */
+    public void updateFlags(MailMessage cm, Message msg) {
+        try {
+            cm.setRead(null);
+            cm.setAnswered(null);
+            cm.setStarred(null);
+            cm.setDeleted(null);
+
+            setFlags(cm, msg);
+            setForwarded(cm, msg);
+            setMdnSent(cm, msg);
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
     public MailMessage convertFull(Message msg) {
         if (msg == null) {
             return new MailMessage();
@@ -97,6 +161,7 @@ public class MessageMapper {
 
             setMessageId(cm, (MimeMessage) msg);
             setFolder(cm, msg);
+            setUid(cm, msg);
             setSender(cm, msg);
             setSubject(cm, msg);
             setDate(cm, msg);
@@ -105,8 +170,11 @@ public class MessageMapper {
             setFlags(cm, msg);
             setRecipients(cm, msg);
             setDispositionNotification(cm, msg);
-            setBody(cm, msg);
-            setAttachmentId(cm, msg);
+
+            MessageStructure structure = MessageStructure.of(msg);
+            setBody(cm, structure);
+            setAttachmentId(cm, msg, structure);
+
             setReceipt(cm, msg);
             setAskForDispositionNotification(cm, msg);
             setForwarded(cm, msg);
@@ -133,17 +201,7 @@ public class MessageMapper {
 	@Deprecated
     public Mime4jMessage toMessageImpl(Message msg) {
         try {
-            // TODO
-            MessageBuilder builder = messageServiceFactory.newMessageBuilder();
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-
-            msg.writeTo(output);
-
-            InputStream decodedInput = new ByteArrayInputStream((output).toByteArray());
-
-            MessageImpl parseMessage = (MessageImpl) builder.parseMessage(decodedInput);
-
-            return new Mime4jMessage(parseMessage);
+            return new Mime4jMessage(Mime4jMessageFactory.parse(msg));
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage(), e);
         }
@@ -152,17 +210,7 @@ public class MessageMapper {
     // TODO
     public MimeMessage toMimeMessage(Mime4jMessage msg) {
         try {
-            // TODO
-            MessageWriter newMessageWriter = messageServiceFactory.newMessageWriter();
-
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            newMessageWriter.writeMessage(msg.getMessage(), out);
-
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(out.toByteArray());
-
-            MimeMessage mimeMessage = new MimeMessage(mailContext.getSession(), byteArrayInputStream);
-
-            return mimeMessage;
+            return Mime4jMessageFactory.toMimeMessage(mailContext.getSession(), msg.getMessage());
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage(), e);
         }
@@ -178,6 +226,14 @@ public class MessageMapper {
         }
     }
 
+    private void setUid(MailMessage cm, Message msg) throws MessagingException {
+        if (msg.getFolder() instanceof UIDFolder) {
+            UIDFolder folder = (UIDFolder) msg.getFolder();
+            cm.setUidValidity(folder.getUIDValidity());
+            cm.setUid(folder.getUID(msg));
+        }
+    }
+
     private void setMailer(MailMessage cm, Message msg) throws MessagingException {
         String[] header = msg.getHeader("User-Agent");
 
@@ -328,19 +384,24 @@ public class MessageMapper {
         cm.setDispositionNotification(recipients);
     }
 
-    private void setBody(MailMessage cm, Message msg) throws MessagingException, IOException {
-        String text = (String) BodyConverter.get(msg, BodyType.TEXT);
-        String html = (String) BodyConverter.get(msg, BodyType.HTML);
+    private void setBody(MailMessage cm, MessageStructure structure) throws MessagingException, IOException {
         MailMessageBody b = new MailMessageBody();
 
-        b.setPlain(text);
-        b.setHtml(html);
+        b.setPlain(structure.getPlain());
+        b.setHtml(structure.getHtml());
         cm.setBody(b);
     }
 
-    private void setAttachmentId(MailMessage cm, Message msg) throws MessagingException, IOException {
-        List<CompositeAttachmentId> convert = (List<CompositeAttachmentId>) conversionService.convert(msg, forObject(msg), collection(List.class, valueOf(CompositeAttachmentId.class)));
-        cm.setAttachments(convert);
+    private void setAttachmentId(MailMessage cm, Message msg, MessageStructure structure) throws MessagingException {
+        List<CompositeAttachmentId> ids = new ArrayList<>();
+        String messageId = msg.getHeader("Message-ID")[0];
+        String folder = msg.getFolder().getFullName();
+
+        for (MessageStructure.Attachment attachment : structure.getAttachments()) {
+            ids.add(new CompositeAttachmentId(folder, messageId, attachment.getFileName()));
+        }
+
+        cm.setAttachments(ids);
     }
 
     private void setForwarded(MailMessage cm, Message msg) throws MessagingException {
@@ -571,9 +632,4 @@ public class MessageMapper {
     public void setMailContext(MailContext mailContext) {
         this.mailContext = mailContext;
     }
-
-    @Autowired
-    public void setConversionService(ConversionService conversionService) {
-        this.conversionService = conversionService;
-    }
 }
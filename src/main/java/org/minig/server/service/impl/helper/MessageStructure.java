@@ -0,0 +1,267 @@
+package org.minig.server.service.impl.helper;
+
+import org.apache.james.mime4j.codec.DecoderUtil;
+
+import javax.mail.BodyPart;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.ParseException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MIME structure of a message, collected in a single pass over the part tree: the text/plain and text/html leaves
+ * chosen for display, the listed attachments, inline parts and the IMAP section path of every part with a file name.
+ *
+ * Walking the structure only touches multipart containers. For IMAP messages those are built from BODYSTRUCTURE, so
+ * nothing but the chosen text leaves is fetched, and only once they are read. Attachments are never fetched here.
+ *
+ * @author Kamill Sokol
+ */
+public final class MessageStructure {
+
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+    private final boolean outline;
+    private Part plain;
+    private Part html;
+    private final List<Attachment> attachments = new ArrayList<>();
+    private final List<Inline> inlineParts = new ArrayList<>();
+    private final Map<String, Attachment> byFileName = new LinkedHashMap<>();
+
+    private MessageStructure(Message message, boolean outline) throws MessagingException, IOException {
+        this.outline = outline;
+        visit(message, "", !outline, !outline);
+    }
+
+    /**
+     * Expects {@link javax.mail.FetchProfile.Item#CONTENT_INFO} to be fetched for IMAP messages.
+     */
+    public static MessageStructure of(Message message) throws MessagingException, IOException {
+        return new MessageStructure(message, false);
+    }
+
+    /**
+     * Collects attachments only, e.g. for folder listings. Text leaves and inline parts are skipped. The only leaves
+     * whose {@link Part#getContent()} is read are message/rfc822 parts, which IMAP builds from the envelope in the
+     * BODYSTRUCTURE. So an IMAP message with {@link javax.mail.FetchProfile.Item#CONTENT_INFO} fetched is mapped
+     * without downloading any content.
+     */
+    public static MessageStructure outline(Message message) throws MessagingException, IOException {
+        return new MessageStructure(message, true);
+    }
+
+    /**
+     * @return content of the text/plain leaf or {@code null}
+     */
+    public String getPlain() throws MessagingException, IOException {
+        return plain != null ? (String) plain.getContent() : null;
+    }
+
+    /**
+     * @return content of the text/html leaf or {@code null}
+     */
+    public String getHtml() throws MessagingException, IOException {
+        return html != null ? (String) html.getContent() : null;
+    }
+
+    /**
+     * @return parts with disposition {@code attachment} and nested plain text messages, in MIME order
+     */
+    public List<Attachment> getAttachments() {
+        return Collections.unmodifiableList(attachments);
+    }
+
+    /**
+     * @return parts referenced by a Content-ID or shown inline, in MIME order
+     */
+    public List<Inline> getInlineParts() {
+        return Collections.unmodifiableList(inlineParts);
+    }
+
+    /**
+     * @return the first part with the given decoded file name and disposition {@code attachment} or none, or
+     * {@code null}
+     */
+    public BodyPart getAttachment(String fileName) {
+        Attachment attachment = byFileName.get(fileName);
+        return attachment != null ? attachment.part : null;
+    }
+
+    /**
+     * @return section path like {@code 2.1} of the part {@link #getAttachment(String)} returns or {@code null}
+     */
+    public String getSection(String fileName) {
+        Attachment attachment = byFileName.get(fileName);
+        return attachment != null ? attachment.section : null;
+    }
+
+    /**
+     * @return section paths of all parts {@link #getAttachment(String)} can return, keyed by decoded file name, in
+     * MIME order
+     */
+    public Map<String, String> getAttachmentSections() {
+        Map<String, String> sections = new LinkedHashMap<>();
+
+        for (Map.Entry<String, Attachment> entry : byFileName.entrySet()) {
+            sections.put(entry.getKey(), entry.getValue().section);
+        }
+
+        return Collections.unmodifiableMap(sections);
+    }
+
+    /**
+     * Text selection follows http://www.oracle.com/technetwork/java/javamail/faq/index.html#mainbody for both types at
+     * once. A text type is only searched for as long as {@code findPlain} or {@code findHtml} is set. Within a
+     * multipart/alternative the first child that is not a text leaf ends the search in its siblings.
+     */
+    private void visit(Part part, String section, boolean findPlain, boolean findHtml) throws MessagingException, IOException {
+        if (part.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) part.getContent();
+            boolean alternative = part.isMimeType("multipart/alternative");
+
+            for (int i = 0; i < multipart.getCount(); i++) {
+                BodyPart child = multipart.getBodyPart(i);
+                String childSection = section.isEmpty() ? String.valueOf(i + 1) : section + "." + (i + 1);
+
+                visit(child, childSection, findPlain, findHtml);
+
+                if (alternative && !child.isMimeType("text/plain") && !child.isMimeType("text/html")) {
+                    findPlain = false;
+                    findHtml = false;
+                }
+            }
+            return;
+        }
+
+        if (findPlain && plain == null && part.isMimeType("text/plain")) {
+            plain = part;
+        }
+        if (findHtml && html == null && part.isMimeType("text/html")) {
+            html = part;
+        }
+
+        if (part instanceof BodyPart) {
+            visitBodyPart((BodyPart) part, section);
+        }
+    }
+
+    private void visitBodyPart(BodyPart part, String section) throws MessagingException, IOException {
+        String disposition = part.getDisposition();
+        String fileName = part.getFileName() != null ? DecoderUtil.decodeEncodedWords(part.getFileName(), null) : null;
+
+        if (fileName != null && (disposition == null || disposition.equalsIgnoreCase(Part.ATTACHMENT))) {
+            Attachment attachment = new Attachment(fileName, mimeType(part), section, part);
+
+            if (disposition != null) {
+                attachments.add(attachment);
+            }
+            if (!byFileName.containsKey(fileName)) {
+                byFileName.put(fileName, attachment);
+            }
+        } else if (part.isMimeType("message/rfc822")) {
+            Message nested = (Message) part.getContent();
+
+            if (nested.isMimeType("text/plain") && nested.getSubject() != null) {
+                String name = DecoderUtil.decodeEncodedWords(String.format("%s.eml", nested.getSubject()), null);
+                attachments.add(new Attachment(name, mimeType(nested), section, part));
+            }
+        }
+
+        if (outline) {
+            return;
+        }
+
+        String contentId = part instanceof MimePart ? ((MimePart) part).getContentID() : null;
+
+        if (contentId != null || (fileName != null && Part.INLINE.equalsIgnoreCase(disposition))) {
+            inlineParts.add(new Inline(contentId, fileName, mimeType(part), section));
+        }
+    }
+
+    private static String mimeType(Part part) throws MessagingException {
+        if (part.getContentType() == null) {
+            return DEFAULT_MIME_TYPE;
+        }
+
+        try {
+            return new ContentType(part.getContentType()).getBaseType().toLowerCase();
+        } catch (ParseException e) {
+            return DEFAULT_MIME_TYPE;
+        }
+    }
+
+    /**
+     * Attachment descriptor. The part itself is not fetched until its content is read.
+     */
+    public static final class Attachment {
+        private final String fileName;
+        private final String mimeType;
+        private final String section;
+        private final BodyPart part;
+
+        private Attachment(String fileName, String mimeType, String section, BodyPart part) {
+            this.fileName = fileName;
+            this.mimeType = mimeType;
+            this.section = section;
+            this.part = part;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public String getSection() {
+            return section;
+        }
+
+        public BodyPart getPart() {
+            return part;
+        }
+    }
+
+    /**
+     * Inline part descriptor, e.g. an image referenced by {@code cid:} from the html body.
+     */
+    public static final class Inline {
+        private final String contentId;
+        private final String fileName;
+        private final String mimeType;
+        private final String section;
+
+        private Inline(String contentId, String fileName, String mimeType, String section) {
+            this.contentId = contentId;
+            this.fileName = fileName;
+            this.mimeType = mimeType;
+            this.section = section;
+        }
+
+        public String getContentId() {
+            return contentId;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public String getSection() {
+            return section;
+        }
+    }
+}
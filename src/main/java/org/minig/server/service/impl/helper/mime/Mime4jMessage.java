@@ -1,6 +1,7 @@
 package org.minig.server.service.impl.helper.mime;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -14,6 +15,7 @@ import java.util.Set;
 import javax.activation.DataSource;
 
 import org.apache.james.mime4j.dom.Body;
+import org.apache.james.mime4j.dom.Disposable;
 import org.apache.james.mime4j.dom.Entity;
 import org.apache.james.mime4j.dom.Header;
 import org.apache.james.mime4j.dom.Multipart;
@@ -32,11 +34,15 @@ import org.minig.server.service.CompositeId;
 import org.springframework.util.StringUtils;
 
 /**
+ * Must be closed once it is not needed anymore, to delete the temporary files of bodies parsed by
+ * {@link ThresholdBodyFactory}.
+ *
  * @author Kamill Sokol
  */
-public class Mime4jMessage {
+public class Mime4jMessage implements Closeable {
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ThresholdBodyFactory BODY_FACTORY = new ThresholdBodyFactory();
 
     private static final Map<String, String> CHARSET_UTF_8 = new HashMap<String, String>() {{
         put("charset", "UTF-8");
@@ -114,7 +120,7 @@ public class Mime4jMessage {
         }
 
         if (message.isMimeType("text/plain")) {
-            message.removeBody();
+            dispose(message.removeBody());
 
             TextBody newbody = new BasicBodyFactory().textBody(plain, UTF_8);
             message.setBody(newbody);
@@ -131,7 +137,7 @@ public class Mime4jMessage {
             if (indexOf != null) {
                 // Multipart part = (Multipart) indexOf.part;
 
-                multipart.replaceBodyPart(textBodyPart, indexOf.indexOf);
+                dispose(multipart.replaceBodyPart(textBodyPart, indexOf.indexOf));
             } else {
                 multipart.addBodyPart(textBodyPart);
             }
@@ -161,7 +167,7 @@ public class Mime4jMessage {
         }
 
         if (message.isMimeType("text/html")) {
-            message.removeBody();
+            dispose(message.removeBody());
 
             TextBody newbody = new BasicBodyFactory().textBody(html, UTF_8);
             message.setBody(newbody);
@@ -177,7 +183,7 @@ public class Mime4jMessage {
             if (indexOf != null) {
                 Multipart part = (Multipart) indexOf.part.getParent().getBody();
 
-                part.replaceBodyPart(htmlBodyPart, indexOf.indexOf);
+                dispose(part.replaceBodyPart(htmlBodyPart, indexOf.indexOf));
             } else {
                 multipart.addBodyPart(htmlBodyPart);
             }
@@ -233,7 +239,7 @@ public class Mime4jMessage {
         BodyPart attachPart = new BodyPart();
 
         try {
-            Body body1 = new BasicBodyFactory().binaryBody(dataSource.getInputStream());
+            Body body1 = BODY_FACTORY.binaryBody(dataSource.getInputStream());
             attachPart.setBody(body1, dataSource.getContentType());
             attachPart.setContentTransferEncoding("base64");
             attachPart.setContentDisposition("attachment");
@@ -348,7 +354,7 @@ public class Mime4jMessage {
             BodyPart part = (BodyPart) e.get(i);
 
             if ("attachment".equalsIgnoreCase(part.getDispositionType()) && filename.equals(part.getFilename())) {
-                multipart.removeBodyPart(i);
+                dispose(multipart.removeBodyPart(i));
             }
 
             if (part.isMultipart()) {
@@ -577,4 +583,15 @@ public class Mime4jMessage {
             }
         }
     }
+
+    @Override
+    public void close() {
+        message.dispose();
+    }
+
+    private static void dispose(Disposable disposable) {
+        if (disposable != null) {
+            disposable.dispose();
+        }
+    }
 }
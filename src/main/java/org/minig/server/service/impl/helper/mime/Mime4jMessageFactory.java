@@ -1,33 +1,49 @@
 package org.minig.server.service.impl.helper.mime;
 
-import org.apache.james.mime4j.dom.MessageBuilder;
+import org.apache.james.mime4j.message.DefaultMessageBuilder;
+import org.apache.james.mime4j.message.DefaultMessageWriter;
 import org.apache.james.mime4j.message.MessageImpl;
-import org.apache.james.mime4j.message.MessageServiceFactoryImpl;
 import org.minig.server.service.CompositeId;
+import org.minig.util.SpoolOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.util.Assert;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
 
 /**
+ * Converts between javax.mail and mime4j messages without copying the whole message into byte arrays. Messages are
+ * streamed into the mime4j parser and bodies above {@link ThresholdBodyFactory#DEFAULT_THRESHOLD} are kept in
+ * temporary files on both sides. Parsed messages have to be disposed to delete those files.
+ *
  * @author Kamill Sokol
  */
 public final class Mime4jMessageFactory {
 	private Mime4jMessageFactory() {}
 
-	private static final MessageServiceFactoryImpl messageServiceFactory = new MessageServiceFactoryImpl();
+	private static final Logger log = LoggerFactory.getLogger(Mime4jMessageFactory.class);
+
+	private static final ThresholdBodyFactory bodyFactory = new ThresholdBodyFactory();
+	private static final byte[] CRLF = { '\r', '\n' };
 
 	public static Mime4jMessage from(Message message) {
 		Assert.notNull(message);
 		try {
-			MessageBuilder builder = messageServiceFactory.newMessageBuilder();
-			ByteArrayOutputStream output = new ByteArrayOutputStream();
-			message.writeTo(output);
-			InputStream decodedInput = new ByteArrayInputStream((output).toByteArray());
-			MessageImpl parseMessage = (MessageImpl) builder.parseMessage(decodedInput);
+			MessageImpl parseMessage = parse(message);
 
 			String folder = getFolder(message);
 			String messageId = getMessageId(message);
@@ -38,6 +54,101 @@ public final class Mime4jMessageFactory {
 		}
 	}
 
+	/**
+	 * Parses the given message. Messages read from a folder are streamed, the content of IMAP messages is fetched in
+	 * chunks.
+	 */
+	public static MessageImpl parse(Message message) throws MessagingException, IOException {
+		Assert.notNull(message);
+		try (InputStream input = openStream(message)) {
+			DefaultMessageBuilder builder = new DefaultMessageBuilder();
+			builder.setBodyFactory(bodyFactory);
+			return (MessageImpl) builder.parseMessage(input);
+		}
+	}
+
+	/**
+	 * Writes the given message into a {@link MimeMessage} backed by a shared stream, so javax.mail does not copy the
+	 * content once more.
+	 */
+	public static MimeMessage toMimeMessage(Session session, org.apache.james.mime4j.dom.Message message) throws MessagingException, IOException {
+		Assert.notNull(message);
+		SpoolOutputStream output = newSpool();
+
+		try {
+			new DefaultMessageWriter().writeMessage(message, output);
+		} catch (IOException | RuntimeException e) {
+			output.close();
+			output.delete();
+			throw e;
+		}
+
+		output.close();
+
+		return new MimeMessage(session, openSpool(output));
+	}
+
+	private static InputStream openStream(Message message) throws MessagingException, IOException {
+		if (message instanceof MimeMessage) {
+			MimeMessage mimeMessage = (MimeMessage) message;
+			try {
+				InputStream content = mimeMessage.getRawInputStream();
+				return new SequenceInputStream(new ByteArrayInputStream(getHeaderBytes(mimeMessage)), content);
+			} catch (MessagingException e) {
+				log.debug("message has no raw content, writing it: {}", e.getMessage());
+			}
+		}
+
+		SpoolOutputStream output = newSpool();
+
+		try {
+			message.writeTo(output);
+		} catch (MessagingException | IOException | RuntimeException e) {
+			output.close();
+			output.delete();
+			throw e;
+		}
+
+		output.close();
+
+		return openSpool(output);
+	}
+
+	private static SpoolOutputStream newSpool() {
+		return new SpoolOutputStream(ThresholdBodyFactory.DEFAULT_THRESHOLD, "minig-message");
+	}
+
+	private static InputStream openSpool(SpoolOutputStream output) throws IOException {
+		if (output.isInMemory()) {
+			return new SharedByteArrayInputStream(output.getData());
+		}
+
+		File file = output.getFile();
+		SharedFileInputStream input = new SharedFileInputStream(file);
+		// the open stream keeps the content readable, the file itself is not needed anymore
+		if (!file.delete()) {
+			file.deleteOnExit();
+		}
+		return input;
+	}
+
+	private static byte[] getHeaderBytes(MimeMessage message) throws MessagingException, IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Enumeration<?> lines = message.getAllHeaderLines();
+
+		while (lines.hasMoreElements()) {
+			writeLine(output, (String) lines.nextElement());
+		}
+
+		output.write(CRLF);
+		return output.toByteArray();
+	}
+
+	private static void writeLine(OutputStream output, String line) throws IOException {
+		output.write(line.getBytes(StandardCharsets.ISO_8859_1));
+		output.write(CRLF);
+	}
+
 	private static String getFolder(Message message) throws MessagingException {
 		Assert.notNull(message.getFolder());
 		Assert.notNull(message.getFolder().getFullName());
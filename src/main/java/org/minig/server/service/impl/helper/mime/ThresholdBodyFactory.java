@@ -0,0 +1,187 @@
+package org.minig.server.service.impl.helper.mime;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.dom.BinaryBody;
+import org.apache.james.mime4j.dom.TextBody;
+import org.apache.james.mime4j.message.BodyFactory;
+import org.apache.james.mime4j.util.CharsetUtil;
+import org.minig.util.PrivateFiles;
+import org.minig.util.SpoolOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * {@link BodyFactory} that keeps bodies up to a threshold in memory and stores larger bodies in temporary files, so
+ * parsing a message with large attachments does not hold the whole message on the heap. Temporary files are created
+ * with {@link PrivateFiles} and deleted when the body is disposed, so messages parsed with this factory have to be disposed once they are not needed anymore.
+ *
+ * @author Kamill Sokol
+ */
+public class ThresholdBodyFactory implements BodyFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(ThresholdBodyFactory.class);
+
+    public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+    private static final Charset DEFAULT_CHARSET = Charset.forName("US-ASCII");
+    private static final String PREFIX = "minig-body";
+
+    private final int threshold;
+
+    public ThresholdBodyFactory() {
+        this(DEFAULT_THRESHOLD);
+    }
+
+    public ThresholdBodyFactory(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    public BinaryBody binaryBody(InputStream is) throws IOException {
+        return new StoredBinaryBody(store(is));
+    }
+
+    @Override
+    public TextBody textBody(InputStream is, String mimeCharset) throws IOException {
+        return new StoredTextBody(store(is), mimeCharset);
+    }
+
+    private Storage store(InputStream is) throws IOException {
+        SpoolOutputStream output = new SpoolOutputStream(threshold, PREFIX);
+
+        try {
+            IOUtils.copyLarge(is, output);
+        } catch (IOException | RuntimeException e) {
+            output.close();
+            output.delete();
+            throw e;
+        }
+
+        output.close();
+
+        if (output.isInMemory()) {
+            return new Storage(output.getData(), null);
+        }
+        return new Storage(null, output.getFile());
+    }
+
+    private static final class Storage {
+        private final byte[] data;
+        private File file;
+
+        private Storage(byte[] data, File file) {
+            this.data = data;
+            this.file = file;
+        }
+
+        private InputStream open() throws IOException {
+            if (data != null) {
+                return new ByteArrayInputStream(data);
+            }
+            if (file == null) {
+                throw new IllegalStateException("body has been disposed");
+            }
+            return new FileInputStream(file);
+        }
+
+        private Storage copy() throws IOException {
+            if (data != null) {
+                return this;
+            }
+            File copy = PrivateFiles.createTempFile(PREFIX, ".tmp");
+            try (InputStream input = open(); OutputStream output = PrivateFiles.newOutputStream(copy, false)) {
+                IOUtils.copyLarge(input, output);
+            } catch (IOException | RuntimeException e) {
+                if (!copy.delete()) {
+                    log.debug("can not delete {}", copy);
+                }
+                throw e;
+            }
+            return new Storage(null, copy);
+        }
+
+        private synchronized void delete() {
+            if (file != null && !file.delete()) {
+                log.debug("can not delete {}", file);
+            }
+            file = null;
+        }
+    }
+
+    private static final class StoredBinaryBody extends BinaryBody {
+        private final Storage storage;
+
+        private StoredBinaryBody(Storage storage) {
+            this.storage = storage;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return storage.open();
+        }
+
+        @Override
+        public StoredBinaryBody copy() {
+            try {
+                return new StoredBinaryBody(storage.copy());
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void dispose() {
+            storage.delete();
+        }
+    }
+
+    private static final class StoredTextBody extends TextBody {
+        private final Storage storage;
+        private final String mimeCharset;
+
+        private StoredTextBody(Storage storage, String mimeCharset) {
+            this.storage = storage;
+            this.mimeCharset = mimeCharset;
+        }
+
+        @Override
+        public String getMimeCharset() {
+            return mimeCharset;
+        }
+
+        @Override
+        public Reader getReader() throws IOException {
+            Charset charset = mimeCharset != null ? CharsetUtil.lookup(mimeCharset) : null;
+            return new InputStreamReader(storage.open(), charset != null ? charset : DEFAULT_CHARSET);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return storage.open();
+        }
+
+        @Override
+        public StoredTextBody copy() {
+            try {
+                return new StoredTextBody(storage.copy(), mimeCharset);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void dispose() {
+            storage.delete();
+        }
+    }
+}
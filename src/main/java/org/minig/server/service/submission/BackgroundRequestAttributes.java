@@ -0,0 +1,73 @@
+package org.minig.server.service.submission;
+
+import org.springframework.web.context.request.AbstractRequestAttributes;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Request scope for work done outside of an HTTP request, so that request scoped beans like the pooled mail context
+ * can be used and are destroyed by {@link #requestCompleted()}. There is no session.
+ *
+ * @author Kamill Sokol
+ */
+class BackgroundRequestAttributes extends AbstractRequestAttributes {
+
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+    @Override
+    public Object getAttribute(String name, int scope) {
+        return scope == SCOPE_REQUEST ? attributes.get(name) : null;
+    }
+
+    @Override
+    public void setAttribute(String name, Object value, int scope) {
+        checkScope(scope);
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name, int scope) {
+        if (scope == SCOPE_REQUEST) {
+            attributes.remove(name);
+            removeRequestDestructionCallback(name);
+        }
+    }
+
+    @Override
+    public String[] getAttributeNames(int scope) {
+        return scope == SCOPE_REQUEST ? attributes.keySet().toArray(new String[attributes.size()]) : new String[0];
+    }
+
+    @Override
+    public void registerDestructionCallback(String name, Runnable callback, int scope) {
+        checkScope(scope);
+        registerRequestDestructionCallback(name, callback);
+    }
+
+    @Override
+    public Object resolveReference(String key) {
+        return null;
+    }
+
+    @Override
+    public String getSessionId() {
+        throw new IllegalStateException("no session outside of http requests");
+    }
+
+    @Override
+    public Object getSessionMutex() {
+        throw new IllegalStateException("no session outside of http requests");
+    }
+
+    @Override
+    protected void updateAccessedSessionAttributes() {
+        // no session
+    }
+
+    private static void checkScope(int scope) {
+        if (scope != SCOPE_REQUEST) {
+            throw new IllegalStateException("no session outside of http requests");
+        }
+    }
+}
@@ -51,7 +51,14 @@ class DispositionServiceImpl implements DispositionService {
         if (message == null) {
             return;
         }
-        MimeMessage mimeMessage = messageMapper.toMimeMessage(message);
+
+        MimeMessage mimeMessage;
+
+        try {
+            mimeMessage = messageMapper.toMimeMessage(message);
+        } finally {
+            message.close();
+        }
 
         try {
             MimeMessage msg = new MimeMessage(mailContext.getSession());
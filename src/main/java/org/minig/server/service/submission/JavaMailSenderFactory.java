@@ -1,18 +1,74 @@
 package org.minig.server.service.submission;
 
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.JavaMailSenderImpl;
 
+import javax.mail.MessagingException;
 import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
+ * Creates {@link JavaMailSender}s that send over the {@link SmtpTransportPool} if one is set, or over a new transport
+ * for every send otherwise.
+ *
  * @author Kamill Sokol
  */
 public class JavaMailSenderFactory {
 
+    private SmtpTransportPool transportPool;
+
     public JavaMailSender newInstance(Session session) {
-        JavaMailSenderImpl javaMailSender = new JavaMailSenderImpl();
+        JavaMailSenderImpl javaMailSender = transportPool != null ? new PooledJavaMailSender(transportPool) : new JavaMailSenderImpl();
         javaMailSender.setSession(session);
         return javaMailSender;
     }
+
+    public void setTransportPool(SmtpTransportPool transportPool) {
+        this.transportPool = transportPool;
+    }
+
+    private static final class PooledJavaMailSender extends JavaMailSenderImpl {
+
+        private final SmtpTransportPool transportPool;
+
+        private PooledJavaMailSender(SmtpTransportPool transportPool) {
+            this.transportPool = transportPool;
+        }
+
+        @Override
+        protected void doSend(MimeMessage[] mimeMessages, Object[] originalMessages) throws MailException {
+            Map<Object, Exception> failedMessages = new LinkedHashMap<>();
+
+            for (int i = 0; i < mimeMessages.length; i++) {
+                MimeMessage mimeMessage = mimeMessages[i];
+
+                try {
+                    if (mimeMessage.getSentDate() == null) {
+                        mimeMessage.setSentDate(new Date());
+                    }
+
+                    // saveChanges() replaces the Message-ID
+                    String messageId = mimeMessage.getMessageID();
+                    mimeMessage.saveChanges();
+
+                    if (messageId != null) {
+                        mimeMessage.setHeader("Message-ID", messageId);
+                    }
+
+                    transportPool.send(getSession(), mimeMessage);
+                } catch (MessagingException e) {
+                    failedMessages.put(originalMessages != null ? originalMessages[i] : mimeMessage, e);
+                }
+            }
+
+            if (!failedMessages.isEmpty()) {
+                throw new MailSendException(failedMessages);
+            }
+        }
+    }
 }
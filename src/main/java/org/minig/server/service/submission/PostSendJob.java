@@ -0,0 +1,128 @@
+package org.minig.server.service.submission;
+
+import org.minig.server.service.CompositeId;
+
+import java.util.Properties;
+
+/**
+ * Work left after a message has been handed to SMTP. Steps are cleared once done, so that a retried job continues
+ * where it failed. The sent message itself is spooled next to the job.
+ *
+ * @author Kamill Sokol
+ */
+final class PostSendJob {
+
+    private final long sequence;
+    private boolean copy;
+    private CompositeId draft;
+    private String inReplyTo;
+    private String forwardedMessageId;
+    private int attempts;
+
+    PostSendJob(long sequence, boolean copy, CompositeId draft, String inReplyTo, String forwardedMessageId) {
+        this.sequence = sequence;
+        this.copy = copy;
+        this.draft = draft;
+        this.inReplyTo = inReplyTo;
+        this.forwardedMessageId = forwardedMessageId;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return {@code true} if the spooled message has yet to be filed into the sent folder
+     */
+    boolean hasCopy() {
+        return copy;
+    }
+
+    void filed() {
+        copy = false;
+    }
+
+    /**
+     * @return id of the sent draft to remove or {@code null} if already removed
+     */
+    CompositeId getDraft() {
+        return draft;
+    }
+
+    void draftRemoved() {
+        draft = null;
+    }
+
+    /**
+     * @return Message-ID of the message to flag as answered or {@code null} if already flagged
+     */
+    String getInReplyTo() {
+        return inReplyTo;
+    }
+
+    void answered() {
+        inReplyTo = null;
+    }
+
+    /**
+     * @return Message-ID of the message to flag as forwarded or {@code null} if already flagged
+     */
+    String getForwardedMessageId() {
+        return forwardedMessageId;
+    }
+
+    void forwarded() {
+        forwardedMessageId = null;
+    }
+
+    int getAttempts() {
+        return attempts;
+    }
+
+    void failed() {
+        attempts++;
+    }
+
+    Properties toProperties() {
+        Properties properties = new Properties();
+
+        properties.setProperty("copy", String.valueOf(copy));
+
+        if (draft != null) {
+            properties.setProperty("draft.folder", draft.getFolder());
+            properties.setProperty("draft.messageId", draft.getMessageId());
+
+            if (draft.hasUid()) {
+                properties.setProperty("draft.uidValidity", String.valueOf(draft.getUidValidity()));
+                properties.setProperty("draft.uid", String.valueOf(draft.getUid()));
+            }
+        }
+        if (inReplyTo != null) {
+            properties.setProperty("inReplyTo", inReplyTo);
+        }
+        if (forwardedMessageId != null) {
+            properties.setProperty("forwardedMessageId", forwardedMessageId);
+        }
+
+        properties.setProperty("attempts", String.valueOf(attempts));
+        return properties;
+    }
+
+    static PostSendJob fromProperties(long sequence, Properties properties) {
+        CompositeId draft = null;
+
+        if (properties.containsKey("draft.folder")) {
+            draft = new CompositeId(properties.getProperty("draft.folder"), properties.getProperty("draft.messageId"));
+
+            if (properties.containsKey("draft.uid")) {
+                draft.setUidValidity(Long.valueOf(properties.getProperty("draft.uidValidity")));
+                draft.setUid(Long.valueOf(properties.getProperty("draft.uid")));
+            }
+        }
+
+        boolean copy = Boolean.parseBoolean(properties.getProperty("copy"));
+        PostSendJob job = new PostSendJob(sequence, copy, draft, properties.getProperty("inReplyTo"), properties.getProperty("forwardedMessageId"));
+        job.attempts = Integer.parseInt(properties.getProperty("attempts", "0"));
+        return job;
+    }
+}
@@ -0,0 +1,483 @@
+package org.minig.server.service.submission;
+
+import org.minig.MailAuthentication;
+import org.minig.server.service.CompositeId;
+import org.minig.server.service.MailService;
+import org.minig.server.service.NotFoundException;
+import org.minig.util.PrivateFiles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.util.Assert;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Work left after a message has been handed to SMTP: filing a copy into the sent folder, removing the sent draft and
+ * flagging the answered or forwarded message. Keeps those IMAP round trips off the request path.
+ *
+ * A job and the sent message are written to {@link #setDirectory(File)}, readable by the owner only and without
+ * credentials, before the job is queued and deleted once done. There is no default directory.
+ * Jobs of a user run one after another in submission order on a background thread, in a request scope of their own and
+ * with the credentials of the latest submission of the user. A failed job is retried with exponential backoff and
+ * holds back later jobs of the user until it succeeds or {@link #setMaxAttempts(int)} is reached. A job that has been
+ * given up is logged with its remaining steps and its files are kept for {@link #setFailedRetention(long)}
+ * milliseconds. Jobs left over from a previous run are resumed with the next submission of their user.
+ *
+ * In synchronous mode jobs run on the submitting thread. Only retries run in the background.
+ *
+ * @author Kamill Sokol
+ */
+public class PostSendQueue implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(PostSendQueue.class);
+    private static final String SUFFIX = ".job";
+    private static final String COPY_SUFFIX = ".eml";
+    private static final String FAILED_SUFFIX = ".failed";
+
+    private final Map<String, UserQueue> queues = new HashMap<>();
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final ScheduledThreadPoolExecutor executor;
+
+    @Autowired
+    private MailService mailService;
+
+    @Autowired
+    private MailAuthentication authentication;
+
+    private File directory;
+    private boolean synchronous;
+    private int maxAttempts = 10;
+    private long retryDelay = TimeUnit.SECONDS.toMillis(5);
+    private long maxRetryDelay = TimeUnit.HOURS.toMillis(1);
+    private long failedRetention = TimeUnit.DAYS.toMillis(7);
+
+    public PostSendQueue() {
+        executor = new ScheduledThreadPoolExecutor(2, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "post-send-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                purgeFailed();
+            }
+        }, 1, 60, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Queues the work left after the message has been sent for the current user.
+     *
+     * @param sent the message as it has been sent, to file into the sent folder
+     * @param draft id of the draft the message has been sent from or {@code null}
+     * @param inReplyTo Message-ID of the message to flag as answered or {@code null}
+     * @param forwardedMessageId Message-ID of the message to flag as forwarded or {@code null}
+     */
+    public void submit(MimeMessage sent, CompositeId draft, String inReplyTo, String forwardedMessageId) {
+        Assert.notNull(sent, "sent is null");
+
+        String user = authentication.getEmailAddress();
+        long jobSequence = sequence.incrementAndGet();
+        boolean copy = spool(user, jobSequence, sent);
+        PostSendJob job = new PostSendJob(jobSequence, copy, draft, inReplyTo, forwardedMessageId);
+        UserQueue queue;
+
+        synchronized (queues) {
+            queue = queues.get(user);
+
+            if (queue == null) {
+                queue = new UserQueue(user);
+                queue.jobs.addAll(load(user));
+                queues.put(user, queue);
+            }
+
+            write(user, job);
+            queue.jobs.add(job);
+            queue.authentication = SecurityContextHolder.getContext().getAuthentication();
+
+            if (queue.running) {
+                return;
+            }
+
+            queue.running = true;
+        }
+
+        if (synchronous) {
+            queue.run();
+        } else {
+            executor.execute(queue);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdownNow();
+    }
+
+    public void setDirectory(File directory) {
+        Assert.notNull(directory, "directory is null");
+        this.directory = directory;
+    }
+
+    public void setSynchronous(boolean synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    public void setThreads(int threads) {
+        executor.setCorePoolSize(threads);
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param retryDelay milliseconds to wait before the first retry, doubled with every further attempt
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public void setMaxRetryDelay(long maxRetryDelay) {
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+    /**
+     * @param failedRetention milliseconds to keep the files of a job that has been given up
+     */
+    public void setFailedRetention(long failedRetention) {
+        this.failedRetention = failedRetention;
+    }
+
+    void setMailService(MailService mailService) {
+        this.mailService = mailService;
+    }
+
+    void setAuthentication(MailAuthentication authentication) {
+        this.authentication = authentication;
+    }
+
+    /**
+     * @return {@code true} if the job is done and can be forgotten
+     */
+    private boolean execute(String user, PostSendJob job, Authentication credentials) {
+        // synchronous jobs submitted within a web request share its scope and credentials
+        boolean background = RequestContextHolder.getRequestAttributes() == null;
+        BackgroundRequestAttributes request = null;
+
+        if (background) {
+            request = new BackgroundRequestAttributes();
+            SecurityContextHolder.getContext().setAuthentication(credentials);
+            RequestContextHolder.setRequestAttributes(request);
+        }
+
+        try {
+            boolean done = perform(user, job);
+
+            if (request != null) {
+                // closes the folders of the job and thereby expunges the filed message
+                request.requestCompleted();
+            }
+
+            return done;
+        } catch (RuntimeException e) {
+            log.warn("could not complete post send job {}. reason {}", job.getSequence(), e.getMessage());
+            return false;
+        } finally {
+            if (background) {
+                RequestContextHolder.resetRequestAttributes();
+                SecurityContextHolder.clearContext();
+            }
+        }
+    }
+
+    private boolean perform(String user, PostSendJob job) {
+        try {
+            if (job.hasCopy()) {
+                try (InputStream in = new SharedFileInputStream(copyFile(user, job.getSequence()))) {
+                    mailService.fileSentMessage(in);
+                }
+                job.filed();
+            }
+            if (job.getDraft() != null) {
+                mailService.removeDraft(job.getDraft());
+                job.draftRemoved();
+            }
+            if (job.getInReplyTo() != null) {
+                flag(job.getInReplyTo(), true);
+                job.answered();
+            }
+            if (job.getForwardedMessageId() != null) {
+                flag(job.getForwardedMessageId(), false);
+                job.forwarded();
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.warn("post send job {} failed. reason {}", job.getSequence(), e.getMessage());
+            return false;
+        }
+    }
+
+    private void flag(String messageId, boolean answered) {
+        try {
+            if (answered) {
+                mailService.flagAsAnswered(messageId);
+            } else {
+                mailService.flagAsForwarded(messageId);
+            }
+        } catch (NotFoundException | IllegalArgumentException e) {
+            // the message is gone, retrying does not help
+            log.info("could not flag {}. reason {}", messageId, e.getMessage());
+        }
+    }
+
+    private long delay(int attempts) {
+        long delay = retryDelay << Math.min(attempts - 1, 30);
+        return delay > 0 ? Math.min(delay, maxRetryDelay) : maxRetryDelay;
+    }
+
+    /**
+     * Deletes the files of given up jobs that are older than the retention.
+     */
+    void purgeFailed() {
+        File[] users = directory != null ? directory.listFiles() : null;
+
+        if (users == null) {
+            return;
+        }
+
+        long expired = System.currentTimeMillis() - failedRetention;
+
+        for (File userDirectory : users) {
+            File[] files = userDirectory.listFiles();
+
+            if (files == null) {
+                continue;
+            }
+
+            for (File file : files) {
+                if (file.getName().endsWith(FAILED_SUFFIX) && file.lastModified() < expired && !file.delete()) {
+                    log.warn("unable to delete {}", file);
+                }
+            }
+        }
+    }
+
+    private File userDirectory(String user) {
+        if (directory == null) {
+            throw new IllegalStateException("no post send directory configured");
+        }
+
+        try {
+            return new File(directory, URLEncoder.encode(user, "UTF-8"));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private File file(String user, PostSendJob job) {
+        return new File(userDirectory(user), String.format("%020d", job.getSequence()) + SUFFIX);
+    }
+
+    private File copyFile(String user, long jobSequence) {
+        return new File(userDirectory(user), String.format("%020d", jobSequence) + COPY_SUFFIX);
+    }
+
+    /**
+     * @return {@code false} if the copy for the sent folder could not be written
+     */
+    private boolean spool(String user, long jobSequence, MimeMessage sent) {
+        File file = copyFile(user, jobSequence);
+
+        try {
+            PrivateFiles.createDirectories(file.getParentFile());
+
+            try (OutputStream out = new BufferedOutputStream(PrivateFiles.newOutputStream(file, false))) {
+                sent.writeTo(out);
+            }
+
+            return true;
+        } catch (IOException | MessagingException e) {
+            // the message is out already, only its copy is lost
+            log.error("unable to spool sent message of {}. reason {}", user, e.getMessage());
+            return false;
+        }
+    }
+
+    private void write(String user, PostSendJob job) {
+        File file = file(user, job);
+        File parent = file.getParentFile();
+        File temp = new File(parent, file.getName() + ".tmp");
+
+        try {
+            PrivateFiles.createDirectories(parent);
+
+            try (OutputStream out = PrivateFiles.newOutputStream(temp, false)) {
+                job.toProperties().store(out, null);
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // the job is kept on the heap and lost on restart only
+            log.warn("unable to persist post send job {} of {}. reason {}", job.getSequence(), user, e.getMessage());
+        }
+    }
+
+    private void delete(String user, PostSendJob job) {
+        for (File file : new File[] { copyFile(user, job.getSequence()), file(user, job) }) {
+            if (file.exists() && !file.delete()) {
+                log.warn("unable to delete {}", file);
+            }
+        }
+    }
+
+    /**
+     * Keeps the files of a job that has been given up for inspection until {@link #purgeFailed()} deletes them. The
+     * sent message is kept only if it has not been filed into the sent folder.
+     */
+    private void discard(String user, PostSendJob job) {
+        File copy = copyFile(user, job.getSequence());
+
+        if (!job.hasCopy() && copy.exists() && !copy.delete()) {
+            log.warn("unable to delete {}", copy);
+        }
+
+        for (File file : new File[] { copy, file(user, job) }) {
+            File failed = new File(file.getParentFile(), file.getName() + FAILED_SUFFIX);
+
+            if (file.exists() && !(file.renameTo(failed) && failed.setLastModified(System.currentTimeMillis()))) {
+                log.warn("unable to discard {}", file);
+            }
+        }
+    }
+
+    private List<PostSendJob> load(String user) {
+        List<PostSendJob> jobs = new ArrayList<>();
+        File[] files = userDirectory(user).listFiles();
+
+        if (files == null) {
+            return jobs;
+        }
+
+        Arrays.sort(files);
+
+        for (File file : files) {
+            String name = file.getName();
+
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+
+            try (InputStream in = new FileInputStream(file)) {
+                Properties properties = new Properties();
+                properties.load(in);
+
+                long jobSequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                jobs.add(PostSendJob.fromProperties(jobSequence, properties));
+
+                if (sequence.get() < jobSequence) {
+                    sequence.set(jobSequence);
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("ignoring broken post send job {}. reason {}", file, e.getMessage());
+            }
+        }
+
+        if (!jobs.isEmpty()) {
+            log.info("resuming {} post send jobs of {}", jobs.size(), user);
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Pending jobs of a user. At most one thread works on a queue at a time.
+     */
+    private final class UserQueue implements Runnable {
+        private final String user;
+        private final ArrayDeque<PostSendJob> jobs = new ArrayDeque<>();
+        private Authentication authentication;
+        private boolean running;
+
+        private UserQueue(String user) {
+            this.user = user;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                PostSendJob job;
+                Authentication credentials;
+
+                synchronized (queues) {
+                    job = jobs.peek();
+                    credentials = authentication;
+
+                    if (job == null) {
+                        running = false;
+                        queues.remove(user);
+                        return;
+                    }
+                }
+
+                if (execute(user, job, credentials)) {
+                    delete(user, job);
+                } else {
+                    job.failed();
+
+                    if (job.getAttempts() < maxAttempts) {
+                        write(user, job);
+                        long delay = delay(job.getAttempts());
+                        log.debug("retrying post send job {} of {} in {} ms", job.getSequence(), user, delay);
+                        executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+
+                    log.error("giving up post send job {} of {} after {} attempts. remaining steps: file copy {}, remove draft {}, flag answered {}, flag forwarded {}",
+                            job.getSequence(), user, job.getAttempts(), job.hasCopy(), job.getDraft(), job.getInReplyTo(),
+                            job.getForwardedMessageId());
+                    write(user, job);
+                    discard(user, job);
+                }
+
+                synchronized (queues) {
+                    jobs.poll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package org.minig.server.service.submission;
+
+import com.sun.mail.smtp.SMTPTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.Assert;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps authenticated SMTP {@link Transport}s alive between messages, so that bursts of submissions reuse a connection
+ * instead of negotiating TLS and authenticating for every message.
+ *
+ * Transports are pooled per {@link Session}, which is per user, and bound to its properties and credentials. At most
+ * {@link #setMaxConnectionsPerUser(int)} transports of a session are in use at a time. A transport is reset with RSET
+ * when it is returned. Idle transports are closed after {@link #setIdleTimeout(long)} milliseconds, well before servers
+ * usually drop idle clients. A transport that has been idle longer than {@link #setValidationInterval(long)}
+ * milliseconds is checked with a NOOP before it is used again.
+ *
+ * @author Kamill Sokol
+ */
+public class SmtpTransportPool implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(SmtpTransportPool.class);
+
+    private final ConcurrentMap<Session, SessionPool> pools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    private int maxConnectionsPerUser = 2;
+    private long idleTimeout = TimeUnit.SECONDS.toMillis(60);
+    private long borrowTimeout = TimeUnit.SECONDS.toMillis(30);
+    private long validationInterval = TimeUnit.SECONDS.toMillis(5);
+
+    public SmtpTransportPool() {
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "smtp-transport-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, 15, 15, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sends the message to all its recipients over a pooled transport of the session.
+     */
+    public void send(Session session, MimeMessage message) throws MessagingException {
+        Assert.notNull(session, "session is null");
+        Assert.notNull(message, "message is null");
+
+        Address[] recipients = message.getAllRecipients();
+        SessionPool pool = getPool(session);
+
+        acquire(pool);
+
+        Transport transport = null;
+
+        try {
+            transport = takeIdle(pool);
+
+            if (transport == null) {
+                transport = connect(session);
+            }
+
+            try {
+                transport.sendMessage(message, recipients != null ? recipients : new Address[0]);
+            } catch (SendFailedException e) {
+                // rejected by the server, the connection itself is fine
+                release(pool, transport);
+                transport = null;
+                throw e;
+            }
+
+            release(pool, transport);
+            transport = null;
+        } finally {
+            if (transport != null) {
+                closeQuietly(transport);
+            }
+
+            pool.permits.release();
+        }
+    }
+
+    public void setMaxConnectionsPerUser(int maxConnectionsPerUser) {
+        Assert.isTrue(maxConnectionsPerUser > 0, "maxConnectionsPerUser must be greater than 0");
+        this.maxConnectionsPerUser = maxConnectionsPerUser;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        evictor.shutdownNow();
+
+        for (SessionPool pool : pools.values()) {
+            close(pool);
+        }
+
+        pools.clear();
+    }
+
+    void evictIdle() {
+        long now = System.currentTimeMillis();
+
+        for (SessionPool pool : pools.values()) {
+            Iterator<IdleTransport> iterator = pool.idle.descendingIterator();
+
+            while (iterator.hasNext()) {
+                IdleTransport idleTransport = iterator.next();
+
+                if (now - idleTransport.since > idleTimeout && pool.idle.removeLastOccurrence(idleTransport)) {
+                    log.debug("evicting idle smtp transport");
+                    closeQuietly(idleTransport.transport);
+                }
+            }
+
+            if (pool.idle.isEmpty() && pool.permits.availablePermits() == pool.maxConnections && pools.remove(pool.session, pool)) {
+                close(pool);
+            }
+        }
+    }
+
+    private SessionPool getPool(Session session) {
+        SessionPool pool = pools.get(session);
+
+        if (pool == null) {
+            SessionPool newPool = new SessionPool(session, maxConnectionsPerUser);
+            pool = pools.putIfAbsent(session, newPool);
+            pool = pool != null ? pool : newPool;
+        }
+
+        return pool;
+    }
+
+    private void acquire(SessionPool pool) throws MessagingException {
+        try {
+            if (!pool.permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new MessagingException("no free smtp connection within " + borrowTimeout + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException(e.getMessage(), e);
+        }
+    }
+
+    private Transport takeIdle(SessionPool pool) {
+        IdleTransport idleTransport;
+
+        while ((idleTransport = pool.idle.pollFirst()) != null) {
+            long idle = System.currentTimeMillis() - idleTransport.since;
+
+            if (idle < validationInterval || idleTransport.transport.isConnected()) {
+                return idleTransport.transport;
+            }
+
+            log.debug("pooled smtp transport is not connected anymore");
+            closeQuietly(idleTransport.transport);
+        }
+
+        return null;
+    }
+
+    private static Transport connect(Session session) throws MessagingException {
+        String protocol = session.getProperty("mail.transport.protocol");
+        Transport transport = session.getTransport(protocol != null ? protocol : "smtp");
+
+        log.debug("opening new smtp transport");
+        transport.connect();
+        return transport;
+    }
+
+    private void release(SessionPool pool, Transport transport) {
+        if (transport instanceof SMTPTransport) {
+            try {
+                ((SMTPTransport) transport).issueCommand("RSET", 250);
+            } catch (MessagingException e) {
+                log.debug("can not reset smtp transport. reason {}", e.getMessage());
+                closeQuietly(transport);
+                return;
+            }
+        }
+
+        if (pool.closed || pools.get(pool.session) != pool) {
+            closeQuietly(transport);
+        } else {
+            pool.idle.addFirst(new IdleTransport(transport));
+        }
+    }
+
+    private static void close(SessionPool pool) {
+        pool.closed = true;
+        IdleTransport idleTransport;
+
+        while ((idleTransport = pool.idle.pollFirst()) != null) {
+            closeQuietly(idleTransport.transport);
+        }
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        } catch (Exception e) {
+            log.debug("can not close smtp transport. reason {}", e.getMessage());
+        }
+    }
+
+    private static final class SessionPool {
+        private final Session session;
+        private final int maxConnections;
+        private final Semaphore permits;
+        private final Deque<IdleTransport> idle = new ConcurrentLinkedDeque<>();
+        private volatile boolean closed;
+
+        private SessionPool(Session session, int maxConnections) {
+            this.session = session;
+            this.maxConnections = maxConnections;
+            this.permits = new Semaphore(maxConnections, true);
+        }
+    }
+
+    private static final class IdleTransport {
+        private final Transport transport;
+        private final long since = System.currentTimeMillis();
+
+        private IdleTransport(Transport transport) {
+            this.transport = transport;
+        }
+    }
+}
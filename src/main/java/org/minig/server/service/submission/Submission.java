@@ -36,17 +36,20 @@ public class Submission {
     @Autowired
     private JavaMailSenderFactory javaMailSenderFactory;
 
-    public void submit(Mime4jMessage message) {
+    /**
+     * @return the message as it has been sent
+     */
+    public MimeMessage submit(Mime4jMessage message) {
         Assert.notNull(message, "message is null");
 
         try {
-            submitInternal(message);
+            return submitInternal(message);
         } catch (MessagingException e) {
             throw new RuntimeException(e.getMessage(), e);
         }
     }
 
-    private void submitInternal(Mime4jMessage message) throws MessagingException {
+    private MimeMessage submitInternal(Mime4jMessage message) throws MessagingException {
         JavaMailSender mailSender = javaMailSenderFactory.newInstance(mailContext.getSession());
         MimeMessage target = messageMapper.toMimeMessage(message);
         Session session = mailContext.getSession();
@@ -67,6 +70,7 @@ public class Submission {
         try {
             clean(target);
             mailSender.send(target);
+            return target;
         } finally {
             properties.remove(DSN0);
             properties.remove(DSN1);
@@ -1,6 +1,7 @@
 package org.minig.server.service.submission;
 
 import org.minig.server.MailMessage;
+import org.minig.server.service.CompositeId;
 import org.minig.server.service.FolderRepository;
 import org.minig.server.service.MailService;
 import org.minig.server.service.impl.helper.mime.Mime4jMessage;
@@ -8,7 +9,12 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
+import javax.mail.internet.MimeMessage;
+
 /**
+ * Builds the final message once and hands it to SMTP, without saving a draft first. Filing the sent message, removing
+ * the draft it has been sent from and flagging the original message are left to the {@link PostSendQueue}.
+ *
  * @author Kamill Sokol
  */
 @Component
@@ -23,29 +29,25 @@ class SubmissionServiceImpl implements SubmissionService {
     @Autowired
     private FolderRepository folderRepository;
 
+    @Autowired
+    private PostSendQueue postSendQueue;
+
     @Override
     public void sendMessage(MailMessage message) {
         Assert.notNull(message);
 
-        Mime4jMessage mime4jMessage = null;
-
-        if (message.getId() == null) {
-            MailMessage mm = mailService.createDraftMessage(message);
-            mime4jMessage = mailService.findById(mm);
-        } else if (message.getId().startsWith(folderRepository.getDraft().getId())) {
-            MailMessage mm = mailService.updateDraftMessage(message);
-            mime4jMessage = mailService.findById(mm);
+        if (message.getId() != null) {
+            Assert.isTrue(message.getId().startsWith(folderRepository.getDraft().getId()), "not a draft");
         }
 
-        submission.submit(mime4jMessage);
+        CompositeId draft;
+        MimeMessage sent;
 
-        mailService.moveMessageToFolder(mime4jMessage.getId(), folderRepository.getSent().getId());
-
-        if(message.getInReplyTo() != null) {
-            mailService.flagAsAnswered(message.getInReplyTo());
-        }
-        if(message.getForwardedMessageId() != null) {
-            mailService.flagAsForwarded(message.getForwardedMessageId());
+        try (Mime4jMessage mime4jMessage = mailService.composeMessage(message)) {
+            draft = message.getId() != null ? mime4jMessage.getId() : null;
+            sent = submission.submit(mime4jMessage);
         }
+
+        postSendQueue.submit(sent, draft, message.getInReplyTo(), message.getForwardedMessageId());
     }
 }
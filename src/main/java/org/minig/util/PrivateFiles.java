@@ -0,0 +1,103 @@
+package org.minig.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Creates directories and files only their owner can access, for data of users kept on disk. On file systems without
+ * POSIX permissions the defaults of the platform apply.
+ *
+ * Temporary copies of messages and attachments go to {@link #setTempDirectory(File)}. Until a directory is configured
+ * they go to a directory of their own, created once per process with a random name in {@code java.io.tmpdir}.
+ *
+ * @author Kamill Sokol
+ */
+public final class PrivateFiles {
+
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    private static final Set<PosixFilePermission> DIRECTORY = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> FILE = PosixFilePermissions.fromString("rw-------");
+
+    private static File tempDirectory;
+
+    private PrivateFiles() {}
+
+    public static synchronized void setTempDirectory(File directory) {
+        tempDirectory = directory;
+    }
+
+    public static synchronized File getTempDirectory() throws IOException {
+        if (tempDirectory == null) {
+            Path path = POSIX
+                    ? Files.createTempDirectory("minig-", PosixFilePermissions.asFileAttribute(DIRECTORY))
+                    : Files.createTempDirectory("minig-");
+            tempDirectory = path.toFile();
+            tempDirectory.deleteOnExit();
+        }
+
+        return tempDirectory;
+    }
+
+    /**
+     * Creates an empty file with a unique name in the temporary directory, readable by the owner only.
+     */
+    public static File createTempFile(String prefix, String suffix) throws IOException {
+        return createTempFile(getTempDirectory(), prefix, suffix);
+    }
+
+    /**
+     * Creates an empty file with a unique name in the directory, readable by the owner only. The directory is created
+     * if it does not exist.
+     */
+    public static File createTempFile(File directory, String prefix, String suffix) throws IOException {
+        createDirectories(directory);
+        Path path = directory.toPath();
+
+        return (POSIX
+                ? Files.createTempFile(path, prefix, suffix, PosixFilePermissions.asFileAttribute(FILE))
+                : Files.createTempFile(path, prefix, suffix)).toFile();
+    }
+
+    /**
+     * Creates the directory and its missing parents, readable by the owner only.
+     */
+    public static void createDirectories(File directory) throws IOException {
+        if (directory.isDirectory()) {
+            return;
+        }
+
+        Path path = directory.toPath();
+
+        if (POSIX) {
+            Files.createDirectories(path, PosixFilePermissions.asFileAttribute(DIRECTORY));
+        } else {
+            Files.createDirectories(path);
+        }
+    }
+
+    /**
+     * Opens the file for writing. A file that does not exist yet is created readable by the owner only.
+     *
+     * @param append {@code true} to write to the end of an existing file, {@code false} to truncate it
+     */
+    public static OutputStream newOutputStream(File file, boolean append) throws IOException {
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        FileAttribute<?>[] attributes = POSIX
+                ? new FileAttribute<?>[] { PosixFilePermissions.asFileAttribute(FILE) }
+                : new FileAttribute<?>[0];
+
+        return Channels.newOutputStream(Files.newByteChannel(file.toPath(), options, attributes));
+    }
+}
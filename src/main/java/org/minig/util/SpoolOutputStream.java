@@ -0,0 +1,84 @@
+package org.minig.util;
+
+import org.apache.commons.io.output.ThresholdingOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Keeps data up to a threshold in memory and moves it to a file once the threshold is exceeded, like
+ * {@link org.apache.commons.io.output.DeferredFileOutputStream}. The file is created with {@link PrivateFiles} in the
+ * configured temporary directory and is readable by the owner only.
+ *
+ * @author Kamill Sokol
+ */
+public class SpoolOutputStream extends ThresholdingOutputStream {
+
+    private static final Logger log = LoggerFactory.getLogger(SpoolOutputStream.class);
+
+    private final String prefix;
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private OutputStream current = memory;
+    private File file;
+
+    public SpoolOutputStream(int threshold, String prefix) {
+        super(threshold);
+        this.prefix = prefix;
+    }
+
+    @Override
+    protected OutputStream getStream() {
+        return current;
+    }
+
+    @Override
+    protected void thresholdReached() throws IOException {
+        file = PrivateFiles.createTempFile(prefix, ".tmp");
+        OutputStream output = null;
+
+        try {
+            output = PrivateFiles.newOutputStream(file, false);
+            memory.writeTo(output);
+        } catch (IOException | RuntimeException e) {
+            if (output != null) {
+                output.close();
+            }
+            delete();
+            throw e;
+        }
+
+        current = output;
+        memory = null;
+    }
+
+    public boolean isInMemory() {
+        return !isThresholdExceeded();
+    }
+
+    /**
+     * @return the data written so far, or {@code null} if it has been moved to a file
+     */
+    public byte[] getData() {
+        return memory != null ? memory.toByteArray() : null;
+    }
+
+    /**
+     * @return the file the data has been moved to, or {@code null} if it is kept in memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Deletes the file, if any. The stream has to be closed before.
+     */
+    public void delete() {
+        if (file != null && !file.delete()) {
+            log.debug("can not delete {}", file);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package config;
 import org.minig.config.ResourceConfig;
 import org.minig.server.service.AttachmentService;
 import org.minig.server.service.FolderService;
+import org.minig.server.service.FolderWatchService;
 import org.minig.server.service.MailService;
 import org.minig.server.service.submission.DispositionService;
 import org.minig.server.service.submission.SubmissionService;
@@ -25,6 +26,11 @@ public class RessourceTestConfig {
         return mock(MailService.class);
     }
 
+    @Bean
+    public FolderWatchService folderWatchService() {
+        return mock(FolderWatchService.class);
+    }
+
     @Bean
     public FolderService folderService() {
         return mock(FolderService.class);
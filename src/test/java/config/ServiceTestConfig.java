@@ -1,8 +1,13 @@
 package config;
 
 import org.minig.config.ServiceConfig;
+import org.minig.server.service.impl.AttachmentCache;
+import org.minig.server.service.impl.DraftStore;
+import org.minig.server.service.impl.FolderWatchServiceImpl;
 import org.minig.server.service.impl.MailContext;
+import org.minig.server.service.impl.MessageIndex;
 import org.minig.server.service.impl.SimpleMailContextImpl;
+import org.minig.server.service.submission.PostSendQueue;
 import org.minig.server.service.submission.TestJavaMailSenderFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
@@ -10,6 +15,8 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.context.support.ConversionServiceFactoryBean;
 
+import java.io.File;
+
 @Configuration
 @ComponentScan(basePackages = "org.minig.server.service")
 @Profile({ "test" })
@@ -20,11 +27,41 @@ public class ServiceTestConfig {
         return new SimpleMailContextImpl();
     }
 
+    @Bean
+    public FolderWatchServiceImpl folderWatchService() {
+        return new FolderWatchServiceImpl();
+    }
+
+    @Bean
+    public AttachmentCache attachmentCache() {
+        return new AttachmentCache();
+    }
+
+    @Bean
+    public DraftStore draftStore() {
+        return new DraftStore();
+    }
+
+    @Bean
+    public MessageIndex messageIndex() {
+        MessageIndex messageIndex = new MessageIndex();
+        messageIndex.setDirectory(new File(System.getProperty("java.io.tmpdir"), "minig-index-test"));
+        return messageIndex;
+    }
+
     @Bean(name = "javaMailSenderFactory")
     public TestJavaMailSenderFactory javaMailSenderFactory() {
         return new TestJavaMailSenderFactory();
     }
 
+    @Bean
+    public PostSendQueue postSendQueue() {
+        PostSendQueue postSendQueue = new PostSendQueue();
+        postSendQueue.setDirectory(new File(System.getProperty("java.io.tmpdir"), "minig-post-send-test"));
+        postSendQueue.setSynchronous(true);
+        return postSendQueue;
+    }
+
     @Bean
     public ConversionServiceFactoryBean conversionService() {
         return new ServiceConfig().conversionService();
@@ -9,9 +9,11 @@ import config.RessourceTestConfig;
 import org.minig.server.MailAttachment;
 import org.minig.server.MailAttachmentList;
 import org.minig.server.TestConstants;
+import org.minig.server.service.AttachmentContent;
 import org.minig.server.service.AttachmentService;
 import org.minig.server.service.CompositeAttachmentId;
 import org.minig.server.service.CompositeId;
+import org.minig.server.service.NotFoundException;
 import org.mockito.Matchers;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -26,14 +28,19 @@ import org.springframework.web.context.WebApplicationContext;
 import javax.activation.DataSource;
 import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -106,20 +113,141 @@ public class AttachmentResourceTest {
         ma.setId("id");
         ma.setMime("mime");
 
-        when(attachmentServiceMock.findAttachment(Matchers.<CompositeAttachmentId> anyObject())).thenReturn(ma);
+        AttachmentContent content = mock(AttachmentContent.class);
+        when(content.getAttachment()).thenReturn(ma);
+        when(content.getSize()).thenReturn((long) expected.length);
+        when(content.getETag()).thenReturn("\"1.2.3\"");
 
         doAnswer(new Answer<Void>() {
             @Override
             public Void answer(InvocationOnMock invocation) throws Throwable {
-                OutputStream out = (OutputStream) invocation.getArguments()[1];
+                OutputStream out = (OutputStream) invocation.getArguments()[0];
                 IOUtils.copy(new ByteArrayInputStream(expected), out);
                 return null;
             }
-        }).when(attachmentServiceMock).readAttachment(Matchers.<CompositeAttachmentId> anyObject(), Matchers.<OutputStream> anyObject());
+        }).when(content).writeTo(Matchers.<OutputStream> anyObject());
+
+        when(attachmentServiceMock.openAttachment(Matchers.<CompositeAttachmentId> anyObject())).thenReturn(content);
 
         mockMvc.perform(get(PREFIX + "/attachment/INBOX/test|<id@localhost>|1.png").param("download", "true")).andExpect(status().isOk())
                 .andExpect(content().bytes(expected)).andExpect(header().string("Content-Disposition", "attachment; filename=\"filename\""))
-                .andExpect(header().string("Content-Type", "mime"));
+                .andExpect(header().string("Content-Type", "mime"))
+                .andExpect(header().string("Content-Length", String.valueOf(expected.length)))
+                .andExpect(header().string("ETag", "\"1.2.3\""));
+    }
+
+    @Test
+    public void testDownloadAttachment_unknownSize() throws Exception {
+        MailAttachment ma = new MailAttachment();
+        ma.setFileName("filename");
+        ma.setMime("mime");
+
+        AttachmentContent content = mock(AttachmentContent.class);
+        when(content.getAttachment()).thenReturn(ma);
+        when(content.getSize()).thenReturn(-1L);
+        when(content.computeSize()).thenReturn(10L);
+
+        when(attachmentServiceMock.openAttachment(Matchers.<CompositeAttachmentId> anyObject())).thenReturn(content);
+
+        mockMvc.perform(get(PREFIX + "/attachment/INBOX/test|<id@localhost>|1.png").param("download", "true")).andExpect(status().isOk())
+                .andExpect(header().string("Content-Length", "10"))
+                .andExpect(header().doesNotExist("ETag"));
+    }
+
+    @Test
+    public void testDownloadAttachment_notFound() throws Exception {
+        when(attachmentServiceMock.openAttachment(Matchers.<CompositeAttachmentId> anyObject())).thenThrow(new NotFoundException());
+
+        mockMvc.perform(get(PREFIX + "/attachment/INBOX/test|<id@localhost>|1.png").param("download", "true"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testDownloadAttachment_notModified() throws Exception {
+        AttachmentContent content = mockContent(100);
+
+        mockMvc.perform(get(PREFIX + "/attachment/INBOX/test|<id@localhost>|1.png").param("download", "true")
+                .header("If-None-Match", "\"1.2.3\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", "\"1.2.3\""));
+
+        verify(content, never()).writeTo(Matchers.<OutputStream> anyObject());
+        verify(content).close();
+    }
+
+    @Test
+    public void testDownloadAttachment_modified() throws Exception {
+        AttachmentContent content = mockContent(100);
+
+        mockMvc.perform(get(PREFIX + "/attachment/INBOX/test|<id@localhost>|1.png").param("download", "true")
+                .header("If-None-Match", "\"1.2.4\""))
+                .andExpect(status().isOk());
+
+        verify(content).writeTo(Matchers.<OutputStream> anyObject());
+    }
+
+    @Test
+    public void testDownloadAttachment_notModifiedSince() throws Exception {
+        AttachmentContent content = mockContent(100);
+        when(content.getETag()).thenReturn(null);
+        when(content.getLastModified()).thenReturn(1450000000000L);
+
+        mockMvc.perform(get(PREFIX + "/attachment/INBOX/test|<id@localhost>|1.png").param("download", "true")
+                .header("If-Modified-Since", "Sun, 13 Dec 2015 09:46:40 GMT"))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("Last-Modified", "Sun, 13 Dec 2015 09:46:40 GMT"));
+
+        verify(content, never()).writeTo(Matchers.<OutputStream> anyObject());
+    }
+
+    @Test
+    public void testDownloadAttachment_range() throws Exception {
+        AttachmentContent content = mockContent(100);
+
+        mockMvc.perform(get(PREFIX + "/attachment/INBOX/test|<id@localhost>|1.png").param("download", "true")
+                .header("Range", "bytes=10-19"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 10-19/100"))
+                .andExpect(header().string("Content-Length", "10"))
+                .andExpect(header().string("Accept-Ranges", "bytes"));
+
+        verify(content).writeTo(Matchers.<OutputStream> anyObject(), eq(10L), eq(10L));
+    }
+
+    @Test
+    public void testDownloadAttachment_suffixRange() throws Exception {
+        AttachmentContent content = mockContent(100);
+
+        mockMvc.perform(get(PREFIX + "/attachment/INBOX/test|<id@localhost>|1.png").param("download", "true")
+                .header("Range", "bytes=-30"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 70-99/100"));
+
+        verify(content).writeTo(Matchers.<OutputStream> anyObject(), eq(70L), eq(30L));
+    }
+
+    @Test
+    public void testDownloadAttachment_rangeNotSatisfiable() throws Exception {
+        AttachmentContent content = mockContent(100);
+
+        mockMvc.perform(get(PREFIX + "/attachment/INBOX/test|<id@localhost>|1.png").param("download", "true")
+                .header("Range", "bytes=100-"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string("Content-Range", "bytes */100"));
+
+        verify(content, never()).writeTo(Matchers.<OutputStream> anyObject(), anyLong(), anyLong());
+    }
+
+    @Test
+    public void testDownloadAttachment_ifRangeMismatch() throws Exception {
+        AttachmentContent content = mockContent(100);
+
+        mockMvc.perform(get(PREFIX + "/attachment/INBOX/test|<id@localhost>|1.png").param("download", "true")
+                .header("Range", "bytes=10-19").header("If-Range", "\"1.2.4\""))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Content-Length", "100"));
+
+        verify(content).writeTo(Matchers.<OutputStream> anyObject());
     }
 
     @Test
@@ -174,4 +302,20 @@ public class AttachmentResourceTest {
 				.andExpect(jsonPath("attachmentMetadata[0].fileName").value("umlaut ä.png"))
 				.andExpect(jsonPath("attachmentMetadata[0].id").value("folder|messageId|umlaut%2B%25C3%25A4.png"));
 	}
+
+    private AttachmentContent mockContent(long size) throws IOException {
+        MailAttachment ma = new MailAttachment();
+        ma.setFileName("filename");
+        ma.setMime("mime");
+
+        AttachmentContent content = mock(AttachmentContent.class);
+        when(content.getAttachment()).thenReturn(ma);
+        when(content.getSize()).thenReturn(size);
+        when(content.computeSize()).thenReturn(size);
+        when(content.getETag()).thenReturn("\"1.2.3\"");
+        when(content.getLastModified()).thenReturn(-1L);
+
+        when(attachmentServiceMock.openAttachment(Matchers.<CompositeAttachmentId> anyObject())).thenReturn(content);
+        return content;
+    }
 }
@@ -0,0 +1,93 @@
+package org.minig.server.resource.mail;
+
+import config.RessourceTestConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.minig.server.FolderEvent;
+import org.minig.server.service.FolderEventListener;
+import org.minig.server.service.FolderWatchService;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.io.Closeable;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+/**
+ * @author Kamill Sokol
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@WebAppConfiguration
+@ContextConfiguration(classes = RessourceTestConfig.class)
+@ActiveProfiles("test")
+public class FolderEventResourceTest {
+
+    private static final String PREFIX = "/1";
+
+    @Autowired
+    private WebApplicationContext wac;
+
+    @Autowired
+    private FolderWatchService folderWatchServiceMock;
+
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUp() throws Exception {
+        mockMvc = webAppContextSetup(wac).build();
+        reset(folderWatchServiceMock);
+    }
+
+    @Test
+    public void testWatchFolder() throws Exception {
+        when(folderWatchServiceMock.watch(eq("INBOX"), any(FolderEventListener.class))).thenReturn(mock(Closeable.class));
+
+        MvcResult result = mockMvc.perform(get(PREFIX + "/message/events").param("folder", "INBOX"))
+                .andExpect(status().isOk()).andExpect(request().asyncStarted()).andReturn();
+
+        ArgumentCaptor<FolderEventListener> listener = ArgumentCaptor.forClass(FolderEventListener.class);
+        verify(folderWatchServiceMock).watch(eq("INBOX"), listener.capture());
+
+        listener.getValue().onEvent(new FolderEvent(FolderEvent.Type.ADDED, "INBOX", Arrays.asList(1L, 2L)));
+
+        String content = result.getResponse().getContentAsString();
+        assertThat(content, containsString("event:added"));
+        assertThat(content, containsString("\"uids\":[1,2]"));
+    }
+
+    @Test
+    public void testCloseCompletesStream() throws Exception {
+        when(folderWatchServiceMock.watch(eq("INBOX"), any(FolderEventListener.class))).thenReturn(mock(Closeable.class));
+
+        MvcResult result = mockMvc.perform(get(PREFIX + "/message/events").param("folder", "INBOX"))
+                .andExpect(status().isOk()).andExpect(request().asyncStarted()).andReturn();
+
+        ArgumentCaptor<FolderEventListener> listener = ArgumentCaptor.forClass(FolderEventListener.class);
+        verify(folderWatchServiceMock).watch(eq("INBOX"), listener.capture());
+
+        listener.getValue().onClose();
+
+        assertThat(result.getAsyncResult(0), nullValue());
+    }
+}
@@ -9,9 +9,13 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.minig.server.MailMessage;
 import org.minig.server.MailMessageList;
+import org.minig.server.MailMessageSync;
 import org.minig.server.TestConstants;
 import org.minig.server.service.CompositeId;
 import org.minig.server.service.MailService;
+import org.minig.server.service.MessageFields;
+import org.minig.server.service.MessageSort;
+import org.minig.server.service.SyncToken;
 import org.mockito.Matchers;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
@@ -100,6 +104,86 @@ public class MailResourceTest {
         verify(mailServiceMock).findMessagesByFolder("INBOX", 7, 11);
     }
 
+    @Test
+    public void testFindMessagesByFolder_fields() throws Exception {
+        MailMessage mm = new MailMessage();
+        mm.setMessageId("1");
+        mm.setFolder("INBOX");
+        mm.setSubject("subject");
+        mm.setRead(true);
+        mm.setStarred(true);
+        MailMessageList mailMessageList = new MailMessageList(Collections.singletonList(mm), 1, 1);
+
+        when(mailServiceMock.findMessagesByFolder(anyString(), anyInt(), anyInt(), any(MessageFields.class), any(MessageSort.class))).thenReturn(mailMessageList);
+
+        mockMvc.perform(get(PREFIX + "/message").param("folder", "INBOX").param("fields", "subject,read"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.fullLength").value(1))
+                .andExpect(jsonPath("$.mailList[0].id").value("INBOX|1"))
+                .andExpect(jsonPath("$.mailList[0].subject").value("subject"))
+                .andExpect(jsonPath("$.mailList[0].read").value(true))
+                .andExpect(jsonPath("$.mailList[0].starred").doesNotExist())
+                .andExpect(jsonPath("$.mailList[0].body").doesNotExist());
+
+        verify(mailServiceMock).findMessagesByFolder("INBOX", 1, 10, MessageFields.parse("subject,read"), MessageSort.ARRIVAL);
+    }
+
+    @Test
+    public void testFindMessagesByFolder_unknownField() throws Exception {
+        mockMvc.perform(get(PREFIX + "/message").param("folder", "INBOX").param("fields", "subject,body"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testFindMessagesByFolder_sort() throws Exception {
+        when(mailServiceMock.findMessagesByFolder(anyString(), anyInt(), anyInt(), any(MessageFields.class), any(MessageSort.class))).thenReturn(new MailMessageList());
+
+        mockMvc.perform(get(PREFIX + "/message").param("folder", "INBOX").param("sort", "-flagged,date"))
+                .andExpect(status().isOk());
+
+        verify(mailServiceMock).findMessagesByFolder("INBOX", 1, 10, MessageFields.ALL, MessageSort.parse("-flagged,date", false));
+    }
+
+    @Test
+    public void testFindMessagesByFolder_thread() throws Exception {
+        MailMessage mm = new MailMessage();
+        mm.setMessageId("1");
+        mm.setFolder("INBOX");
+        mm.setThreadId("INBOX|1");
+
+        when(mailServiceMock.findMessagesByFolder(anyString(), anyInt(), anyInt(), any(MessageFields.class), any(MessageSort.class))).thenReturn(new MailMessageList(Collections.singletonList(mm), 1, 1));
+
+        mockMvc.perform(get(PREFIX + "/message").param("folder", "INBOX").param("thread", "true").param("fields", "subject"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.mailList[0].threadId").value("INBOX|1"));
+
+        verify(mailServiceMock).findMessagesByFolder("INBOX", 1, 10, MessageFields.parse("subject"), MessageSort.THREAD);
+    }
+
+    @Test
+    public void testFindMessagesByFolder_invalidSort() throws Exception {
+        mockMvc.perform(get(PREFIX + "/message").param("folder", "INBOX").param("sort", "color"))
+                .andExpect(status().isBadRequest());
+
+        mockMvc.perform(get(PREFIX + "/message").param("folder", "INBOX").param("sort", "date").param("thread", "true"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testFindMessagesByFolder_withoutFieldsSerializesAllProperties() throws Exception {
+        MailMessage mm = new MailMessage();
+        mm.setMessageId("1");
+        mm.setFolder("INBOX");
+        mm.setStarred(true);
+
+        when(mailServiceMock.findMessagesByFolder(anyString(), anyInt(), anyInt())).thenReturn(new MailMessageList(Collections.singletonList(mm), 1, 1));
+
+        mockMvc.perform(get(PREFIX + "/message").param("folder", "INBOX"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.mailList[0].starred").value(true))
+                .andExpect(jsonPath("$.mailList[0].body").exists());
+    }
+
     @Test
     public void testFindMessage_slashAsFolderSeparator() throws Exception {
         MailMessage mm = new MailMessage();
@@ -171,9 +255,10 @@ public class MailResourceTest {
     public void testUpdateMessagesFlags() throws Exception {
         String content = new ObjectMapper().writeValueAsString(new MailMessageList());
 
-        doNothing().when(mailServiceMock).updateMessagesFlags(any(MailMessageList.class));
+        when(mailServiceMock.updateMessagesFlags(any(MailMessageList.class))).thenReturn(Collections.singletonList(new CompositeId("INBOX", "1")));
 
-        mockMvc.perform(put(PREFIX + "/message/flag").contentType(TestConstants.APPLICATION_JSON_UTF8).content(content)).andExpect(status().isOk());
+        mockMvc.perform(put(PREFIX + "/message/flag").contentType(TestConstants.APPLICATION_JSON_UTF8).content(content)).andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].id").value("INBOX|1"));
 
         verify(mailServiceMock).updateMessagesFlags(any(MailMessageList.class));
     }
@@ -273,4 +358,29 @@ public class MailResourceTest {
         verify(mailServiceMock).updateDraftMessage(
                 argThat(org.hamcrest.Matchers.<MailMessage> hasProperty("id", IsEqual.<String> equalTo("INBOX/Drafts|1"))));
     }
+
+    @Test
+    public void testSyncMessagesByFolder_withoutToken() throws Exception {
+        when(mailServiceMock.syncMessagesByFolder(anyString(), Matchers.<SyncToken> any())).thenReturn(new MailMessageSync("1.2.3", true));
+
+        mockMvc.perform(get(PREFIX + "/message/sync").param("folder", "INBOX")).andExpect(status().isOk())
+                .andExpect(jsonPath("$.token").value("1.2.3")).andExpect(jsonPath("$.reset").value(true));
+
+        verify(mailServiceMock).syncMessagesByFolder("INBOX", null);
+    }
+
+    @Test
+    public void testSyncMessagesByFolder_withToken() throws Exception {
+        when(mailServiceMock.syncMessagesByFolder(anyString(), Matchers.<SyncToken> any())).thenReturn(new MailMessageSync("1.2.4", false));
+
+        mockMvc.perform(get(PREFIX + "/message/sync").param("folder", "INBOX").param("token", "1.2.3")).andExpect(status().isOk())
+                .andExpect(jsonPath("$.token").value("1.2.4")).andExpect(jsonPath("$.reset").value(false));
+
+        verify(mailServiceMock).syncMessagesByFolder("INBOX", new SyncToken(1, 2, 3));
+    }
+
+    @Test
+    public void testSyncMessagesByFolder_invalidToken() throws Exception {
+        mockMvc.perform(get(PREFIX + "/message/sync").param("folder", "INBOX").param("token", "invalid")).andExpect(status().isBadRequest());
+    }
 }
@@ -0,0 +1,72 @@
+package org.minig.server.resource.search;
+
+import config.RessourceTestConfig;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.minig.server.service.CompositeId;
+import org.minig.server.service.MailService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.util.Collections;
+
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import static org.springframework.test.web.servlet.setup.MockMvcBuilders.webAppContextSetup;
+
+/**
+ * @author Kamill Sokol
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@WebAppConfiguration
+@ContextConfiguration(classes = RessourceTestConfig.class)
+@ActiveProfiles("test")
+public class SearchResourceTest {
+
+    private static final String PREFIX = "/1";
+
+    @Autowired
+    private WebApplicationContext wac;
+
+    @Autowired
+    private MailService mailServiceMock;
+
+    private MockMvc mockMvc;
+
+    @Before
+    public void setUp() throws Exception {
+        mockMvc = webAppContextSetup(wac).build();
+        reset(mailServiceMock);
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        when(mailServiceMock.searchMessages("INBOX", "quarterly report"))
+                .thenReturn(Collections.singletonList(new CompositeId("INBOX", "<1@localhost>")));
+
+        mockMvc.perform(get(PREFIX + "/search").param("folder", "INBOX").param("q", "quarterly report"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].id").value("INBOX|<1@localhost>"));
+
+        verify(mailServiceMock).searchMessages("INBOX", "quarterly report");
+    }
+
+    @Test
+    public void testSearchEmptyQuery() throws Exception {
+        mockMvc.perform(get(PREFIX + "/search").param("folder", "INBOX").param("q", " "))
+                .andExpect(status().isBadRequest());
+
+        verifyZeroInteractions(mailServiceMock);
+    }
+}
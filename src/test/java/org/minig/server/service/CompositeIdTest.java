@@ -72,4 +72,28 @@ public class CompositeIdTest {
 
 		assertEquals("folder" + CompositeId.SEPARATOR + "messageId", id.getId());
 	}
+
+	@Test
+	public void testUidIsNotPartOfId() {
+		CompositeId id = new CompositeId("folder", "messageId");
+
+		id.setUidValidity(1L);
+		id.setUid(2L);
+
+		assertTrue(id.hasUid());
+		assertEquals("folder" + CompositeId.SEPARATOR + "messageId", id.getId());
+	}
+
+	@Test
+	public void testSetCompositeIdCopiesUid() {
+		CompositeId source = new CompositeId("folder", "messageId");
+		source.setUidValidity(1L);
+		source.setUid(2L);
+
+		CompositeId target = new CompositeId();
+		target.setCompositeId(source);
+
+		assertEquals(Long.valueOf(1L), target.getUidValidity());
+		assertEquals(Long.valueOf(2L), target.getUid());
+	}
 }
@@ -0,0 +1,47 @@
+package org.minig.server.service;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Kamill Sokol
+ */
+public class MessageFieldsTest {
+
+    @Test
+    public void testParse() {
+        MessageFields fields = MessageFields.parse("id, subject,sender,date,read");
+
+        assertThat(fields.contains(MessageFields.SUBJECT), is(true));
+        assertThat(fields.contains(MessageFields.ATTACHMENTS), is(false));
+        assertThat(fields.containsAny(MessageFields.STARRED, MessageFields.READ), is(true));
+        assertThat(fields.isAll(), is(false));
+        assertThat(fields.toString(), is("subject,sender,date,read"));
+        assertThat(fields.getPropertyNames(), contains("id", "messageId", "folder", "uidValidity", "uid", "threadId", "subject", "sender", "date", "read"));
+    }
+
+    @Test
+    public void testParseAll() {
+        MessageFields fields = MessageFields.parse(MessageFields.ALL.toString());
+
+        assertThat(fields, sameInstance(MessageFields.ALL));
+        assertThat(fields.isAll(), is(true));
+    }
+
+    @Test
+    public void testParseIdOnly() {
+        MessageFields fields = MessageFields.parse("id");
+
+        assertThat(fields.isAll(), is(false));
+        assertThat(fields.getPropertyNames(), contains("id", "messageId", "folder", "uidValidity", "uid", "threadId"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseUnknown() {
+        MessageFields.parse("subject,body");
+    }
+}
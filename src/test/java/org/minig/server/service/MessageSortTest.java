@@ -0,0 +1,52 @@
+package org.minig.server.service;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Kamill Sokol
+ */
+public class MessageSortTest {
+
+    @Test
+    public void testParse() {
+        MessageSort sort = MessageSort.parse("-flagged, date", false);
+
+        assertThat(sort.getTerms(), contains(new MessageSort.Term(MessageSort.Key.FLAGGED, true),
+                new MessageSort.Term(MessageSort.Key.DATE, false)));
+        assertThat(sort.contains(MessageSort.Key.DATE), is(true));
+        assertThat(sort.contains(MessageSort.Key.SIZE), is(false));
+        assertThat(sort.isArrival(), is(false));
+        assertThat(sort.toString(), is("-flagged,date"));
+    }
+
+    @Test
+    public void testParseArrival() {
+        assertThat(MessageSort.parse(null, false), sameInstance(MessageSort.ARRIVAL));
+        assertThat(MessageSort.parse("", false), sameInstance(MessageSort.ARRIVAL));
+        assertThat(MessageSort.ARRIVAL.isArrival(), is(true));
+    }
+
+    @Test
+    public void testParseThread() {
+        MessageSort sort = MessageSort.parse(null, true);
+
+        assertThat(sort, sameInstance(MessageSort.THREAD));
+        assertThat(sort.isThreaded(), is(true));
+        assertThat(sort.isArrival(), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseUnknown() {
+        MessageSort.parse("date,color", false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseThreadWithKeys() {
+        MessageSort.parse("date", true);
+    }
+}
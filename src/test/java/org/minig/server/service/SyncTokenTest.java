@@ -0,0 +1,36 @@
+package org.minig.server.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Kamill Sokol
+ */
+public class SyncTokenTest {
+
+    @Test
+    public void testParse() {
+        SyncToken token = SyncToken.parse("1.20.300");
+
+        assertEquals(1L, token.getUidValidity());
+        assertEquals(20L, token.getHighestModSeq());
+        assertEquals(300L, token.getUidNext());
+        assertEquals("1.20.300", token.toString());
+    }
+
+    @Test
+    public void testUnknownModSeq() {
+        assertEquals("1.0.300", new SyncToken(1, -1, 300).toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalid() {
+        SyncToken.parse("1.2");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseNotNumeric() {
+        SyncToken.parse("1.a.3");
+    }
+}
@@ -0,0 +1,315 @@
+package org.minig.server.service.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.minig.MailAuthentication;
+import org.minig.server.MailAttachment;
+import org.minig.server.service.AttachmentContent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Kamill Sokol
+ */
+public class AttachmentCacheTest {
+
+    private static final String MESSAGE_ID = "<1@localhost>";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private AttachmentCache uut = new AttachmentCache();
+    private MailAuthentication authentication = mock(MailAuthentication.class);
+
+    @Before
+    public void setUp() throws Exception {
+        when(authentication.getEmailAddress()).thenReturn("user1@localhost");
+        uut.setAuthentication(authentication);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        uut.destroy();
+    }
+
+    @Test
+    public void testPutAndGetInMemory() throws IOException {
+        byte[] payload = payload(100);
+
+        AttachmentContent cached = put("INBOX", 1L, 10L, new ByteContent("1.png", "2", payload), payload.length);
+
+        assertTrue(Arrays.equals(payload, read(cached)));
+        assertThat(cached.getSize(), is(100L));
+        assertThat(cached.getETag(), is("\"1.10.2\""));
+        assertThat(uut.getMemoryBytes(), is(100L));
+        assertThat(uut.getDiskBytes(), is(0L));
+
+        AttachmentContent content = uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png");
+
+        assertThat(content, notNullValue());
+        assertThat(content.getSection(), is("2"));
+        assertTrue(Arrays.equals(payload, read(content)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(payload, 10, 30), read(content, 10, 20)));
+    }
+
+    @Test
+    public void testComputeSizeFillsCache() throws IOException {
+        byte[] payload = payload(100);
+        ByteContent content = new ByteContent("1.png", "2", payload);
+        content.encoded = true;
+
+        AttachmentContent filling = uut.fill("INBOX", 1L, 10L, MESSAGE_ID, content, 150);
+
+        assertThat(filling.getSize(), is(-1L));
+        assertThat(filling.computeSize(), is(100L));
+        assertThat(uut.getMemoryBytes(), is(100L));
+        assertTrue(Arrays.equals(payload, read(filling)));
+        assertThat(content.writes, is(1));
+
+        filling.close();
+    }
+
+    @Test
+    public void testGetUnknown() throws IOException {
+        byte[] payload = payload(100);
+        put("INBOX", 1L, 10L, new ByteContent("1.png", "2", payload), payload.length);
+
+        assertThat(uut.get("INBOX", 1L, 10L, MESSAGE_ID, "2.png"), nullValue());
+        assertThat(uut.get("INBOX", 2L, 10L, MESSAGE_ID, "1.png"), nullValue());
+        assertThat(uut.get("INBOX.Trash", 1L, 10L, MESSAGE_ID, "1.png"), nullValue());
+
+        when(authentication.getEmailAddress()).thenReturn("user2@localhost");
+
+        assertThat(uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png"), nullValue());
+    }
+
+    @Test
+    public void testOtherMessageId() throws IOException {
+        byte[] payload = payload(100);
+        put("INBOX", 1L, 10L, new ByteContent("1.png", "2", payload), payload.length);
+
+        assertThat(uut.get("INBOX", 1L, 10L, "<2@localhost>", "1.png"), nullValue());
+        assertThat(uut.get("INBOX", 1L, 10L, null, "1.png"), notNullValue());
+    }
+
+    @Test
+    public void testSpillToDisk() throws IOException {
+        uut.setMemoryThreshold(1000);
+        byte[] payload = payload(100000);
+
+        put("INBOX", 1L, 10L, new ByteContent("1.png", "2", payload), payload.length);
+
+        assertThat(uut.getMemoryBytes(), is(0L));
+        assertThat(uut.getDiskBytes(), is(100000L));
+
+        AttachmentContent content = uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png");
+
+        assertTrue(Arrays.equals(payload, read(content)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(payload, 33, 50033), read(content, 33, 50000)));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(payload, 99990, 100000), read(content, 99990, 100)));
+    }
+
+    @Test
+    public void testEvictedWhileReading() throws IOException {
+        uut.setMemoryThreshold(10);
+        uut.setMaxDiskBytes(150);
+        uut.setDirectory(temporaryFolder.getRoot());
+        byte[] payload = payload(100);
+
+        put("INBOX", 1L, 10L, new ByteContent("1.png", "2", payload), payload.length).close();
+        AttachmentContent content = uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png");
+        put("INBOX", 1L, 11L, new ByteContent("1.png", "2", payload(100)), 100).close();
+
+        assertThat(uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png"), nullValue());
+        assertThat(temporaryFolder.getRoot().listFiles().length, is(2));
+        assertTrue(Arrays.equals(payload, read(content)));
+
+        content.close();
+
+        assertThat(temporaryFolder.getRoot().listFiles().length, is(1));
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws IOException {
+        uut.setMaxMemoryBytes(250);
+
+        put("INBOX", 1L, 10L, new ByteContent("1.png", "2", payload(100)), 100);
+        put("INBOX", 1L, 11L, new ByteContent("1.png", "2", payload(100)), 100);
+        uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png");
+        put("INBOX", 1L, 12L, new ByteContent("1.png", "2", payload(100)), 100);
+
+        assertThat(uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png"), notNullValue());
+        assertThat(uut.get("INBOX", 1L, 11L, MESSAGE_ID, "1.png"), nullValue());
+        assertThat(uut.get("INBOX", 1L, 12L, MESSAGE_ID, "1.png"), notNullValue());
+        assertThat(uut.getMemoryBytes(), is(200L));
+    }
+
+    @Test
+    public void testQuotaPerUser() throws IOException {
+        uut.setMaxBytesPerUser(150);
+
+        put("INBOX", 1L, 10L, new ByteContent("1.png", "2", payload(100)), 100);
+
+        when(authentication.getEmailAddress()).thenReturn("user2@localhost");
+        put("INBOX", 1L, 10L, new ByteContent("1.png", "2", payload(100)), 100);
+
+        when(authentication.getEmailAddress()).thenReturn("user1@localhost");
+        put("INBOX", 1L, 11L, new ByteContent("1.png", "2", payload(100)), 100);
+
+        assertThat(uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png"), nullValue());
+        assertThat(uut.get("INBOX", 1L, 11L, MESSAGE_ID, "1.png"), notNullValue());
+        assertThat(uut.getUserBytes("user1@localhost"), is(100L));
+        assertThat(uut.getUserBytes("user2@localhost"), is(100L));
+
+        when(authentication.getEmailAddress()).thenReturn("user2@localhost");
+        assertThat(uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png"), notNullValue());
+    }
+
+    @Test
+    public void testTooLarge() throws IOException {
+        uut.setMaxBytesPerUser(50);
+        ByteContent content = new ByteContent("1.png", "2", payload(100));
+
+        assertThat(uut.fill("INBOX", 1L, 10L, MESSAGE_ID, content, 100), sameInstance((AttachmentContent) content));
+        assertThat(uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png"), nullValue());
+        assertThat(uut.getMemoryBytes(), is(0L));
+    }
+
+    @Test
+    public void testNotCachedUntilWritten() throws IOException {
+        byte[] payload = payload(100);
+        AttachmentContent content = uut.fill("INBOX", 1L, 10L, MESSAGE_ID, new ByteContent("1.png", "2", payload), payload.length);
+
+        assertThat(content.getETag(), is("\"1.10.2\""));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(payload, 10, 30), read(content, 10, 20)));
+        assertThat(uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png"), nullValue());
+        assertThat(uut.getMemoryBytes(), is(0L));
+
+        assertTrue(Arrays.equals(payload, read(content)));
+        assertThat(uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png"), notNullValue());
+    }
+
+    @Test
+    public void testFailedWriteIsNotCached() throws IOException {
+        uut.setMemoryThreshold(10);
+        AttachmentContent content = uut.fill("INBOX", 1L, 10L, MESSAGE_ID, new ByteContent("1.png", "2", payload(100)), 100);
+
+        try {
+            content.writeTo(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("client gone");
+                }
+            });
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("client gone"));
+        }
+
+        assertThat(uut.get("INBOX", 1L, 10L, MESSAGE_ID, "1.png"), nullValue());
+        assertThat(uut.getDiskBytes(), is(0L));
+    }
+
+    /**
+     * Fills the cache by reading the payload once.
+     */
+    private AttachmentContent put(String folder, long uidValidity, long uid, AttachmentContent content, long sizeHint) throws IOException {
+        AttachmentContent filling = uut.fill(folder, uidValidity, uid, MESSAGE_ID, content, sizeHint);
+        read(filling);
+        return filling;
+    }
+
+    private static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+
+    private static byte[] read(AttachmentContent content) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        content.writeTo(output);
+        return output.toByteArray();
+    }
+
+    private static byte[] read(AttachmentContent content, long offset, long length) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        content.writeTo(output, offset, length);
+        return output.toByteArray();
+    }
+
+    private static final class ByteContent implements AttachmentContent {
+        private final MailAttachment attachment = new MailAttachment();
+        private final String section;
+        private final byte[] payload;
+        private boolean encoded;
+        private int writes;
+
+        private ByteContent(String fileName, String section, byte[] payload) {
+            this.attachment.setFileName(fileName);
+            this.section = section;
+            this.payload = payload;
+        }
+
+        @Override
+        public MailAttachment getAttachment() {
+            return attachment;
+        }
+
+        @Override
+        public String getSection() {
+            return section;
+        }
+
+        @Override
+        public long getSize() {
+            return encoded ? -1 : payload.length;
+        }
+
+        @Override
+        public long computeSize() {
+            return payload.length;
+        }
+
+        @Override
+        public String getETag() {
+            return "\"1.10." + section + "\"";
+        }
+
+        @Override
+        public long getLastModified() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(OutputStream output) throws IOException {
+            writes++;
+            output.write(payload);
+        }
+
+        @Override
+        public void writeTo(OutputStream output, long offset, long length) throws IOException {
+            output.write(payload, (int) offset, (int) length);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
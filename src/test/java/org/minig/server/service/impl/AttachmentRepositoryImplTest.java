@@ -1,6 +1,7 @@
 package org.minig.server.service.impl;
 
 import org.apache.commons.io.IOUtils;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -8,6 +9,7 @@ import org.minig.server.MailAttachment;
 import org.minig.server.MailAttachmentList;
 import org.minig.server.MailMessage;
 import org.minig.server.TestConstants;
+import org.minig.server.service.AttachmentContent;
 import org.minig.server.service.CompositeAttachmentId;
 import org.minig.server.service.CompositeId;
 import org.minig.server.service.MailRepository;
@@ -17,6 +19,7 @@ import config.ServiceTestConfig;
 import org.minig.server.service.SmtpAndImapMockServer;
 import org.minig.test.javamail.Mailbox;
 import org.minig.test.javamail.MailboxBuilder;
+import org.minig.util.PrivateFiles;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
@@ -25,10 +28,15 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import javax.activation.FileDataSource;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -186,6 +194,80 @@ public class AttachmentRepositoryImplTest {
         uut.readAttachmentPayload(id);
     }
 
+    @Test
+    public void testOpen() throws Exception {
+        MimeMessage m = new MimeMessageBuilder().setFolder("INBOX").build(TestConstants.MULTIPART_WITH_ATTACHMENT);
+        CompositeAttachmentId id = new CompositeAttachmentId("INBOX", m.getMessageID(), "1.png");
+
+        mockServer.prepareMailBox("INBOX", m);
+
+        AttachmentContent content = uut.open(id);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        content.writeTo(output);
+
+        byte[] expected = IOUtils.toByteArray(new FileInputStream(TestConstants.ATTACHMENT_IMAGE_1_PNG));
+
+        assertThat(content.getSection(), is("2"));
+        assertThat(content.getAttachment().getId(), is(id.getId()));
+        assertThat(content.getAttachment().getMime(), is("image/png"));
+        assertThat(content.getSize(), is(-1L));
+        assertTrue(Arrays.equals(expected, output.toByteArray()));
+    }
+
+    @Test
+    public void testOpen_range() throws Exception {
+        MimeMessage m = new MimeMessageBuilder().setFolder("INBOX").build(TestConstants.MULTIPART_WITH_ATTACHMENT);
+        mockServer.prepareMailBox("INBOX", m);
+
+        byte[] expected = IOUtils.toByteArray(new FileInputStream(TestConstants.ATTACHMENT_IMAGE_1_PNG));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try (AttachmentContent content = uut.open(new CompositeAttachmentId("INBOX", m.getMessageID(), "1.png"))) {
+            assertThat(content.computeSize(), is((long) expected.length));
+            assertThat(content.getSize(), is((long) expected.length));
+
+            content.writeTo(output, 100, 50);
+        }
+
+        assertTrue(Arrays.equals(Arrays.copyOfRange(expected, 100, 150), output.toByteArray()));
+    }
+
+    @Test
+    public void testOpen_rangeSpoolIsOwnerOnly() throws Exception {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+
+        MimeMessage m = new MimeMessageBuilder().setFolder("INBOX").build(TestConstants.MULTIPART_WITH_ATTACHMENT);
+        mockServer.prepareMailBox("INBOX", m);
+
+        List<File> before = Arrays.asList(PrivateFiles.getTempDirectory().listFiles());
+        List<File> spooled = new ArrayList<>();
+
+        try (AttachmentContent content = uut.open(new CompositeAttachmentId("INBOX", m.getMessageID(), "1.png"))) {
+            content.computeSize();
+
+            for (File file : PrivateFiles.getTempDirectory().listFiles()) {
+                if (!before.contains(file)) {
+                    spooled.add(file);
+                }
+            }
+
+            assertThat(spooled, hasSize(1));
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(spooled.get(0).toPath())), is("rw-------"));
+        }
+
+        assertThat(spooled.get(0).exists(), is(false));
+    }
+
+    @Test
+    public void testOpen_noAttachment() throws Exception {
+        MimeMessage m = new MimeMessageBuilder().build(TestConstants.MULTIPART_WITH_PLAIN_AND_HTML);
+
+        mockServer.prepareMailBox("INBOX", m);
+
+        assertThat(uut.open(new CompositeAttachmentId("INBOX", m.getMessageID(), "1.png")), nullValue());
+        assertThat(uut.open(new CompositeAttachmentId("INBOX", "unknown", "1.png")), nullValue());
+    }
+
     @Test
     public void testAppendMultipartAttachment() throws MessagingException, InterruptedException {
         MimeMessage m = new MimeMessageBuilder().build(TestConstants.MULTIPART_WITH_PLAIN_AND_HTML);
@@ -3,7 +3,9 @@ package org.minig.server.service.impl;
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.util.Arrays;
+import java.util.List;
 
+import javax.activation.FileDataSource;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
@@ -25,7 +27,9 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
@@ -41,9 +45,13 @@ public class AttachmentServiceImplTest {
     @Autowired
     private AttachmentServiceImpl uut;
 
+    @Autowired
+    private DraftStore draftStore;
+
     @Before
     public void setUp() throws Exception {
         mockServer.reset();
+        draftStore.destroy();
     }
 
     @Test
@@ -148,4 +156,61 @@ public class AttachmentServiceImplTest {
 
 		assertThat(byteArray, is(expected));
 	}
+
+    @Test
+    public void testAddAttachment_staged() throws Exception {
+        MimeMessage m = new MimeMessageBuilder().setFolder("INBOX.Drafts").build(TestConstants.MULTIPART_WITH_PLAIN_AND_ATTACHMENT);
+        mockServer.prepareMailBox("INBOX.Drafts", m);
+        CompositeId id = new CompositeId("INBOX.Drafts", m.getMessageID());
+
+        CompositeId newId = uut.addAttachment(id, new FileDataSource(TestConstants.ATTACHMENT_IMAGE_FOLDER_GIF));
+
+        assertThat(newId.getId(), is(id.getId()));
+        mockServer.verifyMessageCount("INBOX.Drafts", 1);
+
+        List<MailAttachment> attachments = uut.findAttachments(id).getAttachmentMetadata();
+
+        assertThat(attachments, hasSize(3));
+        assertThat(attachments.get(2).getFileName(), is("folder.gif"));
+        assertThat(attachments.get(2).getMime(), is("image/gif"));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        uut.readAttachment(new CompositeAttachmentId("INBOX.Drafts", m.getMessageID(), "folder.gif"), output);
+
+        assertThat(output.toByteArray(), is(IOUtils.toByteArray(new FileInputStream(TestConstants.ATTACHMENT_IMAGE_FOLDER_GIF))));
+    }
+
+    @Test
+    public void testDeleteAttachment_staged() throws Exception {
+        MimeMessage m = new MimeMessageBuilder().setFolder("INBOX.Drafts").build(TestConstants.MULTIPART_WITH_PLAIN_AND_ATTACHMENT);
+        mockServer.prepareMailBox("INBOX.Drafts", m);
+        CompositeId id = new CompositeId("INBOX.Drafts", m.getMessageID());
+
+        uut.addAttachment(id, new FileDataSource(TestConstants.ATTACHMENT_IMAGE_FOLDER_GIF));
+        CompositeId newId = uut.deleteAttachment(new CompositeAttachmentId("INBOX.Drafts", m.getMessageID(), "folder.gif"));
+
+        assertThat(newId.getId(), is(id.getId()));
+        assertThat(uut.findAttachments(id).getAttachmentMetadata(), hasSize(2));
+        assertThat(draftStore.getUserBytes(TestConstants.MOCK_USER), is(0L));
+    }
+
+    @Test
+    public void testAddAttachment_quotaExceeded() throws Exception {
+        MimeMessage m = new MimeMessageBuilder().setFolder("INBOX.Drafts").build(TestConstants.MULTIPART_WITH_PLAIN_AND_ATTACHMENT);
+        mockServer.prepareMailBox("INBOX.Drafts", m);
+        CompositeId id = new CompositeId("INBOX.Drafts", m.getMessageID());
+
+        draftStore.setMaxBytesPerUser(10);
+
+        try {
+            CompositeId newId = uut.addAttachment(id, new FileDataSource(TestConstants.ATTACHMENT_IMAGE_FOLDER_GIF));
+
+            assertThat(newId.getId(), not(id.getId()));
+            mockServer.verifyMessageCount("INBOX.Drafts", 1);
+            assertThat(uut.findAttachments(newId).getAttachmentMetadata(), hasSize(3));
+            assertThat(draftStore.getUserBytes(TestConstants.MOCK_USER), is(0L));
+        } finally {
+            draftStore.setMaxBytesPerUser(100 * 1024 * 1024);
+        }
+    }
 }
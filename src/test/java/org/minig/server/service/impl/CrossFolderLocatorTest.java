@@ -0,0 +1,109 @@
+package org.minig.server.service.impl;
+
+import config.ServiceTestConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.minig.MailAuthentication;
+import org.minig.server.TestConstants;
+import org.minig.server.service.CompositeId;
+import org.minig.server.service.MimeMessageBuilder;
+import org.minig.server.service.SmtpAndImapMockServer;
+import org.minig.test.javamail.Mailbox;
+import org.minig.test.javamail.MailboxBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.mail.internet.MimeMessage;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Kamill Sokol
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = { ServiceTestConfig.class })
+@ActiveProfiles("test")
+public class CrossFolderLocatorTest {
+
+    @Autowired
+    private SmtpAndImapMockServer mockServer;
+
+    @Autowired
+    private CrossFolderLocator uut;
+
+    @Autowired
+    private MessageIdCache messageIdCache;
+
+    @Autowired
+    private MailAuthentication authentication;
+
+    private MailStorePool mailStorePool;
+
+    @Before
+    public void setUp() throws Exception {
+        mockServer.reset();
+
+        mailStorePool = new MailStorePool();
+        uut.setMailStorePool(mailStorePool);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        uut.setMailStorePool(null);
+        mailStorePool.destroy();
+    }
+
+    @Test
+    public void testFindInParallel() throws Exception {
+        MimeMessage message = new MimeMessageBuilder().build(TestConstants.PLAIN);
+
+        new MailboxBuilder("testuser@localhost").mailbox("INBOX").subscribed().exists().build();
+
+        for (int i = 0; i < 10; i++) {
+            new MailboxBuilder("testuser@localhost").mailbox("INBOX.folder" + i).subscribed().exists().build();
+        }
+
+        Mailbox folder = new MailboxBuilder("testuser@localhost").mailbox("INBOX.folder9.child").subscribed().exists().build();
+        folder.add(message);
+
+        CompositeId id = uut.find(message.getMessageID());
+
+        assertThat(id.getId(), is(new CompositeId("INBOX.folder9.child", message.getMessageID()).getId()));
+        assertThat(uut.find("<unknown@localhost>"), nullValue());
+    }
+
+    @Test
+    public void testSkipsTrash() throws Exception {
+        MimeMessage message = new MimeMessageBuilder().build(TestConstants.PLAIN);
+
+        new MailboxBuilder("testuser@localhost").mailbox("INBOX").subscribed().exists().build();
+        Mailbox trash = new MailboxBuilder("testuser@localhost").mailbox(authentication.getTrashFolder()).subscribed().exists().build();
+        trash.add(message);
+
+        assertThat(uut.find(message.getMessageID()), nullValue());
+    }
+
+    @Test
+    public void testChecksLastSeenFolderFirst() throws Exception {
+        MimeMessage message = new MimeMessageBuilder().build(TestConstants.PLAIN);
+
+        Mailbox inbox = new MailboxBuilder("testuser@localhost").mailbox("INBOX").subscribed().exists().build();
+        Mailbox archive = new MailboxBuilder("testuser@localhost").mailbox("INBOX.Archive").subscribed().exists().build();
+        inbox.add(message);
+        archive.add(message);
+
+        assertThat(uut.find(message.getMessageID()).getFolder(), is("INBOX"));
+
+        messageIdCache.put("INBOX.Archive", message.getMessageID(), 1L, 1L);
+
+        assertThat(uut.find(message.getMessageID()).getFolder(), is("INBOX.Archive"));
+
+        messageIdCache.remove("INBOX.Archive", message.getMessageID());
+    }
+}
@@ -0,0 +1,182 @@
+package org.minig.server.service.impl;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.minig.MailAuthentication;
+import org.minig.server.service.CompositeAttachmentId;
+import org.minig.server.service.CompositeId;
+import org.minig.util.PrivateFiles;
+
+import javax.mail.util.ByteArrayDataSource;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Kamill Sokol
+ */
+public class DraftStoreTest {
+
+    private static final CompositeId DRAFT = new CompositeId("INBOX.Drafts", "<1@localhost>");
+
+    private DraftStore uut = new DraftStore();
+    private MailAuthentication authentication = mock(MailAuthentication.class);
+
+    @Before
+    public void setUp() throws Exception {
+        when(authentication.getEmailAddress()).thenReturn("user1@localhost");
+        uut.setAuthentication(authentication);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        uut.destroy();
+    }
+
+    @Test
+    public void testStageInMemory() throws IOException {
+        byte[] payload = payload(100);
+
+        assertThat(uut.stage(DRAFT, dataSource("1.png", payload)), is(true));
+
+        StagedAttachment attachment = uut.get(new CompositeAttachmentId(DRAFT.getFolder(), DRAFT.getMessageId(), "1.png"));
+
+        assertThat(attachment.isOnDisk(), is(false));
+        assertThat(attachment.getSize(), is(100L));
+        assertThat(read(attachment), is(payload));
+        assertThat(uut.getUserBytes("user1@localhost"), is(100L));
+    }
+
+    @Test
+    public void testStageOnDisk() throws IOException {
+        uut.setMemoryThreshold(1000);
+        byte[] payload = payload(100000);
+
+        uut.stage(DRAFT, dataSource("1.png", payload));
+
+        StagedAttachment attachment = uut.get(DRAFT).get(0);
+
+        assertThat(attachment.isOnDisk(), is(true));
+        assertThat(read(attachment), is(payload));
+    }
+
+    @Test
+    public void testStageOnDiskOwnerOnly() throws IOException {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        uut.setMemoryThreshold(1000);
+        List<File> before = Arrays.asList(PrivateFiles.getTempDirectory().listFiles());
+
+        uut.stage(DRAFT, dataSource("1.png", payload(100000)));
+
+        List<File> staged = new ArrayList<>();
+        for (File file : PrivateFiles.getTempDirectory().listFiles()) {
+            if (!before.contains(file)) {
+                staged.add(file);
+            }
+        }
+
+        assertThat(staged, hasSize(1));
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(staged.get(0).toPath())), is("rw-------"));
+
+        uut.remove(new CompositeAttachmentId(DRAFT.getFolder(), DRAFT.getMessageId(), "1.png"));
+
+        assertThat(staged.get(0).exists(), is(false));
+    }
+
+    @Test
+    public void testQuotaPerUser() throws IOException {
+        uut.setMaxBytesPerUser(150);
+
+        assertThat(uut.stage(DRAFT, dataSource("1.png", payload(100))), is(true));
+        assertThat(uut.stage(DRAFT, dataSource("2.png", payload(100))), is(false));
+
+        when(authentication.getEmailAddress()).thenReturn("user2@localhost");
+
+        assertThat(uut.get(DRAFT), hasSize(0));
+        assertThat(uut.stage(DRAFT, dataSource("1.png", payload(100))), is(true));
+    }
+
+    @Test
+    public void testRemove() throws IOException {
+        uut.stage(DRAFT, dataSource("1.png", payload(100)));
+        uut.stage(DRAFT, dataSource("2.png", payload(50)));
+
+        CompositeAttachmentId id = new CompositeAttachmentId(DRAFT.getFolder(), DRAFT.getMessageId(), "1.png");
+
+        assertThat(uut.remove(id), is(true));
+        assertThat(uut.remove(id), is(false));
+        assertThat(uut.get(id), nullValue());
+        assertThat(uut.get(DRAFT), hasSize(1));
+        assertThat(uut.getUserBytes("user1@localhost"), is(50L));
+    }
+
+    @Test
+    public void testTakeAndRelease() throws IOException {
+        uut.setMemoryThreshold(10);
+        uut.stage(DRAFT, dataSource("1.png", payload(100)));
+
+        List<StagedAttachment> staged = uut.take(DRAFT);
+
+        assertThat(staged, hasSize(1));
+        assertThat(uut.get(DRAFT), hasSize(0));
+        assertThat(read(staged.get(0)), notNullValue());
+
+        uut.release(staged);
+
+        assertThat(uut.getUserBytes("user1@localhost"), is(0L));
+    }
+
+    @Test
+    public void testExpireIdleDrafts() throws IOException {
+        CompositeId other = new CompositeId("INBOX.Drafts", "<2@localhost>");
+        uut.stage(DRAFT, dataSource("1.png", payload(100)));
+        uut.stage(other, dataSource("1.png", payload(10)));
+
+        uut.expire();
+
+        assertThat(uut.get(DRAFT), hasSize(1));
+
+        uut.setMaxIdleTime(-1);
+        uut.expire();
+
+        assertThat(uut.get(DRAFT), hasSize(0));
+        assertThat(uut.get(other), hasSize(0));
+        assertThat(uut.getUserBytes("user1@localhost"), is(0L));
+    }
+
+    private static ByteArrayDataSource dataSource(String name, byte[] payload) {
+        ByteArrayDataSource dataSource = new ByteArrayDataSource(payload, "image/png");
+        dataSource.setName(name);
+        return dataSource;
+    }
+
+    private static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+
+    private static byte[] read(StagedAttachment attachment) throws IOException {
+        try (InputStream input = attachment.getInputStream()) {
+            return IOUtils.toByteArray(input);
+        }
+    }
+}
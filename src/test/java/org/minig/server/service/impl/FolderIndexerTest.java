@@ -0,0 +1,119 @@
+package org.minig.server.service.impl;
+
+import com.sun.mail.imap.IMAPFolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.minig.MailAuthentication;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.internet.MimeMessage;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Kamill Sokol
+ */
+public class FolderIndexerTest {
+
+    private static final String USER = "user1@localhost";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FolderIndexer uut = new FolderIndexer();
+    private MessageIndex messageIndex = new MessageIndex();
+    private MailAuthentication authentication = mock(MailAuthentication.class);
+    private MailStorePool mailStorePool = mock(MailStorePool.class);
+    private Store store = mock(Store.class);
+    private IMAPFolder folder = mock(IMAPFolder.class);
+
+    @Before
+    public void setUp() throws Exception {
+        when(authentication.getEmailAddress()).thenReturn(USER);
+        when(mailStorePool.borrow(authentication)).thenReturn(store);
+        when(store.getFolder("INBOX")).thenReturn(folder);
+        when(store.isConnected()).thenReturn(true);
+        when(folder.getFullName()).thenReturn("INBOX");
+        when(folder.getUIDValidity()).thenReturn(1L);
+        when(folder.getUIDNext()).thenReturn(3L);
+
+        messageIndex.setDirectory(temporaryFolder.getRoot());
+        messageIndex.setAuthentication(authentication);
+        messageIndex.setBatchSize(1);
+
+        uut.setMessageIndex(messageIndex);
+        uut.setAuthentication(authentication);
+        uut.setMailStorePool(mailStorePool);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        uut.destroy();
+    }
+
+    @Test
+    public void testIndexInBatches() throws Exception {
+        Message first = message("Quarterly report", "<1@localhost>");
+        Message second = message("Report draft", "<2@localhost>");
+
+        when(folder.getMessagesByUID(1, UIDFolder.LASTUID)).thenReturn(new Message[] { first, second });
+        when(folder.getMessagesByUID(2, UIDFolder.LASTUID)).thenReturn(new Message[] { second });
+        when(folder.getUID(first)).thenReturn(1L);
+        when(folder.getUID(second)).thenReturn(2L);
+
+        assertThat(uut.indexBatch(authentication, "INBOX"), is(true));
+        assertThat(messageIndex.open("INBOX", 1).search("report"), contains(1L));
+
+        assertThat(uut.indexBatch(authentication, "INBOX"), is(false));
+        assertThat(messageIndex.open("INBOX", 1).search("report"), contains(2L, 1L));
+        assertThat(uut.indexBatch(authentication, "INBOX"), is(false));
+
+        verify(folder, times(3)).open(Folder.READ_ONLY);
+        verify(folder, times(3)).close(false);
+        verify(mailStorePool, times(3)).release(store);
+    }
+
+    @Test
+    public void testBrokenConnectionIsInvalidated() throws Exception {
+        doThrow(new MessagingException("connection lost")).when(folder).fetch(any(Message[].class), any(FetchProfile.class));
+        when(folder.getMessagesByUID(1, UIDFolder.LASTUID)).thenReturn(new Message[] { message("test", "<1@localhost>") });
+        when(store.isConnected()).thenReturn(false);
+
+        try {
+            uut.indexBatch(authentication, "INBOX");
+            fail("expected exception");
+        } catch (MessagingException e) {
+            assertThat(e.getMessage(), is("connection lost"));
+        }
+
+        verify(mailStorePool).invalidate(store);
+        assertThat(messageIndex.open("INBOX", 1).getLastUid(), is(0L));
+    }
+
+    private static Message message(String subject, String messageId) throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setSubject(subject);
+        message.setText("test");
+        message.setHeader("Message-ID", messageId);
+        return message;
+    }
+}
@@ -0,0 +1,114 @@
+package org.minig.server.service.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.minig.MailAuthentication;
+import org.minig.server.TestConstants;
+import org.minig.server.service.FolderEventListener;
+import org.minig.server.service.NotFoundException;
+import org.minig.server.service.RepositoryException;
+import org.minig.server.service.ServiceUnavailableException;
+import org.minig.test.javamail.MailboxRule;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Kamill Sokol
+ */
+public class FolderWatchServiceImplTest {
+
+    @Rule
+    public MailboxRule mailboxRule = new MailboxRule();
+
+    private FolderWatchServiceImpl uut;
+    private MailAuthentication authentication;
+    private MailStorePool mailStorePool;
+
+    @Before
+    public void setUp() throws Exception {
+        authentication = mock(MailAuthentication.class);
+        mailStorePool = new MailStorePool();
+
+        when(authentication.getEmailAddress()).thenReturn(TestConstants.MOCK_USER);
+        when(authentication.getUserMail()).thenReturn("testuser");
+        when(authentication.getDomain()).thenReturn("localhost");
+        when(authentication.getPassword()).thenReturn("login");
+
+        uut = new FolderWatchServiceImpl();
+        uut.setAuthentication(authentication);
+        uut.setMailStorePool(mailStorePool);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        uut.destroy();
+        mailStorePool.destroy();
+    }
+
+    @Test
+    public void testConnectionsPerUser() {
+        mailStorePool.setMaxConnectionsPerUser(1);
+
+        try {
+            uut.watch("INBOX", mock(FolderEventListener.class));
+            fail("expected ServiceUnavailableException");
+        } catch (ServiceUnavailableException e) {
+            assertThat(uut.getWatcherCount(), is(0));
+        }
+    }
+
+    @Test
+    public void testFailedWatcherReleasesConnection() {
+        mailStorePool.setMaxConnectionsPerUser(2);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                uut.watch("unknown", mock(FolderEventListener.class));
+                fail("expected NotFoundException");
+            } catch (NotFoundException e) {
+                assertThat(uut.getWatcherCount(), is(0));
+            }
+        }
+
+        assertThat(mailStorePool.reserve(authentication), notNullValue());
+    }
+
+    @Test
+    public void testMaxWatchers() {
+        uut.setMaxWatchers(0);
+
+        try {
+            uut.watch("INBOX", mock(FolderEventListener.class));
+            fail("expected ServiceUnavailableException");
+        } catch (ServiceUnavailableException e) {
+            assertThat(uut.getWatcherCount(), is(0));
+        }
+    }
+
+    @Test
+    public void testUnknownFolder() {
+        try {
+            uut.watch("unknown", mock(FolderEventListener.class));
+            fail("expected NotFoundException");
+        } catch (NotFoundException e) {
+            assertThat(uut.getWatcherCount(), is(0));
+        }
+    }
+
+    @Test
+    public void testNonImapFolder() {
+        try {
+            uut.watch("INBOX", mock(FolderEventListener.class));
+            fail("expected RepositoryException");
+        } catch (RepositoryException e) {
+            assertThat(uut.getWatcherCount(), is(0));
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package org.minig.server.service.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
@@ -11,8 +14,11 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.minig.server.MailMessage;
 import org.minig.server.MailMessageList;
+import org.minig.server.MailMessageSync;
 import org.minig.server.TestConstants;
 import org.minig.server.service.CompositeId;
+import org.minig.server.service.MessageFields;
+import org.minig.server.service.MessageSort;
 import org.minig.server.service.MimeMessageBuilder;
 import config.ServiceTestConfig;
 import org.minig.server.service.SmtpAndImapMockServer;
@@ -24,10 +30,13 @@ import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -62,6 +71,34 @@ public class MailRepositoryImplTest {
         assertEquals(id.getId(), mm.getId());
     }
 
+    @Test
+    public void testReadFlags() throws MessagingException {
+        MimeMessage m = new MimeMessageBuilder().setRead(false).build();
+
+        mockServer.prepareMailBox("INBOX", m);
+
+        CompositeId id = new CompositeId("INBOX", m.getMessageID());
+        MailMessage starred = new MailMessage();
+        starred.setCompositeId(id);
+        starred.setStarred(true);
+        uut.updateFlags(Collections.singletonList(starred));
+
+        MailMessage mm = uut.readFlags(id);
+
+        assertEquals(id.getId(), mm.getId());
+        assertTrue(mm.getStarred());
+        assertFalse(mm.getRead());
+        assertNull(mm.getSubject());
+    }
+
+    @Test
+    public void testReadFlagsNotFound() {
+        mockServer.prepareMailBox("INBOX", new MimeMessageBuilder().build());
+
+        assertNull(uut.readFlags(new CompositeId("INBOX", "<unknown@localhost>")));
+        assertNull(uut.readFlags(new CompositeId("INBOX.unknown", "<unknown@localhost>")));
+    }
+
     @Test
     public void testFolderCountVariance() {
         MimeMessage msg = new MimeMessageBuilder().build(TestConstants.PLAIN);
@@ -123,6 +160,113 @@ public class MailRepositoryImplTest {
         assertTrue(read.getRead());
     }
 
+    @Test
+    public void testUpdateFlagsInBulk() throws MessagingException {
+        List<MimeMessage> mList = new MimeMessageBuilder().setForwarded(true).build(3);
+        mockServer.prepareMailBox("INBOX", mList);
+
+        List<MailMessage> messages = new ArrayList<>();
+
+        for (MimeMessage m : mList) {
+            MailMessage message = new MailMessage();
+            message.setCompositeId(new CompositeId("INBOX", m.getMessageID()));
+            message.setRead(true);
+            message.setForwarded(false);
+            messages.add(message);
+        }
+
+        MailMessage unknown = new MailMessage();
+        unknown.setCompositeId(new CompositeId("INBOX", "unknown"));
+        unknown.setRead(true);
+        messages.add(unknown);
+
+        messages.add(null);
+
+        List<CompositeId> failed = uut.updateFlags(messages);
+
+        assertThat(failed, hasSize(1));
+        assertEquals(unknown.getId(), failed.get(0).getId());
+        assertThat(failed.get(0), not(instanceOf(MailMessage.class)));
+
+        for (MimeMessage m : mList) {
+            MailMessage read = uut.read(new CompositeId("INBOX", m.getMessageID()));
+
+            assertTrue(read.getRead());
+            assertFalse(read.getForwarded());
+            assertFalse(read.getStarred());
+        }
+    }
+
+    @Test
+    public void testUpdateFlagsInBulkUnknownFolder() {
+        MailMessage message = new MailMessage();
+        message.setCompositeId(new CompositeId("INBOX.unknown", "1"));
+        message.setRead(true);
+
+        assertThat(uut.updateFlags(Collections.singletonList(message)), hasSize(1));
+    }
+
+    @Test
+    public void testMoveMessages() throws MessagingException {
+        List<MimeMessage> mList = new MimeMessageBuilder().build(3);
+        mockServer.prepareMailBox("INBOX", mList);
+        mockServer.createAndSubscribeMailBox("INBOX.test");
+
+        List<CompositeId> ids = new ArrayList<>();
+        ids.add(new CompositeId("INBOX", mList.get(0).getMessageID()));
+        ids.add(new CompositeId("INBOX", mList.get(1).getMessageID()));
+        ids.add(new CompositeId("INBOX", "unknown"));
+
+        List<CompositeId> failed = uut.moveMessages(ids, "INBOX.test", true);
+
+        assertThat(failed, hasSize(1));
+        assertEquals("unknown", failed.get(0).getMessageId());
+        mockServer.verifyMessageCount("INBOX", 1);
+        mockServer.verifyMessageCount("INBOX.test", 2);
+        assertTrue(uut.read(new CompositeId("INBOX.test", mList.get(0).getMessageID())).getRead());
+    }
+
+    @Test
+    public void testMoveMessagesToUnknownFolder() throws MessagingException {
+        List<MimeMessage> mList = new MimeMessageBuilder().build(1);
+        mockServer.prepareMailBox("INBOX", mList);
+
+        List<CompositeId> ids = Collections.singletonList(new CompositeId("INBOX", mList.get(0).getMessageID()));
+
+        assertThat(uut.moveMessages(ids, "INBOX.unknown", true), hasSize(1));
+        mockServer.verifyMessageCount("INBOX", 1);
+    }
+
+    @Test
+    public void testMoveMessagesFromUnknownFolder() throws MessagingException {
+        List<MimeMessage> mList = new MimeMessageBuilder().build(1);
+        mockServer.prepareMailBox("INBOX", mList);
+        mockServer.createAndSubscribeMailBox("INBOX.test");
+
+        List<CompositeId> ids = new ArrayList<>();
+        ids.add(new CompositeId("INBOX.unknown", "1"));
+        ids.add(new CompositeId("INBOX", mList.get(0).getMessageID()));
+
+        List<CompositeId> failed = uut.moveMessages(ids, "INBOX.test", false);
+
+        assertThat(failed, hasSize(1));
+        assertEquals("INBOX.unknown", failed.get(0).getFolder());
+        mockServer.verifyMessageCount("INBOX.test", 1);
+    }
+
+    @Test
+    public void testDeleteMessages() throws MessagingException {
+        List<MimeMessage> mList = new MimeMessageBuilder().build(3);
+        mockServer.prepareMailBox("INBOX", mList);
+
+        List<CompositeId> ids = new ArrayList<>();
+        ids.add(new CompositeId("INBOX", mList.get(0).getMessageID()));
+        ids.add(new CompositeId("INBOX", mList.get(2).getMessageID()));
+
+        assertThat(uut.deleteMessages(ids), hasSize(0));
+        mockServer.verifyMessageCount("INBOX", 1);
+    }
+
     @Test
     public void testUpdateUserFlags() throws MessagingException {
         MimeMessageBuilder builder = new MimeMessageBuilder();
@@ -195,6 +339,26 @@ public class MailRepositoryImplTest {
         mockServer.verifyMessageCount("INBOX.copy", 1);
     }
 
+    @Test
+    public void testAppend() throws Exception {
+        MimeMessage m = new MimeMessageBuilder().build(TestConstants.PLAIN);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        m.writeTo(raw);
+
+        mockServer.createAndSubscribeMailBox("INBOX.Sent");
+
+        MailMessage seen = new MailMessage();
+        seen.setRead(Boolean.TRUE);
+
+        CompositeId id = uut.append(new ByteArrayInputStream(raw.toByteArray()), "INBOX.Sent", seen);
+
+        assertEquals(new CompositeId("INBOX.Sent", m.getMessageID()).getId(), id.getId());
+        mockServer.verifyMessageCount("INBOX.Sent", 1);
+
+        MailMessage flags = uut.readFlags(id);
+        assertTrue(flags.getRead());
+    }
+
     @Test
     public void testFindByMessageId() throws Exception {
         new MailboxBuilder("testuser@localhost").mailbox("INBOX").subscribed().exists().build();
@@ -214,4 +378,70 @@ public class MailRepositoryImplTest {
         assertThat(byMessageId.getId(), is(new CompositeId("INBOX.child2b.child1b", message.getMessageID()).getId()));
     }
 
+
+    @Test
+    public void testSyncWithoutUidSupport() {
+        mockServer.prepareMailBox("INBOX", new MimeMessageBuilder().build(TestConstants.PLAIN));
+
+        MailMessageSync sync = uut.sync("INBOX", null);
+
+        assertTrue(sync.isReset());
+        assertThat(sync.getAdded(), hasSize(0));
+    }
+
+    @Test
+    public void testFindByFolderSorted() {
+        MimeMessage b = new MimeMessageBuilder().setSubject("b").build();
+        MimeMessage c = new MimeMessageBuilder().setSubject("c").build();
+        MimeMessage a = new MimeMessageBuilder().setSubject("Re: a").build();
+
+        mockServer.prepareMailBox("INBOX", b, c, a);
+
+        MailMessageList page1 = uut.findByFolder("INBOX", 1, 2, MessageFields.ALL, MessageSort.parse("subject", false));
+        MailMessageList page2 = uut.findByFolder("INBOX", 2, 2, MessageFields.ALL, MessageSort.parse("subject", false));
+
+        assertThat(page1.getFullLength(), is(3));
+        assertThat(page1.getMailList().get(0).getSubject(), is("Re: a"));
+        assertThat(page1.getMailList().get(1).getSubject(), is("b"));
+        assertThat(page2.getMailList(), hasSize(1));
+        assertThat(page2.getMailList().get(0).getSubject(), is("c"));
+        assertThat(uut.findByFolder("INBOX", 3, 2, MessageFields.ALL, MessageSort.parse("subject", false)).getMailList(), hasSize(0));
+    }
+
+    @Test
+    public void testFindByFolderThreaded() throws MessagingException {
+        MimeMessage first = new MimeMessageBuilder().setSubject("hello").build();
+        MimeMessage other = new MimeMessageBuilder().setSubject("other").build();
+        MimeMessage reply = new MimeMessageBuilder().setSubject("Re: hello").build();
+
+        mockServer.prepareMailBox("INBOX", first, other, reply);
+
+        MailMessageList threads = uut.findByFolder("INBOX", 1, 10, MessageFields.ALL, MessageSort.THREAD);
+
+        assertThat(threads.getFullLength(), is(2));
+        assertThat(threads.getMailList(), hasSize(3));
+
+        String threadId = new CompositeId("INBOX", first.getMessageID()).getId();
+
+        for (MailMessage message : threads.getMailList()) {
+            assertThat(message.getThreadId(), is("other".equals(message.getSubject()) ? message.getId() : threadId));
+        }
+    }
+
+    @Test
+    public void testSearch() throws MessagingException {
+        MimeMessage report = new MimeMessageBuilder().setSubject("Quarterly report").build();
+        MimeMessage other = new MimeMessageBuilder().setSubject("other").build();
+        MimeMessage draft = new MimeMessageBuilder().setSubject("Report draft").build();
+
+        mockServer.prepareMailBox("INBOX", report, other, draft);
+
+        List<CompositeId> found = uut.search("INBOX", "report");
+
+        assertThat(found, hasSize(2));
+        assertThat(found.get(0).getId(), is(new CompositeId("INBOX", draft.getMessageID()).getId()));
+        assertThat(found.get(1).getId(), is(new CompositeId("INBOX", report.getMessageID()).getId()));
+        assertThat(uut.search("INBOX", "quarterly report"), hasSize(1));
+        assertThat(uut.search("INBOX", "unknown"), hasSize(0));
+    }
 }
@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
+import javax.activation.FileDataSource;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
@@ -53,6 +54,9 @@ public class MailServiceImplTest {
     @Autowired
     private SmtpAndImapMockServer mockServer;
 
+    @Autowired
+    private DraftStore draftStore;
+
     @Rule
     public MailboxRule mailboxRule = new MailboxRule();
 
@@ -261,6 +265,13 @@ public class MailServiceImplTest {
         assertEquals(1, uut.firstPageMessagesByFolder("INBOX.test").getFullLength());
     }
 
+    @Test(expected = NotFoundException.class)
+    public void testMoveUnknownMessageToFolder() {
+        mockServer.createAndSubscribeMailBox("INBOX.test");
+
+        uut.moveMessageToFolder(new CompositeId("INBOX", "unknown"), "INBOX.test");
+    }
+
     // @Test
     // public void testCreateMessage() {
     // MailMessage mm = new MailMessage();
@@ -330,6 +341,28 @@ public class MailServiceImplTest {
         assertEquals(3, uut.firstPageMessagesByFolder("INBOX.copy2").getFullLength());
     }
 
+    @Test
+    public void testFlagAsAnswered() throws MessagingException {
+        MimeMessage message = new MimeMessageBuilder().build();
+        mockServer.prepareMailBox("INBOX", message);
+
+        uut.flagAsAnswered(message.getMessageID());
+        uut.flagAsAnswered("<unknown@localhost>");
+
+        assertThat(uut.firstPageMessagesByFolder("INBOX").getMailList().get(0).getAnswered(), is(true));
+    }
+
+    @Test
+    public void testRemoveDraft() throws MessagingException {
+        MimeMessage draft = new MimeMessageBuilder().build();
+        mockServer.prepareMailBox("INBOX.Drafts", draft);
+
+        uut.removeDraft(new CompositeId("INBOX.Drafts", draft.getMessageID()));
+        uut.removeDraft(new CompositeId("INBOX.Drafts", "<unknown@localhost>"));
+
+        assertEquals(0, uut.firstPageMessagesByFolder("INBOX.Drafts").getFullLength());
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testDeleteMessages_InvalidArguments() {
         uut.deleteMessages(null);
@@ -388,6 +421,7 @@ public class MailServiceImplTest {
         assertThat(draftMessage.getTo().get(0).getEmail(), is("sender@localhost"));
         assertThat(draftMessage.getTo().get(0).getDisplayName(), is("sender@localhost"));
         assertThat(draftMessage.getBody().getPlain(), is("plain body"));
+        assertThat(draftMessage.getRead(), is(true));
     }
 
     @Test
@@ -509,4 +543,31 @@ public class MailServiceImplTest {
 
         assertThat(updateDraftMessage.getAttachments(), hasSize(0));
     }
+
+    @Test
+    public void testUpdateDraftMessageWithStagedAttachments() throws Exception {
+        MimeMessage m = new MimeMessageBuilder().setFolder("INBOX.Drafts").build(TestConstants.MULTIPART_WITH_PLAIN_AND_ATTACHMENT);
+        mockServer.prepareMailBox("INBOX.Drafts", m);
+        CompositeId id = new CompositeId("INBOX.Drafts", m.getMessageID());
+
+        draftStore.stage(id, new FileDataSource(TestConstants.ATTACHMENT_IMAGE_FOLDER_GIF));
+
+        MailMessage starred = new MailMessage();
+        starred.setCompositeId(id);
+        starred.setStarred(true);
+        uut.updateMessageFlags(starred);
+
+        MailMessage mm = new MailMessage();
+        mm.setCompositeId(id);
+        mm.setSubject("save draft");
+
+        MailMessage updateDraftMessage = uut.updateDraftMessage(mm);
+
+        mockServer.verifyMessageCount("INBOX.Drafts", 1);
+        assertThat(updateDraftMessage.getAttachments(), hasSize(3));
+        assertThat(updateDraftMessage.getAttachments().get(2).getFileName(), is("folder.gif"));
+        assertThat(updateDraftMessage.getRead(), is(true));
+        assertThat(updateDraftMessage.getStarred(), is(true));
+        assertThat(draftStore.getUserBytes(TestConstants.MOCK_USER), is(0L));
+    }
 }
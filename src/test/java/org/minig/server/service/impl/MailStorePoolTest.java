@@ -0,0 +1,133 @@
+package org.minig.server.service.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.minig.MailAuthentication;
+import org.minig.test.javamail.MailboxRule;
+
+import javax.mail.Store;
+import java.io.Closeable;
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Kamill Sokol
+ */
+public class MailStorePoolTest {
+
+    @Rule
+    public MailboxRule mailboxRule = new MailboxRule();
+
+    private MailStorePool uut;
+    private MailAuthentication authentication;
+
+    @Before
+    public void setUp() throws Exception {
+        uut = new MailStorePool();
+        authentication = mock(MailAuthentication.class);
+
+        when(authentication.getUserMail()).thenReturn("testuser");
+        when(authentication.getDomain()).thenReturn("localhost");
+        when(authentication.getPassword()).thenReturn("login");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        uut.destroy();
+    }
+
+    @Test
+    public void testReleasedStoreIsReused() {
+        Store store = uut.borrow(authentication);
+        uut.release(store);
+
+        assertThat(uut.borrow(authentication), sameInstance(store));
+        assertThat(store.isConnected(), is(true));
+    }
+
+    @Test
+    public void testInvalidatedStoreIsNotReused() {
+        Store store = uut.borrow(authentication);
+        uut.invalidate(store);
+
+        assertThat(uut.borrow(authentication), not(sameInstance(store)));
+        assertThat(store.isConnected(), is(false));
+    }
+
+    @Test
+    public void testPasswordChangeDropsIdleStores() {
+        Store store = uut.borrow(authentication);
+        uut.release(store);
+
+        when(authentication.getPassword()).thenReturn("changed");
+
+        assertThat(uut.borrow(authentication), not(sameInstance(store)));
+        assertThat(store.isConnected(), is(false));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testMaxConnectionsPerUser() {
+        uut.setMaxConnectionsPerUser(1);
+        uut.setBorrowTimeout(10);
+
+        uut.borrow(authentication);
+        uut.borrow(authentication);
+    }
+
+    @Test
+    public void testTryBorrow() {
+        uut.setMaxConnectionsPerUser(1);
+
+        Store store = uut.tryBorrow(authentication);
+
+        assertThat(store.isConnected(), is(true));
+        assertThat(uut.tryBorrow(authentication), nullValue());
+
+        uut.release(store);
+
+        assertThat(uut.tryBorrow(authentication), sameInstance(store));
+    }
+
+    @Test
+    public void testReserve() throws IOException {
+        uut.setMaxConnectionsPerUser(2);
+
+        Closeable reservation = uut.reserve(authentication);
+
+        assertThat(reservation, notNullValue());
+        assertThat(uut.reserve(authentication), nullValue());
+
+        Store store = uut.tryBorrow(authentication);
+
+        assertThat(store, notNullValue());
+        assertThat(uut.tryBorrow(authentication), nullValue());
+
+        reservation.close();
+        reservation.close();
+
+        assertThat(uut.tryBorrow(authentication), notNullValue());
+        assertThat(uut.tryBorrow(authentication), nullValue());
+    }
+
+    @Test
+    public void testEvictIdle() {
+        uut.setIdleTimeout(-1);
+
+        Store store = uut.borrow(authentication);
+        uut.release(store);
+        uut.evictIdle();
+
+        assertThat(store.isConnected(), is(false));
+        assertThat(uut.borrow(authentication), not(sameInstance(store)));
+    }
+}
@@ -0,0 +1,118 @@
+package org.minig.server.service.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.minig.MailAuthentication;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Kamill Sokol
+ */
+public class MessageIdCacheTest {
+
+    private MessageIdCache uut = new MessageIdCache();
+    private MailAuthentication authentication = mock(MailAuthentication.class);
+
+    @Before
+    public void setUp() throws Exception {
+        when(authentication.getEmailAddress()).thenReturn("user1@localhost");
+        uut.setAuthentication(authentication);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        uut.destroy();
+    }
+
+    @Test
+    public void testIdleUserIsEvicted() {
+        uut.put("INBOX", "<1>", 1L, 10L);
+        uut.evictIdle();
+
+        assertThat(uut.get("INBOX", "<1>", 1L), is(10L));
+
+        uut.setIdleTimeout(-1);
+        uut.evictIdle();
+
+        assertThat(uut.get("INBOX", "<1>", 1L), nullValue());
+        assertThat(uut.findFolder("<1>"), nullValue());
+    }
+
+    @Test
+    public void testGet() {
+        uut.put("INBOX", "<1>", 1L, 10L);
+
+        assertThat(uut.get("INBOX", "<1>", 1L), is(10L));
+        assertThat(uut.get("INBOX", "<2>", 1L), nullValue());
+        assertThat(uut.get("INBOX.Trash", "<1>", 1L), nullValue());
+    }
+
+    @Test
+    public void testFind() {
+        uut.put("INBOX", "<1>", 1L, 10L);
+
+        assertThat(uut.find("INBOX", "<1>"), is(new long[] { 1L, 10L }));
+        assertThat(uut.find("INBOX", "<2>"), nullValue());
+    }
+
+    @Test
+    public void testFindFolder() {
+        uut.put("INBOX", "<1>", 1L, 10L);
+        uut.put("INBOX.Archive", "<1>", 1L, 20L);
+        uut.put("INBOX", "<2>", 1L, 11L);
+
+        assertThat(uut.findFolder("<1>"), is("INBOX.Archive"));
+
+        uut.remove("INBOX.Archive", "<1>");
+        uut.put("INBOX", "<2>", 2L, 12L);
+
+        assertThat(uut.findFolder("<1>"), nullValue());
+        assertThat(uut.findFolder("<2>"), is("INBOX"));
+    }
+
+    @Test
+    public void testUidValidityChanged() {
+        uut.put("INBOX", "<1>", 1L, 10L);
+        uut.put("INBOX", "<2>", 1L, 11L);
+
+        assertThat(uut.get("INBOX", "<1>", 2L), nullValue());
+        assertThat(uut.get("INBOX", "<2>", 1L), nullValue());
+    }
+
+    @Test
+    public void testPerUser() {
+        uut.put("INBOX", "<1>", 1L, 10L);
+
+        when(authentication.getEmailAddress()).thenReturn("user2@localhost");
+
+        assertThat(uut.get("INBOX", "<1>", 1L), nullValue());
+    }
+
+    @Test
+    public void testBounded() {
+        uut.setMaxEntriesPerUser(2);
+
+        uut.put("INBOX", "<1>", 1L, 10L);
+        uut.put("INBOX", "<2>", 1L, 11L);
+        uut.get("INBOX", "<1>", 1L);
+        uut.put("INBOX", "<3>", 1L, 12L);
+
+        assertThat(uut.get("INBOX", "<1>", 1L), is(10L));
+        assertThat(uut.get("INBOX", "<2>", 1L), nullValue());
+        assertThat(uut.get("INBOX", "<3>", 1L), is(12L));
+    }
+
+    @Test
+    public void testRemove() {
+        uut.put("INBOX", "<1>", 1L, 10L);
+        uut.remove("INBOX", "<1>");
+
+        assertThat(uut.get("INBOX", "<1>", 1L), nullValue());
+    }
+}
@@ -0,0 +1,213 @@
+package org.minig.server.service.impl;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.minig.MailAuthentication;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Kamill Sokol
+ */
+public class MessageIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MessageIndex uut;
+    private MailAuthentication authentication = mock(MailAuthentication.class);
+
+    @Before
+    public void setUp() throws Exception {
+        when(authentication.getEmailAddress()).thenReturn("user1@localhost");
+        uut = newIndex();
+    }
+
+    @Test
+    public void testTokenize() {
+        assertThat(MessageIndex.tokenize("Re: Report-2015, a Über.pdf"), contains("re", "report", "2015", "über", "pdf"));
+        assertThat(MessageIndex.tokenize(null), empty());
+    }
+
+    @Test
+    public void testSearch() throws IOException {
+        MessageIndex.FolderIndex index = uut.open("INBOX", 1);
+        index.add(Arrays.asList(
+                new MessageIndex.Document(1, "<1@localhost>", "Meeting tomorrow alice@localhost"),
+                new MessageIndex.Document(2, "<2@localhost>", "Quarterly report.pdf alice@localhost"),
+                new MessageIndex.Document(3, "<3@localhost>", "report draft bob@localhost")), 4);
+
+        assertThat(index.getLastUid(), is(4L));
+        assertThat(index.search("report"), contains(3L, 2L));
+        assertThat(index.search("ALICE rep"), contains(2L));
+        assertThat(index.search("alice unknown"), empty());
+        assertThat(index.search("   "), empty());
+        assertThat(index.getMessageId(2), is("<2@localhost>"));
+    }
+
+    @Test
+    public void testRemove() throws IOException {
+        MessageIndex.FolderIndex index = uut.open("INBOX", 1);
+        index.add(Arrays.asList(new MessageIndex.Document(1, "<1@localhost>", "report"),
+                new MessageIndex.Document(2, "<2@localhost>", "report")), 2);
+
+        index.remove(Collections.singletonList(2L));
+
+        assertThat(index.search("report"), contains(1L));
+        assertThat(index.size(), is(1));
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        MessageIndex.FolderIndex index = uut.open("INBOX", 1);
+        index.add(Arrays.asList(new MessageIndex.Document(1, "<1@localhost>", "report"),
+                new MessageIndex.Document(2, "<2@localhost>", "invoice")), 2);
+        index.remove(Collections.singletonList(2L));
+        uut.save(index);
+
+        MessageIndex.FolderIndex reloaded = newIndex().open("INBOX", 1);
+
+        assertThat(reloaded.getLastUid(), is(2L));
+        assertThat(reloaded.search("report"), contains(1L));
+        assertThat(reloaded.search("invoice"), empty());
+        assertThat(reloaded.getMessageId(1), is("<1@localhost>"));
+    }
+
+    @Test
+    public void testChangesAreAppended() throws IOException {
+        MessageIndex.FolderIndex index = uut.open("INBOX", 1);
+        index.add(Collections.singletonList(new MessageIndex.Document(1, "<1@localhost>", "report")), 1);
+        uut.save(index);
+
+        File file = new File(temporaryFolder.getRoot(), "user1%40localhost/INBOX.idx");
+        File journal = new File(temporaryFolder.getRoot(), "user1%40localhost/INBOX.idx.log");
+        long length = file.length();
+
+        index.add(Collections.singletonList(new MessageIndex.Document(2, "<2@localhost>", "report invoice")), 2);
+        uut.save(index);
+        index.remove(Collections.singletonList(1L));
+        uut.save(index);
+
+        assertThat(file.length(), is(length));
+        assertThat(journal.isFile(), is(true));
+
+        MessageIndex.FolderIndex reloaded = newIndex().open("INBOX", 1);
+
+        assertThat(reloaded.getLastUid(), is(2L));
+        assertThat(reloaded.search("report"), contains(2L));
+        assertThat(reloaded.getMessageId(2), is("<2@localhost>"));
+    }
+
+    @Test
+    public void testBrokenJournal() throws IOException {
+        MessageIndex.FolderIndex index = uut.open("INBOX", 1);
+        index.add(Collections.singletonList(new MessageIndex.Document(1, "<1@localhost>", "report")), 1);
+        uut.save(index);
+        index.add(Collections.singletonList(new MessageIndex.Document(2, "<2@localhost>", "report")), 2);
+        uut.save(index);
+        index.add(Collections.singletonList(new MessageIndex.Document(3, "<3@localhost>", "report")), 3);
+        uut.save(index);
+
+        File journal = new File(temporaryFolder.getRoot(), "user1%40localhost/INBOX.idx.log");
+
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        MessageIndex reopened = newIndex();
+        MessageIndex.FolderIndex reloaded = reopened.open("INBOX", 1);
+
+        assertThat(reloaded.getLastUid(), is(2L));
+        assertThat(reloaded.search("report"), contains(2L, 1L));
+
+        reopened.save(reloaded);
+
+        assertThat(journal.exists(), is(false));
+        assertThat(newIndex().open("INBOX", 1).search("report"), contains(2L, 1L));
+    }
+
+    @Test
+    public void testUidValidityChange() throws IOException {
+        MessageIndex.FolderIndex index = uut.open("INBOX", 1);
+        index.add(Collections.singletonList(new MessageIndex.Document(1, "<1@localhost>", "report")), 1);
+        uut.save(index);
+
+        MessageIndex.FolderIndex changed = newIndex().open("INBOX", 2);
+
+        assertThat(changed.getLastUid(), is(0L));
+        assertThat(changed.search("report"), empty());
+    }
+
+    @Test
+    public void testIndexesPerUser() throws IOException {
+        uut.open("INBOX", 1).add(Collections.singletonList(new MessageIndex.Document(1, "<1@localhost>", "report")), 1);
+
+        when(authentication.getEmailAddress()).thenReturn("user2@localhost");
+
+        assertThat(uut.open("INBOX", 1).search("report"), empty());
+    }
+
+    @Test
+    public void testOpenFoldersPerUser() throws IOException {
+        uut.setMaxOpenFoldersPerUser(1);
+
+        MessageIndex.FolderIndex inbox = uut.open("INBOX", 1);
+
+        when(authentication.getEmailAddress()).thenReturn("user2@localhost");
+        MessageIndex.FolderIndex other = uut.open("INBOX", 1);
+        uut.open("INBOX/Sent", 1);
+
+        assertThat(uut.open("INBOX", 1), not(sameInstance(other)));
+
+        when(authentication.getEmailAddress()).thenReturn("user1@localhost");
+
+        assertThat(uut.open("INBOX", 1), sameInstance(inbox));
+    }
+
+    @Test
+    public void testFilesAreOwnerOnly() throws IOException {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+
+        MessageIndex.FolderIndex index = uut.open("INBOX", 1);
+        index.add(Collections.singletonList(new MessageIndex.Document(1, "<1@localhost>", "report")), 1);
+        uut.save(index);
+
+        File userDirectory = new File(temporaryFolder.getRoot(), "user1%40localhost");
+
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(userDirectory.toPath())), is("rwx------"));
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(new File(userDirectory, "INBOX.idx").toPath())), is("rw-------"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoDirectory() throws IOException {
+        MessageIndex index = new MessageIndex();
+        index.setAuthentication(authentication);
+        index.open("INBOX", 1);
+    }
+
+    private MessageIndex newIndex() {
+        MessageIndex index = new MessageIndex();
+        index.setAuthentication(authentication);
+        index.setDirectory(temporaryFolder.getRoot());
+        return index;
+    }
+}
@@ -0,0 +1,142 @@
+package org.minig.server.service.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.minig.server.service.CompositeId;
+import org.minig.server.service.MockMailAuthentication;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.UIDFolder;
+import javax.mail.search.MessageIDTerm;
+import javax.mail.search.SearchTerm;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * @author Kamill Sokol
+ */
+public class MessageLocatorTest {
+
+    private MessageIdCache messageIdCache = new MessageIdCache();
+    private MessageLocator uut = new MessageLocator(messageIdCache);
+    private Folder folder;
+    private Message message = mock(Message.class);
+    private Message searched = mock(Message.class);
+
+    @Before
+    public void setUp() throws Exception {
+        messageIdCache.setAuthentication(new MockMailAuthentication());
+        folder = mock(Folder.class, withSettings().extraInterfaces(UIDFolder.class));
+
+        when(((UIDFolder) folder).getUIDValidity()).thenReturn(10L);
+        when(((UIDFolder) folder).getMessageByUID(20L)).thenReturn(message);
+        when(((UIDFolder) folder).getUID(searched)).thenReturn(30L);
+        when(((UIDFolder) folder).getMessageByUID(30L)).thenReturn(searched);
+        when(folder.getFullName()).thenReturn("INBOX");
+        when(message.getHeader("Message-ID")).thenReturn(new String[] { "<id>" });
+        when(folder.search(any(SearchTerm.class))).thenReturn(new Message[] { searched });
+    }
+
+    @Test
+    public void testFindByUid() throws Exception {
+        CompositeId id = new CompositeId("INBOX", "<id>");
+        id.setUidValidity(10L);
+        id.setUid(20L);
+
+        assertThat(uut.find(folder, id), arrayContaining(message));
+        verify(folder, never()).search(any(MessageIDTerm.class));
+    }
+
+    @Test
+    public void testFallbackOnChangedUidValidity() throws Exception {
+        CompositeId id = new CompositeId("INBOX", "<id>");
+        id.setUidValidity(11L);
+        id.setUid(20L);
+
+        assertThat(uut.find(folder, id), arrayContaining(searched));
+        verify((UIDFolder) folder, never()).getMessageByUID(anyLong());
+    }
+
+    @Test
+    public void testFallbackOnUnknownUid() throws Exception {
+        CompositeId id = new CompositeId("INBOX", "<id>");
+        id.setUidValidity(10L);
+        id.setUid(21L);
+
+        assertThat(uut.find(folder, id), arrayContaining(searched));
+    }
+
+    @Test
+    public void testFallbackOnReusedUid() throws Exception {
+        CompositeId id = new CompositeId("INBOX", "<id>");
+        id.setUidValidity(10L);
+        id.setUid(20L);
+
+        when(message.getHeader("Message-ID")).thenReturn(new String[] { "<other>" });
+
+        assertThat(uut.find(folder, id), arrayContaining(searched));
+        verify(folder).search(any(MessageIDTerm.class));
+    }
+
+    @Test
+    public void testFindByMessageId() throws Exception {
+        assertThat(uut.find(folder, new CompositeId("INBOX", "<id>")), arrayContaining(searched));
+    }
+
+    @Test
+    public void testWithoutMessageId() throws Exception {
+        assertThat(uut.find(folder, new CompositeId()), emptyArray());
+    }
+
+    @Test
+    public void testSearchResultIsCached() throws Exception {
+        CompositeId id = new CompositeId("INBOX", "<id>");
+
+        assertThat(uut.find(folder, id), arrayContaining(searched));
+        assertThat(uut.find(folder, id), arrayContaining(searched));
+
+        verify(folder, times(1)).search(any(SearchTerm.class));
+    }
+
+    @Test
+    public void testFindByCachedUid() throws Exception {
+        messageIdCache.put("INBOX", "<id>", 10L, 20L);
+
+        assertThat(uut.find(folder, new CompositeId("INBOX", "<id>")), arrayContaining(message));
+        verify(folder, never()).search(any(SearchTerm.class));
+    }
+
+    @Test
+    public void testFindAll() throws Exception {
+        CompositeId byUid = new CompositeId("INBOX", "<id1>");
+        byUid.setUidValidity(10L);
+        byUid.setUid(20L);
+        CompositeId byMessageId = new CompositeId("INBOX", "<id>");
+        CompositeId unknown = new CompositeId("INBOX", "<unknown>");
+
+        when(((UIDFolder) folder).getMessagesByUID(new long[] { 20L })).thenReturn(new Message[] { message });
+        when(message.getHeader("Message-ID")).thenReturn(new String[] { "<id1>" });
+        when(searched.getHeader("Message-ID")).thenReturn(new String[] { "<id>" });
+
+        Map<CompositeId, Message> found = uut.findAll(folder, Arrays.asList(byUid, byMessageId, unknown));
+
+        assertThat(found.get(byUid), is(message));
+        assertThat(found.get(byMessageId), is(searched));
+        assertThat(found.containsKey(unknown), is(false));
+        verify(folder, times(1)).search(any(SearchTerm.class));
+    }
+}
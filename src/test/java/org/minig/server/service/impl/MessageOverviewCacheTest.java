@@ -0,0 +1,151 @@
+package org.minig.server.service.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.minig.MailAuthentication;
+import org.minig.server.MailMessage;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Kamill Sokol
+ */
+public class MessageOverviewCacheTest {
+
+    private MessageOverviewCache uut = new MessageOverviewCache();
+    private MailAuthentication authentication = mock(MailAuthentication.class);
+
+    @Before
+    public void setUp() throws Exception {
+        when(authentication.getEmailAddress()).thenReturn("user1@localhost");
+        uut.setAuthentication(authentication);
+    }
+
+    @Test
+    public void testGetReturnsCopy() {
+        MailMessage message = message("<1>", "subject");
+        uut.put("INBOX", 1L, 10L, message);
+
+        MailMessage cached = uut.get("INBOX", 1L, 10L);
+        cached.setRead(true);
+
+        assertThat(cached, not(sameInstance(message)));
+        assertThat(cached.getSubject(), is("subject"));
+        assertThat(cached.getUid(), is(10L));
+        assertThat(uut.get("INBOX", 1L, 10L).getRead(), is(false));
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        uut.put("INBOX", 1L, 10L, message("<1>", "subject"));
+
+        uut.get("INBOX", 1L, 10L);
+        uut.get("INBOX", 1L, 11L);
+        uut.get("INBOX", 2L, 10L);
+
+        assertThat(uut.getHits(), is(1L));
+        assertThat(uut.getMisses(), is(2L));
+    }
+
+    @Test
+    public void testPerUser() {
+        uut.put("INBOX", 1L, 10L, message("<1>", "subject"));
+
+        when(authentication.getEmailAddress()).thenReturn("user2@localhost");
+
+        assertThat(uut.get("INBOX", 1L, 10L), nullValue());
+    }
+
+    @Test
+    public void testUidValidityChanged() {
+        uut.getState("INBOX", 1L).putUid(1, 10L);
+        uut.put("INBOX", 1L, 10L, message("<1>", "subject"));
+
+        MessageOverviewCache.FolderState state = uut.getState("INBOX", 2L);
+
+        assertThat(state.getUid(1), nullValue());
+        assertThat(uut.get("INBOX", 1L, 10L), nullValue());
+        assertThat(uut.getSize(), is(MessageOverviewCache.FolderState.EMPTY_SIZE));
+    }
+
+    @Test
+    public void testFolderStateUpdate() {
+        MessageOverviewCache.FolderState state = uut.getState("INBOX", 1L);
+
+        assertThat(state.update(11L, 10, 100L), is(false));
+        state.putUid(10, 10L);
+
+        assertThat(state.update(11L, 10, 100L), is(true));
+        assertThat(state.getUid(10), is(10L));
+
+        assertThat(state.update(11L, 10, 101L), is(false));
+        assertThat(state.getUid(10), is(10L));
+
+        assertThat(state.update(12L, 10, 102L), is(false));
+        assertThat(state.getUid(10), nullValue());
+    }
+
+    @Test
+    public void testFolderStateWithoutCondstore() {
+        MessageOverviewCache.FolderState state = uut.getState("INBOX", 1L);
+
+        state.update(11L, 10, -1L);
+        state.putUid(10, 10L);
+
+        assertThat(state.update(11L, 10, -1L), is(false));
+        assertThat(state.getUid(10), is(10L));
+    }
+
+    @Test
+    public void testMemoryBound() {
+        MailMessage message = message("<1>", "subject");
+        long size = MessageOverviewCache.estimateSize(message);
+        uut.setMaxBytes(size * 2);
+
+        uut.put("INBOX", 1L, 1L, message);
+        uut.put("INBOX", 1L, 2L, message("<2>", "subject"));
+        uut.get("INBOX", 1L, 1L);
+        uut.put("INBOX", 1L, 3L, message("<3>", "subject"));
+
+        assertThat(uut.get("INBOX", 1L, 1L), notNullValue());
+        assertThat(uut.get("INBOX", 1L, 2L), nullValue());
+        assertThat(uut.get("INBOX", 1L, 3L), notNullValue());
+        assertThat(uut.getSize(), is(size * 2));
+    }
+
+    @Test
+    public void testFolderStatesAreBounded() {
+        uut.setMaxBytes(MessageOverviewCache.FolderState.EMPTY_SIZE * 2);
+
+        MessageOverviewCache.FolderState inbox = uut.getState("INBOX", 1L);
+        inbox.putUid(1, 10L);
+        long size = uut.getSize();
+
+        inbox.putOrder("DATE", MessageSorter.Order.flat(new int[] { 1 }, false), 11L, 1, -1L);
+        assertThat(uut.getSize() > size, is(true));
+
+        uut.getState("INBOX.Sent", 1L);
+
+        assertThat(uut.getState("INBOX", 1L), not(sameInstance(inbox)));
+        assertThat(uut.getState("INBOX", 1L).getUid(1), nullValue());
+        assertThat(uut.getSize(), is(MessageOverviewCache.FolderState.EMPTY_SIZE * 2));
+    }
+
+    private static MailMessage message(String messageId, String subject) {
+        MailMessage message = new MailMessage();
+        message.setFolder("INBOX");
+        message.setMessageId(messageId);
+        message.setUidValidity(1L);
+        message.setUid(10L);
+        message.setSubject(subject);
+        message.setRead(false);
+        return message;
+    }
+}
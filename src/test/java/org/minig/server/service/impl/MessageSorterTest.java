@@ -0,0 +1,131 @@
+package org.minig.server.service.impl;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import org.junit.Test;
+import org.minig.MailAuthentication;
+import org.minig.server.MailMessage;
+import org.minig.server.service.MessageSort;
+
+import javax.mail.FetchProfile;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Kamill Sokol
+ */
+public class MessageSorterTest {
+
+    @Test
+    public void testParseThreads() {
+        List<int[]> threads = MessageSorter.parseThreads("(2)(3 6 (4 23)(44 7 96)) (10 12)");
+
+        assertThat(threads, hasSize(3));
+        assertThat(threads.get(0), is(new int[] { 2 }));
+        assertThat(threads.get(1), is(new int[] { 3, 6, 4, 23, 44, 7, 96 }));
+        assertThat(threads.get(2), is(new int[] { 10, 12 }));
+    }
+
+    @Test
+    public void testParseThreadsEmpty() {
+        assertThat(MessageSorter.parseThreads(""), hasSize(0));
+    }
+
+    @Test
+    public void testBaseSubject() {
+        assertThat(MessageSorter.baseSubject("Re: [list] Fwd: RE[2]: Hello  World (fwd)"), is("hello world"));
+        assertThat(MessageSorter.baseSubject("Hello"), is("hello"));
+        assertThat(MessageSorter.baseSubject(null), is(""));
+    }
+
+    @Test
+    public void testLocalSort() {
+        List<MessageSorter.SortKey> keys = Arrays.asList(
+                new MessageSorter.SortKey(1, 300, "b@localhost", "b", 10, false),
+                new MessageSorter.SortKey(2, 100, "a@localhost", "Re: a", 30, true),
+                new MessageSorter.SortKey(3, 200, "a@localhost", "c", 20, false));
+
+        assertThat(sort(keys, "date"), is(new int[] { 2, 3, 1 }));
+        assertThat(sort(keys, "-size"), is(new int[] { 2, 3, 1 }));
+        assertThat(sort(keys, "subject"), is(new int[] { 2, 1, 3 }));
+        assertThat(sort(keys, "from,-date"), is(new int[] { 3, 2, 1 }));
+        assertThat(sort(keys, "-flagged,date"), is(new int[] { 2, 3, 1 }));
+    }
+
+    @Test
+    public void testSubjectThreads() {
+        List<MessageSorter.SortKey> keys = Arrays.asList(
+                new MessageSorter.SortKey(1, 100, "a@localhost", "Hello", 0, false),
+                new MessageSorter.SortKey(2, 200, "b@localhost", "Other", 0, false),
+                new MessageSorter.SortKey(3, 300, "b@localhost", "Re: hello", 0, false));
+
+        List<int[]> threads = MessageSorter.subjectThreads(keys);
+
+        assertThat(threads, hasSize(2));
+        assertThat(threads.get(0), is(new int[] { 1, 3 }));
+        assertThat(threads.get(1), is(new int[] { 2 }));
+    }
+
+    @Test
+    public void testOrderSlice() {
+        MessageSorter.Order order = MessageSorter.Order.threads(Arrays.asList(new int[] { 5, 1 }, new int[] { 4 }, new int[] { 3, 2 }), false);
+
+        assertThat(order.size(), is(3));
+        assertThat(order.isThreaded(), is(true));
+        assertThat(order.slice(1, 3), hasSize(2));
+        assertThat(order.slice(1, 3).get(1), is(new int[] { 3, 2 }));
+
+        MessageSorter.Order flat = MessageSorter.Order.flat(new int[] { 3, 1, 2 }, false);
+
+        assertThat(flat.size(), is(3));
+        assertThat(flat.slice(2, 3).get(0), is(new int[] { 2 }));
+    }
+
+    @Test
+    public void testLocalSortUsesCachedOverviews() throws MessagingException {
+        MailAuthentication authentication = mock(MailAuthentication.class);
+        when(authentication.getEmailAddress()).thenReturn("testuser@localhost");
+        MessageOverviewCache overviews = new MessageOverviewCache();
+        overviews.setAuthentication(authentication);
+
+        MailMessage overview = new MailMessage();
+        overview.setDate(new Date(300));
+        overviews.put("INBOX", 1L, 11L, overview);
+
+        Message cached = mock(Message.class);
+        Message missing = mock(Message.class);
+        when(missing.getSentDate()).thenReturn(new Date(100));
+
+        IMAPFolder folder = mock(IMAPFolder.class);
+        when(folder.getStore()).thenReturn(mock(IMAPStore.class));
+        when(folder.getFullName()).thenReturn("INBOX");
+        when(folder.getUIDValidity()).thenReturn(1L);
+        when(folder.getMessages()).thenReturn(new Message[] { cached, missing });
+        when(folder.getUID(cached)).thenReturn(11L);
+        when(folder.getUID(missing)).thenReturn(12L);
+
+        MessageSorter.Order order = MessageSorter.sort(folder, MessageSort.parse("-date", false), overviews);
+
+        assertThat(order.slice(0, 2).get(0), is(new int[] { 1 }));
+        assertThat(order.slice(0, 2).get(1), is(new int[] { 2 }));
+        verify(folder).fetch(argThat(is(new Message[] { missing })), any(FetchProfile.class));
+        verify(cached, never()).getSentDate();
+    }
+
+    private static int[] sort(List<MessageSorter.SortKey> keys, String sort) {
+        return MessageSorter.localSort(keys, MessageSort.parse(sort, false).getTerms());
+    }
+}
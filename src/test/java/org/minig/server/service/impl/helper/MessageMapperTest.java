@@ -2,28 +2,24 @@ package org.minig.server.service.impl.helper;
 
 import org.hamcrest.Matchers;
 import org.junit.Before;
-import org.junit.BeforeClass;
 import org.junit.Test;
 import org.minig.server.MailMessage;
 import org.minig.server.MailMessageBody;
 import org.minig.server.TestConstants;
-import org.minig.server.converter.MessageToCompositeAttachmentIdConverter;
 import org.minig.server.service.CompositeAttachmentId;
+import org.minig.server.service.MessageFields;
 import org.minig.server.service.MimeMessageBuilder;
 import org.minig.server.service.impl.MailContext;
 import org.minig.server.service.impl.helper.mime.Mime4jMessage;
 import org.minig.server.service.impl.helper.mime.Mime4jTestHelper;
-import org.springframework.context.support.ConversionServiceFactoryBean;
-import org.springframework.core.convert.converter.Converter;
 
 import javax.mail.BodyPart;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.hasSize;
@@ -34,8 +30,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -46,19 +46,6 @@ public class MessageMapperTest {
     private static MessageMapper uut = new MessageMapper();
     private static MailContext mailContextMock = mock(MailContext.class);
 
-    @BeforeClass
-    public static void beforeClass() {
-        ConversionServiceFactoryBean conversionServiceFactoryBean = new ConversionServiceFactoryBean();
-
-        Set<Converter> converters = new HashSet<>();
-        converters.add(new MessageToCompositeAttachmentIdConverter());
-
-        conversionServiceFactoryBean.setConverters(converters);
-        conversionServiceFactoryBean.afterPropertiesSet();
-
-        uut.setConversionService(conversionServiceFactoryBean.getObject());
-    }
-
     @Before
     public void before() {
         uut.setMailContext(mailContextMock);
@@ -259,6 +246,48 @@ public class MessageMapperTest {
         assertThat(plainPart.getContent(), Matchers.<Object>is("html"));
     }
 
+    @Test
+    public void testConvertShortWithFields() throws Exception {
+        MimeMessage mime = new MimeMessageBuilder().build(TestConstants.MULTIPART_WITH_ATTACHMENT);
+
+        MailMessage message = uut.convertShort(mime, MessageFields.parse("subject,read"));
+
+        assertThat(message.getId(), is(mime.getFolder().getFullName() + "|" + mime.getMessageID()));
+        assertThat(message.getSubject(), is(mime.getSubject()));
+        assertThat(message.getRead(), is(false));
+        assertThat(message.getSender(), nullValue());
+        assertThat(message.getAttachments(), nullValue());
+        assertThat(message.getForwarded(), nullValue());
+        verify(mime, never()).getContent();
+    }
+
+    @Test
+    public void testConvertShortReadsStructureOnly() throws Exception {
+        MimeMessage mime = new MimeMessageBuilder().build(TestConstants.MULTIPART_WITH_ATTACHMENT);
+        MimeMultipart source = (MimeMultipart) mime.getContent();
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        List<BodyPart> parts = new ArrayList<>();
+
+        for (int i = 0; i < source.getCount(); i++) {
+            BodyPart part = spy(source.getBodyPart(i));
+            parts.add(part);
+            multipart.addBodyPart(part);
+        }
+
+        doReturn(multipart).when(mime).getContent();
+
+        MailMessage message = uut.convertShort(mime);
+
+        assertThat(message.getAttachments(), hasSize(2));
+        assertThat(message.getAttachments().get(1).getFileName(), is("2.png"));
+
+        for (BodyPart part : parts) {
+            verify(part, never()).getContent();
+            verify(part, never()).getInputStream();
+            verify(part, never()).getDataHandler();
+        }
+    }
+
     @Test
     public void testMime4jAttachment() throws Exception {
         MimeMessage mime = new MimeMessageBuilder().build(TestConstants.MULTIPART_ATTACHMENT_BINARY);
@@ -0,0 +1,118 @@
+package org.minig.server.service.impl.helper;
+
+import org.junit.Test;
+import org.minig.server.TestConstants;
+import org.minig.server.service.MimeMessageBuilder;
+
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import java.util.List;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+/**
+ * @author Kamill Sokol
+ */
+public class MessageStructureTest {
+
+    @Test
+    public void testPlainAndHtml() throws Exception {
+        MimeMessage message = new MimeMessageBuilder().build(TestConstants.MULTIPART_WITH_PLAIN_AND_HTML);
+
+        MessageStructure structure = MessageStructure.of(message);
+
+        assertThat(structure.getPlain(), notNullValue());
+        assertThat(structure.getHtml(), containsString("<"));
+        assertThat(structure.getAttachmentSections().isEmpty(), is(true));
+        assertThat(structure.getAttachments(), hasSize(0));
+    }
+
+    @Test
+    public void testInlineParts() throws Exception {
+        MimeMessage message = new MimeMessageBuilder().build(TestConstants.MULTIPART_WITH_PLAIN_AND_HTML);
+
+        List<MessageStructure.Inline> inlineParts = MessageStructure.of(message).getInlineParts();
+
+        assertThat(inlineParts, hasSize(3));
+        assertThat(inlineParts.get(0).getContentId(), is("<1367760625.51865ef16cc8c@swift.generated>"));
+        assertThat(inlineParts.get(0).getFileName(), is("logo.png"));
+        assertThat(inlineParts.get(0).getMimeType(), is("image/png"));
+        assertThat(inlineParts.get(0).getSection(), is("2.2"));
+    }
+
+    @Test
+    public void testNestedMessage() throws Exception {
+        MimeMessage message = new MimeMessageBuilder().build(TestConstants.NESTED_MESSAGE);
+
+        List<MessageStructure.Attachment> attachments = MessageStructure.of(message).getAttachments();
+
+        assertThat(attachments, hasSize(1));
+        assertThat(attachments.get(0).getFileName(), is("Disposition Notification Test.eml"));
+        assertThat(attachments.get(0).getMimeType(), is("text/plain"));
+    }
+
+    @Test
+    public void testHtmlWithAttachment() throws Exception {
+        MimeMessage message = new MimeMessageBuilder().build(TestConstants.MULTIPART_WITH_HTML_AND_ATTACHMENT);
+
+        MessageStructure structure = MessageStructure.of(message);
+
+        assertThat(structure.getPlain(), nullValue());
+        assertThat(structure.getHtml(), notNullValue());
+        assertThat(structure.getSection("1.png"), is("2"));
+    }
+
+    @Test
+    public void testAttachmentSections() throws Exception {
+        MimeMessage message = new MimeMessageBuilder().build(TestConstants.MULTIPART_WITH_ATTACHMENT);
+
+        MessageStructure structure = MessageStructure.of(message);
+
+        assertThat(structure.getAttachmentSections().keySet(), contains("1.png", "2.png"));
+        assertThat(structure.getAttachments(), hasSize(2));
+        assertThat(structure.getAttachments().get(1).getMimeType(), is("image/png"));
+        assertThat(structure.getSection("2.png"), is("3"));
+        assertThat(structure.getAttachment("2.png").getFileName(), is("2.png"));
+        assertThat(structure.getAttachment("3.png"), nullValue());
+    }
+
+    @Test
+    public void testAttachmentContentIsNotRead() throws Exception {
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("plain text");
+
+        MimeBodyPart attachment = spy(new MimeBodyPart());
+        attachment.setContent(new byte[1024], "application/octet-stream");
+        attachment.setFileName("big.bin");
+        attachment.setDisposition(Part.ATTACHMENT);
+
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        multipart.addBodyPart(text);
+        multipart.addBodyPart(attachment);
+
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setContent(multipart);
+        message.saveChanges();
+
+        MessageStructure structure = MessageStructure.of(message);
+
+        assertThat(structure.getPlain(), is("plain text"));
+        assertThat(structure.getHtml(), nullValue());
+        assertThat(structure.getSection("big.bin"), is("2"));
+        verify(attachment, never()).getContent();
+        verify(attachment, never()).getInputStream();
+    }
+}
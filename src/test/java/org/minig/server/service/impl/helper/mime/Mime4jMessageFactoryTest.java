@@ -0,0 +1,70 @@
+package org.minig.server.service.impl.helper.mime;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.message.MessageImpl;
+import org.junit.Test;
+import org.minig.server.TestConstants;
+import org.minig.server.service.MimeMessageBuilder;
+
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author Kamill Sokol
+ */
+public class Mime4jMessageFactoryTest {
+
+    private Session session = Session.getInstance(new Properties());
+
+    @Test
+    public void testParse() throws Exception {
+        MimeMessage mimeMessage = new MimeMessageBuilder().build(TestConstants.MULTIPART_WITH_ATTACHMENT);
+
+        MessageImpl message = Mime4jMessageFactory.parse(mimeMessage);
+
+        assertThat(message.getSubject(), is(mimeMessage.getSubject()));
+        assertThat(message.getMessageId(), is(mimeMessage.getMessageID()));
+        assertThat(message.isMultipart(), is(true));
+
+        MimeMessage written = Mime4jMessageFactory.toMimeMessage(session, message);
+        Part attachment = ((Multipart) written.getContent()).getBodyPart(1);
+        Part expected = ((Multipart) mimeMessage.getContent()).getBodyPart(1);
+
+        assertThat(written.getMessageID(), is(mimeMessage.getMessageID()));
+        assertThat(IOUtils.toByteArray(attachment.getInputStream()), is(IOUtils.toByteArray(expected.getInputStream())));
+    }
+
+    @Test
+    public void testParseUnsavedMessage() throws Exception {
+        MimeMessage mimeMessage = new MimeMessage(session);
+        mimeMessage.setSubject("subject");
+        mimeMessage.setText("text");
+
+        MessageImpl message = Mime4jMessageFactory.parse(mimeMessage);
+
+        assertThat(message.getSubject(), is("subject"));
+    }
+
+    @Test
+    public void testToMimeMessage() throws Exception {
+        MessageImpl message;
+        try (InputStream input = new FileInputStream(TestConstants.MULTIPART_WITH_PLAIN_AND_ATTACHMENT)) {
+            message = Mime4jMessageFactory.parse(new MimeMessage(session, input));
+        }
+
+        MimeMessage mimeMessage = Mime4jMessageFactory.toMimeMessage(session, message);
+
+        assertThat(mimeMessage.getSubject(), is(message.getSubject()));
+        assertThat(mimeMessage.getRawInputStream(), instanceOf(SharedByteArrayInputStream.class));
+    }
+}
@@ -0,0 +1,169 @@
+package org.minig.server.service.impl.helper.mime;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.dom.BinaryBody;
+import org.apache.james.mime4j.dom.SingleBody;
+import org.apache.james.mime4j.dom.TextBody;
+import org.junit.Assume;
+import org.junit.Test;
+import org.minig.util.PrivateFiles;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Kamill Sokol
+ */
+public class ThresholdBodyFactoryTest {
+
+    private ThresholdBodyFactory uut = new ThresholdBodyFactory(1000);
+
+    @Test
+    public void testBinaryBodyInMemory() throws IOException {
+        byte[] payload = payload(100);
+
+        BinaryBody body = uut.binaryBody(new ByteArrayInputStream(payload));
+        body.dispose();
+
+        assertTrue(Arrays.equals(payload, read(body)));
+    }
+
+    @Test
+    public void testBinaryBodyInFile() throws IOException {
+        byte[] payload = payload(100000);
+
+        BinaryBody body = uut.binaryBody(new ByteArrayInputStream(payload));
+
+        assertTrue(Arrays.equals(payload, read(body)));
+        assertTrue(Arrays.equals(payload, read(body)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBinaryBodyInFileDisposed() throws IOException {
+        BinaryBody body = uut.binaryBody(new ByteArrayInputStream(payload(100000)));
+
+        body.dispose();
+
+        body.getInputStream();
+    }
+
+    @Test
+    public void testCopySurvivesDispose() throws IOException {
+        byte[] payload = payload(100000);
+        BinaryBody body = uut.binaryBody(new ByteArrayInputStream(payload));
+
+        SingleBody copy = body.copy();
+        body.dispose();
+
+        assertTrue(Arrays.equals(payload, read(copy)));
+        copy.dispose();
+    }
+
+    @Test
+    public void testFailedReadDeletesFile() throws IOException {
+        int files = tempFiles();
+        InputStream failing = new SequenceInputStream(new ByteArrayInputStream(payload(100000)), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection lost");
+            }
+        });
+
+        try {
+            uut.binaryBody(failing);
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("connection lost"));
+        }
+
+        assertThat(tempFiles(), is(files));
+    }
+
+    @Test
+    public void testBodyInFileIsOwnerOnly() throws IOException {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        List<File> before = Arrays.asList(bodyFiles());
+
+        BinaryBody body = uut.binaryBody(new ByteArrayInputStream(payload(100000)));
+        SingleBody copy = body.copy();
+
+        List<File> spooled = new ArrayList<>();
+        for (File file : bodyFiles()) {
+            if (!before.contains(file)) {
+                spooled.add(file);
+            }
+        }
+
+        assertThat(spooled, hasSize(2));
+        for (File file : spooled) {
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())), is("rw-------"));
+        }
+
+        body.dispose();
+        copy.dispose();
+
+        for (File file : spooled) {
+            assertThat(file.exists(), is(false));
+        }
+    }
+
+    @Test
+    public void testTextBody() throws IOException {
+        byte[] payload = "grüße".getBytes("UTF-8");
+
+        TextBody body = uut.textBody(new ByteArrayInputStream(payload), "UTF-8");
+
+        assertThat(body.getMimeCharset(), is("UTF-8"));
+        assertThat(IOUtils.toString(body.getReader()), is("grüße"));
+    }
+
+    @Test
+    public void testTextBodyWithoutCharset() throws IOException {
+        TextBody body = uut.textBody(new ByteArrayInputStream("plain".getBytes("US-ASCII")), null);
+
+        assertThat(IOUtils.toString(body.getReader()), is("plain"));
+    }
+
+    private static int tempFiles() throws IOException {
+        return bodyFiles().length;
+    }
+
+    private static File[] bodyFiles() throws IOException {
+        File[] files = PrivateFiles.getTempDirectory().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("minig-body");
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    private static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+
+    private static byte[] read(SingleBody body) throws IOException {
+        try (InputStream input = body.getInputStream()) {
+            return IOUtils.toByteArray(input);
+        }
+    }
+}
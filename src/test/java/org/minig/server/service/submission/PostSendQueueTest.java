@@ -0,0 +1,296 @@
+package org.minig.server.service.submission;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.minig.MailAuthentication;
+import org.minig.server.service.CompositeId;
+import org.minig.server.service.MailService;
+import org.minig.server.service.NotFoundException;
+import org.minig.server.service.RepositoryException;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.hasProperty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Kamill Sokol
+ */
+public class PostSendQueueTest {
+
+    private static final String USER = "testuser@localhost";
+
+    private final List<String> filed = Collections.synchronizedList(new ArrayList<String>());
+
+    private File directory;
+    private MailService mailService;
+    private MailAuthentication authentication;
+    private PostSendQueue uut;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("post-send").toFile();
+
+        mailService = mock(MailService.class);
+        authentication = mock(MailAuthentication.class);
+
+        doAnswer(fileMessage()).when(mailService).fileSentMessage(any(InputStream.class));
+        when(authentication.getEmailAddress()).thenReturn(USER);
+
+        uut = newQueue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        uut.destroy();
+    }
+
+    @Test
+    public void testSubmit() throws MessagingException {
+        CompositeId draft = new CompositeId("INBOX/Drafts", "<1@localhost>");
+        draft.setUidValidity(1L);
+        draft.setUid(42L);
+
+        uut.setSynchronous(true);
+        uut.submit(message("first"), draft, "<2@localhost>", "<3@localhost>");
+
+        InOrder order = inOrder(mailService);
+        order.verify(mailService).fileSentMessage(any(InputStream.class));
+        order.verify(mailService).removeDraft(draft);
+        order.verify(mailService).flagAsAnswered("<2@localhost>");
+        order.verify(mailService).flagAsForwarded("<3@localhost>");
+
+        assertThat(filed, contains("first"));
+        assertThat(userDirectory().listFiles(), emptyArray());
+    }
+
+    @Test
+    public void testRetryKeepsOrder() throws MessagingException {
+        doThrow(new RepositoryException("connection lost")).doAnswer(fileMessage()).doAnswer(fileMessage())
+                .when(mailService).fileSentMessage(any(InputStream.class));
+
+        uut.submit(message("first"), null, "<3@localhost>", null);
+        uut.submit(message("second"), null, null, null);
+
+        verify(mailService, timeout(2000).times(3)).fileSentMessage(any(InputStream.class));
+
+        InOrder order = inOrder(mailService);
+        order.verify(mailService, times(2)).fileSentMessage(any(InputStream.class));
+        order.verify(mailService).flagAsAnswered("<3@localhost>");
+        order.verify(mailService).fileSentMessage(any(InputStream.class));
+
+        assertThat(filed, contains("first", "second"));
+    }
+
+    @Test
+    public void testRetryContinuesWithFailedStep() throws MessagingException {
+        doThrow(new RepositoryException("connection lost")).doNothing().when(mailService).flagAsForwarded("<2@localhost>");
+
+        uut.submit(message("first"), null, null, "<2@localhost>");
+
+        verify(mailService, timeout(2000).times(2)).flagAsForwarded("<2@localhost>");
+        assertThat(filed, contains("first"));
+    }
+
+    @Test
+    public void testFailedFlagIsRetried() throws MessagingException {
+        doThrow(new RepositoryException("connection lost")).doNothing().when(mailService).flagAsAnswered("<2@localhost>");
+
+        uut.submit(message("first"), null, "<2@localhost>", null);
+
+        verify(mailService, timeout(2000).times(2)).flagAsAnswered("<2@localhost>");
+        verify(mailService, times(1)).fileSentMessage(any(InputStream.class));
+        assertThat(awaitFiles(0), emptyArray());
+    }
+
+    @Test
+    public void testMissingOriginalIsNotRetried() throws MessagingException {
+        doThrow(new NotFoundException()).when(mailService).flagAsForwarded("<2@localhost>");
+
+        uut.setSynchronous(true);
+        uut.submit(message("first"), null, null, "<2@localhost>");
+
+        verify(mailService, times(1)).flagAsForwarded("<2@localhost>");
+        assertThat(userDirectory().listFiles(), emptyArray());
+    }
+
+    @Test
+    public void testGiveUp() throws Exception {
+        CompositeId draft = new CompositeId("INBOX/Drafts", "<1@localhost>");
+        doThrow(new RepositoryException("connection lost")).when(mailService).removeDraft(draft);
+
+        uut.setMaxAttempts(2);
+        uut.submit(message("first"), draft, null, null);
+        uut.submit(message("second"), null, null, null);
+
+        verify(mailService, timeout(2000).times(2)).fileSentMessage(any(InputStream.class));
+        verify(mailService, times(2)).removeDraft(draft);
+        assertThat(filed, contains("first", "second"));
+
+        // the message has been filed, only the remaining steps are kept
+        File[] files = awaitFiles(1);
+        assertThat(files, arrayWithSize(1));
+        assertThat(files[0].getName(), endsWith(".job.failed"));
+    }
+
+    @Test
+    public void testGiveUpKeepsUnfiledMessage() throws Exception {
+        doThrow(new RepositoryException("connection lost")).when(mailService).fileSentMessage(any(InputStream.class));
+
+        uut.setMaxAttempts(1);
+        uut.setSynchronous(true);
+        uut.submit(message("first"), null, null, null);
+
+        File[] files = userDirectory().listFiles();
+        Arrays.sort(files);
+        assertThat(files, arrayWithSize(2));
+        assertThat(files[0].getName(), endsWith(".eml.failed"));
+        assertThat(files[1].getName(), endsWith(".job.failed"));
+
+        uut.purgeFailed();
+        assertThat(userDirectory().listFiles(), arrayWithSize(2));
+
+        uut.setFailedRetention(-1);
+        uut.purgeFailed();
+        assertThat(userDirectory().listFiles(), emptyArray());
+    }
+
+    @Test
+    public void testFilesAreOwnerOnly() throws Exception {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        doThrow(new RepositoryException("connection lost")).when(mailService).fileSentMessage(any(InputStream.class));
+
+        uut.setRetryDelay(60000);
+        uut.setSynchronous(true);
+        uut.submit(message("first"), null, null, null);
+
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(userDirectory().toPath())), is("rwx------"));
+
+        for (File file : userDirectory().listFiles()) {
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())), is("rw-------"));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoDirectory() throws Exception {
+        PostSendQueue queue = new PostSendQueue();
+        queue.setAuthentication(authentication);
+
+        try {
+            queue.submit(message("first"), null, null, null);
+        } finally {
+            queue.destroy();
+        }
+    }
+
+    @Test
+    public void testResumeLeftOverJobs() throws Exception {
+        CompositeId draft = new CompositeId("INBOX/Drafts", "<1@localhost>");
+        draft.setUidValidity(1L);
+        draft.setUid(42L);
+
+        doThrow(new RepositoryException("connection lost")).when(mailService).fileSentMessage(any(InputStream.class));
+
+        uut.setRetryDelay(60000);
+        uut.submit(message("first"), draft, "<3@localhost>", null);
+        verify(mailService, timeout(2000)).fileSentMessage(any(InputStream.class));
+        uut.destroy();
+
+        mailService = mock(MailService.class);
+        doAnswer(fileMessage()).when(mailService).fileSentMessage(any(InputStream.class));
+        uut = newQueue();
+        uut.submit(message("second"), null, null, null);
+
+        verify(mailService, timeout(2000).times(2)).fileSentMessage(any(InputStream.class));
+
+        InOrder order = inOrder(mailService);
+        order.verify(mailService).fileSentMessage(any(InputStream.class));
+        order.verify(mailService).removeDraft(argThat(hasProperty("uid", is(42L))));
+        order.verify(mailService).flagAsAnswered("<3@localhost>");
+        order.verify(mailService).fileSentMessage(any(InputStream.class));
+
+        assertThat(filed, contains("first", "second"));
+    }
+
+    private Answer<CompositeId> fileMessage() {
+        return new Answer<CompositeId>() {
+            @Override
+            public CompositeId answer(InvocationOnMock invocation) throws Throwable {
+                MimeMessage message = new MimeMessage(null, (InputStream) invocation.getArguments()[0]);
+                filed.add(message.getSubject());
+                return new CompositeId("INBOX/Sent", message.getMessageID());
+            }
+        };
+    }
+
+    private static MimeMessage message(String subject) throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setSubject(subject);
+        message.setText("test");
+        message.saveChanges();
+        return message;
+    }
+
+    private File userDirectory() {
+        return new File(directory, "testuser%40localhost");
+    }
+
+    private File[] awaitFiles(int count) {
+        File[] files = userDirectory().listFiles();
+
+        for (int i = 0; i < 200 && files.length != count; i++) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            files = userDirectory().listFiles();
+        }
+
+        Arrays.sort(files);
+        return files;
+    }
+
+    private PostSendQueue newQueue() {
+        PostSendQueue queue = new PostSendQueue();
+        queue.setDirectory(directory);
+        queue.setRetryDelay(10);
+        queue.setMailService(mailService);
+        queue.setAuthentication(authentication);
+        return queue;
+    }
+}
@@ -0,0 +1,226 @@
+package org.minig.server.service.submission;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Kamill Sokol
+ */
+public class SmtpTransportPoolTest {
+
+    private SmtpTransportPool uut;
+    private Session session;
+
+    @Before
+    public void setUp() {
+        CountingTransport.reset();
+
+        uut = new SmtpTransportPool();
+        session = newSession();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        uut.destroy();
+    }
+
+    @Test
+    public void testTransportIsReused() throws MessagingException {
+        uut.send(session, message());
+        uut.send(session, message());
+
+        assertThat(CountingTransport.connects.get(), is(1));
+        assertThat(CountingTransport.sent.get(), is(2));
+        assertThat(CountingTransport.closes.get(), is(0));
+    }
+
+    @Test
+    public void testTransportsArePooledPerSession() throws MessagingException {
+        uut.send(session, message());
+        uut.send(newSession(), message());
+
+        assertThat(CountingTransport.connects.get(), is(2));
+    }
+
+    @Test
+    public void testBrokenTransportIsNotReused() throws MessagingException {
+        CountingTransport.failure = new MessagingException("connection lost");
+
+        try {
+            uut.send(session, message());
+            fail("expected exception");
+        } catch (MessagingException e) {
+            assertThat(e.getMessage(), is("connection lost"));
+        }
+
+        uut.send(session, message());
+
+        assertThat(CountingTransport.connects.get(), is(2));
+        assertThat(CountingTransport.closes.get(), is(1));
+    }
+
+    @Test
+    public void testRejectedMessageKeepsTransport() throws MessagingException {
+        CountingTransport.failure = new SendFailedException("invalid recipient");
+
+        try {
+            uut.send(session, message());
+            fail("expected exception");
+        } catch (SendFailedException e) {
+            assertThat(e.getMessage(), is("invalid recipient"));
+        }
+
+        uut.send(session, message());
+
+        assertThat(CountingTransport.connects.get(), is(1));
+        assertThat(CountingTransport.closes.get(), is(0));
+    }
+
+    @Test
+    public void testIdleTransportIsEvicted() throws MessagingException {
+        uut.setIdleTimeout(-1);
+        uut.send(session, message());
+        uut.evictIdle();
+
+        assertThat(CountingTransport.closes.get(), is(1));
+
+        uut.send(session, message());
+
+        assertThat(CountingTransport.connects.get(), is(2));
+    }
+
+    @Test
+    public void testPoolIsBounded() throws Exception {
+        uut.setMaxConnectionsPerUser(1);
+        uut.setBorrowTimeout(50);
+
+        CountingTransport.blocked = new CountDownLatch(1);
+        final CountDownLatch sending = new CountDownLatch(1);
+        CountingTransport.sending = sending;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    uut.send(session, message());
+                } catch (MessagingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+
+        assertThat(sending.await(2, TimeUnit.SECONDS), is(true));
+
+        try {
+            uut.send(session, message());
+            fail("expected exception");
+        } catch (MessagingException e) {
+            assertThat(e.getMessage(), containsString("no free smtp connection"));
+        } finally {
+            CountingTransport.blocked.countDown();
+            thread.join(2000);
+        }
+
+        assertThat(CountingTransport.connects.get(), is(1));
+    }
+
+    private MimeMessage message() throws MessagingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("testuser@localhost"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress("recipient@localhost"));
+        message.setText("test");
+        return message;
+    }
+
+    private static Session newSession() {
+        Session session = Session.getInstance(new Properties());
+
+        try {
+            session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", CountingTransport.class.getName(), "test", null));
+        } catch (MessagingException e) {
+            throw new RuntimeException(e);
+        }
+
+        return session;
+    }
+
+    public static class CountingTransport extends Transport {
+
+        private static final AtomicInteger connects = new AtomicInteger();
+        private static final AtomicInteger closes = new AtomicInteger();
+        private static final AtomicInteger sent = new AtomicInteger();
+        private static volatile MessagingException failure;
+        private static volatile CountDownLatch sending;
+        private static volatile CountDownLatch blocked;
+
+        public CountingTransport(Session session, URLName urlname) {
+            super(session, urlname);
+        }
+
+        static void reset() {
+            connects.set(0);
+            closes.set(0);
+            sent.set(0);
+            failure = null;
+            sending = null;
+            blocked = null;
+        }
+
+        @Override
+        protected boolean protocolConnect(String host, int port, String user, String password) {
+            connects.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void sendMessage(Message message, Address[] addresses) throws MessagingException {
+            if (sending != null) {
+                sending.countDown();
+            }
+            if (blocked != null) {
+                try {
+                    blocked.await(2, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            MessagingException e = failure;
+            failure = null;
+
+            if (e != null) {
+                throw e;
+            }
+
+            sent.incrementAndGet();
+        }
+
+        @Override
+        public synchronized void close() throws MessagingException {
+            closes.incrementAndGet();
+            super.close();
+        }
+    }
+}
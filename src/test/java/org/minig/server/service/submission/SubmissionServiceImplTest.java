@@ -3,6 +3,7 @@ package org.minig.server.service.submission;
 import java.io.IOException;
 import java.util.Arrays;
 
+import javax.mail.Flags;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
@@ -167,6 +168,9 @@ public class SubmissionServiceImplTest {
         assertThat(sentBox, Matchers.hasSize(1));
         assertThat(draftsBox, Matchers.hasSize(0));
 
+        assertThat(sentBox.get(0).isSet(Flags.Flag.SEEN), is(true));
+        assertThat(sentBox.get(0).getHeader("Message-ID"), is(inbox.get(0).getHeader("Message-ID")));
+
 		Mime4jMessage mime4jMessage = Mime4jTestHelper.convertMimeMessage(inbox.get(0));
 
         assertEquals("testuser@localhost", mime4jMessage.getSender());
@@ -172,7 +172,7 @@ class MockFolder extends Folder {
 
     @Override
     public Message getMessage(int msgnum) throws MessagingException {
-        return mailbox.get(msgnum - 1);
+        return enhance(mailbox.get(msgnum - 1));
     }
 
     @Override
@@ -196,7 +196,6 @@ class MockFolder extends Folder {
                 msg.saveChanges();
             }
 
-            msg.setFlag(Flag.SEEN, false);
             mailbox.add(msg);
         }
     }